@@ -0,0 +1,160 @@
+package personal.thornupple.proximity;
+
+import java.util.Arrays;
+
+/*******************************************
+ /***** ALERT PROFILE ****
+ /*******************************************
+ how far out each sensor starts beeping, where it goes solid and how fast the pulses come - the numbers that
+ used to be constants in ProximityDecision.  immutable; withSensorRange() gives a changed copy.  compile()
+ turns a profile into the AlertTable the decision actually reads, so nothing here is on the hot path.
+
+ the named ones the user can pick from:
+   indoor   what the chair has always done: 60 cm to 10 cm, 750 ms cadence
+   outdoor  rolling faster, so twice the warning distance and a quicker cadence
+   doorway  the sides only speak up when a frame is really close, the front stays as indoor
+ /*******************************************/
+public final class AlertProfile
+{
+	public static final String INDOOR = "indoor";
+	public static final String OUTDOOR = "outdoor";
+	public static final String DOORWAY = "doorway";
+	public static final String[] NAMES = {INDOOR, OUTDOOR, DOORWAY};
+
+	// 100 ms below the frequency of the proximity sensor sending, and as long as the tone bank's pulses are
+	public static final int MAX_PERIOD_MS = 750;
+
+	private final String mName;
+	private final int[] mAlertMm;
+	private final int[] mSolidMm;
+	private final int mPeriodMs;
+	private final int mShortestOnMs;
+
+	/*******************************************
+	 /***** CONSTRUCTOR ****
+	 /*******************************************
+	 every sensor starts pulsing below alertMm, with shortestOnMs of every periodMs, and the on time grows
+	 in a straight line to a solid tone at solidMm
+	 /*******************************************/
+	public AlertProfile(String name, int sensorCount, int alertMm, int solidMm, int periodMs, int shortestOnMs)
+	{
+		if (periodMs <= 0 || periodMs > MAX_PERIOD_MS)
+			throw new IllegalArgumentException("Period must be 1 to " + MAX_PERIOD_MS + " ms: " + periodMs);
+		if (shortestOnMs <= 0 || shortestOnMs >= periodMs)
+			throw new IllegalArgumentException("Shortest on time " + shortestOnMs + " ms does not fit in a " + periodMs + " ms period");
+		checkRange(alertMm, solidMm);
+		mName = name;
+		mAlertMm = new int[sensorCount];
+		mSolidMm = new int[sensorCount];
+		Arrays.fill(mAlertMm, alertMm);
+		Arrays.fill(mSolidMm, solidMm);
+		mPeriodMs = periodMs;
+		mShortestOnMs = shortestOnMs;
+	}
+
+	private AlertProfile(AlertProfile other)
+	{
+		mName = other.mName;
+		mAlertMm = other.mAlertMm.clone();
+		mSolidMm = other.mSolidMm.clone();
+		mPeriodMs = other.mPeriodMs;
+		mShortestOnMs = other.mShortestOnMs;
+	}
+
+	private static void checkRange(int alertMm, int solidMm)
+	{
+		if (solidMm < 0 || alertMm <= solidMm)
+			throw new IllegalArgumentException("Alert distance " + alertMm + " mm must be past the solid distance " + solidMm + " mm");
+	}
+
+	// a copy with one sensor's range overridden
+	public AlertProfile withSensorRange(int sensor, int alertMm, int solidMm)
+	{
+		checkRange(alertMm, solidMm);
+		final AlertProfile copy = new AlertProfile(this);
+		copy.mAlertMm[sensor] = alertMm;
+		copy.mSolidMm[sensor] = solidMm;
+		return copy;
+	}
+
+	public static AlertProfile indoor(SensorLayout layout)
+	{
+		return new AlertProfile(INDOOR, layout.getCount(), ProximityDecision.MAX_DISTANCE_MM, ProximityDecision.MIN_DISTANCE_MM, MAX_PERIOD_MS, 15);
+	}
+
+	public static AlertProfile outdoor(SensorLayout layout)
+	{
+		return new AlertProfile(OUTDOOR, layout.getCount(), 1200, 200, 600, 40);
+	}
+
+	// anything pointing 45 degrees or more off straight ahead (or behind) gets the short range
+	public static AlertProfile doorway(SensorLayout layout)
+	{
+		AlertProfile profile = new AlertProfile(DOORWAY, layout.getCount(), ProximityDecision.MAX_DISTANCE_MM, ProximityDecision.MIN_DISTANCE_MM, MAX_PERIOD_MS, 15);
+		for (int sensor = 0; sensor < layout.getCount(); sensor++)
+		{
+			final int azimuth = Math.abs(layout.getAzimuthDegrees(sensor));
+			if (azimuth >= 45 && azimuth <= 135)
+				profile = profile.withSensorRange(sensor, 250, 60);
+		}
+		return profile;
+	}
+
+	// one of NAMES; anything else is indoor
+	public static AlertProfile named(String name, SensorLayout layout)
+	{
+		if (OUTDOOR.equals(name))
+			return outdoor(layout);
+		if (DOORWAY.equals(name))
+			return doorway(layout);
+		return indoor(layout);
+	}
+
+	/*******************************************
+	 /***** COMPILE ****
+	 /*******************************************
+	 allocates a few KB per sensor; do it off the decision thread and hand the result over
+	 /*******************************************/
+	public AlertTable compile(SensorLayout layout)
+	{
+		if (layout.getCount() > mAlertMm.length)
+			throw new IllegalArgumentException("Profile covers " + mAlertMm.length + " sensors, layout has " + layout.getCount());
+		return new AlertTable(this, layout);
+	}
+
+	public String getName()
+	{
+		return mName;
+	}
+
+	public int getSensorCount()
+	{
+		return mAlertMm.length;
+	}
+
+	public int getAlertMm(int sensor)
+	{
+		return mAlertMm[sensor];
+	}
+
+	public int getSolidMm(int sensor)
+	{
+		return mSolidMm[sensor];
+	}
+
+	public int getPeriodMs()
+	{
+		return mPeriodMs;
+	}
+
+	public int getShortestOnMs()
+	{
+		return mShortestOnMs;
+	}
+
+	@Override
+	public String toString()
+	{
+		return mName;
+	}
+}
@@ -0,0 +1,92 @@
+package personal.thornupple.proximity;
+
+/*******************************************
+ /***** ALERT TABLE ****
+ /*******************************************
+ an AlertProfile worked out ahead of time for one layout, so the decision thread does no arithmetic on it.
+
+ every sensor's range is first stretched onto one shared scale, MIN_DISTANCE_MM to MAX_DISTANCE_MM
+ (normalize()), so a side sensor that should only alert inside 25 cm and a front one that alerts at 60 cm
+ can still be compared to find the most urgent, and the hysteresis margins and the time to contact ramp
+ keep meaning the same thing whatever the profile.  on that scale the state is one array load: the packed
+ ToneScheduler state for every mm below MAX_DISTANCE_MM, per sensor, tone included.
+
+ immutable once built, so it is handed to the decision thread with a single volatile write and swapped
+ between readings; nothing is ever half old profile, half new
+ /*******************************************/
+public final class AlertTable
+{
+	private static final int SPAN_MM = ProximityDecision.MAX_DISTANCE_MM - ProximityDecision.MIN_DISTANCE_MM;
+
+	private final AlertProfile mProfile;
+	private final int mSensors;
+	private final int[] mSolidMm;
+	// 16.16 fixed point mm on the shared scale per raw mm
+	private final long[] mScale;
+	// [sensor * MAX_DISTANCE_MM + shared mm]
+	private final long[] mStates;
+
+	AlertTable(AlertProfile profile, SensorLayout layout)
+	{
+		mProfile = profile;
+		mSensors = layout.getCount();
+		mSolidMm = new int[mSensors];
+		mScale = new long[mSensors];
+		mStates = new long[mSensors * ProximityDecision.MAX_DISTANCE_MM];
+
+		final int period = profile.getPeriodMs();
+		final int shortest = profile.getShortestOnMs();
+		for (int sensor = 0; sensor < mSensors; sensor++)
+		{
+			mSolidMm[sensor] = profile.getSolidMm(sensor);
+			mScale[sensor] = ((long) SPAN_MM << 16) / (profile.getAlertMm(sensor) - profile.getSolidMm(sensor));
+
+			final int tone = layout.getTone(sensor);
+			final int base = sensor * ProximityDecision.MAX_DISTANCE_MM;
+			for (int mm = 0; mm < ProximityDecision.MAX_DISTANCE_MM; mm++)
+			{
+				// a straight line from the shortest pulse at the edge of the range to solid at MIN_DISTANCE_MM
+				int onMs = period * (ProximityDecision.MAX_DISTANCE_MM - mm) / SPAN_MM;
+				onMs = Math.min(period, Math.max(shortest, onMs));
+				mStates[base + mm] = ToneScheduler.packState(tone, onMs, period);
+			}
+		}
+	}
+
+	/*******************************************
+	 /***** NORMALIZE ****
+	 /*******************************************
+	 a raw reading from sensor onto the shared scale: the profile's solid distance lands on MIN_DISTANCE_MM and
+	 its alert distance on MAX_DISTANCE_MM.  never negative; no echo stays well out of range
+	 /*******************************************/
+	public int normalize(int sensor, int distanceMm)
+	{
+		if (distanceMm >= SensorFrame.NO_READING_MM)
+		{
+			return SensorFrame.NO_READING_MM;
+		}
+		final long shared = ProximityDecision.MIN_DISTANCE_MM + (((distanceMm - mSolidMm[sensor]) * mScale[sensor]) >> 16);
+		return (int) Math.max(0, Math.min(SensorFrame.NO_READING_MM, shared));
+	}
+
+	/*******************************************
+	 /***** GET STATE ****
+	 /*******************************************
+	 sharedMm on the shared scale, 0 to MAX_DISTANCE_MM - 1
+	 RETURNS:  the packed tone scheduler state for sensor at that distance
+	 /*******************************************/
+	public long getState(int sensor, int sharedMm)
+	{
+		return mStates[sensor * ProximityDecision.MAX_DISTANCE_MM + sharedMm];
+	}
+
+	public AlertProfile getProfile()
+	{
+		return mProfile;
+	}
+
+	public int getSensorCount()
+	{
+		return mSensors;
+	}
+}
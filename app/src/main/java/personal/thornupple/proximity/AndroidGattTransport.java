@@ -0,0 +1,297 @@
+package personal.thornupple.proximity;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+
+/*******************************************
+ /***** ANDROID GATT TRANSPORT ****
+ /*******************************************
+ the real radio: BluetoothGatt and its callback, turned into GattTransport calls.  this is what ProxBLE
+ used to do inline.  permissions are checked up front by the main activity, hence the suppressions
+ /*******************************************/
+public class AndroidGattTransport implements GattTransport
+{
+	private static final String TAG = AndroidGattTransport.class.getSimpleName();
+
+	private final Context mContext;
+	private final BluetoothAdapter mBluetoothAdapter;
+	// the thread every gatt callback lands on; null leaves it to the binder pool
+	private final Handler mCallbackHandler;
+
+	private volatile Callback mCallback;
+	private BluetoothGatt mBluetoothGatt;
+	private BluetoothGattCharacteristic mProxCharacteristic;
+	private BluetoothGattCharacteristic mIntervalCharacteristic;
+
+	public AndroidGattTransport(Context context, BluetoothAdapter bluetoothAdapter, Handler callbackHandler)
+	{
+		mContext = context;
+		mBluetoothAdapter = bluetoothAdapter;
+		mCallbackHandler = callbackHandler;
+	}
+
+	@Override
+	public void setCallback(Callback callback)
+	{
+		mCallback = callback;
+	}
+
+	@SuppressLint("MissingPermission")
+	@Override
+	public boolean connect(String deviceAddress)
+	{
+		// from the docs: if the adapter is unable to find a device with that address, getRemoteDevice() throws
+		try
+		{
+			final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(deviceAddress);
+			// a reconnect gets a fresh client; android only has a handful and a stale one is never given back
+			close();
+			mBluetoothGatt = device.connectGatt(mContext, false, mGattCallback, BluetoothDevice.TRANSPORT_LE,
+					BluetoothDevice.PHY_LE_1M_MASK, mCallbackHandler);
+			return mBluetoothGatt != null;
+		}
+		catch (IllegalArgumentException exception)
+		{
+			Log.w(TAG, "Device not found with provided address.");
+			return false;
+		}
+	}
+
+	@SuppressLint("MissingPermission")
+	@Override
+	public boolean discoverServices()
+	{
+		return mBluetoothGatt != null && mBluetoothGatt.discoverServices();
+	}
+
+	/*******************************************
+	 /***** SUBSCRIBE ****
+	 /*******************************************
+	 "subscribes to notifications from the bluetooth gatt service running on the remote server... in this
+	 case the microcontroller".  the descriptor write comes back in onDescriptorWrite
+	 /*******************************************/
+	@SuppressLint("MissingPermission")
+	@Override
+	public boolean subscribe()
+	{
+		if (mBluetoothGatt == null || mProxCharacteristic == null)
+		{
+			Log.w(TAG, "BluetoothGatt not initialized");
+			return false;
+		}
+		mBluetoothGatt.setCharacteristicNotification(mProxCharacteristic, true);
+
+		final BluetoothGattDescriptor descriptor = mProxCharacteristic.getDescriptor(ProxBLE.CLIENT_CHARACTERISTIC_CONFIG);
+		if (descriptor == null)
+		{
+			return false;
+		}
+		descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+		return mBluetoothGatt.writeDescriptor(descriptor);
+	}
+
+	@SuppressLint("MissingPermission")
+	@Override
+	public boolean read()
+	{
+		return mBluetoothGatt != null && mProxCharacteristic != null && mBluetoothGatt.readCharacteristic(mProxCharacteristic);
+	}
+
+	@SuppressLint("MissingPermission")
+	@Override
+	public boolean requestConnectionPriority(int priority)
+	{
+		return mBluetoothGatt != null && mBluetoothGatt.requestConnectionPriority(priority);
+	}
+
+	@SuppressLint("MissingPermission")
+	@Override
+	public boolean requestMtu(int mtu)
+	{
+		return mBluetoothGatt != null && mBluetoothGatt.requestMtu(mtu);
+	}
+
+	// a preference, not an order: if either radio cannot do 2M the link stays on 1M and onPhyUpdate says so
+	@SuppressLint("MissingPermission")
+	@Override
+	public boolean setPreferredPhy(int phy)
+	{
+		if (mBluetoothGatt == null)
+		{
+			return false;
+		}
+		final int mask = phy == PHY_LE_2M ? BluetoothDevice.PHY_LE_2M_MASK : BluetoothDevice.PHY_LE_1M_MASK;
+		mBluetoothGatt.setPreferredPhy(mask, mask, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+		return true;
+	}
+
+	@SuppressLint("MissingPermission")
+	@Override
+	public boolean writeNotifyInterval(int intervalMs)
+	{
+		if (mBluetoothGatt == null || mIntervalCharacteristic == null)
+		{
+			return false;
+		}
+		mIntervalCharacteristic.setValue(intervalMs, BluetoothGattCharacteristic.FORMAT_UINT16, 0);
+		return mBluetoothGatt.writeCharacteristic(mIntervalCharacteristic);
+	}
+
+	@Override
+	public int getValueHandle()
+	{
+		final BluetoothGattCharacteristic characteristic = mProxCharacteristic;
+		return characteristic == null ? -1 : characteristic.getInstanceId();
+	}
+
+	@SuppressLint("MissingPermission")
+	@Override
+	public void disconnect()
+	{
+		if (mBluetoothGatt != null)
+		{
+			mBluetoothGatt.disconnect();
+		}
+	}
+
+	@SuppressLint("MissingPermission")
+	@Override
+	public void close()
+	{
+		if (mBluetoothGatt == null)
+		{
+			return;
+		}
+		mBluetoothGatt.close();
+		mBluetoothGatt = null;
+		mProxCharacteristic = null;
+		mIntervalCharacteristic = null;
+	}
+
+	/*******************************************
+	 ***** BLUETOOTH GATT CALLBACK ****
+	 /*******************************************/
+	private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback()
+	{
+		@Override
+		public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState)
+		{
+			final Callback callback = mCallback;
+			if (callback == null)
+			{
+				return;
+			}
+			if (newState == BluetoothProfile.STATE_CONNECTED)
+			{
+				callback.onConnectionStateChange(true);
+			}
+			else if (newState == BluetoothProfile.STATE_DISCONNECTED)
+			{
+				callback.onConnectionStateChange(false);
+			}
+		}
+
+		@Override
+		public void onServicesDiscovered(BluetoothGatt gatt, int status)
+		{
+			if (status == BluetoothGatt.GATT_SUCCESS)
+			{
+				final BluetoothGattService environmentalSensingService = gatt.getService(ProxBLE.ENVIRONMENTAL_SENSING_SERVICE);
+				mProxCharacteristic = environmentalSensingService == null ? null
+						: environmentalSensingService.getCharacteristic(ProxBLE.LOCATION_AND_SPEED_CHARACTERISTIC);
+				// optional, older firmware does not have it
+				mIntervalCharacteristic = environmentalSensingService == null ? null
+						: environmentalSensingService.getCharacteristic(ProxBLE.NOTIFY_INTERVAL_CHARACTERISTIC);
+			}
+			else
+			{
+				Log.w(TAG, "onServicesDiscovered received: " + status);
+			}
+
+			final Callback callback = mCallback;
+			if (callback != null)
+			{
+				callback.onServicesDiscovered(status == BluetoothGatt.GATT_SUCCESS && mProxCharacteristic != null);
+			}
+		}
+
+		@Override
+		public void onMtuChanged(BluetoothGatt gatt, int mtu, int status)
+		{
+			final Callback callback = mCallback;
+			if (callback != null)
+			{
+				final boolean success = status == BluetoothGatt.GATT_SUCCESS;
+				callback.onMtuChanged(success ? mtu : DEFAULT_MTU, success);
+			}
+		}
+
+		@Override
+		public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status)
+		{
+			final Callback callback = mCallback;
+			if (callback != null)
+			{
+				callback.onPhyUpdate(txPhy, rxPhy, status == BluetoothGatt.GATT_SUCCESS);
+			}
+		}
+
+		@Override
+		public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status)
+		{
+			final Callback callback = mCallback;
+			if (callback != null && ProxBLE.NOTIFY_INTERVAL_CHARACTERISTIC.equals(characteristic.getUuid()))
+			{
+				callback.onNotifyIntervalWritten(status == BluetoothGatt.GATT_SUCCESS);
+			}
+		}
+
+		@Override
+		public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status)
+		{
+			final Callback callback = mCallback;
+			if (callback != null && ProxBLE.CLIENT_CHARACTERISTIC_CONFIG.equals(descriptor.getUuid()))
+			{
+				callback.onSubscribed(status == BluetoothGatt.GATT_SUCCESS);
+			}
+		}
+
+		// deprecated but still works and the docs are missing on how to implement the new api, so leave it as is
+		@Override
+		public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status)
+		{
+			if (status == BluetoothGatt.GATT_SUCCESS)
+			{
+				deliver(characteristic);
+			}
+		}
+
+		// same story as onCharacteristicRead
+		@Override
+		public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic)
+		{
+			deliver(characteristic);
+		}
+	};
+
+	// stamp the arrival time first thing, before anything else can delay it
+	private void deliver(BluetoothGattCharacteristic characteristic)
+	{
+		final long arrivalNanos = System.nanoTime();
+		final Callback callback = mCallback;
+		if (callback != null && ProxBLE.LOCATION_AND_SPEED_CHARACTERISTIC.equals(characteristic.getUuid()))
+		{
+			callback.onValue(characteristic.getValue(), arrivalNanos);
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package personal.thornupple.proximity;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioTrack;
+import android.util.Log;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+
+/*******************************************
+ /***** AUDIO TRACK SPATIAL OUTPUT ****
+ /*******************************************
+ streams a SpatialMixer out of one stereo AudioTrack.  one long lived audio thread renders a block into the
+ same buffer every time and writes it; the blocking write is what paces it, so it runs exactly as fast as
+ the speaker takes audio.  BLOCK_MS is the deadline a block has to be rendered in.
+
+ when the mixer has nothing to play the track is stopped (it plays out what was written first) and the
+ thread parks until the next publish, so a quiet ride is not waking the cpu every block to write zeros
+ /*******************************************/
+public class AudioTrackSpatialOutput implements Runnable
+{
+	private static final String TAG = AudioTrackSpatialOutput.class.getSimpleName();
+
+	// how much is rendered at once; the track buffers two of these on top of whatever the device needs
+	public static final int BLOCK_MS = 10;
+
+	private final SpatialMixer mMixer;
+	private final AudioTrack mTrack;
+	private final short[] mBlock;
+	private final int mBlockFrames;
+	private final ThreadFactory mThreadFactory;
+
+	private volatile boolean mRunning;
+	private volatile Thread mThread;
+	// only the publishing thread
+	private boolean mChanged;
+
+	public AudioTrackSpatialOutput(ToneConfig config, SensorLayout layout, ThreadFactory threadFactory)
+	{
+		mBlockFrames = config.sampleRate * BLOCK_MS / 1000;
+		mMixer = new SpatialMixer(config, layout, SpatialMixer.DEFAULT_MAX_VOICES, mBlockFrames);
+		mBlock = new short[mBlockFrames * SpatialMixer.CHANNELS];
+		mThreadFactory = threadFactory;
+
+		final AudioAttributes attributes = new AudioAttributes.Builder()
+				.setUsage(AudioAttributes.USAGE_MEDIA)
+				.setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION)
+				.build();
+
+		final AudioFormat format = new AudioFormat.Builder()
+				.setSampleRate(config.sampleRate)
+				.setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+				.setChannelMask(AudioFormat.CHANNEL_OUT_STEREO)
+				.build();
+
+		final int minimumBytes = AudioTrack.getMinBufferSize(config.sampleRate, AudioFormat.CHANNEL_OUT_STEREO, AudioFormat.ENCODING_PCM_16BIT);
+		mTrack = new AudioTrack.Builder()
+				.setAudioAttributes(attributes)
+				.setAudioFormat(format)
+				.setTransferMode(AudioTrack.MODE_STREAM)
+				.setBufferSizeInBytes(Math.max(minimumBytes, mBlock.length * 2 * 2))
+				.setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY)
+				.build();
+	}
+
+	/*******************************************
+	 /***** PUBLISH ****
+	 /*******************************************
+	 decision thread.  one sensor's newest state; finish the reading with commit()
+	 /*******************************************/
+	public void publish(int sensor, long state)
+	{
+		mChanged |= mMixer.publish(sensor, state);
+	}
+
+	// the reading is all published; wakes the audio thread if it changed anything
+	public void commit(long arrivalNanos, long decidedNanos)
+	{
+		mMixer.setStamps(arrivalNanos, decidedNanos);
+		if (mChanged)
+		{
+			mChanged = false;
+			wake();
+		}
+	}
+
+	// any thread; everything fades out
+	public void silence()
+	{
+		mMixer.silence();
+		wake();
+	}
+
+	private void wake()
+	{
+		final Thread thread = mThread;
+		if (thread != null)
+		{
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/*******************************************
+	 /***** START / STOP ****
+	 /*******************************************/
+	public synchronized void start()
+	{
+		if (mRunning)
+		{
+			return;
+		}
+		mRunning = true;
+		final Thread thread = mThreadFactory.newThread(this);
+		thread.setDaemon(true);
+		mThread = thread;
+		thread.start();
+	}
+
+	public synchronized void stop()
+	{
+		mRunning = false;
+		mMixer.silence();
+		final Thread thread = mThread;
+		mThread = null;
+		if (thread != null)
+		{
+			LockSupport.unpark(thread);
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		final Thread self = Thread.currentThread();
+		boolean playing = false;
+		while (mRunning && mThread == self)
+		{
+			if (mMixer.isSilent())
+			{
+				if (playing)
+				{
+					mTrack.stop();
+					playing = false;
+				}
+				LockSupport.park(this);
+				continue;
+			}
+			if (!playing)
+			{
+				mTrack.play();
+				playing = true;
+			}
+
+			mMixer.render(mBlock, mBlockFrames);
+			final int written = mTrack.write(mBlock, 0, mBlock.length, AudioTrack.WRITE_BLOCKING);
+			if (written < 0)
+			{
+				Log.w(TAG, "Audio track write failed: " + written);
+				LockSupport.parkNanos(this, BLOCK_MS * 1_000_000L);
+			}
+		}
+		if (playing)
+		{
+			mTrack.pause();
+			mTrack.flush();
+		}
+	}
+
+	// stops the thread and waits out the block it may be writing before the track goes
+	public void release()
+	{
+		final Thread thread = mThread;
+		stop();
+		if (thread != null)
+		{
+			try
+			{
+				thread.join(BLOCK_MS * 10);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		mTrack.release();
+	}
+}
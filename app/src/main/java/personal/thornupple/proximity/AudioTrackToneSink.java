@@ -0,0 +1,130 @@
+package personal.thornupple.proximity;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioTrack;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+/*******************************************
+ /***** AUDIO TRACK TONE SINK ****
+ /*******************************************
+ plays the cached tone bank buffers through one static AudioTrack per sensor.  the pcm is written into each
+ track once when we start, so starting a pulse is just rewind + play; nothing is allocated or copied while
+ we are alerting.
+
+ a pulse plays the tone bank's loop as many times as its length needs and then the fade baked into the
+ buffer, so it ends on its own; when the scheduler stops it on time it is left to finish.  a pulse that is
+ cut short (silence, or another tone took over) goes to zero volume first (the mixer ramps volume
+ changes) and is paused after that, which keeps it from clicking
+ /*******************************************/
+public class AudioTrackToneSink implements ToneSink
+{
+	private static final String TAG = AudioTrackToneSink.class.getSimpleName();
+	// a stop this close to a pulse's end counts as the end, not a cut
+	private static final int END_SLACK_MS = 2;
+
+	private final ToneBank mToneBank;
+	private final AudioTrack[] mTracks;
+	private int mPlaying = -1;
+	// when the playing pulse ends on its own (System.nanoTime), 0 for a solid tone
+	private long mPlayingUntilNanos;
+
+	public AudioTrackToneSink(ToneBank toneBank)
+	{
+		mToneBank = toneBank;
+
+		final AudioAttributes attributes = new AudioAttributes.Builder()
+				.setUsage(AudioAttributes.USAGE_MEDIA)
+				.setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION)
+				.build();
+
+		final AudioFormat format = new AudioFormat.Builder()
+				.setSampleRate(toneBank.getConfig().sampleRate)
+				.setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+				.setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
+				.build();
+
+		mTracks = new AudioTrack[toneBank.getToneCount()];
+		for (int tone = 0; tone < mTracks.length; tone++)
+		{
+			final short[] pcm = toneBank.getPcm(tone);
+			final AudioTrack track = new AudioTrack.Builder()
+					.setAudioAttributes(attributes)
+					.setAudioFormat(format)
+					.setTransferMode(AudioTrack.MODE_STATIC)
+					.setBufferSizeInBytes(pcm.length * 2)
+					.setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY)
+					.build();
+
+			if (track.write(pcm, 0, pcm.length) != pcm.length)
+			{
+				Log.w(TAG, "Could not load tone " + tone + " into its audio track.");
+			}
+			mTracks[tone] = track;
+		}
+	}
+
+	@Override
+	public void startTone(int tone, int durationMs)
+	{
+		if (tone < 0 || tone >= mTracks.length)
+		{
+			return;
+		}
+		stopTone();
+
+		final AudioTrack track = mTracks[tone];
+		// the last pulse on this track may still be finishing its fade; loop points only move while paused
+		if (track.getPlayState() == AudioTrack.PLAYSTATE_PLAYING)
+			cut(track);
+
+		// a solid tone loops forever until we stop it, a pulse just long enough
+		track.setLoopPoints(mToneBank.getLoopStartFrame(tone), mToneBank.getLoopEndFrame(tone),
+				mToneBank.getLoopCount(tone, durationMs));
+
+		track.setPlaybackHeadPosition(0);
+		// the configured volume is already baked into the pcm
+		track.setVolume(1f);
+		track.play();
+		mPlaying = tone;
+		mPlayingUntilNanos = durationMs <= 0 ? 0 : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMs - END_SLACK_MS);
+	}
+
+	@Override
+	public void stopTone()
+	{
+		if (mPlaying < 0)
+		{
+			return;
+		}
+		final AudioTrack track = mTracks[mPlaying];
+		mPlaying = -1;
+
+		// a pulse stopped at its end is already in its fade out (or about to be): let it play that
+		if (mPlayingUntilNanos != 0 && System.nanoTime() >= mPlayingUntilNanos)
+		{
+			return;
+		}
+		if (track.getPlayState() == AudioTrack.PLAYSTATE_PLAYING)
+		{
+			cut(track);
+		}
+	}
+
+	private static void cut(AudioTrack track)
+	{
+		track.setVolume(0f);
+		track.pause();
+	}
+
+	public void release()
+	{
+		stopTone();
+		for (AudioTrack track : mTracks)
+		{
+			track.release();
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package personal.thornupple.proximity;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/*******************************************
+ /***** BLE SCANNER ****
+ /*******************************************
+ looks for pods advertising the service, with as few cpu wakeups as the controller allows.
+
+   the service uuid filter goes to the controller, so on hardware that filters itself nothing else in
+   the room wakes us at all
+   results are batched in the controller where it supports it: one callback every report delay with
+   everything heard since, instead of one per advertisement
+   MODE_ACTIVE scans flat out while someone is waiting for the chair; MODE_IDLE is the controller's low
+   power duty cycle (a short window every few seconds) for carrying on looking after that
+
+ every result lands in ScanCandidates, deduplicated and ranked by rssi, and the listener hears once per
+ callback, not once per result.  main thread only
+ /*******************************************/
+public class BleScanner
+{
+	private static final String TAG = BleScanner.class.getSimpleName();
+
+	public static final int MODE_ACTIVE = 0;
+	public static final int MODE_IDLE = 1;
+
+	// how long the controller holds results before waking us with the lot, per mode
+	private static final long ACTIVE_REPORT_DELAY_MS = 500;
+	private static final long IDLE_REPORT_DELAY_MS = 5000;
+
+	public interface Listener
+	{
+		// new results are in getCandidates()
+		void onCandidates();
+
+		void onScanFailed(int errorCode);
+	}
+
+	private final BluetoothAdapter mAdapter;
+	private final List<ScanFilter> mFilters;
+	private final Listener mListener;
+	private final ScanCandidates mCandidates = new ScanCandidates();
+	private final boolean mBatching;
+
+	private BluetoothLeScanner mScanner;
+	private boolean mScanning;
+	private int mMode = MODE_ACTIVE;
+
+	public BleScanner(BluetoothAdapter adapter, UUID service, Listener listener)
+	{
+		mAdapter = adapter;
+		mListener = listener;
+		mFilters = Collections.singletonList(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(service)).build());
+		mBatching = adapter.isOffloadedScanBatchingSupported();
+		Log.i(TAG, "Controller batching " + (mBatching ? "supported" : "not supported")
+				+ ", filtering " + (adapter.isOffloadedFilteringSupported() ? "supported" : "not supported"));
+	}
+
+	/*******************************************
+	 /***** START ****
+	 /*******************************************
+	 a new scan in mode, with a fresh set of candidates.  the caller has checked the scan permission
+	 /*******************************************/
+	@SuppressLint("MissingPermission")
+	public void start(int mode)
+	{
+		stop();
+		if (mScanner == null)
+			mScanner = mAdapter.getBluetoothLeScanner();
+		if (mScanner == null)
+		{
+			// bluetooth went off under us
+			mListener.onScanFailed(ScanCallback.SCAN_FAILED_INTERNAL_ERROR);
+			return;
+		}
+		mCandidates.start(SystemClock.elapsedRealtimeNanos());
+		startScan(mode);
+	}
+
+	/*******************************************
+	 /***** SET MODE ****
+	 /*******************************************
+	 carries on with the same candidates (and counters), only the duty cycle changes
+	 /*******************************************/
+	@SuppressLint("MissingPermission")
+	public void setMode(int mode)
+	{
+		if (!mScanning || mode == mMode)
+		{
+			return;
+		}
+		// whatever the controller is holding would otherwise go with the old scan
+		if (mBatching)
+			mScanner.flushPendingScanResults(mCallback);
+		mScanner.stopScan(mCallback);
+		startScan(mode);
+	}
+
+	@SuppressLint("MissingPermission")
+	private void startScan(int mode)
+	{
+		final boolean active = mode == MODE_ACTIVE;
+		final ScanSettings settings = new ScanSettings.Builder()
+				.setLegacy(false)
+				.setScanMode(active ? ScanSettings.SCAN_MODE_LOW_LATENCY : ScanSettings.SCAN_MODE_LOW_POWER)
+				.setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
+				// sticky wants a few strong advertisements before it reports, which is fine once nobody is waiting
+				.setMatchMode(active ? ScanSettings.MATCH_MODE_AGGRESSIVE : ScanSettings.MATCH_MODE_STICKY)
+				.setReportDelay(mBatching ? (active ? ACTIVE_REPORT_DELAY_MS : IDLE_REPORT_DELAY_MS) : 0)
+				.build();
+		mMode = mode;
+		mScanning = true;
+		mScanner.startScan(mFilters, settings, mCallback);
+		Log.d(TAG, "Scanning " + (active ? "active" : "idle") + (mBatching ? ", batched" : ""));
+	}
+
+	@SuppressLint("MissingPermission")
+	public void stop()
+	{
+		if (!mScanning)
+		{
+			return;
+		}
+		mScanning = false;
+		mScanner.stopScan(mCallback);
+		final long now = SystemClock.elapsedRealtimeNanos();
+		mCandidates.finish(now);
+		Log.i(TAG, "Scan stopped after " + mCandidates.describe(now));
+	}
+
+	public boolean isScanning()
+	{
+		return mScanning;
+	}
+
+	public int getMode()
+	{
+		return mMode;
+	}
+
+	public boolean isBatching()
+	{
+		return mBatching;
+	}
+
+	public ScanCandidates getCandidates()
+	{
+		return mCandidates;
+	}
+
+	private final ScanCallback mCallback = new ScanCallback()
+	{
+		@Override
+		public void onScanResult(int callbackType, ScanResult result)
+		{
+			if (!mScanning)
+			{
+				return;
+			}
+			mCandidates.onCallback(1);
+			offer(result);
+			mListener.onCandidates();
+		}
+
+		@Override
+		public void onBatchScanResults(List<ScanResult> results)
+		{
+			if (!mScanning)
+			{
+				return;
+			}
+			mCandidates.onCallback(results.size());
+			for (ScanResult result : results)
+				offer(result);
+			if (!results.isEmpty())
+				mListener.onCandidates();
+		}
+
+		@Override
+		public void onScanFailed(int errorCode)
+		{
+			Log.w(TAG, "Scan failed: " + errorCode);
+			mScanning = false;
+			mCandidates.finish(SystemClock.elapsedRealtimeNanos());
+			mListener.onScanFailed(errorCode);
+		}
+	};
+
+	// the result's own timestamp is on the same clock as elapsedRealtimeNanos, so a batch keeps its order
+	private void offer(ScanResult result)
+	{
+		final String name = result.getScanRecord() != null ? result.getScanRecord().getDeviceName() : null;
+		mCandidates.offer(result.getDevice().getAddress(), name, result.getRssi(), result.getTimestampNanos());
+	}
+}
@@ -0,0 +1,171 @@
+package personal.thornupple.proximity;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/*******************************************
+ /***** DECISION THREAD ****
+ /*******************************************
+ moves the sample channel's consumer off the gatt thread.  the gatt side only raises a flag and unparks
+ us; this thread runs the consumer, which drains the channel (every sample, in order) - decode, record,
+ decide, publish to the tone scheduler - so neither a slow decision nor a GC pause on it holds up the
+ radio, and nothing on the way goes near the main looper.
+
+ sits between the gatt thread and the consumer: register it as the session's sample listener.  the hand
+ offs on either side are the bounded lock-free ones that were already there - the sample channel in, the
+ tone scheduler's newest-state slot out.
+
+ one thread for however many sessions feed it (one per sensor pod): every channel that has ever poked it
+ is offered to the consumer on each wake, and poll() says which of them actually have something
+
+ it is also the one timer for anything that has to happen when samples do not come (see Timer): the timer
+ runs after every wake and the thread parks until the deadline it hands back, so a check costs a wakeup
+ at its deadline and no thread of its own
+ /*******************************************/
+public final class DecisionThread implements SampleChannel.Listener, Runnable
+{
+	public static final long IDLE = Long.MAX_VALUE;
+
+	/*******************************************
+	 /***** TIMER ****
+	 /*******************************************
+	 called on the decision thread after every batch of samples and whenever its deadline comes round.
+	 RETURNS:  when it next wants calling (System.nanoTime), or IDLE for not until the next sample
+	 /*******************************************/
+	public interface Timer
+	{
+		long onTimer(long nowNanos);
+	}
+
+	private final SampleChannel.Listener mConsumer;
+	private final ThreadFactory mThreadFactory;
+	private final AtomicBoolean mPending = new AtomicBoolean();
+	// copy on write; grows by one the first time each session's channel shows up
+	private volatile SampleChannel[] mChannels = new SampleChannel[0];
+	private volatile Timer mTimer;
+
+	private volatile boolean mRunning;
+	private volatile Thread mThread;
+
+	public DecisionThread(SampleChannel.Listener consumer, ThreadFactory threadFactory)
+	{
+		mConsumer = consumer;
+		mThreadFactory = threadFactory;
+	}
+
+	// gatt thread: something landed in the channel
+	@Override
+	public void onSampleAvailable(SampleChannel channel)
+	{
+		if (!contains(mChannels, channel))
+		{
+			addChannel(channel);
+		}
+		if (!mPending.getAndSet(true))
+		{
+			final Thread thread = mThread;
+			if (thread != null)
+			{
+				LockSupport.unpark(thread);
+			}
+		}
+	}
+
+	private synchronized void addChannel(SampleChannel channel)
+	{
+		final SampleChannel[] channels = mChannels;
+		if (contains(channels, channel))
+		{
+			return;
+		}
+		final SampleChannel[] grown = new SampleChannel[channels.length + 1];
+		System.arraycopy(channels, 0, grown, 0, channels.length);
+		grown[channels.length] = channel;
+		mChannels = grown;
+	}
+
+	private static boolean contains(SampleChannel[] channels, SampleChannel channel)
+	{
+		for (SampleChannel known : channels)
+		{
+			if (known == channel)
+				return true;
+		}
+		return false;
+	}
+
+	// any thread, before start() ideally; null for none
+	public void setTimer(Timer timer)
+	{
+		mTimer = timer;
+		final Thread thread = mThread;
+		if (thread != null)
+		{
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/*******************************************
+	 /***** START / STOP ****
+	 /*******************************************/
+	public synchronized void start()
+	{
+		if (mRunning)
+		{
+			return;
+		}
+		mRunning = true;
+		final Thread thread = mThreadFactory.newThread(this);
+		thread.setDaemon(true);
+		mThread = thread;
+		thread.start();
+	}
+
+	public synchronized void stop()
+	{
+		mRunning = false;
+		final Thread thread = mThread;
+		mThread = null;
+		if (thread != null)
+		{
+			LockSupport.unpark(thread);
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		final Thread self = Thread.currentThread();
+		long deadline = IDLE;
+		while (mRunning && mThread == self)
+		{
+			final boolean pending = mPending.getAndSet(false);
+			if (pending)
+			{
+				for (SampleChannel channel : mChannels)
+				{
+					mConsumer.onSampleAvailable(channel);
+				}
+			}
+			final Timer timer = mTimer;
+			final long now = System.nanoTime();
+			if (timer != null && (pending || now >= deadline || deadline == IDLE))
+			{
+				deadline = timer.onTimer(now);
+			}
+			if (pending)
+			{
+				continue;
+			}
+			if (deadline == IDLE)
+			{
+				LockSupport.park(this);
+			}
+			else if (deadline > now)
+			{
+				LockSupport.parkNanos(this, deadline - now);
+			}
+		}
+	}
+}
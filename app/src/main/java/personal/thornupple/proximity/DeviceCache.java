@@ -0,0 +1,110 @@
+package personal.thornupple.proximity;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/*******************************************
+ /***** DEVICE CACHE ****
+ /*******************************************
+ the last chair we talked to (its front pod, and its rear pod if it has one), kept across launches so startup can connect to it straight away instead of
+ scanning for up to SCAN_PERIOD first.  the address comes from the scan; the value handle comes from
+ service discovery and is only there to notice a reflashed chair (android still wants a discovery on every
+ connection, but it answers that from its own cache when the table has not changed, which is the fast case).
+
+ SharedPreferences keeps everything in memory after the first read, so the getters are cheap; writes go
+ out with apply() and do not block the caller
+ /*******************************************/
+public class DeviceCache
+{
+	private static final String PREFERENCES = "known_device";
+	private static final String KEY_ADDRESS = "address";
+	private static final String KEY_NAME = "name";
+	private static final String KEY_VALUE_HANDLE = "value_handle";
+
+	private final SharedPreferences mPreferences;
+
+	public DeviceCache(Context context)
+	{
+		mPreferences = context.getApplicationContext().getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+	}
+
+	// null if we have never found a chair (or forgot it)
+	public String getAddress()
+	{
+		return mPreferences.getString(KEY_ADDRESS, null);
+	}
+
+	// the front pod is the plain address, any other pod has its number on the key
+	public String getAddress(int pod)
+	{
+		return pod == 0 ? getAddress() : mPreferences.getString(KEY_ADDRESS + "_" + pod, null);
+	}
+
+	// true if any pod is on file
+	public boolean hasAddress(int pods)
+	{
+		for (int pod = 0; pod < pods; pod++)
+		{
+			if (getAddress(pod) != null)
+				return true;
+		}
+		return false;
+	}
+
+	public String getName()
+	{
+		return mPreferences.getString(KEY_NAME, null);
+	}
+
+	// -1 until a discovery has been seen
+	public int getValueHandle()
+	{
+		return mPreferences.getInt(KEY_VALUE_HANDLE, -1);
+	}
+
+	// from a scan result; a different chair than before starts without handles
+	public void remember(String address, String name)
+	{
+		final SharedPreferences.Editor editor = mPreferences.edit()
+				.putString(KEY_ADDRESS, address)
+				.putString(KEY_NAME, name);
+		if (!address.equals(getAddress()))
+		{
+			editor.remove(KEY_VALUE_HANDLE);
+		}
+		editor.apply();
+	}
+
+	// a pod other than the front one; the handle only tracks the front pod
+	public void remember(int pod, String address, String name)
+	{
+		if (pod == 0)
+		{
+			remember(address, name);
+			return;
+		}
+		mPreferences.edit().putString(KEY_ADDRESS + "_" + pod, address).apply();
+	}
+
+	/*******************************************
+	 /***** REMEMBER HANDLE ****
+	 /*******************************************
+	 RETURNS:  true if a different handle was on file, i.e. the chair's gatt table moved since last time
+	 /*******************************************/
+	public boolean rememberValueHandle(int handle)
+	{
+		final int previous = getValueHandle();
+		if (previous == handle)
+		{
+			return false;
+		}
+		mPreferences.edit().putInt(KEY_VALUE_HANDLE, handle).apply();
+		return previous != -1;
+	}
+
+	// the cached chair did not answer; the next start scans again
+	public void forget()
+	{
+		mPreferences.edit().clear().apply();
+	}
+}
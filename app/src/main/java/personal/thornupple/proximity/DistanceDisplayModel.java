@@ -0,0 +1,155 @@
+package personal.thornupple.proximity;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*******************************************
+ /***** DISTANCE DISPLAY MODEL ****
+ /*******************************************
+ what the distance labels show, kept apart from the views so readings can arrive at 500 Hz while the
+ screen only changes once per frame.
+
+ the decision thread publish()es every reading; the ui thread render()s once per display frame and only sees
+ the newest one.  the hand over is a triple buffer: the writer fills its own copy and swaps it into the
+ middle, the reader swaps the middle out when there is something new.  neither side waits and a reading
+ is never half old half new.  publish() says when a frame needs asking for, so there is at most one
+ pending no matter how fast the readings come.
+
+ the text ("Left Distance \n\t\t\t12.3cm") is built in a char buffer per sensor and only for sensors whose
+ reading changed, so after the first frame nothing here allocates.  TextView.setText(char[], int, int)
+ keeps a wrapper around the array rather than copying it into a new String
+ /*******************************************/
+public class DistanceDisplayModel
+{
+	// marks the middle buffer as holding a reading the reader has not taken yet
+	private static final int FRESH = 4;
+	private static final int INDEX_MASK = 3;
+
+	// never matches a real reading, so the first render writes every label
+	private static final int NOTHING_SHOWN = -1;
+
+	private final int mCount;
+	private final int[][] mBuffers;
+	private final AtomicInteger mMiddle = new AtomicInteger(1);
+	// only the writer touches mBack, only the reader mFront
+	private int mBack = 0;
+	private int mFront = 2;
+
+	private final int[] mShownMm;
+	private final char[][] mText;
+	private final int[] mTextLength;
+	private final int[] mPrefixLength;
+
+	public DistanceDisplayModel(SensorLayout layout)
+	{
+		mCount = layout.getCount();
+		mBuffers = new int[3][mCount];
+		mShownMm = new int[mCount];
+		mText = new char[mCount][];
+		mTextLength = new int[mCount];
+		mPrefixLength = new int[mCount];
+		for (int sensor = 0; sensor < mCount; sensor++)
+		{
+			final String prefix = layout.getLabel(sensor) + " Distance \n\t\t\t";
+			// room for a u16 of mm: 6553.5cm
+			mText[sensor] = new char[prefix.length() + 8];
+			prefix.getChars(0, prefix.length(), mText[sensor], 0);
+			mPrefixLength[sensor] = prefix.length();
+			mShownMm[sensor] = NOTHING_SHOWN;
+		}
+	}
+
+	/*******************************************
+	 /***** PUBLISH ****
+	 /*******************************************
+	 one thread only.  copies getCount() distances (mm) from offset
+	 RETURNS:  true if the reader has caught up since the last publish, i.e. ask for a frame now
+	 /*******************************************/
+	public boolean publish(int[] distancesMm, int offset)
+	{
+		System.arraycopy(distancesMm, offset, mBuffers[mBack], 0, mCount);
+		final int previous = mMiddle.getAndSet(mBack | FRESH);
+		mBack = previous & INDEX_MASK;
+		return (previous & FRESH) == 0;
+	}
+
+	/*******************************************
+	 /***** RENDER ****
+	 /*******************************************
+	 ui thread.  takes the newest reading and rewrites the text of every sensor that changed
+	 RETURNS:  a bit per sensor whose text changed (bit 0 = sensor 0), 0 if nothing did
+	 /*******************************************/
+	public int render()
+	{
+		if ((mMiddle.get() & FRESH) == 0)
+		{
+			return 0;
+		}
+		mFront = mMiddle.getAndSet(mFront) & INDEX_MASK;
+
+		final int[] distances = mBuffers[mFront];
+		int changed = 0;
+		for (int sensor = 0; sensor < mCount; sensor++)
+		{
+			final int mm = Math.max(0, distances[sensor]);
+			if (mm == mShownMm[sensor])
+			{
+				continue;
+			}
+			mShownMm[sensor] = mm;
+			mTextLength[sensor] = mm >= SensorFrame.NO_READING_MM
+					? formatNoEcho(mText[sensor], mPrefixLength[sensor])
+					: formatCm(mm, mText[sensor], mPrefixLength[sensor]);
+			changed |= 1 << sensor;
+		}
+		return changed;
+	}
+
+	// writes mm as cm with one decimal ("12.3cm") at start, no String, no Formatter
+	// RETURNS:  where the text ends
+	static int formatCm(int mm, char[] out, int start)
+	{
+		int cm = mm / 10;
+		int digits = 1;
+		for (int rest = cm / 10; rest > 0; rest /= 10)
+			digits++;
+
+		int position = start + digits;
+		do
+		{
+			out[--position] = (char) ('0' + cm % 10);
+			cm /= 10;
+		}
+		while (cm > 0);
+
+		position = start + digits;
+		out[position++] = '.';
+		out[position++] = (char) ('0' + mm % 10);
+		out[position++] = 'c';
+		out[position++] = 'm';
+		return position;
+	}
+
+	// nothing in range, or a pod that is not there
+	static int formatNoEcho(char[] out, int start)
+	{
+		out[start] = '-';
+		out[start + 1] = '-';
+		return start + 2;
+	}
+
+	public int getCount()
+	{
+		return mCount;
+	}
+
+	// the text for sensor as of the last render(); valid until the next one
+	public char[] getText(int sensor)
+	{
+		return mText[sensor];
+	}
+
+	public int getTextLength(int sensor)
+	{
+		return mTextLength[sensor];
+	}
+}
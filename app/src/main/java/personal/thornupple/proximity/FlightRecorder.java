@@ -0,0 +1,202 @@
+package personal.thornupple.proximity;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*******************************************
+ /***** FLIGHT RECORDER ****
+ /*******************************************
+ the last few thousand things that happened, in memory, for after the fact.  logcat is slow to write to
+ (a string per line, a binder hop) and gone by the time anybody asks what the chair did, so the hot path
+ records typed events here instead and the buffer is written out on demand or when we crash.
+
+ an event is a type, a System.nanoTime stamp and two longs whose meaning depends on the type (see the
+ constants).  the buffer is a fixed ring of CAPACITY events; the oldest get overwritten.  recording claims
+ a slot with one atomic increment and fills it in - no lock, no allocation, tens of ns - from any thread.
+
+ each slot carries a stamp (which event it holds and its type) written last, and cleared first when the
+ slot is reused, so a dump that races a writer skips the half written slot instead of printing garbage.
+
+ file format (big endian, see write()): "PXFR", u16 version, i64 wall clock ms and i64 nanoTime at the
+ time of the dump (to put the events on the wall clock), i32 count, then count events of u8 type, i64
+ nanoTime, i64 a, i64 b, oldest first.  benchmark's TraceTool prints it as a timeline
+ /*******************************************/
+public final class FlightRecorder
+{
+	public static final int MAGIC = 0x50584652; // PXFR
+	public static final int FILE_VERSION = 1;
+
+	// a = sequence << 16 | sensorCount << 8 | sampleCount, b = first 4 distances of the newest sample, u16 mm each
+	public static final int SAMPLE = 1;
+	// a = ToneScheduler packed state, b = closest effective distance mm
+	public static final int DECISION = 2;
+	// a = tone, b = on ms (0 = solid)
+	public static final int TONE_START = 3;
+	public static final int TONE_STOP = 4;
+	// a = payload length; a notification the decoder threw out
+	public static final int BAD_FRAME = 5;
+	public static final int GATT_CONNECTED = 6;
+	public static final int GATT_DISCONNECTED = 7;
+	public static final int GATT_DISCOVERED = 8;
+	// a = ns since the connect started, b = ns since the last link dropped (-1 if none)
+	public static final int GATT_FIRST_SAMPLE = 9;
+	// a = mtu, b = tx phy << 8 | rx phy
+	public static final int GATT_LINK_READY = 10;
+	// a = attempt, b = delay ns
+	public static final int GATT_RECONNECTING = 11;
+	public static final int GATT_GAVE_UP = 12;
+	// a = GattOperationQueue op, b = its argument
+	public static final int GATT_OP_FAILED = 13;
+	// a = notify interval ms written to the chair
+	public static final int NOTIFY_INTERVAL = 14;
+	// a = pod, b = ns since its last sample (LivenessMonitor)
+	public static final int SENSOR_LOST = 15;
+	// a = pod, b = ns it was gone
+	public static final int SENSOR_RECOVERED = 16;
+	public static final int TYPE_COUNT = 17;
+
+	private static final String[] TYPE_NAMES = {
+			"?", "sample", "decision", "tone start", "tone stop", "bad frame", "connected", "disconnected",
+			"discovered", "first sample", "link ready", "reconnecting", "gave up", "op failed", "notify interval",
+			"sensor lost", "sensor back"};
+
+	// about 40 s of 50 Hz samples with their decisions (less at faster rates); 128 KB
+	public static final int CAPACITY = 4096;
+
+	private static final int WORDS = 4;
+	private static final int STAMP = 0;
+	private static final int TIME = 1;
+	private static final int A = 2;
+	private static final int B = 3;
+	private static final long EMPTY = -1;
+
+	private static final FlightRecorder INSTANCE = new FlightRecorder(CAPACITY);
+
+	private final int mMask;
+	private final AtomicLongArray mSlots;
+	private final AtomicLong mNext = new AtomicLong();
+
+	public FlightRecorder(int capacity)
+	{
+		if (capacity <= 0 || Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+		mMask = capacity - 1;
+		mSlots = new AtomicLongArray(capacity * WORDS);
+		for (int slot = 0; slot < capacity; slot++)
+		{
+			mSlots.set(slot * WORDS + STAMP, EMPTY);
+		}
+	}
+
+	// the process wide one everything records into
+	public static FlightRecorder get()
+	{
+		return INSTANCE;
+	}
+
+	public void record(int type, long a, long b)
+	{
+		record(type, System.nanoTime(), a, b);
+	}
+
+	/*******************************************
+	 /***** RECORD ****
+	 /*******************************************
+	 any thread.  timeNanos is on the System.nanoTime clock (or whatever clock the caller runs on)
+	 /*******************************************/
+	public void record(int type, long timeNanos, long a, long b)
+	{
+		final long event = mNext.getAndIncrement();
+		final int base = (int) (event & mMask) * WORDS;
+		// cleared with a full barrier so a reader cannot see the new contents under the old stamp
+		mSlots.set(base + STAMP, EMPTY);
+		mSlots.lazySet(base + TIME, timeNanos);
+		mSlots.lazySet(base + A, a);
+		mSlots.lazySet(base + B, b);
+		mSlots.lazySet(base + STAMP, event << 8 | type);
+	}
+
+	// the first four distances of the newest sample in frame, as a SAMPLE event's b
+	public static long packDistances(SensorFrame frame)
+	{
+		final int offset = frame.getSampleOffset(frame.sampleCount - 1);
+		long packed = 0;
+		for (int sensor = 0; sensor < 4; sensor++)
+		{
+			final long mm = sensor < frame.sensorCount ? frame.distancesMm[offset + sensor] & 0xFFFF : SensorFrame.NO_READING_MM;
+			packed |= mm << (sensor * 16);
+		}
+		return packed;
+	}
+
+	/*******************************************
+	 /***** WRITE ****
+	 /*******************************************
+	 writes what is in the ring now, oldest first.  recording carries on while this runs; events that get
+	 overwritten under it are left out.  allocates, so not for the hot path
+	 RETURNS:  how many events were written
+	 /*******************************************/
+	public int write(OutputStream stream) throws IOException
+	{
+		final long end = mNext.get();
+		final long start = Math.max(0, end - (mMask + 1));
+		final int capacity = (int) (end - start);
+		final byte[] types = new byte[capacity];
+		final long[] times = new long[capacity];
+		final long[] as = new long[capacity];
+		final long[] bs = new long[capacity];
+
+		int count = 0;
+		for (long event = start; event < end; event++)
+		{
+			final int base = (int) (event & mMask) * WORDS;
+			final long stamp = mSlots.get(base + STAMP);
+			if (stamp == EMPTY || stamp >>> 8 != event)
+			{
+				continue;
+			}
+			final long time = mSlots.get(base + TIME);
+			final long a = mSlots.get(base + A);
+			final long b = mSlots.get(base + B);
+			if (mSlots.get(base + STAMP) != stamp)
+			{
+				continue;
+			}
+			types[count] = (byte) stamp;
+			times[count] = time;
+			as[count] = a;
+			bs[count] = b;
+			count++;
+		}
+
+		final DataOutputStream out = new DataOutputStream(stream);
+		out.writeInt(MAGIC);
+		out.writeShort(FILE_VERSION);
+		out.writeLong(System.currentTimeMillis());
+		out.writeLong(System.nanoTime());
+		out.writeInt(count);
+		for (int i = 0; i < count; i++)
+		{
+			out.writeByte(types[i]);
+			out.writeLong(times[i]);
+			out.writeLong(as[i]);
+			out.writeLong(bs[i]);
+		}
+		out.flush();
+		return count;
+	}
+
+	public static String typeName(int type)
+	{
+		return type > 0 && type < TYPE_COUNT ? TYPE_NAMES[type] : "type " + type;
+	}
+
+	// events recorded since start, including the ones since overwritten
+	public long getRecordedCount()
+	{
+		return mNext.get();
+	}
+}
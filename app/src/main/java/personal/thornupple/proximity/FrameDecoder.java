@@ -0,0 +1,141 @@
+package personal.thornupple.proximity;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/*******************************************
+ /***** FRAME DECODER ****
+ /*******************************************
+ decodes the proximity characteristic straight out of a ByteBuffer, no copy of the payload.
+
+ VERSION 1 (legacy) - exactly 3 bytes, one reading: [right, center, left] in cm.  read unsigned now, so
+ anything past 127 cm no longer wraps negative.  there is no sequence number, so we make one up.
+
+ VERSION 2 - little endian, 12 byte header then the distances:
+   0   u8   version (2)
+   1   u8   sensor count
+   2   u8   sample count in this notification
+   3   u8   flags (reserved, send 0)
+   4   u16  sequence number, +1 per notification, wraps
+   6   u16  sample period in ms (spacing of the samples inside this notification)
+   8   u32  device timestamp in ms of the first sample, wraps
+   12  u16  distance in mm, sample-major, sensors in the legacy order (0 = right, 1 = center, 2 = left);
+            0xFFFF means no reading
+ so a 247 byte MTU fits 38 samples of 3 sensors - the peripheral can sample at 20-50 Hz and still only
+ notify a few times a second.
+
+ the decoder remembers the last sequence number and counts the gaps as dropped frames
+ /*******************************************/
+public class FrameDecoder
+{
+	public static final int VERSION_LEGACY = 1;
+	public static final int VERSION_BATCHED = 2;
+
+	public static final int LEGACY_BYTES = 3;
+	public static final int HEADER_BYTES = 12;
+
+	private int mLastSequence = -1;
+	private long mDroppedFrames;
+	private long mRejectedFrames;
+
+	/*******************************************
+	 /***** DECODE ****
+	 /*******************************************
+	 reads from buffer.position() to buffer.limit(); the position is left alone
+	 RETURNS:  false (and out untouched) if the payload is not a frame we understand
+	 /*******************************************/
+	public boolean decode(ByteBuffer buffer, SensorFrame out)
+	{
+		final int start = buffer.position();
+		final int length = buffer.remaining();
+
+		if (length == LEGACY_BYTES)
+		{
+			out.version = VERSION_LEGACY;
+			out.heldSensors = 0;
+			out.sensorCount = LEGACY_BYTES;
+			out.sampleCount = 1;
+			out.samplePeriodMs = 0;
+			out.deviceTimeMs = 0;
+			for (int sensor = 0; sensor < LEGACY_BYTES; sensor++)
+			{
+				out.distancesMm[sensor] = (buffer.get(start + sensor) & 0xFF) * 10;
+			}
+			out.sequence = nextSequence(mLastSequence < 0 ? 0 : (mLastSequence + 1) & 0xFFFF);
+			return true;
+		}
+
+		if (length < HEADER_BYTES || (buffer.get(start) & 0xFF) != VERSION_BATCHED)
+		{
+			mRejectedFrames++;
+			return false;
+		}
+
+		final ByteOrder order = buffer.order();
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		try
+		{
+			final int sensorCount = buffer.get(start + 1) & 0xFF;
+			final int sampleCount = buffer.get(start + 2) & 0xFF;
+			final int distances = sensorCount * sampleCount;
+
+			if (sensorCount == 0 || sensorCount > SensorFrame.MAX_SENSORS || sampleCount == 0
+					|| distances > SensorFrame.MAX_DISTANCES || length < HEADER_BYTES + distances * 2)
+			{
+				mRejectedFrames++;
+				return false;
+			}
+
+			out.version = VERSION_BATCHED;
+			out.heldSensors = 0;
+			out.sensorCount = sensorCount;
+			out.sampleCount = sampleCount;
+			out.samplePeriodMs = buffer.getShort(start + 6) & 0xFFFF;
+			out.deviceTimeMs = buffer.getInt(start + 8) & 0xFFFFFFFFL;
+
+			int offset = start + HEADER_BYTES;
+			for (int i = 0; i < distances; i++, offset += 2)
+			{
+				out.distancesMm[i] = buffer.getShort(offset) & 0xFFFF;
+			}
+
+			out.sequence = nextSequence(buffer.getShort(start + 4) & 0xFFFF);
+			return true;
+		}
+		finally
+		{
+			buffer.order(order);
+		}
+	}
+
+	// counts the frames missing between the last sequence and this one; a jump backwards is a restart
+	private int nextSequence(int sequence)
+	{
+		if (mLastSequence >= 0)
+		{
+			final int gap = (sequence - mLastSequence - 1) & 0xFFFF;
+			if (gap < 0x8000)
+			{
+				mDroppedFrames += gap;
+			}
+		}
+		mLastSequence = sequence;
+		return sequence;
+	}
+
+	public long getDroppedFrameCount()
+	{
+		return mDroppedFrames;
+	}
+
+	public long getRejectedFrameCount()
+	{
+		return mRejectedFrames;
+	}
+
+	// e.g. after a reconnect, when the peripheral starts counting again
+	public void reset()
+	{
+		mLastSequence = -1;
+	}
+}
@@ -0,0 +1,276 @@
+package personal.thornupple.proximity;
+
+import java.util.concurrent.TimeUnit;
+
+/*******************************************
+ /***** GATT OPERATION QUEUE ****
+ /*******************************************
+ android runs one gatt operation at a time per connection; start a second one before the first has
+ answered and it just returns false (or worse, is dropped without a word).  so everything that waits for a
+ gatt answer goes through here and is issued strictly one after the other.
+
+ each operation gets timeoutMs to answer.  a timeout, a failed answer or a request the stack would not
+ even start is retried, up to maxAttempts in total, then given up on and reported to the listener.  a new
+ notify interval replaces one that is still waiting in the queue instead of lining up behind it.
+
+ the gatt callbacks, the timeout timer and the code queueing things can all be on different threads, so
+ the queue is synchronized.  nothing here is on the per-notification path except getCurrentOp()
+ /*******************************************/
+public class GattOperationQueue
+{
+	public static final int OP_NONE = -1;
+	public static final int OP_SUBSCRIBE = 0;
+	public static final int OP_READ = 1;
+	public static final int OP_REQUEST_MTU = 2;
+	public static final int OP_SET_PHY = 3;
+	public static final int OP_WRITE_INTERVAL = 4;
+
+	// returned from step() when nothing is waiting on a timer
+	public static final long IDLE = Long.MAX_VALUE;
+
+	// a request the stack would not start usually means it is still busy with something; give it a moment
+	private static final long RETRY_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+	public interface Listener
+	{
+		// only for operations that ran out of attempts
+		void onOperationFailed(int op, int arg);
+	}
+
+	private final GattTransport mTransport;
+	private final Listener mListener;
+	private final long mTimeoutNanos;
+	private final int mMaxAttempts;
+
+	// ring of waiting operations; the head is the one in flight (or about to be retried)
+	private final int[] mOps;
+	private final int[] mArgs;
+	private int mHead;
+	private int mSize;
+
+	private volatile int mCurrentOp = OP_NONE;
+	private boolean mInFlight;
+	private int mAttempts;
+	// bumped on every issue, so a transport that answers before returning cannot confuse us
+	private long mTicket;
+	private long mDeadlineNanos = IDLE;
+
+	private long mTimeouts;
+	private long mRetries;
+	private long mFailures;
+
+	public GattOperationQueue(GattTransport transport, Listener listener, int timeoutMs, int maxAttempts)
+	{
+		if (maxAttempts < 1)
+			throw new IllegalArgumentException("Need at least one attempt: " + maxAttempts);
+		mTransport = transport;
+		mListener = listener;
+		mTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		mMaxAttempts = maxAttempts;
+		mOps = new int[16];
+		mArgs = new int[16];
+	}
+
+	// answers normally come back in tens of ms; 2 s covers a slow link, 3 tries covers a busy stack
+	public static GattOperationQueue defaults(GattTransport transport, Listener listener)
+	{
+		return new GattOperationQueue(transport, listener, 2000, 3);
+	}
+
+	/*******************************************
+	 /***** ENQUEUE ****
+	 /*******************************************
+	 RETURNS:  false if the queue is full (something is badly stuck)
+	 /*******************************************/
+	public synchronized boolean enqueue(int op, int arg, long nowNanos)
+	{
+		if (op == OP_WRITE_INTERVAL)
+		{
+			// the newest interval is the only one that matters; skip the head, it may already be on the air
+			for (int i = mInFlight ? 1 : 0; i < mSize; i++)
+			{
+				final int index = (mHead + i) % mOps.length;
+				if (mOps[index] == OP_WRITE_INTERVAL)
+				{
+					mArgs[index] = arg;
+					return true;
+				}
+			}
+		}
+		if (mSize == mOps.length)
+		{
+			return false;
+		}
+		final int index = (mHead + mSize) % mOps.length;
+		mOps[index] = op;
+		mArgs[index] = arg;
+		mSize++;
+		if (mSize == 1)
+		{
+			mAttempts = 0;
+			issue(nowNanos);
+		}
+		return true;
+	}
+
+	/*******************************************
+	 /***** ON COMPLETE ****
+	 /*******************************************
+	 call from the gatt callback for op.  an answer for anything but the operation in flight is ignored
+	 /*******************************************/
+	public synchronized void onComplete(int op, boolean success, long nowNanos)
+	{
+		if (!mInFlight || mSize == 0 || mOps[mHead] != op)
+		{
+			return;
+		}
+		mInFlight = false;
+		if (success)
+		{
+			next(nowNanos);
+		}
+		else
+		{
+			retryOrGiveUp(nowNanos, 0);
+		}
+	}
+
+	/*******************************************
+	 /***** STEP ****
+	 /*******************************************
+	 times out the operation in flight or issues a delayed retry, whichever is due at nowNanos
+	 RETURNS:  when step needs to be called next, or IDLE
+	 /*******************************************/
+	public synchronized long step(long nowNanos)
+	{
+		if (mSize > 0 && nowNanos >= mDeadlineNanos)
+		{
+			if (mInFlight)
+			{
+				mTimeouts++;
+				mInFlight = false;
+				retryOrGiveUp(nowNanos, 0);
+			}
+			else
+			{
+				issue(nowNanos);
+			}
+		}
+		return mSize > 0 ? mDeadlineNanos : IDLE;
+	}
+
+	// link went away: nothing queued for it means anything now
+	public synchronized void clear()
+	{
+		mHead = 0;
+		mSize = 0;
+		mInFlight = false;
+		mCurrentOp = OP_NONE;
+		mDeadlineNanos = IDLE;
+	}
+
+	private void issue(long nowNanos)
+	{
+		final int op = mOps[mHead];
+		final int arg = mArgs[mHead];
+		mAttempts++;
+		mCurrentOp = op;
+		mInFlight = true;
+		mDeadlineNanos = nowNanos + mTimeoutNanos;
+		final long ticket = ++mTicket;
+
+		final boolean started;
+		switch (op)
+		{
+			case OP_SUBSCRIBE:
+				started = mTransport.subscribe();
+				break;
+			case OP_READ:
+				started = mTransport.read();
+				break;
+			case OP_REQUEST_MTU:
+				started = mTransport.requestMtu(arg);
+				break;
+			case OP_SET_PHY:
+				started = mTransport.setPreferredPhy(arg);
+				break;
+			case OP_WRITE_INTERVAL:
+				started = mTransport.writeNotifyInterval(arg);
+				break;
+			default:
+				throw new IllegalStateException("Unknown gatt operation: " + op);
+		}
+
+		// if the transport answered before returning, that answer has already moved us on
+		if (!started && ticket == mTicket && mInFlight)
+		{
+			mInFlight = false;
+			retryOrGiveUp(nowNanos, RETRY_DELAY_NANOS);
+		}
+	}
+
+	private void retryOrGiveUp(long nowNanos, long delayNanos)
+	{
+		if (mAttempts < mMaxAttempts)
+		{
+			mRetries++;
+			if (delayNanos > 0)
+			{
+				mDeadlineNanos = nowNanos + delayNanos;
+			}
+			else
+			{
+				issue(nowNanos);
+			}
+			return;
+		}
+
+		mFailures++;
+		final int op = mOps[mHead];
+		final int arg = mArgs[mHead];
+		next(nowNanos);
+		if (mListener != null)
+		{
+			mListener.onOperationFailed(op, arg);
+		}
+	}
+
+	private void next(long nowNanos)
+	{
+		mHead = (mHead + 1) % mOps.length;
+		mSize--;
+		mAttempts = 0;
+		mCurrentOp = OP_NONE;
+		mDeadlineNanos = IDLE;
+		if (mSize > 0)
+		{
+			issue(nowNanos);
+		}
+	}
+
+	// lock free peek for the notification path, e.g. to tell a read answer from a notification
+	public int getCurrentOp()
+	{
+		return mCurrentOp;
+	}
+
+	public synchronized int getPendingCount()
+	{
+		return mSize;
+	}
+
+	public synchronized long getTimeoutCount()
+	{
+		return mTimeouts;
+	}
+
+	public synchronized long getRetryCount()
+	{
+		return mRetries;
+	}
+
+	public synchronized long getFailureCount()
+	{
+		return mFailures;
+	}
+}
@@ -0,0 +1,481 @@
+package personal.thornupple.proximity;
+
+/*******************************************
+ /***** GATT SESSION ****
+ /*******************************************
+ one connection to the chair, from connect to the samples landing in the sample channel, without any
+ android in it.  ProxBLE owns one on top of the real radio; the tests own one on top of the
+ SimulatedPeripheral, so both run the same steps:
+
+   connect -> discover -> subscribe (CCCD) -> read -> mtu -> phy
+                           |__________________________________|
+                              all queued the moment discovery answers
+
+ the subscribe goes first so notifications start as early as they can, the read right behind it fills the
+ gap until the first notification, and the link tuning comes after.  the operation queue keeps them from
+ overlapping and retries whatever times out.
+
+ give it a ReconnectPolicy and it connects again by itself when the link drops or a connect fails, backing
+ off between attempts, until disconnect() or close() is called or the policy gives up on the device.
+
+ it keeps the time from connect() to the first sample of each connection, from discovery to the first
+ sample and, after a drop, from the drop to the first sample on the new link, for the log and the tests.
+
+ timeouts need a timer: the session asks for one through Wakeup and whoever owns the timer calls step().
+ every time in here, the queue's and the reconnect backoff's included, comes from one clock: System.nanoTime,
+ or a VirtualClock after setClock() so a test can step the whole session (and the peripheral) itself
+ /*******************************************/
+public class GattSession implements GattTransport.Callback, GattOperationQueue.Listener, LinkNegotiator.Listener
+{
+	public interface Listener
+	{
+		void onConnected();
+
+		void onDisconnected();
+
+		// the proximity service is there and streaming has been asked for
+		void onServicesDiscovered();
+
+		// first sample on this connection, connectNanos after the connect was started.  linkDropNanos is how
+		// long since the previous link dropped, -1 if this is the first link since connect()
+		void onFirstSample(long connectNanos, long linkDropNanos);
+
+		void onLinkReady(LinkNegotiator negotiator);
+
+		// the next connect attempt goes out in delayNanos
+		void onReconnecting(int attempt, long delayNanos);
+
+		// the reconnect policy gave up on a device that never answered; nothing more will happen on its own
+		void onGaveUp();
+	}
+
+	public interface Wakeup
+	{
+		// call step() at (or soon after) deadlineNanos; a later request replaces an earlier one
+		void wakeAt(long deadlineNanos);
+	}
+
+	private final GattTransport mTransport;
+	private final Listener mListener;
+	private final Wakeup mWakeup;
+	private final GattOperationQueue mQueue;
+	private final LinkNegotiator mLinkNegotiator;
+	private final NotifyRatePolicy mNotifyRatePolicy;
+	private volatile ReconnectPolicy mReconnectPolicy;
+	private VirtualClock mClock;
+	private final FlightRecorder mRecorder = FlightRecorder.get();
+	private final PipelineLatency mLatency = PipelineLatency.get();
+
+	// the data path does not use broadcasts; readings go straight into this ring and the listener is poked
+	private final SampleChannel mSampleChannel = new SampleChannel(16);
+	private volatile SampleChannel.Listener mSampleListener;
+
+	// reconnect state; written from the callback thread, the timer and the owner, so it is all under mLock
+	private final Object mLock = new Object();
+	private String mDeviceAddress;
+	private boolean mWantConnected;
+	private boolean mEverConnected;
+	private volatile long mReconnectAtNanos = GattOperationQueue.IDLE;
+	private volatile boolean mConnected;
+	private volatile long mReconnects;
+
+	private long mConnectStartNanos;
+	private long mDiscoveredNanos;
+	private long mLinkDropNanos = -1;
+	private volatile boolean mWaitingForFirstSample;
+	private volatile long mLastConnectToFirstSampleNanos = -1;
+	private volatile long mLastDiscoveryToFirstSampleNanos = -1;
+	private volatile long mLastLinkDropToFirstSampleNanos = -1;
+
+	public GattSession(GattTransport transport, Listener listener, Wakeup wakeup, NotifyRatePolicy notifyRatePolicy)
+	{
+		mTransport = transport;
+		mListener = listener;
+		mWakeup = wakeup;
+		mNotifyRatePolicy = notifyRatePolicy;
+		mQueue = GattOperationQueue.defaults(transport, this);
+		mLinkNegotiator = new LinkNegotiator(transport, mQueue, this);
+		mTransport.setCallback(this);
+	}
+
+	// only before connect(); null (the default) is System.nanoTime
+	public void setClock(VirtualClock clock)
+	{
+		mClock = clock;
+	}
+
+	private long now()
+	{
+		return mClock == null ? System.nanoTime() : mClock.nanoTime();
+	}
+
+	// null (the default) to stay down when the link drops
+	public void setReconnectPolicy(ReconnectPolicy policy)
+	{
+		mReconnectPolicy = policy;
+	}
+
+	/*******************************************
+	 /***** CONNECT ****
+	 /*******************************************
+	 RETURNS:  false if the first attempt could not even be started (a retry is scheduled if there is a
+	           reconnect policy)
+	 /*******************************************/
+	public boolean connect(String deviceAddress)
+	{
+		synchronized (mLock)
+		{
+			mDeviceAddress = deviceAddress;
+			mWantConnected = true;
+			mEverConnected = false;
+			mReconnectAtNanos = GattOperationQueue.IDLE;
+			mLinkDropNanos = -1;
+			final ReconnectPolicy policy = mReconnectPolicy;
+			if (policy != null)
+				policy.reset();
+		}
+		return startConnect(now());
+	}
+
+	public void disconnect()
+	{
+		stopReconnecting();
+		mTransport.disconnect();
+	}
+
+	public void close()
+	{
+		stopReconnecting();
+		mQueue.clear();
+		mTransport.close();
+	}
+
+	private void stopReconnecting()
+	{
+		synchronized (mLock)
+		{
+			mWantConnected = false;
+			mReconnectAtNanos = GattOperationQueue.IDLE;
+		}
+	}
+
+	private boolean startConnect(long nowNanos)
+	{
+		final String address;
+		synchronized (mLock)
+		{
+			address = mDeviceAddress;
+		}
+		mConnectStartNanos = nowNanos;
+		mWaitingForFirstSample = true;
+		if (mTransport.connect(address))
+		{
+			return true;
+		}
+		scheduleReconnect(nowNanos);
+		return false;
+	}
+
+	private void scheduleReconnect(long nowNanos)
+	{
+		final long delayNanos;
+		final int attempt;
+		synchronized (mLock)
+		{
+			final ReconnectPolicy policy = mReconnectPolicy;
+			if (!mWantConnected || policy == null)
+			{
+				return;
+			}
+			delayNanos = policy.nextDelayNanos(mEverConnected);
+			attempt = policy.getAttempts();
+			if (delayNanos == ReconnectPolicy.GIVE_UP)
+			{
+				mWantConnected = false;
+			}
+			else
+			{
+				mReconnectAtNanos = nowNanos + delayNanos;
+			}
+		}
+
+		if (delayNanos == ReconnectPolicy.GIVE_UP)
+		{
+			mRecorder.record(FlightRecorder.GATT_GAVE_UP, nowNanos, 0, 0);
+			mListener.onGaveUp();
+		}
+		else
+		{
+			mRecorder.record(FlightRecorder.GATT_RECONNECTING, nowNanos, attempt, delayNanos);
+			mListener.onReconnecting(attempt, delayNanos);
+			wake(GattOperationQueue.IDLE);
+		}
+	}
+
+	public void setSampleListener(SampleChannel.Listener listener)
+	{
+		mSampleListener = listener;
+	}
+
+	/*******************************************
+	 /***** STEP ****
+	 /*******************************************
+	 the timer side: starts a reconnect that is due, times out or retries whatever the queue is waiting on
+	 /*******************************************/
+	public void step(long nowNanos)
+	{
+		boolean reconnect = false;
+		synchronized (mLock)
+		{
+			if (nowNanos >= mReconnectAtNanos)
+			{
+				mReconnectAtNanos = GattOperationQueue.IDLE;
+				reconnect = mWantConnected;
+			}
+		}
+		if (reconnect)
+		{
+			mReconnects++;
+			startConnect(nowNanos);
+		}
+		wake(mQueue.step(nowNanos));
+	}
+
+	/*******************************************
+	 /***** UPDATE NOTIFY RATE ****
+	 /*******************************************
+	 call with the closest distance after each decision, on the session's thread like every other call in
+	 here: the policy is not locked and the write goes straight into the operation queue.  only writes to
+	 the chair when the policy changes its mind, which is a few times a minute at most
+	 /*******************************************/
+	public void updateNotifyRate(int closestMm, long nowNanos)
+	{
+		if (mNotifyRatePolicy == null || !mLinkNegotiator.isReady())
+		{
+			return;
+		}
+		final int intervalMs = mNotifyRatePolicy.update(closestMm, nowNanos);
+		if (intervalMs > 0)
+		{
+			mRecorder.record(FlightRecorder.NOTIFY_INTERVAL, nowNanos, intervalMs, 0);
+			mQueue.enqueue(GattOperationQueue.OP_WRITE_INTERVAL, intervalMs, nowNanos);
+			wake(mQueue.step(nowNanos));
+		}
+	}
+
+	// queueDeadlineNanos is what the queue wants; a pending reconnect may want to go sooner
+	private void wake(long queueDeadlineNanos)
+	{
+		final long deadlineNanos = Math.min(queueDeadlineNanos, mReconnectAtNanos);
+		if (mWakeup != null && deadlineNanos != GattOperationQueue.IDLE)
+		{
+			mWakeup.wakeAt(deadlineNanos);
+		}
+	}
+
+	/*******************************************
+	 /***** TRANSPORT CALLBACK ****
+	 /*******************************************/
+	@Override
+	public void onConnectionStateChange(boolean connected)
+	{
+		if (connected)
+		{
+			synchronized (mLock)
+			{
+				mEverConnected = true;
+			}
+			mConnected = true;
+			// the chair starts its sequence numbers and its rhythm over; the consumer sees it on the samples
+			mSampleChannel.newConnection();
+			mRecorder.record(FlightRecorder.GATT_CONNECTED, now(), 0, 0);
+			mTransport.discoverServices();
+			mListener.onConnected();
+		}
+		else
+		{
+			final long now = now();
+			// a failed connect is not a drop; the clock keeps running from the drop that started it all
+			if (mConnected)
+			{
+				mLinkDropNanos = now;
+			}
+			mConnected = false;
+			mRecorder.record(FlightRecorder.GATT_DISCONNECTED, now, 0, 0);
+			mLatency.onLinkDropped();
+			mQueue.clear();
+			mLinkNegotiator.cancel();
+			if (mNotifyRatePolicy != null)
+				mNotifyRatePolicy.reset();
+			mListener.onDisconnected();
+			scheduleReconnect(now);
+		}
+	}
+
+	@Override
+	public void onServicesDiscovered(boolean success)
+	{
+		if (!success)
+		{
+			return;
+		}
+		final long now = now();
+		mDiscoveredNanos = now;
+		mRecorder.record(FlightRecorder.GATT_DISCOVERED, now, 0, 0);
+
+		// streaming first, tuning after
+		mQueue.enqueue(GattOperationQueue.OP_SUBSCRIBE, 0, now);
+		mQueue.enqueue(GattOperationQueue.OP_READ, 0, now);
+		mLinkNegotiator.start(now);
+		wake(mQueue.step(now));
+		mListener.onServicesDiscovered();
+	}
+
+	@Override
+	public void onSubscribed(boolean success)
+	{
+		complete(GattOperationQueue.OP_SUBSCRIBE, success);
+	}
+
+	@Override
+	public void onValue(byte[] value, long arrivalNanos)
+	{
+		mSampleChannel.publish(value, arrivalNanos);
+		mLatency.onArrival(arrivalNanos);
+
+		if (mWaitingForFirstSample)
+		{
+			mWaitingForFirstSample = false;
+			mLastConnectToFirstSampleNanos = arrivalNanos - mConnectStartNanos;
+			mLastDiscoveryToFirstSampleNanos = arrivalNanos - mDiscoveredNanos;
+			final long linkDropNanos = mLinkDropNanos < 0 ? -1 : arrivalNanos - mLinkDropNanos;
+			mLinkDropNanos = -1;
+			if (linkDropNanos >= 0)
+				mLastLinkDropToFirstSampleNanos = linkDropNanos;
+			// the link works, the next drop starts the backoff from the bottom again
+			synchronized (mLock)
+			{
+				final ReconnectPolicy policy = mReconnectPolicy;
+				if (policy != null)
+					policy.reset();
+			}
+			mRecorder.record(FlightRecorder.GATT_FIRST_SAMPLE, arrivalNanos, mLastConnectToFirstSampleNanos, linkDropNanos);
+			mListener.onFirstSample(mLastConnectToFirstSampleNanos, linkDropNanos);
+		}
+
+		final SampleChannel.Listener listener = mSampleListener;
+		if (listener != null)
+		{
+			listener.onSampleAvailable(mSampleChannel);
+		}
+
+		// a notification can beat the read answer; either one will do as the answer to the read
+		if (mQueue.getCurrentOp() == GattOperationQueue.OP_READ)
+		{
+			complete(GattOperationQueue.OP_READ, true);
+		}
+	}
+
+	@Override
+	public void onMtuChanged(int mtu, boolean success)
+	{
+		// a failed answer is retried by the queue; the negotiator only hears about it if the queue gives up
+		if (success)
+			mLinkNegotiator.onMtuChanged(mtu, true);
+		complete(GattOperationQueue.OP_REQUEST_MTU, success);
+	}
+
+	@Override
+	public void onPhyUpdate(int txPhy, int rxPhy, boolean success)
+	{
+		if (success)
+			mLinkNegotiator.onPhyUpdate(txPhy, rxPhy, true);
+		complete(GattOperationQueue.OP_SET_PHY, success);
+	}
+
+	@Override
+	public void onNotifyIntervalWritten(boolean success)
+	{
+		complete(GattOperationQueue.OP_WRITE_INTERVAL, success);
+	}
+
+	private void complete(int op, boolean success)
+	{
+		final long now = now();
+		mQueue.onComplete(op, success, now);
+		wake(mQueue.step(now));
+	}
+
+	@Override
+	public void onOperationFailed(int op, int arg)
+	{
+		mRecorder.record(FlightRecorder.GATT_OP_FAILED, now(), op, arg);
+		mLinkNegotiator.onOperationFailed(op);
+		if (op == GattOperationQueue.OP_WRITE_INTERVAL && mNotifyRatePolicy != null)
+		{
+			mNotifyRatePolicy.onWriteResult(false);
+		}
+	}
+
+	@Override
+	public void onLinkReady(LinkNegotiator negotiator)
+	{
+		mRecorder.record(FlightRecorder.GATT_LINK_READY, now(), negotiator.getMtu(), negotiator.getTxPhy() << 8 | negotiator.getRxPhy());
+		mListener.onLinkReady(negotiator);
+	}
+
+	/*******************************************
+	 /***** TIMING ****
+	 /*******************************************
+	 for the newest connection that got a sample; -1 until one has
+	 /*******************************************/
+	public long getConnectToFirstSampleNanos()
+	{
+		return mLastConnectToFirstSampleNanos;
+	}
+
+	public long getDiscoveryToFirstSampleNanos()
+	{
+		return mLastDiscoveryToFirstSampleNanos;
+	}
+
+	public long getLinkDropToFirstSampleNanos()
+	{
+		return mLastLinkDropToFirstSampleNanos;
+	}
+
+	// the device connect() was last given, while we still want it; null after disconnect(), close() or giving up
+	public String getTargetAddress()
+	{
+		synchronized (mLock)
+		{
+			return mWantConnected ? mDeviceAddress : null;
+		}
+	}
+
+	// attempts started by the reconnect policy, not by connect()
+	public long getReconnectCount()
+	{
+		return mReconnects;
+	}
+
+	public SampleChannel getSampleChannel()
+	{
+		return mSampleChannel;
+	}
+
+	public GattOperationQueue getQueue()
+	{
+		return mQueue;
+	}
+
+	public LinkNegotiator getLinkNegotiator()
+	{
+		return mLinkNegotiator;
+	}
+
+	public NotifyRatePolicy getNotifyRatePolicy()
+	{
+		return mNotifyRatePolicy;
+	}
+}
@@ -0,0 +1,90 @@
+package personal.thornupple.proximity;
+
+/*******************************************
+ /***** GATT TRANSPORT ****
+ /*******************************************
+ the few gatt operations ProxBLE actually uses, with the proximity service and characteristic baked in.
+ AndroidGattTransport is the real radio; SimulatedPeripheral is an in-JVM stand in so the whole pipeline
+ can be run (and hammered) on a plain linux box.
+
+ every call is asynchronous - the answer comes back through the Callback, on whatever thread the
+ transport uses for its callbacks (ProxBLE's ble-io thread on android, the peripheral thread in the simulator).
+ the calls return false when the request could not even be started.
+
+ the link calls (priority, mtu, phy) are only requests; the peer or the stack may grant less, so look at
+ what comes back rather than what was asked for
+ /*******************************************/
+public interface GattTransport
+{
+	// same values as BluetoothGatt.CONNECTION_PRIORITY_*
+	int PRIORITY_BALANCED = 0;
+	int PRIORITY_HIGH = 1;
+	int PRIORITY_LOW_POWER = 2;
+
+	// same values as BluetoothDevice.PHY_LE_*
+	int PHY_LE_1M = 1;
+	int PHY_LE_2M = 2;
+
+	// what every link starts with until an exchange says otherwise
+	int DEFAULT_MTU = 23;
+
+	/*******************************************
+	 /***** CALLBACK ****
+	 /*******************************************
+	 onValue is the hot path: it is called for every notification (and for a read), and value is only valid
+	 for the duration of the call - copy it if you need it later
+	 /*******************************************/
+	interface Callback
+	{
+		void onConnectionStateChange(boolean connected);
+
+		void onServicesDiscovered(boolean success);
+
+		// notifications are enabled (the descriptor write came back)
+		void onSubscribed(boolean success);
+
+		void onValue(byte[] value, long arrivalNanos);
+
+		// mtu is what the link ended up with (DEFAULT_MTU if the exchange failed)
+		void onMtuChanged(int mtu, boolean success);
+
+		void onPhyUpdate(int txPhy, int rxPhy, boolean success);
+
+		// the peripheral took (or refused) a new notify interval
+		void onNotifyIntervalWritten(boolean success);
+	}
+
+	void setCallback(Callback callback);
+
+	boolean connect(String deviceAddress);
+
+	// finds the proximity characteristic; must be connected
+	boolean discoverServices();
+
+	// turns on notifications for the proximity characteristic; must have discovered services
+	boolean subscribe();
+
+	// one read of the proximity characteristic, answered through onValue
+	boolean read();
+
+	// no callback for this one, android does not say what interval it settled on
+	boolean requestConnectionPriority(int priority);
+
+	boolean requestMtu(int mtu);
+
+	// answered through onPhyUpdate
+	boolean setPreferredPhy(int phy);
+
+	// asks the peripheral to notify every intervalMs; false if it has no interval characteristic
+	boolean writeNotifyInterval(int intervalMs);
+
+	// attribute handle of the proximity characteristic once services are discovered, -1 before.  it only
+	// changes when the firmware's gatt table does, so it is a cheap way to tell a reflashed chair
+	int getValueHandle();
+
+	// drops the link; onConnectionStateChange(false) follows
+	void disconnect();
+
+	// let go of everything, no more callbacks after this
+	void close();
+}
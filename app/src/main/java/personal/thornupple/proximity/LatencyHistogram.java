@@ -0,0 +1,112 @@
+package personal.thornupple.proximity;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*******************************************
+ /***** LATENCY HISTOGRAM ****
+ /*******************************************
+ counts durations in ns into log-linear buckets, the way HdrHistogram does it: every power of two is split
+ into SUB_BUCKETS equal steps, so any value is known to within 1/32 (about 3%) from 1 ns up to a couple of
+ minutes, in a fixed 8 KB.  anything longer lands in the top bucket, which has no top of its own and so
+ reads back as the max.
+
+ one thread records (a plain read and an ordered write per field, no atomic read-modify-write), any thread
+ may read.  a reader can be a count or two behind the writer, which is fine for percentiles.  reset() while
+ the writer is busy can leave a stray count behind; it is for the diagnostics screen, not for accounting
+ /*******************************************/
+public final class LatencyHistogram
+{
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// powers of two above the first 2 * SUB_BUCKETS ns: tops out at 2^37 ns, a bit over two minutes
+	private static final int LEVELS = 31;
+	private static final int LENGTH = (LEVELS + 2) * SUB_BUCKETS;
+
+	private final AtomicLongArray mCounts = new AtomicLongArray(LENGTH);
+	// count, sum, max
+	private final AtomicLongArray mTotals = new AtomicLongArray(3);
+	private static final int COUNT = 0;
+	private static final int SUM = 1;
+	private static final int MAX = 2;
+
+	public void record(long nanos)
+	{
+		final long value = Math.max(0, nanos);
+		final int index = Math.min(LENGTH - 1, indexOf(value));
+		mCounts.lazySet(index, mCounts.get(index) + 1);
+		mTotals.lazySet(SUM, mTotals.get(SUM) + value);
+		if (value > mTotals.get(MAX))
+		{
+			mTotals.lazySet(MAX, value);
+		}
+		// last, so a reader that sees the count sees the bucket too
+		mTotals.lazySet(COUNT, mTotals.get(COUNT) + 1);
+	}
+
+	static int indexOf(long value)
+	{
+		final int level = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+		return level * SUB_BUCKETS + (int) (value >>> level);
+	}
+
+	// the biggest value that lands in the same bucket as index
+	static long highestValueAt(int index)
+	{
+		final int level = Math.max(0, index / SUB_BUCKETS - 1);
+		final long sub = index - (long) level * SUB_BUCKETS;
+		return ((sub + 1) << level) - 1;
+	}
+
+	/*******************************************
+	 /***** PERCENTILE ****
+	 /*******************************************
+	 RETURNS:  the value percentile (0-100) of the recorded values are at or below, to within a bucket;
+	           0 if nothing was recorded
+	 /*******************************************/
+	public long getValueAtPercentile(double percentile)
+	{
+		final long count = mTotals.get(COUNT);
+		if (count == 0)
+		{
+			return 0;
+		}
+		final long wanted = Math.max(1, (long) Math.ceil(count * Math.min(100, percentile) / 100.0));
+		long seen = 0;
+		for (int index = 0; index < LENGTH; index++)
+		{
+			seen += mCounts.get(index);
+			if (seen >= wanted)
+			{
+				return index == LENGTH - 1 ? getMax() : Math.min(highestValueAt(index), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	public long getCount()
+	{
+		return mTotals.get(COUNT);
+	}
+
+	public long getMax()
+	{
+		return mTotals.get(MAX);
+	}
+
+	public long getMean()
+	{
+		final long count = mTotals.get(COUNT);
+		return count == 0 ? 0 : mTotals.get(SUM) / count;
+	}
+
+	public void reset()
+	{
+		mTotals.set(COUNT, 0);
+		for (int index = 0; index < LENGTH; index++)
+		{
+			mCounts.set(index, 0);
+		}
+		mTotals.set(SUM, 0);
+		mTotals.set(MAX, 0);
+	}
+}
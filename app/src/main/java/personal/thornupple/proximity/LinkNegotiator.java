@@ -0,0 +1,156 @@
+package personal.thornupple.proximity;
+
+/*******************************************
+ /***** LINK NEGOTIATOR ****
+ /*******************************************
+ runs once per connection, right after the services are discovered (queued behind the subscribe and the
+ first read, so streaming is not held up by it):
+   1. high connection priority - shortest connection interval the stack will give us (7.5-15 ms instead of
+      the 30-50 ms default), which is most of the notification latency
+   2. mtu exchange - so a whole batched frame fits in one notification
+   3. 2M phy - halves the time each packet spends in the air
+ each step is only a request.  a step that fails, is refused or times out in the operation queue just
+ leaves the default in place and we move on; nothing here is worth failing the connection over.  what was
+ actually granted is kept for the log and for sizing frames.
+
+ the mtu and phy requests go through the GattOperationQueue, so they line up behind (or in front of)
+ whatever else the connection has queued instead of colliding with it.  feed the answers (and the queue's
+ give-ups) back in from the transport's callback thread
+ /*******************************************/
+public class LinkNegotiator
+{
+	// 244 bytes of payload, see SampleChannel.MAX_PAYLOAD_BYTES
+	public static final int PREFERRED_MTU = 247;
+
+	public interface Listener
+	{
+		// negotiation finished, whatever it got; the link is free for other gatt traffic
+		void onLinkReady(LinkNegotiator negotiator);
+	}
+
+	private static final int STATE_IDLE = 0;
+	private static final int STATE_MTU = 1;
+	private static final int STATE_PHY = 2;
+	private static final int STATE_READY = 3;
+
+	private final GattTransport mTransport;
+	private final GattOperationQueue mQueue;
+	private final Listener mListener;
+
+	private int mState = STATE_IDLE;
+	private boolean mHighPriority;
+	private int mMtu = GattTransport.DEFAULT_MTU;
+	private int mTxPhy = GattTransport.PHY_LE_1M;
+	private int mRxPhy = GattTransport.PHY_LE_1M;
+
+	public LinkNegotiator(GattTransport transport, GattOperationQueue queue, Listener listener)
+	{
+		mTransport = transport;
+		mQueue = queue;
+		mListener = listener;
+	}
+
+	public void start(long nowNanos)
+	{
+		mHighPriority = mTransport.requestConnectionPriority(GattTransport.PRIORITY_HIGH);
+		mMtu = GattTransport.DEFAULT_MTU;
+		mTxPhy = GattTransport.PHY_LE_1M;
+		mRxPhy = GattTransport.PHY_LE_1M;
+
+		// both go in now; the queue makes sure the phy request waits for the mtu answer
+		mState = STATE_MTU;
+		mQueue.enqueue(GattOperationQueue.OP_REQUEST_MTU, PREFERRED_MTU, nowNanos);
+		mQueue.enqueue(GattOperationQueue.OP_SET_PHY, GattTransport.PHY_LE_2M, nowNanos);
+	}
+
+	// the queue gave up on one of ours: carry on as if it had been refused
+	public void onOperationFailed(int op)
+	{
+		if (op == GattOperationQueue.OP_REQUEST_MTU)
+		{
+			onMtuChanged(GattTransport.DEFAULT_MTU, false);
+		}
+		else if (op == GattOperationQueue.OP_SET_PHY)
+		{
+			onPhyUpdate(GattTransport.PHY_LE_1M, GattTransport.PHY_LE_1M, false);
+		}
+	}
+
+	// link went away in the middle; late answers are ignored
+	public void cancel()
+	{
+		mState = STATE_IDLE;
+	}
+
+	public void onMtuChanged(int mtu, boolean success)
+	{
+		if (mState != STATE_MTU)
+		{
+			return;
+		}
+		mMtu = success ? mtu : GattTransport.DEFAULT_MTU;
+		mState = STATE_PHY;
+	}
+
+	public void onPhyUpdate(int txPhy, int rxPhy, boolean success)
+	{
+		// the stack also reports phy changes the peer started, those just get recorded
+		if (mState == STATE_READY && success)
+		{
+			mTxPhy = txPhy;
+			mRxPhy = rxPhy;
+			return;
+		}
+		if (mState != STATE_PHY)
+		{
+			return;
+		}
+		if (success)
+		{
+			mTxPhy = txPhy;
+			mRxPhy = rxPhy;
+		}
+
+		mState = STATE_READY;
+		mListener.onLinkReady(this);
+	}
+
+	public boolean isReady()
+	{
+		return mState == STATE_READY;
+	}
+
+	// false if the stack turned the request down; android never says which interval it picked
+	public boolean isHighPriority()
+	{
+		return mHighPriority;
+	}
+
+	public int getMtu()
+	{
+		return mMtu;
+	}
+
+	// biggest notification payload this link carries (3 bytes of the mtu are the ATT header)
+	public int getMaxPayloadBytes()
+	{
+		return mMtu - 3;
+	}
+
+	public int getTxPhy()
+	{
+		return mTxPhy;
+	}
+
+	public int getRxPhy()
+	{
+		return mRxPhy;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "priority=" + (mHighPriority ? "high" : "default") + " mtu=" + mMtu
+				+ " phy=" + (mTxPhy == GattTransport.PHY_LE_2M ? "2M" : "1M") + "/" + (mRxPhy == GattTransport.PHY_LE_2M ? "2M" : "1M");
+	}
+}
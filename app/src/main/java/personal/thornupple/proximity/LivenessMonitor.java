@@ -0,0 +1,351 @@
+package personal.thornupple.proximity;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*******************************************
+ /***** LIVENESS MONITOR ****
+ /*******************************************
+ notices a stream that has stopped.  a dropped link says so with a callback, a hung pod or a stuck radio
+ says nothing at all: the notifications just stop, and whatever the last one decided would otherwise keep
+ beeping (or keep quiet) as if the chair were still reading.
+
+ one deadline per stream, moved on by every sample.  the deadline is how late a sample may be before we
+ give up on it, worked out from what the stream has actually been doing:
+
+   timeout = clamp(INTERVALS * max(mean interval, expected interval) + JITTERS * jitter, min, max)
+
+ the mean and jitter are running averages of the inter-arrival times (jitter the way rtp does it), and the
+ expected interval is what we last asked the chair for, so slowing it down does not read as a dropout.
+ the max is the bound: a dead stream is reported no later than maxTimeout after its last sample (plus
+ however late the caller gets round to check()).
+
+ there are no timers in here.  check() is called from one scheduler that already exists (the decision
+ thread, see DecisionThread.Timer), fires whatever has expired and says when the next deadline is, so
+ however many streams there are it is one wakeup at the earliest deadline and not a thread per check.
+
+ gaps get counted on the way: sequence numbers that never arrived (the decoder's count, passed in) and
+ samples more than LATE times the mean interval after the one before.
+
+ one thread (the decision thread) for everything except disarm(), which is any thread
+ /*******************************************/
+public final class LivenessMonitor
+{
+	public static final long IDLE = Long.MAX_VALUE;
+
+	// never sooner than this, however fast the chair sends: a couple of missed 50 Hz frames are not a dropout
+	public static final long DEFAULT_MIN_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+	// and never later.  the slowest notify rate is 500 ms (NotifyRatePolicy.defaults(), when clear), and three
+	// of those plus any jitter come to at least this, so there it is this that decides
+	public static final long DEFAULT_MAX_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(1500);
+
+	private static final int INTERVALS = 3;
+	private static final int JITTERS = 4;
+	// intervals a stream has to show before its averages are trusted; until then it gets the max timeout.
+	// the first few after a connect are anything but typical (the read answer lands right next to the
+	// first notification)
+	private static final int WARMUP = 4;
+	// a sample this many mean intervals after the one before counts as a gap
+	private static final int LATE = 2;
+	// running averages take 1/8 (mean) and 1/16 (jitter) of each new interval
+	private static final int MEAN_SHIFT = 3;
+	private static final int JITTER_SHIFT = 4;
+
+	public interface Listener
+	{
+		// silentNanos: since the stream's last sample
+		void onLost(int stream, long silentNanos);
+
+		// the first sample after a loss; silentNanos is how long it was gone
+		void onRecovered(int stream, long silentNanos);
+	}
+
+	private final int mStreams;
+	private final long mMinTimeoutNanos;
+	private final long mMaxTimeoutNanos;
+	private Listener mListener;
+
+	// per stream, only the decision thread
+	private final boolean[] mArmed;
+	private final boolean[] mLost;
+	private final long[] mLastNanos;
+	private final long[] mMeanNanos;
+	private final int[] mIntervals;
+	private final long[] mJitterNanos;
+	private final long[] mExpectedNanos;
+	private final long[] mDeadlineNanos;
+	private final long[] mSamples;
+	private final long[] mGaps;
+	private final long[] mMissed;
+	private final long[] mLosses;
+	private final long[] mMaxDetectionNanos;
+	private final long[] mLongestSilenceNanos;
+	private int mLostStreams;
+
+	// disarm requests from other threads, one bit per stream, taken up on the decision thread
+	private final AtomicInteger mDisarm = new AtomicInteger();
+
+	public LivenessMonitor(int streams)
+	{
+		this(streams, DEFAULT_MIN_TIMEOUT_NANOS, DEFAULT_MAX_TIMEOUT_NANOS);
+	}
+
+	public LivenessMonitor(int streams, long minTimeoutNanos, long maxTimeoutNanos)
+	{
+		if (streams <= 0 || streams > Integer.SIZE)
+			throw new IllegalArgumentException("Between 1 and " + Integer.SIZE + " streams: " + streams);
+		if (minTimeoutNanos <= 0 || maxTimeoutNanos < minTimeoutNanos)
+			throw new IllegalArgumentException("Bad timeouts: " + minTimeoutNanos + " to " + maxTimeoutNanos);
+		mStreams = streams;
+		mMinTimeoutNanos = minTimeoutNanos;
+		mMaxTimeoutNanos = maxTimeoutNanos;
+		mArmed = new boolean[streams];
+		mLost = new boolean[streams];
+		mLastNanos = new long[streams];
+		mMeanNanos = new long[streams];
+		mIntervals = new int[streams];
+		mJitterNanos = new long[streams];
+		mExpectedNanos = new long[streams];
+		mDeadlineNanos = new long[streams];
+		mSamples = new long[streams];
+		mGaps = new long[streams];
+		mMissed = new long[streams];
+		mLosses = new long[streams];
+		mMaxDetectionNanos = new long[streams];
+		mLongestSilenceNanos = new long[streams];
+	}
+
+	// before the first sample
+	public void setListener(Listener listener)
+	{
+		mListener = listener;
+	}
+
+	/*******************************************
+	 /***** ON SAMPLE ****
+	 /*******************************************
+	 a sample from stream arrived at arrivalNanos.  missedFrames is how many sequence numbers the decoder
+	 found missing just before it (0 mostly).  the first sample arms the stream; a lost one recovers
+	 /*******************************************/
+	public void onSample(int stream, long arrivalNanos, long missedFrames)
+	{
+		takeDisarms();
+		if (missedFrames > 0)
+		{
+			mGaps[stream]++;
+			mMissed[stream] += missedFrames;
+		}
+		if (mArmed[stream])
+		{
+			final long interval = arrivalNanos - mLastNanos[stream];
+			if (mLost[stream])
+			{
+				mLost[stream] = false;
+				mLostStreams--;
+				mLongestSilenceNanos[stream] = Math.max(mLongestSilenceNanos[stream], interval);
+				// the gap says nothing about the interval, so it stays out of the averages.  they keep what
+				// they had: a chair that was just told to speed up may well send the next one at the old rate
+				if (mListener != null)
+					mListener.onRecovered(stream, interval);
+			}
+			else if (interval >= 0)
+			{
+				if (mIntervals[stream]++ == 0)
+				{
+					mMeanNanos[stream] = interval;
+				}
+				else
+				{
+					if (missedFrames == 0 && interval > LATE * mMeanNanos[stream])
+						mGaps[stream]++;
+					mJitterNanos[stream] += (Math.abs(interval - mMeanNanos[stream]) - mJitterNanos[stream]) >> JITTER_SHIFT;
+					mMeanNanos[stream] += (interval - mMeanNanos[stream]) >> MEAN_SHIFT;
+				}
+			}
+		}
+		mArmed[stream] = true;
+		mSamples[stream]++;
+		mLastNanos[stream] = Math.max(mLastNanos[stream], arrivalNanos);
+		mDeadlineNanos[stream] = mLastNanos[stream] + getTimeoutNanos(stream);
+	}
+
+	// what we last asked the chair for, 0 for do not know.  a slower rate moves the deadline out right away
+	public void setExpectedIntervalNanos(int stream, long intervalNanos)
+	{
+		mExpectedNanos[stream] = Math.max(0, intervalNanos);
+		if (mArmed[stream] && !mLost[stream])
+			mDeadlineNanos[stream] = mLastNanos[stream] + getTimeoutNanos(stream);
+	}
+
+	/*******************************************
+	 /***** DISARM ****
+	 /*******************************************
+	 any thread.  the stream is going away on purpose (we disconnected it): stop expecting samples until
+	 its next first one.  a link that drops by itself stays armed, that is exactly what we want to hear about
+	 /*******************************************/
+	public void disarm(int stream)
+	{
+		int bits;
+		do
+		{
+			bits = mDisarm.get();
+		}
+		while (!mDisarm.compareAndSet(bits, bits | 1 << stream));
+	}
+
+	public void disarmAll()
+	{
+		mDisarm.set(mStreams == Integer.SIZE ? -1 : (1 << mStreams) - 1);
+	}
+
+	private void takeDisarms()
+	{
+		if (mDisarm.get() == 0)
+		{
+			return;
+		}
+		final int bits = mDisarm.getAndSet(0);
+		for (int stream = 0; stream < mStreams; stream++)
+		{
+			if ((bits & 1 << stream) == 0)
+				continue;
+			mArmed[stream] = false;
+			mMeanNanos[stream] = 0;
+			mJitterNanos[stream] = 0;
+			mIntervals[stream] = 0;
+			if (mLost[stream])
+			{
+				mLost[stream] = false;
+				mLostStreams--;
+			}
+		}
+	}
+
+	/*******************************************
+	 /***** CHECK ****
+	 /*******************************************
+	 fires onLost for every stream whose deadline has passed at nowNanos.
+	 RETURNS:  the next deadline of a stream still alive, or IDLE if there is none
+	 /*******************************************/
+	public long check(long nowNanos)
+	{
+		takeDisarms();
+		long next = IDLE;
+		for (int stream = 0; stream < mStreams; stream++)
+		{
+			if (!mArmed[stream] || mLost[stream])
+				continue;
+			final long deadline = mDeadlineNanos[stream];
+			if (nowNanos < deadline)
+			{
+				next = Math.min(next, deadline);
+				continue;
+			}
+			mLost[stream] = true;
+			mLostStreams++;
+			mLosses[stream]++;
+			// how long it took to notice, against when the last sample came
+			final long silent = nowNanos - mLastNanos[stream];
+			mMaxDetectionNanos[stream] = Math.max(mMaxDetectionNanos[stream], silent);
+			if (mListener != null)
+				mListener.onLost(stream, silent);
+		}
+		return next;
+	}
+
+	// how late a sample on stream may be right now
+	public long getTimeoutNanos(int stream)
+	{
+		if (mIntervals[stream] < WARMUP)
+		{
+			// nothing to go on yet
+			return mMaxTimeoutNanos;
+		}
+		final long interval = Math.max(mMeanNanos[stream], mExpectedNanos[stream]);
+		final long timeout = INTERVALS * interval + JITTERS * mJitterNanos[stream];
+		return Math.max(mMinTimeoutNanos, Math.min(mMaxTimeoutNanos, timeout));
+	}
+
+	public long getMaxTimeoutNanos()
+	{
+		return mMaxTimeoutNanos;
+	}
+
+	public int getStreamCount()
+	{
+		return mStreams;
+	}
+
+	public boolean isLost(int stream)
+	{
+		return mLost[stream];
+	}
+
+	public boolean isAnyLost()
+	{
+		return mLostStreams > 0;
+	}
+
+	// false while lost, and before the first sample or after a disarm
+	public boolean isAlive(int stream)
+	{
+		return mArmed[stream] && !mLost[stream];
+	}
+
+	public boolean isArmed(int stream)
+	{
+		return mArmed[stream];
+	}
+
+	public long getMeanIntervalNanos(int stream)
+	{
+		return mMeanNanos[stream];
+	}
+
+	public long getJitterNanos(int stream)
+	{
+		return mJitterNanos[stream];
+	}
+
+	public long getSampleCount(int stream)
+	{
+		return mSamples[stream];
+	}
+
+	// sequence gaps plus late arrivals
+	public long getGapCount(int stream)
+	{
+		return mGaps[stream];
+	}
+
+	public long getMissedFrameCount(int stream)
+	{
+		return mMissed[stream];
+	}
+
+	public long getLossCount(int stream)
+	{
+		return mLosses[stream];
+	}
+
+	// the longest any loss took to notice, last sample to onLost
+	public long getMaxDetectionNanos(int stream)
+	{
+		return mMaxDetectionNanos[stream];
+	}
+
+	public long getLongestSilenceNanos(int stream)
+	{
+		return mLongestSilenceNanos[stream];
+	}
+
+	// one line per stream for the log and the diagnostics
+	public String describe(int stream)
+	{
+		return String.format(Locale.US, "%s, every %.1f ms +- %.1f ms, timeout %.0f ms, %d gaps (%d frames), %d lost (noticed within %.0f ms)",
+				mLost[stream] ? "lost" : mArmed[stream] ? "alive" : "idle",
+				mMeanNanos[stream] / 1e6, mJitterNanos[stream] / 1e6, getTimeoutNanos(stream) / 1e6,
+				mGaps[stream], mMissed[stream], mLosses[stream], mMaxDetectionNanos[stream] / 1e6);
+	}
+}
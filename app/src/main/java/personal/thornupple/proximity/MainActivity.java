@@ -3,11 +3,6 @@ package personal.thornupple.proximity;
 import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.le.BluetoothLeScanner;
-import android.bluetooth.le.ScanCallback;
-import android.bluetooth.le.ScanFilter;
-import android.bluetooth.le.ScanResult;
-import android.bluetooth.le.ScanSettings;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
@@ -15,40 +10,68 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
+import android.graphics.Typeface;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
-import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.TypedValue;
+import android.view.Choreographer;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.ViewGroup;
 import android.widget.Button;
+import android.widget.LinearLayout;
+import android.widget.ScrollView;
 import android.widget.TextView;
 import android.widget.Toast;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
-import java.util.ArrayList;
+import java.io.File;
 import java.util.Arrays;
-import java.util.List;
+import java.util.Locale;
 
 public class MainActivity extends AppCompatActivity
 {
 	final static String TAG = MainActivity.class.getSimpleName();
 
+	// does the alerting; we only pick the chair and watch
 	private ProxBLE mProxBLE_Service;
-	private ProximityDataClass mProx_DataClass;
 
 	private static final long SCAN_PERIOD = 15000;
+	// after that, how long to carry on in the low power duty cycle before giving up
+	private static final long IDLE_SCAN_PERIOD = 5 * 60 * 1000;
+	// from the first advertisement to picking the strongest; a second chair nearby has this long to be heard
+	private static final long CHOOSE_PERIOD = 1000;
+	// once the first pod turns up, how much longer to listen for a chair's second one
+	private static final long SECOND_POD_PERIOD = 3000;
+
+	private static final SensorLayout SENSOR_LAYOUT = ProxBLE.SENSOR_LAYOUT;
 
 	private BluetoothAdapter mBluetoothAdapter;
-	private BluetoothLeScanner mBluetoothLeScanner;
+	private BleScanner mScanner;
+	// the scan's timers, all cancelled together when it stops
+	private final Handler mScanHandler = new Handler(Looper.getMainLooper());
+	private boolean mChoosePending;
+	private boolean mSecondPodPending;
 
 	private String mstrRemoteDeviceName;
-	private String mstrRemoveDeviceAddress;
+	// one per pod in ProxBLE.POD_LAYOUTS, null until found
+	private final String[] mPodAddresses = new String[ProxBLE.POD_LAYOUTS.length];
 
 	private boolean mScanning = false;
-	private boolean isSubscribed = false;
 	private boolean misServiceBound = false;
 
+	// the last chair we connected to; if there is one we skip the scan and go straight for it
+	private DeviceCache mDeviceCache;
+
+	// cold start: from onCreate to the first reading being turned into an alert, logged once
+	private long mCreatedNanos;
+	private volatile boolean mWaitingForFirstAlert = true;
+
 	/*******************************************
 	 /***** MAKE GATT UPDATE INTENT FILTER ****
 	 /*******************************************
@@ -57,10 +80,13 @@ public class MainActivity extends AppCompatActivity
 	private static IntentFilter makeGattUpdateIntentFilter()
 	{
 		final IntentFilter intentFilter = new IntentFilter();
-		intentFilter.addAction(ProxBLE.ACTION_DATA_AVAILABLE);
 		intentFilter.addAction(ProxBLE.ACTION_GATT_CONNECTED);
 		intentFilter.addAction(ProxBLE.ACTION_GATT_DISCONNECTED);
 		intentFilter.addAction(ProxBLE.ACTION_GATT_SERVICES_DISCOVERED);
+		intentFilter.addAction(ProxBLE.ACTION_GATT_RECONNECTING);
+		intentFilter.addAction(ProxBLE.ACTION_GATT_CONNECT_FAILED);
+		intentFilter.addAction(ProxBLE.ACTION_SENSOR_LOST);
+		intentFilter.addAction(ProxBLE.ACTION_SENSOR_RECOVERED);
 		return intentFilter;
 	}
 
@@ -77,26 +103,7 @@ public class MainActivity extends AppCompatActivity
 		{
 			final String action = intent.getAction();
 			Log.i(TAG, "\nBroadcast Receiver got the following action: " + action);
-			if (ProxBLE.ACTION_DATA_AVAILABLE.equals(action))
-			{
-				final byte[] data = intent.getByteArrayExtra(ProxBLE.EXTRA_DATA);
-				String characteristicReadResponse = "Raw Data Read: " + Arrays.toString(data);
-				Log.i(TAG, characteristicReadResponse);
-
-				mProx_DataClass.PlayTone(data);
-
-				int LEFT = 2;
-				int CENTER = 1;
-				int RIGHT = 0;
-				UpdateDistances(data[LEFT], data[CENTER], data[RIGHT]);
-
-				if (!isSubscribed)
-				{
-					mProxBLE_Service.setCharacteristicNotification();
-					isSubscribed = true;
-				}
-			}
-			else if (ProxBLE.ACTION_GATT_CONNECTED.equals(action))
+			if (ProxBLE.ACTION_GATT_CONNECTED.equals(action))
 			{
 				GiveUserFeedback("Gatt is Connected", null, true);
 			}
@@ -108,6 +115,53 @@ public class MainActivity extends AppCompatActivity
 			{
 				GiveUserFeedback("Services have been Discovered", null, true);
 			}
+			else if (ProxBLE.ACTION_GATT_RECONNECTING.equals(action))
+			{
+				GiveUserFeedback("Reconnecting...", null, true);
+			}
+			else if (ProxBLE.ACTION_SENSOR_LOST.equals(action))
+			{
+				GiveUserFeedback("Sensor Lost - No Readings", null, true);
+			}
+			else if (ProxBLE.ACTION_SENSOR_RECOVERED.equals(action))
+			{
+				GiveUserFeedback("Sensor Readings are Back", null, true);
+			}
+			else if (ProxBLE.ACTION_GATT_CONNECT_FAILED.equals(action))
+			{
+				// the saved chair is gone (or was swapped); find whatever is out there now
+				mDeviceCache.forget();
+				Arrays.fill(mPodAddresses, null);
+				ScanBleDevice();
+			}
+		}
+	};
+
+	/********************************************************
+	 /***** FRAME OBSERVER OBJECT ****
+	 /********************************************************
+	 called by the service on its decision thread after every frame has
+	 been turned into tones, while we are around to see it
+	 /********************************************************/
+	// written by the observer, drawn at most once per display frame however fast readings come
+	private final DistanceDisplayModel mDistanceDisplay = new DistanceDisplayModel(SENSOR_LAYOUT);
+	private final Choreographer.FrameCallback mDrawDistances = frameTimeNanos -> UpdateDistances();
+	private Choreographer mChoreographer;
+
+	private final ProxBLE.Observer mFrameObserver = frame ->
+	{
+		if (mWaitingForFirstAlert)
+		{
+			mWaitingForFirstAlert = false;
+			Log.i(TAG, String.format(Locale.US, "First alert %.1f ms after launch.", (System.nanoTime() - mCreatedNanos) / 1e6));
+		}
+		if (frame.sensorCount >= SENSOR_LAYOUT.getCount())
+		{
+			// the ui only needs the newest reading in the batch
+			if (mDistanceDisplay.publish(frame.distancesMm, frame.getSampleOffset(frame.sampleCount - 1)))
+			{
+				mChoreographer.postFrameCallback(mDrawDistances);
+			}
 		}
 	};
 
@@ -124,6 +178,15 @@ public class MainActivity extends AppCompatActivity
 		{
 			mProxBLE_Service = ((ProxBLE.LocalBinder) service).getService();
 			mProxBLE_Service.Initialize();
+			mProxBLE_Service.setObserver(mFrameObserver);
+
+			// a cached address (or a scan that beat the binding) has been waiting for us.  if the service
+			// kept the chair while we were gone this is a no-op
+			for (int pod = 0; pod < mPodAddresses.length; pod++)
+			{
+				if (mPodAddresses[pod] != null)
+					StartAlerting(pod, mPodAddresses[pod]);
+			}
 		}
 
 		@Override
@@ -142,10 +205,13 @@ public class MainActivity extends AppCompatActivity
 	protected void onCreate(Bundle savedInstanceState)
 	{
 		super.onCreate(savedInstanceState);
+		mCreatedNanos = System.nanoTime();
 		setContentView(R.layout.activity_main);
+		// the main thread's; frame callbacks can be posted to it from the service's decision thread
+		mChoreographer = Choreographer.getInstance();
 		Log.i(TAG, "onCreateCalled");
 
-		mProx_DataClass = new ProximityDataClass();
+		mDeviceCache = new DeviceCache(this);
 
 		Intent gattServiceIntent = new Intent(this, ProxBLE.class);
 		bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
@@ -156,7 +222,13 @@ public class MainActivity extends AppCompatActivity
 
 		PopulateViews();
 
-		GiveUserFeedback("One Minute Scan for Proximity Device",null, true);
+		if (getIntent().getBooleanExtra(ProxBLE.EXTRA_SIMULATE, false))
+		{
+			// no chair and no radio needed: the service plays a simulated one (see ProxBLE)
+			startForegroundService(new Intent(this, ProxBLE.class).putExtra(ProxBLE.EXTRA_SIMULATE, true));
+			GiveUserFeedback("Simulated chair", "Close", true);
+			return;
+		}
 
 		// CHECK BLUETOOTH AND OTHER PERMISSIONS //
 		boolean bail = false;
@@ -187,81 +259,190 @@ public class MainActivity extends AppCompatActivity
 			PauseMe();
 			finish();
 		}
+		else if (mDeviceCache.hasAddress(mPodAddresses.length))
+		{
+			// been here before: connect straight away, the service does it as soon as it is bound.  if the
+			// chair does not answer we get ACTION_GATT_CONNECT_FAILED and scan after all
+			for (int pod = 0; pod < mPodAddresses.length; pod++)
+				mPodAddresses[pod] = mDeviceCache.getAddress(pod);
+			mstrRemoteDeviceName = mDeviceCache.getName();
+			GiveUserFeedback("Connecting to " + (mstrRemoteDeviceName != null ? mstrRemoteDeviceName : "the chair"), null, false);
+		}
 		else
 		{
-			mScanning = true;
+			GiveUserFeedback("One Minute Scan for Proximity Device",null, true);
 			ScanBleDevice();
 		}
 	}
 
 	/********************************************************
-	 /***** SCAN CALLBACK OBJECT ****
+	 /***** SCAN LISTENER OBJECT ****
 	 /********************************************************
-	 RETURNS:  Scan Callback
+	 every callback from the scanner, batched or not.  nothing is
+	 connected on the first advertisement any more: we listen for
+	 CHOOSE_PERIOD after the first one and take the strongest, so the
+	 chair we are sitting in beats the one across the room
 	 /********************************************************/
-	private final ScanCallback mLeScanCallback = new ScanCallback()
+	private final BleScanner.Listener mScanListener = new BleScanner.Listener()
 	{
-		// Since we only have one device and service, we call connect here instead of having the user do it
-		@SuppressLint("MissingPermission")
 		@Override
-		public void onScanResult(int callbackType, ScanResult result)
+		public void onCandidates()
 		{
-			super.onScanResult(callbackType, result);
-			mScanning = false;
+			if (!mScanning)
+			{
+				return;
+			}
+			// an idle batch has been listening for seconds already
+			if (mScanner.getMode() == BleScanner.MODE_IDLE)
+			{
+				ChooseCandidates();
+			}
+			else if (!mChoosePending)
+			{
+				mChoosePending = true;
+				mScanHandler.postDelayed(mChooseCandidates, CHOOSE_PERIOD);
+			}
+		}
 
-			mstrRemoteDeviceName = result.getScanRecord().getDeviceName();
-			mstrRemoveDeviceAddress = result.getDevice().getAddress();
-			String feedbackText = String.format("Device Address:\t\t%s\r\n\r\nDevice Name:\t\t\t%s", mstrRemoveDeviceAddress, mstrRemoteDeviceName);
+		@Override
+		public void onScanFailed(int errorCode)
+		{
+			StopScan();
+			if (CountPods() == 0)
+				GiveUserFeedback("Scan Failed (" + errorCode + ").", "Scan Again", true);
+		}
+	};
 
-			// update the user interface
-			//SetScanFeedback("Scan Succeeded.  Full Result: " + result, null, false);
-			GiveUserFeedback(feedbackText, "Close", true);
-			getSupportActionBar().setSubtitle("Device Found!");
+	/********************************************************
+	 /***** CHOOSE CANDIDATES ****
+	 /********************************************************
+	 strongest first, each heard device goes to a free pod (see
+	 ChoosePod) and is connected straight away.  once one pod is
+	 in we keep listening a little longer for a second
+	 /********************************************************/
+	private void ChooseCandidates()
+	{
+		mChoosePending = false;
+		if (!mScanning)
+		{
+			return;
+		}
+		for (ScanCandidates.Candidate candidate : mScanner.getCandidates().rank(SystemClock.elapsedRealtimeNanos()))
+		{
+			final int pod = ChoosePod(candidate.getAddress(), candidate.getName());
+			if (pod >= 0)
+				FoundPod(pod, candidate);
+		}
 
-			Log.i(TAG, "Scan Result Record: " + result.getScanRecord().toString());
+		final int found = CountPods();
+		if (found == mPodAddresses.length)
+		{
+			StopScan();
+		}
+		else if (found > 0 && !mSecondPodPending)
+		{
+			mSecondPodPending = true;
+			mScanHandler.postDelayed(mStopScan, SECOND_POD_PERIOD);
+		}
+	}
 
-			// for most bluetooth apps, we'd present a list of matching devices and let them choose and then the service would connect to them
-			// however, we are scanning for only one device and will connect to it immediately.
-			// todo:  if we find other devices are out there; we can create our own unique service uuid and use that; or use the mac address of our adapter
+	// Since we only have one chair and service, we call connect here instead of having the user do it.
+	@SuppressLint("MissingPermission")
+	private void FoundPod(int pod, ScanCandidates.Candidate candidate)
+	{
+		final String address = candidate.getAddress();
+		final String name = candidate.getName();
+		mPodAddresses[pod] = address;
 
-			if (mProxBLE_Service != null && misServiceBound)
-			{
-				mProxBLE_Service.Connect(mstrRemoveDeviceAddress);
-			}
-		}
+		final int found = CountPods();
+		if (pod == ProxBLE.FRONT_POD || mstrRemoteDeviceName == null)
+			mstrRemoteDeviceName = name;
+		String feedbackText = String.format("Device Address:\t\t%s\r\n\r\nDevice Name:\t\t\t%s%s", address, name,
+				found > 1 ? "\r\n\r\n" + found + " pods" : "");
 
-		@Override
-		public void onBatchScanResults(List<ScanResult> results)
+		// update the user interface
+		GiveUserFeedback(feedbackText, "Close", true);
+		getSupportActionBar().setSubtitle("Device Found!");
+
+		Log.i(TAG, String.format(Locale.US, "Pod %d: %s (%s) at %d dBm, heard %d times", pod, address, name, candidate.getRssi(), candidate.getSightings()));
+
+		// next launch goes straight to this one
+		mDeviceCache.remember(pod, address, name);
+
+		// for most bluetooth apps, we'd present a list of matching devices and let them choose and then the service would connect to them
+		// however, we are scanning for only one chair and take the strongest one heard.
+		// todo:  if we find other devices are out there; we can create our own unique service uuid and use that; or use the mac address of our adapter
+
+		if (mProxBLE_Service != null && misServiceBound)
 		{
-			super.onBatchScanResults(results);
-			Log.i(TAG, "Scan Batch Results Not Handled");
+			StartAlerting(pod, address);
+		}
+	}
 
+	/********************************************************
+	 /***** CHOOSE POD ****
+	 /********************************************************
+	 a pod that calls itself rear goes on the back, anything else
+	 fills the front first
+	 RETURNS:  the pod for a newly found device, -1 if we already
+	           have it or every pod is taken
+	 /********************************************************/
+	private int ChoosePod(String address, String name)
+	{
+		for (String known : mPodAddresses)
+		{
+			if (address.equals(known))
+				return -1;
 		}
+		final boolean rear = name != null && name.toLowerCase(Locale.US).contains("rear");
+		if (rear && mPodAddresses[ProxBLE.REAR_POD] == null)
+			return ProxBLE.REAR_POD;
+		for (int pod = 0; pod < mPodAddresses.length; pod++)
+		{
+			if (mPodAddresses[pod] == null)
+				return pod;
+		}
+		return -1;
+	}
 
-		@Override
-		public void onScanFailed(int errorCode)
+	private int CountPods()
+	{
+		int found = 0;
+		for (String address : mPodAddresses)
 		{
-			super.onScanFailed(errorCode);
-			Log.i(TAG, "Scan Failed Results Not Handled");
+			if (address != null)
+				found++;
 		}
+		return found;
+	}
 
-	};
+	/********************************************************
+	 /***** START ALERTING ****
+	 /********************************************************
+	 the service keeps going on its own from here on, screen off
+	 or not, until Close or the notification's Stop
+	 /********************************************************/
+	private void StartAlerting(int pod, String deviceAddress)
+	{
+		startForegroundService(new Intent(this, ProxBLE.class));
+		mProxBLE_Service.Connect(pod, deviceAddress);
+	}
 
 	/********************************************************
 	 /***** SCAN BLUETOOTH LE DEVICE FOUND ****
+	 /********************************************************
+	 SCAN_PERIOD flat out, then the controller's low power duty
+	 cycle for IDLE_SCAN_PERIOD, batched both ways where the
+	 controller can (see BleScanner)
 	 /********************************************************/
 	private void ScanBleDevice()
 	{
 		// we use these to determine if correct device and if connected
 		// todo: if we connect to wrong device, need to add in the specific device address to connect with
 		mstrRemoteDeviceName = null;
-		mstrRemoveDeviceAddress = null;
-		mScanning = false;
-
-		if (mBluetoothLeScanner == null)
-			mBluetoothLeScanner = mBluetoothAdapter.getBluetoothLeScanner();
+		Arrays.fill(mPodAddresses, null);
+		StopScan();
 
-		mScanning = true;
 		GiveUserFeedback("Scanning for Devices that Match the Profile", null, false);
 		// check for permissions
 		if (ActivityCompat.checkSelfPermission(this, android.Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED)
@@ -271,40 +452,52 @@ public class MainActivity extends AppCompatActivity
 			return;
 		}
 
-		// SET A DEFAULT TIMEOUT
-		new Handler(Looper.getMainLooper()).postDelayed(() -> {
-			if (mScanning)
-			{
-				GiveUserFeedback("No Devices Found that Match the Profile.", "Scan Again", true);
+		if (mScanner == null)
+			mScanner = new BleScanner(mBluetoothAdapter, ProxBLE.ENVIRONMENTAL_SENSING_SERVICE, mScanListener);
 
-				mScanning = false;
-				mBluetoothLeScanner.stopScan(mLeScanCallback);
-				Log.d(TAG, "Handler/Looper fired.  Stopping Scanning.");
-				return;
-			}
-			if (mstrRemoveDeviceAddress == null)
-				GiveUserFeedback("Search for Device Timed Out.", "Scan Again", true);
-		}, SCAN_PERIOD);
+		// SET A DEFAULT TIMEOUT
+		mScanHandler.postDelayed(mScanTimeout, SCAN_PERIOD);
 
 		Log.d(TAG, "Start Scanning for BLE Devices");
+		mScanning = true;
+		mScanner.start(BleScanner.MODE_ACTIVE);
+	}
 
-		// SCAN FILTERS
-		List<ScanFilter> filters = new ArrayList<>();
-
-		ScanFilter filter = new ScanFilter.Builder()
-				.setServiceUuid(new ParcelUuid(ProxBLE.ENVIRONMENTAL_SENSING_SERVICE))
-				.build();
+	// nobody turned up while we were looking hard; keep listening, cheaply
+	private final Runnable mScanTimeout = () ->
+	{
+		if (mScanning && CountPods() == 0)
+		{
+			Log.d(TAG, "Nothing found.  Scanning on at low power.");
+			mScanner.setMode(BleScanner.MODE_IDLE);
+			mScanHandler.postDelayed(this::GiveUpScan, IDLE_SCAN_PERIOD);
+			GiveUserFeedback("No Devices Found Yet.  Still Listening.", "Scan Again", true);
+		}
+	};
 
-		filters.add(filter);
+	private void GiveUpScan()
+	{
+		if (!mScanning)
+		{
+			return;
+		}
+		StopScan();
+		Log.d(TAG, "Handler/Looper fired.  Stopping Scanning.");
+		GiveUserFeedback("No Devices Found that Match the Profile.", "Scan Again", true);
+	}
 
-		// SCAN SETTINGS
-		ScanSettings settings = new ScanSettings.Builder()
-				.setLegacy(false)
-				.setMatchMode(ScanSettings.MATCH_NUM_ONE_ADVERTISEMENT)
-				.setReportDelay(0)
-				.build();
+	private final Runnable mChooseCandidates = this::ChooseCandidates;
+	private final Runnable mStopScan = this::StopScan;
 
-		mBluetoothLeScanner.startScan(filters, settings, mLeScanCallback);
+	// stops the radio and every timer the scan had going
+	private void StopScan()
+	{
+		mScanning = false;
+		mChoosePending = false;
+		mSecondPodPending = false;
+		mScanHandler.removeCallbacksAndMessages(null);
+		if (mScanner != null)
+			mScanner.stop();
 	}
 
 	/********************************************************
@@ -312,34 +505,189 @@ public class MainActivity extends AppCompatActivity
 	 /********************************************************/
 
 	private Button btnChangeAction;
-	private TextView tvCenter;
-	private TextView tvRight;
-	private TextView tvLeft;
+	// one per sensor, indexed by sensor (not by where it sits on the screen)
+	private TextView[] tvDistances;
 
 	void PopulateViews()
 	{
-		tvLeft = findViewById(R.id.lblLeft);
-		tvRight = findViewById(R.id.lblRight);
-		tvCenter = findViewById(R.id.lblCenter);
 		btnChangeAction = findViewById(R.id.btnAction);
 
+		// one label per sensor, laid out left to right around the chair (by direction) top to bottom
+		final LinearLayout distanceList = findViewById(R.id.layoutDistances);
+		final int count = SENSOR_LAYOUT.getCount();
+		final Integer[] screenOrder = new Integer[count];
+		for (int sensor = 0; sensor < count; sensor++)
+			screenOrder[sensor] = sensor;
+		Arrays.sort(screenOrder, (a, b) -> Integer.compare(SENSOR_LAYOUT.getAzimuthDegrees(a), SENSOR_LAYOUT.getAzimuthDegrees(b)));
+
+		final float density = getResources().getDisplayMetrics().density;
+		tvDistances = new TextView[count];
+		for (int sensor : screenOrder)
+		{
+			final TextView label = new TextView(this);
+			label.setTextSize(TypedValue.COMPLEX_UNIT_SP, 26);
+			final LinearLayout.LayoutParams params = new LinearLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, (int) (90 * density));
+			params.topMargin = (int) (24 * density);
+			distanceList.addView(label, params);
+			tvDistances[sensor] = label;
+		}
+
 		// when we start - we set the text to "Scan Again"
 		btnChangeAction.setEnabled(false);
 
 		// after we get the device, we change it to "Close"
 		// this is the default which is "scan again"
 		btnChangeAction.setOnClickListener(v -> ScanBleDevice());
+
+		// hidden: a long press saves the flight recorder, whatever the button says at the time
+		btnChangeAction.setOnLongClickListener(v ->
+		{
+			final File file = DumpTrace("manual");
+			Toast.makeText(this, file != null ? "Trace saved: " + file.getName() : "Could not save the trace", Toast.LENGTH_SHORT).show();
+			return true;
+		});
+
+		// hidden too: a long press on the distances opens the diagnostics
+		distanceList.setOnLongClickListener(v ->
+		{
+			ShowDiagnostics();
+			return true;
+		});
 	}
 
-	// this will update all the distanced returned over bluetooth
-	@SuppressLint("DefaultLocale")
-	void UpdateDistances(Byte left, Byte center, Byte right)
+	// the menu is built here rather than from a menu resource
+	private static final int MENU_ALERT_PROFILE = 1;
+	private static final int MENU_SPATIAL_AUDIO = 2;
+
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu)
 	{
-		tvLeft.setText(String.format(  "Left Distance  \n\t\t\t%dcm",left));
+		menu.add(Menu.NONE, MENU_ALERT_PROFILE, Menu.NONE, "Alert profile");
+		menu.add(Menu.NONE, MENU_SPATIAL_AUDIO, Menu.NONE, "Spatial audio").setCheckable(true);
+		return true;
+	}
 
-		tvCenter.setText(String.format("Center Distance \n\t\t\t%dcm",center));
+	// the tick follows the service, which remembers it across launches
+	@Override
+	public boolean onPrepareOptionsMenu(Menu menu)
+	{
+		final ProxBLE service = mProxBLE_Service;
+		final MenuItem spatial = menu.findItem(MENU_SPATIAL_AUDIO);
+		spatial.setEnabled(service != null);
+		spatial.setChecked(service != null && service.isSpatialAudio());
+		return super.onPrepareOptionsMenu(menu);
+	}
+
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item)
+	{
+		if (item.getItemId() == MENU_ALERT_PROFILE)
+		{
+			ShowAlertProfiles();
+			return true;
+		}
+		if (item.getItemId() == MENU_SPATIAL_AUDIO)
+		{
+			final ProxBLE service = mProxBLE_Service;
+			if (service != null)
+			{
+				service.setSpatialAudio(!item.isChecked());
+				item.setChecked(service.isSpatialAudio());
+			}
+			return true;
+		}
+		return super.onOptionsItemSelected(item);
+	}
 
-		tvRight.setText(String.format( "Right Distance \n\t\t\t%dcm",right));
+	/********************************************************
+	 /***** SHOW ALERT PROFILES ****
+	 /********************************************************
+	 pick how far out to start beeping (see AlertProfile).  the service
+	 switches over on the next reading, so this works mid-ride too
+	 /********************************************************/
+	void ShowAlertProfiles()
+	{
+		final ProxBLE service = mProxBLE_Service;
+		if (service == null)
+		{
+			Toast.makeText(this, "Not connected to the alert service yet", Toast.LENGTH_SHORT).show();
+			return;
+		}
+		final int current = Arrays.asList(AlertProfile.NAMES).indexOf(service.getAlertProfileName());
+
+		new AlertDialog.Builder(this)
+				.setTitle("Alert profile")
+				.setSingleChoiceItems(AlertProfile.NAMES, current, (dialog, which) ->
+				{
+					service.setAlertProfile(AlertProfile.NAMES[which]);
+					dialog.dismiss();
+				})
+				.setNegativeButton("Cancel", null)
+				.show();
+	}
+
+	/********************************************************
+	 /***** SHOW DIAGNOSTICS ****
+	 /********************************************************
+	 the per stage latency report (see PipelineLatency), with a way to
+	 send it somewhere as text, save the flight recorder or start counting
+	 again
+	 /********************************************************/
+	void ShowDiagnostics()
+	{
+		final ProxBLE service = mProxBLE_Service;
+		final String report = PipelineLatency.get().report()
+				+ (service != null ? String.format(Locale.US, "%ndropped frames %d%n%s", service.getDroppedFrameCount(), service.describeLiveness()) : "")
+				+ (mScanner != null ? String.format(Locale.US, "%nlast scan (%s) %s%n", mScanner.isBatching() ? "batched" : "unbatched",
+						mScanner.getCandidates().describe(SystemClock.elapsedRealtimeNanos())) : "");
+
+		final TextView text = new TextView(this);
+		text.setTypeface(Typeface.MONOSPACE);
+		text.setTextSize(TypedValue.COMPLEX_UNIT_SP, 11);
+		text.setTextIsSelectable(true);
+		text.setText(report);
+		final int padding = (int) (16 * getResources().getDisplayMetrics().density);
+		text.setPadding(padding, padding, padding, padding);
+		final ScrollView scroll = new ScrollView(this);
+		scroll.addView(text);
+
+		new AlertDialog.Builder(this)
+				.setTitle("Diagnostics")
+				.setView(scroll)
+				.setPositiveButton("Share", (dialog, which) ->
+				{
+					final Intent send = new Intent(Intent.ACTION_SEND);
+					send.setType("text/plain");
+					send.putExtra(Intent.EXTRA_SUBJECT, "Proximity latency report");
+					send.putExtra(Intent.EXTRA_TEXT, report);
+					startActivity(Intent.createChooser(send, "Share report"));
+				})
+				.setNeutralButton("Save trace", (dialog, which) ->
+				{
+					final File file = DumpTrace("manual");
+					Toast.makeText(this, file != null ? "Trace saved: " + file.getName() : "Could not save the trace", Toast.LENGTH_SHORT).show();
+				})
+				.setNegativeButton("Reset", (dialog, which) -> PipelineLatency.get().reset())
+				.show();
+	}
+
+	// the service does the writing; it is the one that is still around when things go wrong
+	File DumpTrace(String why)
+	{
+		return ProxBLE.DumpTrace(getFilesDir(), why);
+	}
+
+	// this will update all the distanced returned over bluetooth, once per frame and only the ones that changed
+	void UpdateDistances()
+	{
+		final int changed = mDistanceDisplay.render();
+		for (int sensor = 0; sensor < tvDistances.length; sensor++)
+		{
+			if ((changed & (1 << sensor)) != 0)
+			{
+				tvDistances[sensor].setText(mDistanceDisplay.getText(sensor), 0, mDistanceDisplay.getTextLength(sensor));
+			}
+		}
 	}
 	// will give user feedback for various settings;
 	// this will only update the subtitle and user feedback
@@ -356,8 +704,9 @@ public class MainActivity extends AppCompatActivity
 				if (buttonText.equals("Close"))
 				{
 					btnChangeAction.setOnClickListener(v -> {
+						// done for now: the alerting stops with the activity
+						stopService(new Intent(this, ProxBLE.class));
 						finish();
-						System.exit(0);
 					});
 				}
 			}
@@ -383,13 +732,19 @@ public class MainActivity extends AppCompatActivity
 	protected void onDestroy()
 	{
 		super.onDestroy();
+		mChoreographer.removeFrameCallback(mDrawDistances);
+		unregisterReceiver(mGattUpdateReceiver);
+		StopScan();
+		// the service and the chair carry on without us
 		if (mProxBLE_Service != null)
 		{
-			mProxBLE_Service.disconnect();
-			mProxBLE_Service.close();
-			unbindService(mServiceConnection);
+			mProxBLE_Service.setObserver(null);
 			mProxBLE_Service = null;
 		}
-		mProx_DataClass.stopToneThread();
+		if (misServiceBound)
+		{
+			unbindService(mServiceConnection);
+			misServiceBound = false;
+		}
 	}
 }
\ No newline at end of file
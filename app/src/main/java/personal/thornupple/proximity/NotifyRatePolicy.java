@@ -0,0 +1,121 @@
+package personal.thornupple.proximity;
+
+import java.util.concurrent.TimeUnit;
+
+/*******************************************
+ /***** NOTIFY RATE POLICY ****
+ /*******************************************
+ how often the chair should send, going by how close the closest thing is:
+   inside the alert range (MAX_DISTANCE_MM)       - fast, every change in distance changes the beeping
+   within NEAR_DISTANCE_MM                        - medium, something is coming up
+   nothing near                                   - slow, the old half second cadence, saves battery
+ speeding up happens straight away.  slowing down has to be wanted for holdMs first and each band has a
+ margin on the way out, so a reading hovering at a boundary does not flap the interval back and forth.
+
+ the distance fed in is the decision's effective distance, so a fast approach from far away already
+ counts as close.  if the peripheral refuses a write the policy gives up until the next connection.
+ not thread safe: it lives on its session's thread
+ /*******************************************/
+public class NotifyRatePolicy
+{
+	public static final int NEAR_DISTANCE_MM = 2 * ProximityDecision.MAX_DISTANCE_MM;
+	public static final int MARGIN_MM = 100;
+
+	private final int mFastMs;
+	private final int mNearMs;
+	private final int mClearMs;
+	private final long mHoldNanos;
+
+	// 0 until the first write, so the first update always says something
+	private int mIntervalMs;
+	private long mSlowerSinceNanos = -1;
+	private boolean mDisabled;
+	private long mChanges;
+
+	public NotifyRatePolicy(int fastMs, int nearMs, int clearMs, int holdMs)
+	{
+		if (fastMs <= 0 || nearMs < fastMs || clearMs < nearMs)
+			throw new IllegalArgumentException("Intervals must be positive and fast <= near <= clear: " + fastMs + ", " + nearMs + ", " + clearMs);
+		mFastMs = fastMs;
+		mNearMs = nearMs;
+		mClearMs = clearMs;
+		mHoldNanos = TimeUnit.MILLISECONDS.toNanos(holdMs);
+	}
+
+	// 50 Hz when it matters, 10 Hz on the way, 2 Hz when clear; wait 2 s before slowing down
+	public static NotifyRatePolicy defaults()
+	{
+		return new NotifyRatePolicy(20, 100, 500, 2000);
+	}
+
+	/*******************************************
+	 /***** UPDATE ****
+	 /*******************************************
+	 RETURNS:  the interval in ms to write to the peripheral now, or 0 to leave it alone
+	 /*******************************************/
+	public int update(int closestMm, long nowNanos)
+	{
+		if (mDisabled)
+		{
+			return 0;
+		}
+
+		// the band we are in gets the margin, so leaving it takes a bit more than entering it
+		final int fastBelow = ProximityDecision.MAX_DISTANCE_MM + (mIntervalMs == mFastMs ? MARGIN_MM : 0);
+		final int nearBelow = NEAR_DISTANCE_MM + (mIntervalMs != 0 && mIntervalMs <= mNearMs ? MARGIN_MM : 0);
+		final int target = closestMm < fastBelow ? mFastMs : closestMm < nearBelow ? mNearMs : mClearMs;
+
+		if (target == mIntervalMs)
+		{
+			mSlowerSinceNanos = -1;
+			return 0;
+		}
+		if (mIntervalMs != 0 && target > mIntervalMs)
+		{
+			if (mSlowerSinceNanos < 0)
+			{
+				mSlowerSinceNanos = nowNanos;
+			}
+			if (nowNanos - mSlowerSinceNanos < mHoldNanos)
+			{
+				return 0;
+			}
+		}
+
+		mSlowerSinceNanos = -1;
+		mIntervalMs = target;
+		mChanges++;
+		return target;
+	}
+
+	public void onWriteResult(boolean success)
+	{
+		if (!success)
+		{
+			mDisabled = true;
+		}
+	}
+
+	// new connection: the peripheral is back on its own default and may take writes again
+	public void reset()
+	{
+		mIntervalMs = 0;
+		mSlowerSinceNanos = -1;
+		mDisabled = false;
+	}
+
+	public int getIntervalMs()
+	{
+		return mIntervalMs;
+	}
+
+	public boolean isDisabled()
+	{
+		return mDisabled;
+	}
+
+	public long getChangeCount()
+	{
+		return mChanges;
+	}
+}
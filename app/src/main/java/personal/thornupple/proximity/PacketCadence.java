@@ -0,0 +1,172 @@
+package personal.thornupple.proximity;
+
+/*******************************************
+ /***** PACKET CADENCE ****
+ /*******************************************
+ follows the chair's notification rhythm: how often the packets really come (the firmware's timer drifts,
+ the notify rate policy moves it, the radio adds jitter) and where on that rhythm they land.
+
+ a small phase locked loop.  it keeps a grid - an anchor time and a period - and predicts each arrival as
+ the nearest grid point.  the miss nudges the anchor (PHASE_SHIFT) and the period (PERIOD_SHIFT), so one
+ late packet moves the grid a little and a chair that runs slow moves it for good.  a lost packet or a
+ batch just skips grid points.  if the arrivals stop fitting at all (the rate was changed) for RELOCK in
+ a row, it starts over from the newest interval.  the misses themselves are averaged too (the jitter), so
+ the scheduler knows how much room to leave after a grid point before it can count on the packet being in.
+
+ the grid is what the tone scheduler lines its pulse edges up with (see ToneScheduler.onPacket), so each
+ pulse starts just after a fresh packet instead of somewhere in between.
+
+ no android in here; one thread at a time
+ /*******************************************/
+public final class PacketCadence
+{
+	// a period between these is believable; faster is a batch landing in a burst, slower is a dropout
+	public static final long MIN_PERIOD_NANOS = 5_000_000L;
+	public static final long MAX_PERIOD_NANOS = 2_000_000_000L;
+
+	// the anchor takes 1/4 of each miss, the period 1/32 of it (spread over the grid points it skipped)
+	private static final int PHASE_SHIFT = 2;
+	private static final int PERIOD_SHIFT = 5;
+	// and the jitter 1/16 of its size
+	private static final int JITTER_SHIFT = 4;
+	// an interval this far off the period (a third either way) does not fit...
+	private static final int MISFIT_DIVISOR = 3;
+	// ...and this many of those in a row means the chair has a new rate
+	private static final int RELOCK = 3;
+
+	private long mPeriodNanos;
+	private long mAnchorNanos;
+	private long mJitterNanos;
+	private long mLastNanos;
+	private int mMisfits;
+	private long mArrivals;
+	private long mRelocks;
+
+	/*******************************************
+	 /***** ON ARRIVAL ****
+	 /*******************************************
+	 a packet arrived at arrivalNanos.  arrivals must not go backwards
+	 /*******************************************/
+	public void onArrival(long arrivalNanos)
+	{
+		mArrivals++;
+		final long interval = mLastNanos == 0 ? 0 : arrivalNanos - mLastNanos;
+		mLastNanos = arrivalNanos;
+		if (interval <= 0)
+		{
+			return;
+		}
+		if (mPeriodNanos == 0)
+		{
+			lock(arrivalNanos, interval);
+			return;
+		}
+
+		// the interval only has to fit a whole number of periods (a lost packet is two)
+		final long periods = Math.max(1, (interval + mPeriodNanos / 2) / mPeriodNanos);
+		final long off = Math.abs(interval - periods * mPeriodNanos);
+		if (off > mPeriodNanos / MISFIT_DIVISOR)
+		{
+			if (++mMisfits >= RELOCK)
+			{
+				lock(arrivalNanos, interval);
+			}
+			return;
+		}
+		mMisfits = 0;
+
+		// the nearest grid point is the prediction; the miss is what we learn from
+		final long steps = Math.floorDiv(arrivalNanos - mAnchorNanos + mPeriodNanos / 2, mPeriodNanos);
+		final long predicted = mAnchorNanos + steps * mPeriodNanos;
+		final long miss = arrivalNanos - predicted;
+		mJitterNanos += (Math.abs(miss) - mJitterNanos) >> JITTER_SHIFT;
+		mAnchorNanos = predicted + (miss >> PHASE_SHIFT);
+		if (steps > 0)
+		{
+			mPeriodNanos = clamp(mPeriodNanos + (miss >> PERIOD_SHIFT) / steps);
+		}
+	}
+
+	private void lock(long arrivalNanos, long interval)
+	{
+		if (interval < MIN_PERIOD_NANOS || interval > MAX_PERIOD_NANOS)
+		{
+			return;
+		}
+		if (mPeriodNanos != 0)
+			mRelocks++;
+		mPeriodNanos = interval;
+		mAnchorNanos = arrivalNanos;
+		mJitterNanos = 0;
+		mMisfits = 0;
+	}
+
+	private static long clamp(long periodNanos)
+	{
+		return Math.max(MIN_PERIOD_NANOS, Math.min(MAX_PERIOD_NANOS, periodNanos));
+	}
+
+	// forget the rhythm, e.g. for a new connection
+	public void reset()
+	{
+		mPeriodNanos = 0;
+		mAnchorNanos = 0;
+		mJitterNanos = 0;
+		mLastNanos = 0;
+		mMisfits = 0;
+	}
+
+	// 0 until there is a rhythm to go by
+	public long getPeriodNanos()
+	{
+		return mPeriodNanos;
+	}
+
+	// a point on the grid: packets are expected at anchor + k * period
+	public long getAnchorNanos()
+	{
+		return mAnchorNanos;
+	}
+
+	// the mean distance of an arrival from its grid point
+	public long getJitterNanos()
+	{
+		return mJitterNanos;
+	}
+
+	public long getArrivalCount()
+	{
+		return mArrivals;
+	}
+
+	public long getRelockCount()
+	{
+		return mRelocks;
+	}
+
+	/*******************************************
+	 /***** FIT PERIOD ****
+	 /*******************************************
+	 the pulse period nearest wantedNanos that is a whole number of packet periods (or a whole fraction of
+	 one, for a chair slower than the pulses), so pulse edges and packets keep the same relation.
+	 RETURNS:  that, or 0 if the nearest is more than a fifth away (then it would not sound like the same
+	           alert any more)
+	 /*******************************************/
+	public static long fitPeriod(long wantedNanos, long packetNanos)
+	{
+		if (packetNanos <= 0 || wantedNanos <= 0)
+		{
+			return 0;
+		}
+		final long fitted;
+		if (packetNanos <= wantedNanos)
+		{
+			fitted = Math.max(1, (wantedNanos + packetNanos / 2) / packetNanos) * packetNanos;
+		}
+		else
+		{
+			fitted = packetNanos / Math.max(1, (packetNanos + wantedNanos / 2) / wantedNanos);
+		}
+		return Math.abs(fitted - wantedNanos) * 5 > wantedNanos ? 0 : fitted;
+	}
+}
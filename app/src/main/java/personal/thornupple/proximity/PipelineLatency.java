@@ -0,0 +1,142 @@
+package personal.thornupple.proximity;
+
+import java.util.Locale;
+
+/*******************************************
+ /***** PIPELINE LATENCY ****
+ /*******************************************
+ where the time goes between the chair and the ear.  every notification is stamped when it comes off the
+ radio (onCharacteristicChanged), when the sample listener picks it up, and when the decision is made; a
+ tone that starts from silence is stamped again when the audio track is playing.  each gap goes into its
+ own LatencyHistogram, next to the time between notifications and how much that moves (jitter).
+
+ cheap enough to leave on: a record is a handful of plain loads and ordered stores, no locks, no garbage.
+ each histogram has one writer at a time - the arrival stages from the gatt callback thread, the decision
+ stages from the decision thread, the audio stages from the tone scheduler - and the diagnostics screen
+ reads them whenever
+ /*******************************************/
+public final class PipelineLatency
+{
+	// onCharacteristicChanged to the sample listener
+	public static final int RECEIPT = 0;
+	// sample listener to hazard state handed to the tone scheduler
+	public static final int DECISION = 1;
+	// hazard state to the audio track playing; only for tones that start from silence
+	public static final int AUDIO_START = 2;
+	// onCharacteristicChanged to the audio track playing, the same tones
+	public static final int END_TO_END = 3;
+	// between one notification and the next, on one link
+	public static final int INTERVAL = 4;
+	// how far each interval is off the one before
+	public static final int JITTER = 5;
+	public static final int STAGE_COUNT = 6;
+
+	private static final String[] STAGE_NAMES = {
+			"radio -> listener", "listener -> decision", "decision -> audio", "radio -> audio", "interval", "jitter"};
+
+	private static final PipelineLatency INSTANCE = new PipelineLatency();
+
+	private final LatencyHistogram[] mStages = new LatencyHistogram[STAGE_COUNT];
+	private volatile long mResetNanos = System.nanoTime();
+
+	// only touched from the arrival side
+	private long mLastArrivalNanos = -1;
+	private long mLastIntervalNanos = -1;
+
+	public PipelineLatency()
+	{
+		for (int stage = 0; stage < STAGE_COUNT; stage++)
+		{
+			mStages[stage] = new LatencyHistogram();
+		}
+	}
+
+	// the process wide one the app records into
+	public static PipelineLatency get()
+	{
+		return INSTANCE;
+	}
+
+	/*******************************************
+	 /***** ON ARRIVAL ****
+	 /*******************************************
+	 every notification, as it comes off the radio, whether or not anybody looks at it
+	 /*******************************************/
+	public void onArrival(long arrivalNanos)
+	{
+		if (mLastArrivalNanos >= 0)
+		{
+			final long interval = arrivalNanos - mLastArrivalNanos;
+			mStages[INTERVAL].record(interval);
+			if (mLastIntervalNanos >= 0)
+			{
+				mStages[JITTER].record(Math.abs(interval - mLastIntervalNanos));
+			}
+			mLastIntervalNanos = interval;
+		}
+		mLastArrivalNanos = arrivalNanos;
+	}
+
+	// the link went away; the wait for the next one is not an interval
+	public void onLinkDropped()
+	{
+		mLastArrivalNanos = -1;
+		mLastIntervalNanos = -1;
+	}
+
+	public void onDecision(long arrivalNanos, long receivedNanos, long decidedNanos)
+	{
+		mStages[RECEIPT].record(receivedNanos - arrivalNanos);
+		mStages[DECISION].record(decidedNanos - receivedNanos);
+	}
+
+	public void onAudioStart(long arrivalNanos, long decidedNanos, long startedNanos)
+	{
+		mStages[AUDIO_START].record(startedNanos - decidedNanos);
+		mStages[END_TO_END].record(startedNanos - arrivalNanos);
+	}
+
+	public LatencyHistogram getStage(int stage)
+	{
+		return mStages[stage];
+	}
+
+	public static String stageName(int stage)
+	{
+		return STAGE_NAMES[stage];
+	}
+
+	/*******************************************
+	 /***** REPORT ****
+	 /*******************************************
+	 a plain text table, ms, for the diagnostics screen and for pasting into a bug.  allocates
+	 /*******************************************/
+	public void report(StringBuilder out)
+	{
+		out.append(String.format(Locale.US, "pipeline latency over the last %.0f s (ms)%n", (System.nanoTime() - mResetNanos) / 1e9));
+		out.append(String.format(Locale.US, "%-21s %7s %8s %8s %8s %8s%n", "stage", "count", "p50", "p99", "max", "mean"));
+		for (int stage = 0; stage < STAGE_COUNT; stage++)
+		{
+			final LatencyHistogram histogram = mStages[stage];
+			out.append(String.format(Locale.US, "%-21s %7d %8.2f %8.2f %8.2f %8.2f%n", STAGE_NAMES[stage], histogram.getCount(),
+					histogram.getValueAtPercentile(50) / 1e6, histogram.getValueAtPercentile(99) / 1e6,
+					histogram.getMax() / 1e6, histogram.getMean() / 1e6));
+		}
+	}
+
+	public String report()
+	{
+		final StringBuilder out = new StringBuilder(512);
+		report(out);
+		return out.toString();
+	}
+
+	public void reset()
+	{
+		for (LatencyHistogram histogram : mStages)
+		{
+			histogram.reset();
+		}
+		mResetNanos = System.nanoTime();
+	}
+}
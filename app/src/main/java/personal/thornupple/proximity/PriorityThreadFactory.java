@@ -0,0 +1,34 @@
+package personal.thornupple.proximity;
+
+import android.os.Process;
+
+import java.util.concurrent.ThreadFactory;
+
+/*******************************************
+ /***** PRIORITY THREAD FACTORY ****
+ /*******************************************
+ named threads at an android (linux nice) priority, e.g. Process.THREAD_PRIORITY_URGENT_AUDIO.  the
+ priority is set from inside the new thread, which is the only place Process.setThreadPriority(int) works
+ on; Thread.setPriority does not get anywhere near the audio levels
+ /*******************************************/
+public final class PriorityThreadFactory implements ThreadFactory
+{
+	private final String mName;
+	private final int mPriority;
+
+	public PriorityThreadFactory(String name, int androidPriority)
+	{
+		mName = name;
+		mPriority = androidPriority;
+	}
+
+	@Override
+	public Thread newThread(Runnable runnable)
+	{
+		return new Thread(() ->
+		{
+			Process.setThreadPriority(mPriority);
+			runnable.run();
+		}, mName);
+	}
+}
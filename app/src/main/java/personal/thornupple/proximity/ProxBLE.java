@@ -2,25 +2,51 @@ package personal.thornupple.proximity;
 
 
 import android.annotation.SuppressLint;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
-import android.bluetooth.BluetoothProfile;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.PowerManager;
+import android.os.Process;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
 import java.util.UUID;
-
-
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/*******************************************
+ /***** PROX BLE ****
+ /*******************************************
+ the foreground service that does the alerting: a gatt session per sensor pod, decode, merge, decision, tones and the session
+ recording all live here, so they carry on with the screen off or while the activity is being recreated.
+ MainActivity binds to it to scan, pick the chair and watch (see Observer) but nothing here needs it.
+
+ started with startForegroundService (MainActivity does that before connecting), stopped from the
+ notification, from the activity's Close button or when the system kills us; START_STICKY brings it back
+ to the last chair.  started with EXTRA_SIMULATE it plays SimulatedPeripherals (a front and a rear pod at
+ different rates) instead of the radio, to
+ compare alert latency (the diagnostics screen) with the app in front and in the background:
+ adb shell am start -n personal.thornupple.proximity/.MainActivity --ez thornupple.prox.EXTRA_SIMULATE true
+ /*******************************************/
 public class ProxBLE extends Service
 {
 
@@ -28,26 +54,318 @@ public class ProxBLE extends Service
 	public final static String ACTION_GATT_CONNECTED = "thornupple.prox.ACTION_GATT_CONNECTED";
 	public final static String ACTION_GATT_DISCONNECTED = "thornupple.prox.ACTION_GATT_DISCONNECTED";
 	public final static String ACTION_GATT_SERVICES_DISCOVERED = "thornupple.prox.ACTION_GATT_SERVICES_DISCOVERED";
-	public final static String ACTION_DATA_AVAILABLE = "thornupple.prox.ACTION_DATA_AVAILABLE";
-	public final static String EXTRA_DATA = "thornupple.prox.EXTRA_DATA";
-
-	// this is used in the subscription in the setCharacteristicNotification function. Can't find much documentation so this is one of those
+	public final static String ACTION_GATT_RECONNECTING = "thornupple.prox.ACTION_GATT_RECONNECTING";
+	// the device never answered and we stopped trying; time to scan for it
+	public final static String ACTION_GATT_CONNECT_FAILED = "thornupple.prox.ACTION_GATT_CONNECT_FAILED";
+	// a pod stopped sending (or came back) without anything else telling us; see LivenessMonitor
+	public final static String ACTION_SENSOR_LOST = "thornupple.prox.ACTION_SENSOR_LOST";
+	public final static String ACTION_SENSOR_RECOVERED = "thornupple.prox.ACTION_SENSOR_RECOVERED";
+	// sent to the service (from the notification) to stop alerting and go away
+	public final static String ACTION_STOP = "thornupple.prox.ACTION_STOP";
+	public final static String EXTRA_SIMULATE = "thornupple.prox.EXTRA_SIMULATE";
+
+	// a pod on the front and, if the chair has one, a pod on the back, each on its own connection and lined
+	// up into one view by StreamMerger.  a chair with only the front pod never hears from the rear one, and
+	// its sensors just read as no echo
+	static final SensorLayout[] POD_LAYOUTS = {SensorLayout.legacy(), SensorLayout.legacyRear()};
+	static final int FRONT_POD = 0;
+	static final int REAR_POD = 1;
+	static final SensorLayout SENSOR_LAYOUT = SensorLayout.combine(POD_LAYOUTS);
+
+	// which AlertProfile and whether to play every sensor at once (SpatialMixer), kept across launches
+	private static final String PREFERENCES = "alerting";
+	private static final String KEY_ALERT_PROFILE = "alert_profile";
+	private static final String KEY_SPATIAL_AUDIO = "spatial_audio";
+
+	private static final String NOTIFICATION_CHANNEL = "alerting";
+	private static final int NOTIFICATION_ID = 1;
+
+	// this is used in the subscription in AndroidGattTransport.subscribe. Can't find much documentation so this is one of those
 	// it works in the samples, it works here, so just use it
 	public final static UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
 	// we COULd generate our own UUID for service and characteristic and that would obviate the potential problem of the client picking up
 	// other devices that broadcast the following.  But, this is so unlikely, then why bother?  Just use these from the BT SIG
 	public final static UUID ENVIRONMENTAL_SENSING_SERVICE = UUID.fromString("0000181a-0000-1000-8000-00805f9b34fb");
-	private final static UUID LOCATION_AND_SPEED_CHARACTERISTIC = UUID.fromString("00002a67-0000-1000-8000-00805f9b34fb");
+	final static UUID LOCATION_AND_SPEED_CHARACTERISTIC = UUID.fromString("00002a67-0000-1000-8000-00805f9b34fb");
+
+	// not from the BT SIG, there is nothing standard for "notify every n ms".  u16 little endian, ms.  the
+	// firmware has to add it to the environmental sensing service; without it the chair keeps its own rate
+	final static UUID NOTIFY_INTERVAL_CHARACTERISTIC = UUID.fromString("8e7f0001-4b5c-4f3a-9d2e-2f1a6c0d7e01");
 
 	// for logging information
 	private static final String TAG = ProxBLE.class.getSimpleName ();
 
+	// the crash dump is the process's, not the service's: put in once however many times we get created
+	private static final AtomicBoolean CRASH_DUMP_INSTALLED = new AtomicBoolean();
+
 	// module level stuff
 	private final IBinder mBinder = new LocalBinder ();
 	private BluetoothAdapter mBluetoothAdapter;
-	private BluetoothGatt mBluetoothGatt;
-	private BluetoothGattCharacteristic mProxBluetoothGattCharacteristic;
+
+	// one connection per pod, each with its own transport and session (see Pod); null until set up
+	private final Pod[] mPods = new Pod[POD_LAYOUTS.length];
+	private final AtomicInteger mConnectedPods = new AtomicInteger();
+
+	// the alert engine; only the sample listener (one thread at a time) drives it
+	private ProximityDataClass mProx_DataClass;
+	// every decoded sample goes to files/sessions/ so a near miss can be replayed later
+	private SessionRecorder mSessionRecorder;
+	// the tone scheduler's pulse timers must keep running between notifications with the screen off
+	private PowerManager.WakeLock mWakeLock;
+	private boolean mForeground;
+	private volatile Observer mObserver;
+
+	// the chair's handles are kept next to its address so a reflashed chair shows up in the log
+	private DeviceCache mDeviceCache;
+
+	/*******************************************
+	 threads, none of them the main one, so ui jank and the main thread's garbage stay out of the alert path:
+	   ble-io          every gatt callback, the operation queue and its timeouts, the reconnect timer - for
+	                   every pod, however many; a connection is a few callbacks, not a thread
+	   decision        decode, decide, record; fed through the sample channel (see DecisionThread).  also the
+	                   one timer that notices a pod gone quiet, so that costs no thread either
+	   tone-scheduler  the pulse cadence and the audio tracks, at urgent audio priority (ProximityDataClass)
+	   spatial-mixer   or, with spatial audio on, every sensor mixed into one stereo stream, at the same priority
+	 /*******************************************/
+	private HandlerThread mBleThread;
+	private Handler mBleHandler;
+	private DecisionThread mDecisionThread;
+
+	/*******************************************
+	 /***** OBSERVER ****
+	 /*******************************************
+	 whoever wants to watch (the activity while it is around).  called on the decision thread after
+	 every decoded frame has been acted on; the frame belongs to the service and is only valid for the call
+	 /*******************************************/
+	public interface Observer
+	{
+		void onFrame(SensorFrame frame);
+	}
+
+	/*******************************************
+	 /***** SAMPLE LISTENER OBJECT ****
+	 /*******************************************
+	 run on the decision thread every time a reading lands in the sample channel.  every waiting reading
+	 is decoded, decided on and recorded in order, so the filters, the recording and the trace see them all;
+	 what is newest-wins is the output - the tone scheduler keeps the last state, and the rate and the
+	 observer only hear about the last frame of the batch
+	 /*******************************************/
+	private final SampleChannel.Sample mSample = new SampleChannel.Sample();
+	private final SampleChannel.Listener mSampleListener = channel ->
+	{
+		final int pod = podOf(channel);
+		if (pod < 0)
+		{
+			return;
+		}
+
+		SensorFrame frame = null;
+		while (channel.poll(mSample))
+		{
+			final SensorFrame decided = mProx_DataClass.PlayTone(pod, mSample);
+			if (decided == null)
+			{
+				continue;
+			}
+			mSessionRecorder.record(decided, mSample.arrivalNanos);
+			frame = decided;
+		}
+		if (frame == null)
+		{
+			return;
+		}
+		// faster updates from the chair when something is close, slower when the way is clear
+		updateNotifyRate(mProx_DataClass.getClosestDistanceMm());
+
+		final Observer observer = mObserver;
+		if (observer != null)
+		{
+			observer.onFrame(frame);
+		}
+	};
+
+	/*******************************************
+	 /***** LIVENESS TIMER OBJECT ****
+	 /*******************************************
+	 the decision thread's timer: runs after every batch of samples and at each pod's deadline.  the lost
+	 alert itself is ProximityDataClass's; this only tells the notification and the activity
+	 /*******************************************/
+	private boolean mSensorLost;
+	private final DecisionThread.Timer mLivenessTimer = nowNanos ->
+	{
+		final long next = mProx_DataClass.checkLiveness(nowNanos);
+		final boolean lost = mProx_DataClass.isSensorLost();
+		if (lost != mSensorLost)
+		{
+			mSensorLost = lost;
+			Log.w(TAG, lost ? "Sensor lost, no readings." : "Sensor readings back.");
+			for (Pod pod : mPods)
+			{
+				if (pod != null)
+					Log.i(TAG, "Pod " + pod.index + ": " + mProx_DataClass.describeLiveness(pod.index));
+			}
+			updateNotification(lost ? "Sensor lost" : describeConnected());
+			broadcastUpdate(lost ? ACTION_SENSOR_LOST : ACTION_SENSOR_RECOVERED);
+		}
+		return next;
+	};
+
+	// which pod a sample channel belongs to, -1 for a session that has since been replaced
+	private int podOf(SampleChannel channel)
+	{
+		for (int pod = 0; pod < mPods.length; pod++)
+		{
+			final Pod known = mPods[pod];
+			if (known != null && known.session.getSampleChannel() == channel)
+				return pod;
+		}
+		return -1;
+	}
+
+	/*******************************************
+	 /***** ON CREATE ****
+	 /*******************************************/
+	@Override
+	public void onCreate()
+	{
+		super.onCreate();
+		installCrashDump(getFilesDir());
+		mBleThread = new HandlerThread("ble-io", Process.THREAD_PRIORITY_AUDIO);
+		mBleThread.start();
+		mBleHandler = new Handler(mBleThread.getLooper());
+
+		mProx_DataClass = new ProximityDataClass(POD_LAYOUTS);
+		final SharedPreferences preferences = getSharedPreferences(PREFERENCES, MODE_PRIVATE);
+		mProx_DataClass.setAlertProfile(AlertProfile.named(preferences.getString(KEY_ALERT_PROFILE, AlertProfile.INDOOR), SENSOR_LAYOUT));
+		mProx_DataClass.setSpatialAudio(preferences.getBoolean(KEY_SPATIAL_AUDIO, true));
+		mDecisionThread = new DecisionThread(mSampleListener, new PriorityThreadFactory("decision", Process.THREAD_PRIORITY_AUDIO));
+		mDecisionThread.setTimer(mLivenessTimer);
+		mDecisionThread.start();
+		mSessionRecorder = SessionRecorder.defaults(new File(getFilesDir(), "sessions"));
+		mSessionRecorder.start();
+
+		final PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
+		mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "proximity:alerting");
+		mWakeLock.setReferenceCounted(false);
+
+		final NotificationChannel channel = new NotificationChannel(NOTIFICATION_CHANNEL, "Alerting", NotificationManager.IMPORTANCE_LOW);
+		channel.setDescription("Shown while the chair's distances are being turned into tones");
+		getSystemService(NotificationManager.class).createNotificationChannel(channel);
+	}
+
+	/*******************************************
+	 /***** INSTALL CRASH DUMP ****
+	 /*******************************************
+	 if we go down, the flight recorder goes to disk first so there is something to look at afterwards.
+	 only the files dir is held on to, so no context outlives its owner
+	 /*******************************************/
+	private static void installCrashDump(final File filesDir)
+	{
+		if (!CRASH_DUMP_INSTALLED.compareAndSet(false, true))
+			return;
+		final Thread.UncaughtExceptionHandler crashHandler = Thread.getDefaultUncaughtExceptionHandler();
+		Thread.setDefaultUncaughtExceptionHandler((thread, throwable) ->
+		{
+			DumpTrace(filesDir, "crash");
+			if (crashHandler != null)
+				crashHandler.uncaughtException(thread, throwable);
+		});
+	}
+
+	/*******************************************
+	 /***** DUMP TRACE ****
+	 /*******************************************
+	 writes the flight recorder to files/traces/trace-<time>-<why>.pxfr.  pull it with
+	 adb shell run-as personal.thornupple.proximity cat files/traces/<name> > trace.pxfr
+	 and read it with ./gradlew :benchmark:trace --args="trace.pxfr"
+	 RETURNS:  the file, or null if it could not be written
+	 /*******************************************/
+	static File DumpTrace(File filesDir, String why)
+	{
+		final File directory = new File(filesDir, "traces");
+		if (!directory.isDirectory() && !directory.mkdirs())
+		{
+			return null;
+		}
+		final String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+		final File file = new File(directory, "trace-" + stamp + "-" + why + ".pxfr");
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file)))
+		{
+			final int events = FlightRecorder.get().write(out);
+			Log.i(TAG, "Saved " + events + " trace events to " + file);
+			return file;
+		}
+		catch (IOException exception)
+		{
+			Log.w(TAG, "Could not save the trace: " + exception);
+			return null;
+		}
+	}
+
+	/*******************************************
+	 /***** ON START COMMAND ****
+	 /*******************************************
+	 a null intent is the system bringing us back after it killed us: go back to the last chair
+	 /*******************************************/
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId)
+	{
+		if (intent != null && ACTION_STOP.equals(intent.getAction()))
+		{
+			Log.i(TAG, "Stopping alerting.");
+			disconnect();
+			stopForeground(true);
+			mForeground = false;
+			stopSelf();
+			return START_NOT_STICKY;
+		}
+
+		startForeground(NOTIFICATION_ID, buildNotification("Starting..."));
+		mForeground = true;
+
+		if (intent != null && intent.getBooleanExtra(EXTRA_SIMULATE, false))
+		{
+			Log.i(TAG, "Alerting from a simulated chair.");
+			// the pods deliberately out of step, so the merge has something to do
+			setTransport(FRONT_POD, new SimulatedPeripheral(POD_LAYOUTS[FRONT_POD], 20));
+			setTransport(REAR_POD, new SimulatedPeripheral(POD_LAYOUTS[REAR_POD], 7));
+			Connect(FRONT_POD, "simulated-front");
+			Connect(REAR_POD, "simulated-rear");
+		}
+		else if (intent == null)
+		{
+			Initialize();
+			for (int pod = 0; pod < mPods.length; pod++)
+			{
+				if (mDeviceCache.getAddress(pod) != null)
+					Connect(pod, mDeviceCache.getAddress(pod));
+			}
+		}
+		return START_STICKY;
+	}
+
+	private Notification buildNotification(String text)
+	{
+		final PendingIntent open = PendingIntent.getActivity(this, 0, new Intent(this, MainActivity.class), PendingIntent.FLAG_IMMUTABLE);
+		final PendingIntent stop = PendingIntent.getService(this, 1, new Intent(this, ProxBLE.class).setAction(ACTION_STOP), PendingIntent.FLAG_IMMUTABLE);
+		return new Notification.Builder(this, NOTIFICATION_CHANNEL)
+				.setContentTitle("Proximity alerts")
+				.setContentText(text)
+				.setSmallIcon(R.drawable.ic_launcher_foreground)
+				.setOngoing(true)
+				.setContentIntent(open)
+				.addAction(new Notification.Action.Builder(null, "Stop", stop).build())
+				.build();
+	}
+
+	private void updateNotification(String text)
+	{
+		if (mForeground)
+		{
+			getSystemService(NotificationManager.class).notify(NOTIFICATION_ID, buildNotification(text));
+		}
+	}
 
 	// since this is the first occurrence of the suppression of this permission, let's touch on why...
 	// when the app starts, we check the permissions from the Main Activity code and if the permissions
@@ -61,22 +379,57 @@ public class ProxBLE extends Service
 	{
 		Log.d(TAG, "Entered Initialize in ProxBLE service.");
 
+		if (mDeviceCache == null)
+		{
+			mDeviceCache = new DeviceCache(this);
+		}
+
 		mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
 
 		if (mBluetoothAdapter == null)
 		{
 			Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
+			return;
+		}
+		for (int pod = 0; pod < mPods.length; pod++)
+		{
+			// a transport plugged in before we got here (e.g. the simulated peripheral) is left be.
+			// every pod's gatt callbacks come in on the one ble-io thread
+			if (mPods[pod] == null)
+				setTransport(pod, new AndroidGattTransport(this, mBluetoothAdapter, mBleHandler));
 		}
 	}
 
+	/*******************************************
+	 /***** SET TRANSPORT ****
+	 *******************************************
+	 * swaps one pod's gatt layer, e.g. for a SimulatedPeripheral when there is no chair around.  call before Connect
+	/*******************************************/
+	public void setTransport(int pod, GattTransport transport)
+	{
+		final Pod previous = mPods[pod];
+		if (previous != null)
+		{
+			mBleHandler.removeCallbacks(previous);
+			mProx_DataClass.disarmLiveness(pod);
+			previous.session.close();
+		}
+		mPods[pod] = new Pod(pod, transport);
+	}
+
 	/*******************************************
 	 /***** CONNECT ****
 	/*******************************************/
-	@SuppressLint("MissingPermission")
 	public void Connect(String deviceAddress)
 	{
-		Log.d(TAG, "Entered Connect in ProxBLE service.");
-		if (deviceAddress == null || mBluetoothAdapter == null)
+		Connect(FRONT_POD, deviceAddress);
+	}
+
+	public void Connect(int pod, String deviceAddress)
+	{
+		Log.d(TAG, "Entered Connect in ProxBLE service, pod " + pod + ".");
+		final Pod target = mPods[pod];
+		if (deviceAddress == null || target == null)
 		{
 			Log.e(TAG, "Either the device Address or Adapter are null, Cannot continue.");
 			return;
@@ -85,156 +438,270 @@ public class ProxBLE extends Service
 		// from the docs:
 		/* 	Once the BluetoothService is initialized, it can connect to the BLE device.
 			The activity needs to send the device address to the service so it can initiate the connection.
-			The service will first call getRemoteDevice() on the BluetoothAdapter to access the device.
-			If the adapter is unable to find a device with that address, getRemoteDevice() throws an IllegalArgumentException.
 		 */
-		try
+		if (deviceAddress.equals(target.session.getTargetAddress()))
 		{
-			final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(deviceAddress);
-			mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
+			// the activity came back (rotated, reopened) while we kept the chair; nothing to do
+			Log.d(TAG, "Already connected or connecting to " + deviceAddress);
+			return;
 		}
-		catch (IllegalArgumentException exception)
+		if (!target.session.connect(deviceAddress))
 		{
-			Log.w(TAG, "Device not found with provided address.");
+			Log.w(TAG, "Could not start connecting to " + deviceAddress);
 		}
 	}
 
 
 	/*******************************************
-	***** BLUETOOTH GATT CALLBACK ****
+	***** CLASS:  POD ****
+	*******************************************
+	* one sensor pod's connection: its transport, its session, and the session's callbacks and timer.  the
+	* session subscribes and reads by itself as soon as the services are discovered, so all that is left
+	* here is keeping the tones, the wake lock and the notification in step and telling the main activity
+	* what is going on.  the timer is a post on the shared ble-io handler, so another pod costs no thread
 	/*******************************************/
-	private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback ()
+	private final class Pod implements GattSession.Listener, GattSession.Wakeup, Runnable
 	{
+		final int index;
+		final GattTransport transport;
+		final GattSession session;
+		private boolean mConnected;
+
+		// the notify rate is asked for on the decision thread but the session, its policy and its writes
+		// belong to ble-io: the closest distance is handed over and one update is posted at a time
+		private final Runnable mRateUpdate = this::updateRate;
+		private final AtomicBoolean mRatePending = new AtomicBoolean();
+		private volatile int mClosestMm;
+		// what the policy settled on, for the liveness timeout on the decision thread; 0 if it is not in charge
+		private volatile int mExpectedIntervalMs;
+
+		Pod(int index, GattTransport transport)
+		{
+			this.index = index;
+			this.transport = transport;
+			// faster updates from the chair when something is close, slower when the way is clear
+			session = new GattSession(transport, this, this, NotifyRatePolicy.defaults());
+			// a dropped link comes back by itself, quickly at first and then backing off
+			session.setReconnectPolicy(ReconnectPolicy.defaults());
+			session.setSampleListener(mDecisionThread);
+		}
 
-		/***************************************************
-		/***** BLUETOOTH GATT: CONNECTION STATE CHANGED****
-		/**************************************************/
-		@SuppressLint("MissingPermission")
+		// the session's timer went off
 		@Override
-		public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState)
+		public void run()
 		{
-			Log.i(TAG, "onConnectionChanged.");
+			session.step(System.nanoTime());
+		}
 
-			if (newState == BluetoothProfile.STATE_CONNECTED)
+		// decision thread
+		void requestRate(int closestMm)
+		{
+			mClosestMm = closestMm;
+			if (mRatePending.compareAndSet(false, true))
 			{
-				Log.i(TAG, "Connected to GATT server.");
-				broadcastUpdate(ACTION_GATT_CONNECTED);
-				mBluetoothGatt.discoverServices();
+				mBleHandler.post(mRateUpdate);
 			}
-			else if (newState == BluetoothProfile.STATE_DISCONNECTED)
+		}
+
+		// ble-io.  the flag goes down first, so a distance stored after the read below posts another update
+		private void updateRate()
+		{
+			mRatePending.set(false);
+			session.updateNotifyRate(mClosestMm, System.nanoTime());
+			final NotifyRatePolicy policy = session.getNotifyRatePolicy();
+			mExpectedIntervalMs = policy.isDisabled() ? 0 : policy.getIntervalMs();
+		}
+
+		@Override
+		public void wakeAt(long deadlineNanos)
+		{
+			final long delayMs = Math.max(0, (deadlineNanos - System.nanoTime()) / 1_000_000L);
+			mBleHandler.removeCallbacks(this);
+			mBleHandler.postDelayed(this, delayMs);
+		}
+
+		@Override
+		public void onConnected()
+		{
+			Log.i(TAG, "Connected to GATT server, pod " + index + ".");
+			if (!mConnected)
 			{
-				Log.i(TAG, "Disconnected from GATT server.");
-				broadcastUpdate(ACTION_GATT_DISCONNECTED);
+				mConnected = true;
+				mConnectedPods.incrementAndGet();
 			}
+			mWakeLock.acquire();
+			updateNotification(describeConnected());
+			broadcastUpdate(ACTION_GATT_CONNECTED);
 		}
-		/***************************************************
-		/***** BLUETOOTH GATT: ON SERVICE DISCOVERED ****
-		/**************************************************/
-		@SuppressLint("MissingPermission")
+
 		@Override
-		public void onServicesDiscovered (BluetoothGatt gatt, int status)
+		public void onDisconnected()
 		{
-			if (status == BluetoothGatt.GATT_SUCCESS) {
-				broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
-			} else {
-				Log.w(TAG, "onServicesDiscovered received: " + status);
+			Log.i(TAG, "Disconnected from GATT server, pod " + index + ".");
+			mBleHandler.removeCallbacks(this);
+			if (mConnected)
+			{
+				mConnected = false;
+				mConnectedPods.decrementAndGet();
 			}
-
-			if (status == BluetoothGatt.GATT_SUCCESS)
+			// the other pods keep alerting; the merge reads this one as no echo once its readings go stale
+			if (mConnectedPods.get() == 0)
 			{
-				Log.w (TAG, "Services Discovered, connecting to Proximity  service...");
-
-				BluetoothGattService environmentalSensingService = gatt.getService (ENVIRONMENTAL_SENSING_SERVICE);
-
-				mProxBluetoothGattCharacteristic = environmentalSensingService.getCharacteristic (LOCATION_AND_SPEED_CHARACTERISTIC);
+				// whatever was beeping is out of date now
+				mProx_DataClass.stopTone();
+				mWakeLock.release();
+			}
+			updateNotification(mConnectedPods.get() == 0 ? "Disconnected" : describeConnected());
+			broadcastUpdate(ACTION_GATT_DISCONNECTED);
+		}
 
-				gatt.readCharacteristic (mProxBluetoothGattCharacteristic);
+		@Override
+		public void onServicesDiscovered ()
+		{
+			Log.i (TAG, "Services Discovered, subscribing to Proximity service...");
+			final DeviceCache cache = mDeviceCache;
+			// only the front pod's handle is kept; it is just there to notice a reflash
+			if (index == FRONT_POD && cache != null && cache.rememberValueHandle(transport.getValueHandle()))
+			{
+				Log.i(TAG, "Proximity characteristic moved, the chair's firmware changed since last time.");
 			}
+			broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
 		}
 
-		/***************************************************
-		/***** BLUETOOTH GATT: ON CHARACTERISTIC READ****
-		/****************************************************************************************************************
-		* ok, this is now deprecated but still works and the docs are missing on how to implement the new api, so just
-		* leave it as is
-		****************************************************************************************************************/
 		@Override
-		public void onCharacteristicRead (BluetoothGatt gatt,
-										  BluetoothGattCharacteristic characteristic,
-										  int status)
+		public void onFirstSample (long connectNanos, long linkDropNanos)
 		{
-			if (status == BluetoothGatt.GATT_SUCCESS)
+			Log.i(TAG, String.format(Locale.US, "Pod %d: first sample %.1f ms after connect (%.1f ms after discovery).",
+					index, connectNanos / 1e6, session.getDiscoveryToFirstSampleNanos() / 1e6));
+			if (linkDropNanos >= 0)
 			{
-				broadcastUpdate( characteristic);
+				Log.i(TAG, String.format(Locale.US, "Pod %d: readings back %.1f ms after the link dropped.", index, linkDropNanos / 1e6));
 			}
 		}
 
-		/*******************************************************
-		/***** BLUETOOTH GATT: ON CHARACTERISTIC CHANGED *****
-		/****************************************************************************************************************
-		 * ok, this is now deprecated but still works and the docs are missing on how to implement the new api, so just
-		 * leave it as is
-		 ****************************************************************************************************************/
 		@Override
-		public void onCharacteristicChanged (BluetoothGatt gatt,
-											 BluetoothGattCharacteristic characteristic)
+		public void onReconnecting (int attempt, long delayNanos)
 		{
-			broadcastUpdate (characteristic);
+			Log.i(TAG, String.format(Locale.US, "Pod %d: reconnect attempt %d in %d ms.", index, attempt, delayNanos / 1_000_000L));
+			updateNotification("Reconnecting...");
+			broadcastUpdate(ACTION_GATT_RECONNECTING);
 		}
-	};
-	/******** END BLUETOOTH GATT CALLBACK FUNCTIONS *****
 
-	/*******************************************
-	/***** SET CHARACTERISTIC NOTIFICATION  ****
-	*******************************************
-	this is just a function in this class; but "subscribes to notifications from the
-	bluetooth gatt service running on the remote server... in this case the microcontroller
-	/*******************************************/
-	@SuppressLint("MissingPermission")
-	public void setCharacteristicNotification()
-	{
-		if (mBluetoothGatt == null)
+		@Override
+		public void onGaveUp ()
 		{
-			Log.w(TAG, "BluetoothGatt not initialized");
-			return;
+			Log.w(TAG, "Pod " + index + " never answered, giving up on it.");
+			updateNotification("Chair not found");
+			broadcastUpdate(ACTION_GATT_CONNECT_FAILED);
 		}
-		mBluetoothGatt.setCharacteristicNotification(mProxBluetoothGattCharacteristic, true);
 
-		BluetoothGattDescriptor descriptor = mProxBluetoothGattCharacteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG); // not sure where this comes from but the sample used it so let's try it
+		@Override
+		public void onLinkReady (LinkNegotiator negotiator)
+		{
+			Log.i(TAG, "Pod " + index + " link ready: " + negotiator);
+		}
+	}
 
-		descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+	private String describeConnected()
+	{
+		final int connected = mConnectedPods.get();
+		return connected > 1 ? "Connected to " + connected + " pods" : "Connected";
+	}
+	/******** END SESSION CALLBACK FUNCTIONS *****
 
-		mBluetoothGatt.writeDescriptor(descriptor);
+	/*******************************************
+	/***** UPDATE NOTIFY RATE  ****
+	*******************************************
+	* call with the closest distance after each decision (on the decision thread).  the policy and the
+	* write run on ble-io, like every other gatt operation; the chair only hears about it when the policy
+	* changes its mind, which is a few times a minute at most
+	*******************************************/
+	public void updateNotifyRate(int closestMm)
+	{
+		// every pod by the same closest distance: whatever is near, all of them should be fresh for the merge
+		for (Pod pod : mPods)
+		{
+			if (pod == null)
+				continue;
+			pod.requestRate(closestMm);
+			// so a slower chair is not taken for a lost one.  this is ble-io's last word, a decision behind at most
+			mProx_DataClass.setExpectedInterval(pod.index, pod.mExpectedIntervalMs);
+		}
 	}
 
 	/*******************************************
 	/***** BROADCAST UPDATE  ****
 	*******************************************
-	* OVERLOADED
+	* connection state only; samples go through the session's sample channel
 	*******************************************/
 	private void broadcastUpdate(final String action)
 	{
 		final Intent intent = new Intent(action);
 		sendBroadcast(intent);
 	}
+
 	/*******************************************
-	/***** BROADCAST UPDATE  ****
+	/***** SET OBSERVER  ****
 	*******************************************
-	*  OVERLOADED
+	* null to stop watching; the alerting carries on either way
 	*******************************************/
-	@SuppressLint("MissingPermission")
-	private void broadcastUpdate(final BluetoothGattCharacteristic characteristic)
+	public void setObserver(Observer observer)
+	{
+		mObserver = observer;
+	}
+
+	/*******************************************
+	/***** SET ALERT PROFILE  ****
+	*******************************************
+	* one of AlertProfile.NAMES; takes effect on the next reading, even mid-ride, and is remembered
+	*******************************************/
+	public void setAlertProfile(String name)
+	{
+		final AlertProfile profile = AlertProfile.named(name, SENSOR_LAYOUT);
+		mProx_DataClass.setAlertProfile(profile);
+		getSharedPreferences(PREFERENCES, MODE_PRIVATE).edit().putString(KEY_ALERT_PROFILE, profile.getName()).apply();
+		Log.i(TAG, "Alert profile " + profile.getName());
+	}
+
+	public String getAlertProfileName()
+	{
+		return mProx_DataClass.getAlertProfile().getName();
+	}
+
+	/*******************************************
+	/***** SET SPATIAL AUDIO  ****
+	*******************************************
+	* true to hear every sensor in range at once, panned by direction; false for only the closest one, the
+	* way it always was.  takes effect on the next reading and is remembered
+	*******************************************/
+	public void setSpatialAudio(boolean spatial)
+	{
+		mProx_DataClass.setSpatialAudio(spatial);
+		getSharedPreferences(PREFERENCES, MODE_PRIVATE).edit().putBoolean(KEY_SPATIAL_AUDIO, spatial).apply();
+		Log.i(TAG, "Spatial audio " + (spatial ? "on" : "off"));
+	}
+
+	public boolean isSpatialAudio()
+	{
+		return mProx_DataClass.isSpatialAudio();
+	}
+
+	// frames the peripheral sent that never made it to us, going by the sequence numbers
+	public long getDroppedFrameCount()
 	{
-		final Intent intent = new Intent(ProxBLE.ACTION_DATA_AVAILABLE);
+		return mProx_DataClass.getDroppedFrameCount();
+	}
 
-		if (LOCATION_AND_SPEED_CHARACTERISTIC.equals(characteristic.getUuid()))
+	// how each pod's readings are arriving and whether any went missing, one line per pod
+	public String describeLiveness()
+	{
+		final StringBuilder text = new StringBuilder();
+		for (int pod = 0; pod < mPods.length; pod++)
 		{
-			final byte[] data = characteristic.getValue();
-			intent.putExtra(EXTRA_DATA,data);
-			sendBroadcast(intent);
-			return;
+			if (mPods[pod] != null)
+				text.append("pod ").append(pod).append(' ').append(mProx_DataClass.describeLiveness(pod)).append('\n');
 		}
-		sendBroadcast(intent);
+		return text.toString();
 	}
 
 	/*******************************************
@@ -265,24 +732,40 @@ public class ProxBLE extends Service
 	@Override
 	public boolean onUnbind (Intent intent)
 	{
-		// After using a given device, you should make sure that BluetoothGatt.close() is called
-		// such that resources are cleaned up properly.  In this particular example, close() is
-		// invoked when the UI is disconnected from the Service.
+		// the ui going away is not a reason to stop alerting; the gatt is closed in onDestroy.
+		// true so the next activity gets onRebind instead of a fresh onBind
+		return true;
+	}
+
+	/*******************************************
+	/***** ON DESTROY  ****
+	*******************************************/
+	@Override
+	public void onDestroy ()
+	{
 		close ();
-		return super.onUnbind (intent);
+		mDecisionThread.stop();
+		mBleThread.quitSafely();
+		mProx_DataClass.shutdown();
+		mSessionRecorder.stop();
+		if (mSessionRecorder.getError() != null)
+			Log.w(TAG, "Session recording stopped: " + mSessionRecorder.getError());
+		mWakeLock.release();
+		super.onDestroy ();
 	}
 	/*******************************************
  	/***** ON CLOSE  ****
 	*******************************************/
-	@SuppressLint("MissingPermission")
 	void close ()
 	{
-		if (mBluetoothGatt == null)
+		for (Pod pod : mPods)
 		{
-			return;
+			if (pod == null)
+				continue;
+			mBleHandler.removeCallbacks(pod);
+			mProx_DataClass.disarmLiveness(pod.index);
+			pod.session.close ();
 		}
-		mBluetoothGatt.close ();
-		mBluetoothGatt = null;
 	}
 	/*******************************************
 	/***** ON DISCONNECT  ****
@@ -290,14 +773,21 @@ public class ProxBLE extends Service
 	* Disconnects an existing connection or cancel a pending connection. The disconnection result
 	* is reported asynchronously through the callback.
 	***********************************************************************************************/
-	@SuppressLint("MissingPermission")
 	public void disconnect ()
 	{
-		if (mBluetoothAdapter == null || mBluetoothGatt == null)
+		boolean any = false;
+		for (Pod pod : mPods)
+		{
+			if (pod == null)
+				continue;
+			// going quiet on purpose, not a lost sensor
+			mProx_DataClass.disarmLiveness(pod.index);
+			pod.session.disconnect();
+			any = true;
+		}
+		if (!any)
 		{
 			Log.w(TAG, "BluetoothAdapter not initialized");
-			return;
 		}
-		mBluetoothGatt.disconnect();
 	}
 }
@@ -1,119 +1,304 @@
 package personal.thornupple.proximity;
 
-import android.media.AudioManager;
-import android.media.ToneGenerator;
-
+import android.os.Process;
 
 // this class will process and report on the proximity readings
 public class ProximityDataClass
 {
-	// must reverse the bytes, dang endians
-	private static final byte LEFT = 2;
-	private static final byte CENTER = 1;
-	private static final byte RIGHT = 0;
+	// the closest sensor / on time math lives here so it can run without android
+	private final ProximityDecision decision;
+
+	// tones are synthesized once and played from static audio tracks, one per sensor
+	private final AudioTrackToneSink toneSink;
+
+	// one audio thread for the life of the class instead of a new thread per packet
+	private final ToneScheduler toneScheduler;
 
-	private static final int MAX_DISTANCE_CM = 60;
-	private static final int MIN_DISTANCE_CM = 10;
+	// or every sensor in range at once, panned by direction, on its own audio thread (see SpatialMixer).
+	// only one of the two plays; the decision thread switches over and silences the other
+	private final AudioTrackSpatialOutput spatialOutput;
+	private volatile boolean spatialAudio = true;
+	private boolean playingSpatial = true;
 
-	private int onDuration = 50;
-	private int DTMF_TONE_FOR_SENSOR = 0;
+	// decodes the characteristic in place; legacy 3 byte payloads and batched frames both land here.
+	// one per pod, since each one counts its own sequence numbers
+	private final FrameDecoder[] frameDecoders;
+	// the connection each pod's last sample came over (SampleChannel.Sample.connection)
+	private final int[] connections;
+	private final SensorFrame frame = new SensorFrame();
 
-	private Thread toneThread;
+	// every reading and what we made of it goes into the flight recorder instead of the log
+	private final FlightRecorder recorder = FlightRecorder.get();
+	// and how long each step took, for the diagnostics screen
+	private final PipelineLatency latency = PipelineLatency.get();
 
-	// TODO: put in UI the ability to turn tone up or down
-	private final ToneGenerator toneGenerator = new ToneGenerator(AudioManager.STREAM_MUSIC, 100);
+	// more than one pod: their frames are lined up into one view of the chair first.  null for one pod
+	private final StreamMerger merger;
+	private final SensorFrame merged = new SensorFrame();
 
-	// called from the main activity when we get new data from bluetooth
-	public void PlayTone(byte[] proxData)
+	// a pod that stops sending, link up or not, is lost once it is overdue (see LivenessMonitor; checked
+	// from the decision thread's timer).  a lost pod has its own alert, a low slow blip on the tone
+	// scheduler, that plays whenever nothing closer is: a dead sensor must not sound like a clear way
+	private static final int LOST_TONE_HZ = 440;
+	private static final int LOST_ON_MS = 200;
+	private static final int LOST_PERIOD_MS = 1000;
+	private final LivenessMonitor liveness;
+	private final long lostState;
+	// what the last decision asked for, so a loss knows whether the lost alert may take over
+	private long decidedState = ToneScheduler.SILENT;
+
+	public ProximityDataClass(SensorLayout layout)
 	{
-		stopToneThread();
+		this(new SensorLayout[]{layout});
+	}
 
-		int closestIndex;
+	// one layout per sensor pod, each on its own connection; PlayTone is told which pod a sample came from
+	public ProximityDataClass(SensorLayout[] pods)
+	{
+		// TODO: put in UI the ability to turn tone up or down
+		this(pods, ToneConfig.defaults(SensorLayout.combine(pods).getToneCount()).plusTone(LOST_TONE_HZ));
+	}
 
-		if (proxData[LEFT] <= proxData[CENTER] && proxData[LEFT] <= proxData[RIGHT])
-		{
-			closestIndex = LEFT;
-		}
-		else if (proxData[CENTER] <= proxData[LEFT] && proxData[CENTER] <= proxData[RIGHT])
+	// the tone config has one tone past the layout's, for the sensor lost alert
+	public ProximityDataClass(SensorLayout[] pods, ToneConfig toneConfig)
+	{
+		final SensorLayout layout = SensorLayout.combine(pods);
+		if (toneConfig.getToneCount() <= layout.getToneCount())
+			throw new IllegalArgumentException("Layout uses " + layout.getToneCount() + " tones and the lost alert one more, but only " + toneConfig.getToneCount() + " are configured");
+
+		frameDecoders = new FrameDecoder[pods.length];
+		connections = new int[pods.length];
+		for (int pod = 0; pod < pods.length; pod++)
+			frameDecoders[pod] = new FrameDecoder();
+		merger = pods.length > 1 ? new StreamMerger(pods) : null;
+		decision = new ProximityDecision(layout);
+		liveness = new LivenessMonitor(pods.length);
+		liveness.setListener(livenessListener);
+		lostState = ToneScheduler.packState(layout.getToneCount(), LOST_ON_MS, LOST_PERIOD_MS);
+		toneSink = new AudioTrackToneSink(new ToneBank(toneConfig));
+		// the one thread that must never wait behind anything else
+		toneScheduler = new ToneScheduler(toneSink, new PriorityThreadFactory("tone-scheduler", Process.THREAD_PRIORITY_URGENT_AUDIO));
+		toneScheduler.start();
+		spatialOutput = new AudioTrackSpatialOutput(toneConfig, layout, new PriorityThreadFactory("spatial-mixer", Process.THREAD_PRIORITY_URGENT_AUDIO));
+		spatialOutput.start();
+	}
+
+	// called on the decision thread when we get new data from bluetooth
+	// RETURNS:  the decoded frame (owned by this class, valid until the next call) or null if it was garbage
+	public SensorFrame PlayTone(SampleChannel.Sample sample)
+	{
+		return PlayTone(0, sample);
+	}
+
+	// the same for a sample from one of several pods
+	// RETURNS:  the merged frame, every pod's sensors, or null if it was garbage
+	public SensorFrame PlayTone(int pod, SampleChannel.Sample sample)
+	{
+		final long receivedNanos = System.nanoTime();
+		if (sample.connection != connections[pod])
 		{
-			closestIndex = CENTER;
+			connections[pod] = sample.connection;
+			startConnection(pod);
 		}
-		else
+		final long dropped = frameDecoders[pod].getDroppedFrameCount();
+		if (!frameDecoders[pod].decode(sample.buffer, frame))
 		{
-			closestIndex = RIGHT;
+			recorder.record(FlightRecorder.BAD_FRAME, sample.arrivalNanos, sample.length, 0);
+			return null;
 		}
+		// alive again, if it was lost
+		liveness.onSample(pod, sample.arrivalNanos, frameDecoders[pod].getDroppedFrameCount() - dropped);
+		// the front pod sets the beat the pulses keep to
+		if (pod == 0)
+			toneScheduler.onPacket(sample.arrivalNanos);
+		recorder.record(FlightRecorder.SAMPLE, sample.arrivalNanos,
+				(long) frame.sequence << 16 | frame.sensorCount << 8 | frame.sampleCount, FlightRecorder.packDistances(frame));
 
-		switch (closestIndex)
+		SensorFrame view = frame;
+		if (merger != null)
 		{
-			case LEFT:
-				DTMF_TONE_FOR_SENSOR = ToneGenerator.TONE_DTMF_0;
-				break;
-			case CENTER:
-				DTMF_TONE_FOR_SENSOR = ToneGenerator.TONE_DTMF_1;
-				break;
-			case RIGHT:
-				DTMF_TONE_FOR_SENSOR = ToneGenerator.TONE_DTMF_3;
-				break;
+			if (!merger.merge(pod, frame, sample.arrivalNanos, merged))
+			{
+				return null;
+			}
+			view = merged;
 		}
 
-		int distance = proxData[closestIndex];
-
-		if (distance >= MAX_DISTANCE_CM)
+		// the scheduler (or the mixer) runs the on/off cadence itself; we just hand it the newest state
+		final long state = decision.decide(view, sample.arrivalNanos);
+		final long decidedNanos = System.nanoTime();
+		final boolean lost = liveness.isAnyLost();
+		decidedState = state;
+		final boolean spatial = spatialAudio;
+		if (spatial != playingSpatial)
 		{
-			return;
+			playingSpatial = spatial;
+			if (spatial)
+				toneScheduler.silence();
+			else
+				spatialOutput.silence();
 		}
-		setOnOffDurations(distance);
-
-		startToneThread();
+		if (spatial)
+		{
+			for (int sensor = 0; sensor < decision.getLayout().getCount(); sensor++)
+				spatialOutput.publish(sensor, decision.getSensorState(sensor));
+			spatialOutput.commit(sample.arrivalNanos, decidedNanos);
+			// the mixer has the sensors, so the lost alert gets the tone scheduler to itself
+			toneScheduler.publishState(lost ? lostState : ToneScheduler.SILENT);
 		}
-
-		private void setOnOffDurations ( int distance)
+		else
 		{
-			// distance from high to low that we want to split for on/off
-			int reportSpread = MAX_DISTANCE_CM - MIN_DISTANCE_CM;
+			toneScheduler.publishState(state == ToneScheduler.SILENT && lost ? lostState : state, sample.arrivalNanos, decidedNanos);
+		}
+		latency.onDecision(sample.arrivalNanos, receivedNanos, decidedNanos);
+		recorder.record(FlightRecorder.DECISION, decidedNanos, state, decision.getClosestDistanceMm());
+		return view;
+	}
 
-			// 100 ms below the frequency of the proximity sensor sending
-			int totalDuration = 750;
-			int segmentDuration = totalDuration / reportSpread;
+	// the pod's link came up again: its sequence numbers start over, so does the rhythm if it is the one the
+	// pulses follow, and nothing its sensors had from the old link belongs with what comes now
+	private void startConnection(int pod)
+	{
+		frameDecoders[pod].reset();
+		if (pod == 0)
+			toneScheduler.resetCadence();
+		if (merger != null)
+			decision.reset(merger.getFirstSensor(pod), merger.getSensorCount(pod));
+		else
+			decision.reset();
+	}
 
-			onDuration = segmentDuration * (MAX_DISTANCE_CM - distance);
-		}
+	/*******************************************
+	 /***** CHECK LIVENESS ****
+	 /*******************************************
+	 the decision thread's timer (DecisionThread.Timer): raises the lost alert for any pod that is overdue.
+	 RETURNS:  when the next pod falls due, or LivenessMonitor.IDLE
+	 /*******************************************/
+	public long checkLiveness(long nowNanos)
+	{
+		return liveness.check(nowNanos);
+	}
 
-		private void startToneThread ()
+	private final LivenessMonitor.Listener livenessListener = new LivenessMonitor.Listener()
+	{
+		@Override
+		public void onLost(int pod, long silentNanos)
 		{
-			if (onDuration == 0)
+			recorder.record(FlightRecorder.SENSOR_LOST, pod, silentNanos);
+			if (!isAnyPodAlive())
 			{
-				stopToneThread();
-				return;
-			}
-			if (toneThread == null)
-			{
-				toneThread = new Thread(() -> {
-					// plays solid tone until we sleep
-					if (onDuration > 0 && !toneThread.isInterrupted())
-						toneGenerator.startTone(DTMF_TONE_FOR_SENSOR,onDuration);
-				});
-				toneThread.start();
+				// nothing is reading any more, so whatever the last reading decided is out of date
+				decision.reset();
+				decidedState = ToneScheduler.SILENT;
+				spatialOutput.silence();
 			}
+			// a pod that is still reading goes on alerting over it; the merge has the lost pod's sensors as
+			// no echo by its next reading
+			if (playingSpatial || decidedState == ToneScheduler.SILENT)
+				toneScheduler.publishState(lostState);
 		}
 
-		public void stopToneThread ()
+		@Override
+		public void onRecovered(int pod, long silentNanos)
 		{
-			onDuration = 0;
-			if (toneThread != null)
-			{
-				toneThread.interrupt();
-				toneThread = null;
-				toneGenerator.stopTone();
-			}
+			// the reading that brought it back decides what plays next
+			recorder.record(FlightRecorder.SENSOR_RECOVERED, pod, silentNanos);
+		}
+	};
+
+	private boolean isAnyPodAlive()
+	{
+		for (int pod = 0; pod < liveness.getStreamCount(); pod++)
+		{
+			if (liveness.isAlive(pod))
+				return true;
 		}
+		return false;
+	}
+
+	// any thread.  the pod is being disconnected on purpose; no lost alert for it until it sends again
+	public void disarmLiveness(int pod)
+	{
+		liveness.disarm(pod);
+	}
+
+	// any thread, a moment stale
+	public boolean isSensorLost()
+	{
+		return liveness.isAnyLost();
+	}
+
+	// the decision thread, with what the pod was last asked for (0 for do not know)
+	public void setExpectedInterval(int pod, int intervalMs)
+	{
+		liveness.setExpectedIntervalNanos(pod, intervalMs * 1_000_000L);
+	}
+
+	// one line per pod, for the diagnostics
+	public String describeLiveness(int pod)
+	{
+		return liveness.describe(pod);
+	}
+
+	// how close the closest thing is (effective distance, so a fast approach counts as closer)
+	public int getClosestDistanceMm()
+	{
+		return decision.getClosestDistanceMm();
+	}
+
+	// any thread; the decision picks it up on its next reading without a gap in the tone
+	public void setAlertProfile(AlertProfile profile)
+	{
+		decision.setAlertProfile(profile);
+	}
+
+	public AlertProfile getAlertProfile()
+	{
+		return decision.getAlertProfile();
+	}
+
+	// any thread; true plays every sensor in range at once through the spatial mixer, false only the closest
+	// one through the tone scheduler.  switches over on the next reading
+	public void setSpatialAudio(boolean spatial)
+	{
+		spatialAudio = spatial;
+	}
+
+	public boolean isSpatialAudio()
+	{
+		return spatialAudio;
+	}
+
+	// frames the peripheral sent that never made it to us, going by the sequence numbers
+	public long getDroppedFrameCount()
+	{
+		long dropped = 0;
+		for (FrameDecoder decoder : frameDecoders)
+			dropped += decoder.getDroppedFrameCount();
+		return dropped;
+	}
+
+	// stops the tone but keeps the audio thread around for the next reading
+	public void stopTone()
+	{
+		toneScheduler.silence();
+		spatialOutput.silence();
+	}
+
+	// call when we are done for good
+	public void shutdown()
+	{
+		toneScheduler.stop();
+		toneSink.release();
+		spatialOutput.release();
 	}
+}
 
 /*
 Requirements for notifying user:
-Up to 3 sensors - all reading and reporting every half second and picked up here by the bluetooth broadcast receiver
+Up to 3 sensors (now however many the SensorLayout says) - all reading and reporting every half second and picked up here by the bluetooth broadcast receiver
 
-Reporting will be by 3 different dtmf tones:  todo: see if the tones are adequate to report
+Reporting will be by 3 different tones (see ToneConfig):  todo: see if the tones are adequate to report
 
 starting tolerances:  start the tones if less than 30 CMs (about a foot).
 solid tone at 5 CM or less
@@ -0,0 +1,308 @@
+package personal.thornupple.proximity;
+
+import java.util.Arrays;
+
+// the part of ProximityDataClass that decides what to play: pick the closest sensor and turn its distance
+// into an on time.  works for however many sensors the layout has; the per sensor state is flat arrays and
+// the closest search is one pass with no data dependent branches.  the cost per sample still grows in a
+// straight line with the sensor count, about 0.1 us a sensor on a desktop jvm (SensorCountBenchmark): nearly
+// all of it is the filter and the velocity fit every reading goes through, the search is a few ns a sensor.
+// no android in here, so the jmh benchmarks (and anything else on the jvm) can run it.
+//
+// readings go through a per sensor filter first, and both the closest sensor and the alert threshold have
+// hysteresis so a reading that wobbles around a boundary does not flip the tone back and forth.
+//
+// urgency is not just distance: each sensor's closing speed gives a time to contact, and a sensor that will
+// be hit soon is treated as if it were already close.  a chair rolling fast at a doorframe starts beeping
+// (and beeps harder) earlier than one drifting toward it, without needing more samples per second.
+//
+// ultrasound drops an echo now and then.  a missing reading or two holds what the sensor had and the release
+// hysteresis carries on from there; only a run of them (or long enough without an echo) counts as gone.
+//
+// besides the one closest state, every sensor gets its own state (getSensorState) with its own release
+// hysteresis, for the SpatialMixer, which plays everything in range at once.
+//
+// how far out to alert and how the beeping speeds up come from an AlertProfile, compiled into an AlertTable.
+// the distances below are the shared scale the table maps every sensor onto, not fixed ranges any more.
+// not thread safe - one decision thread feeds it, except setAlertProfile(), which any thread may call
+public class ProximityDecision
+{
+	// distances are mm from the frame decoder on down; after AlertTable.normalize() these are where every
+	// sensor's profile range starts beeping and goes solid
+	public static final int MAX_DISTANCE_MM = 600;
+	public static final int MIN_DISTANCE_MM = 100;
+
+	// another sensor has to be this much closer before the tone moves over to it
+	public static final int DEFAULT_SWITCH_MARGIN_MM = 30;
+	// once alerting, we only go quiet this far past MAX_DISTANCE_MM
+	public static final int DEFAULT_RELEASE_MARGIN_MM = 50;
+
+	// no echo this many readings in a row, or for this long since the last one, and the sensor is out of range
+	public static final int MAX_MISSED_ECHOES = 3;
+	public static final long MAX_ECHO_GAP_NANOS = 300_000_000L;
+
+	// time to contact that maps to MAX_DISTANCE_MM; anything sooner ramps down toward MIN_DISTANCE_MM
+	public static final float TIME_TO_CONTACT_HORIZON_S = 3f;
+
+	private final SensorLayout mLayout;
+	private final SensorFilter mFilter;
+	private final VelocityEstimator mVelocity;
+	private final int mSwitchMarginMm;
+	private final int mReleaseMarginMm;
+	// swapped whole from any thread, read once per reading
+	private volatile AlertTable mTable;
+
+	private final int[] mEffective;
+	// every sensor's own state, SILENT when it is out of range
+	private final long[] mSensorStates;
+	private final boolean[] mSensorAlerting;
+	// no echo readings in a row, and when the last real one was taken
+	private final int[] mMissed;
+	private final long[] mLastEchoNanos;
+	private int mClosest = -1;
+	private int mClosestDistance = Integer.MAX_VALUE;
+	private boolean mAlerting;
+	private long mLastState = ToneScheduler.SILENT;
+
+	public ProximityDecision(SensorLayout layout)
+	{
+		this(layout, SensorFilter.median(layout.getCount(), 3), VelocityEstimator.defaults(layout.getCount()),
+				DEFAULT_SWITCH_MARGIN_MM, DEFAULT_RELEASE_MARGIN_MM);
+	}
+
+	// velocity may be null to alert on distance alone
+	public ProximityDecision(SensorLayout layout, SensorFilter filter, VelocityEstimator velocity, int switchMarginMm, int releaseMarginMm)
+	{
+		final int count = layout.getCount();
+		if (filter.getSensorCount() < count)
+			throw new IllegalArgumentException("Filter covers " + filter.getSensorCount() + " sensors, need " + count);
+		if (velocity != null && velocity.getSensorCount() < count)
+			throw new IllegalArgumentException("Velocity estimator covers " + velocity.getSensorCount() + " sensors, need " + count);
+		mLayout = layout;
+		mEffective = new int[count];
+		Arrays.fill(mEffective, SensorFrame.NO_READING_MM);
+		mSensorStates = new long[count];
+		mSensorAlerting = new boolean[count];
+		mMissed = new int[count];
+		mLastEchoNanos = new long[count];
+		mFilter = filter;
+		mVelocity = velocity;
+		mSwitchMarginMm = Math.max(0, switchMarginMm);
+		mReleaseMarginMm = Math.max(0, releaseMarginMm);
+		mTable = AlertProfile.indoor(layout).compile(layout);
+	}
+
+	/*******************************************
+	 /***** SET ALERT PROFILE ****
+	 /*******************************************
+	 compiles on the calling thread and swaps the table in; the next reading uses it.  the filters, the
+	 velocity fit and the hysteresis carry on, so changing profile mid-ride does not drop or restart the tone
+	 /*******************************************/
+	public void setAlertProfile(AlertProfile profile)
+	{
+		mTable = profile.compile(mLayout);
+	}
+
+	public AlertProfile getAlertProfile()
+	{
+		return mTable.getProfile();
+	}
+
+	/*******************************************
+	 /***** DECIDE (FRAME) ****
+	 /*******************************************
+	 runs every sample in a decoded notification through, oldest first, so the filters and the velocity fit
+	 see the whole batch.  the samples are back-dated from arrivalNanos by the frame's sample period.
+	 sensors in frame.heldSensors keep what was made of their last real reading
+	 RETURNS:  the state after the newest sample (the last state if the frame is unusable)
+	 /*******************************************/
+	public long decide(SensorFrame frame, long arrivalNanos)
+	{
+		if (frame.sensorCount < mEffective.length)
+		{
+			return mLastState;
+		}
+
+		final long periodNanos = frame.samplePeriodMs * 1_000_000L;
+		for (int sample = 0; sample < frame.sampleCount; sample++)
+		{
+			final long timestamp = arrivalNanos - (frame.sampleCount - 1 - sample) * periodNanos;
+			decide(frame.distancesMm, frame.getSampleOffset(sample), timestamp, frame.heldSensors);
+		}
+		return mLastState;
+	}
+
+	/*******************************************
+	 /***** DECIDE ****
+	 /*******************************************
+	 one reading: distancesMm[offset + sensor] in layout order.
+	 timestampNanos is when the reading was taken (any monotonic clock, it is only used for differences)
+	 RETURNS:  the packed tone scheduler state for this reading, or ToneScheduler.SILENT
+	 /*******************************************/
+	public long decide(int[] distancesMm, int offset, long timestampNanos)
+	{
+		return decide(distancesMm, offset, timestampNanos, 0);
+	}
+
+	// the same, with a bit set in heldSensors for every sensor that has no new reading (SensorFrame.heldSensors)
+	public long decide(int[] distancesMm, int offset, long timestampNanos, int heldSensors)
+	{
+		final AlertTable table = mTable;
+		final int count = mEffective.length;
+		for (int sensor = 0; sensor < count; sensor++)
+		{
+			final int reading = distancesMm[offset + sensor];
+			// a held copy was already filtered and fitted when it was new; again at a later time it would
+			// look like the sensor stood still and then jumped.  a pod that has gone quiet still drops out
+			if ((heldSensors >>> sensor & 1) != 0 && reading < SensorFrame.NO_READING_MM)
+				continue;
+			if (reading >= SensorFrame.NO_READING_MM)
+			{
+				// no echo is a gap, not a distance.  a short one keeps the last effective distance and leaves
+				// the filter and the fit alone, so one dropped echo neither silences nor restarts the tone
+				mMissed[sensor] = Math.min(mMissed[sensor] + 1, MAX_MISSED_ECHOES);
+				if (mMissed[sensor] < MAX_MISSED_ECHOES && timestampNanos - mLastEchoNanos[sensor] < MAX_ECHO_GAP_NANOS)
+					continue;
+				// gone: out of range, and neither the filter nor the fit may join the readings on either side
+				// of it (65535 then 2000 mm is not a fast approach)
+				mFilter.reset(sensor);
+				if (mVelocity != null)
+					mVelocity.reset(sensor);
+				mEffective[sensor] = SensorFrame.NO_READING_MM;
+				continue;
+			}
+			mMissed[sensor] = 0;
+			mLastEchoNanos[sensor] = timestampNanos;
+			final int filtered = mFilter.filter(sensor, reading);
+			mEffective[sensor] = table.normalize(sensor, filtered);
+
+			// the line fit does its own smoothing, and feeding it the median would only add lag.  it works
+			// in real mm; only the result goes onto the shared scale
+			if (mVelocity != null)
+			{
+				mVelocity.update(sensor, timestampNanos, reading);
+				mEffective[sensor] = getEffectiveDistance(mEffective[sensor], mVelocity.getTimeToContact(sensor, filtered));
+			}
+		}
+
+		// each sensor on its own, for the mixer.  the same release band as the closest one below
+		for (int sensor = 0; sensor < count; sensor++)
+		{
+			final int distance = mEffective[sensor];
+			final boolean alerting = distance < MAX_DISTANCE_MM + (mSensorAlerting[sensor] ? mReleaseMarginMm : 0);
+			mSensorAlerting[sensor] = alerting;
+			mSensorStates[sensor] = alerting ? table.getState(sensor, Math.min(distance, MAX_DISTANCE_MM - 10)) : ToneScheduler.SILENT;
+		}
+
+		// walk down from the top so ties go to the higher index (left beats center beats right, like always).
+		// the selects compile to conditional moves, so a noisy scene does not cost branch misses
+		int closestIndex = count - 1;
+		int closestDistance = mEffective[closestIndex];
+		for (int sensor = count - 2; sensor >= 0; sensor--)
+		{
+			final int distance = mEffective[sensor];
+			final boolean closer = distance < closestDistance;
+			closestIndex = closer ? sensor : closestIndex;
+			closestDistance = closer ? distance : closestDistance;
+		}
+
+		// stick with the sensor we were on unless the new one is clearly closer
+		if (mClosest >= 0 && closestIndex != mClosest && mEffective[closestIndex] + mSwitchMarginMm > mEffective[mClosest])
+		{
+			closestIndex = mClosest;
+		}
+		mClosest = closestIndex;
+
+		// this is the effective distance when time to contact is on
+		int distance = mEffective[closestIndex];
+		mClosestDistance = distance;
+
+		if (mAlerting)
+		{
+			mAlerting = distance < MAX_DISTANCE_MM + mReleaseMarginMm;
+		}
+		else
+		{
+			mAlerting = distance < MAX_DISTANCE_MM;
+		}
+
+		if (!mAlerting)
+		{
+			mLastState = ToneScheduler.SILENT;
+			return mLastState;
+		}
+
+		// inside the release band we keep the slowest pulse going rather than dropping out
+		distance = Math.min(distance, MAX_DISTANCE_MM - 10);
+
+		mLastState = table.getState(closestIndex, distance);
+		return mLastState;
+	}
+
+	/*******************************************
+	 /***** GET EFFECTIVE DISTANCE ****
+	 /*******************************************
+	 the distance a parked obstacle would need to be at to sound as urgent as this one.  a time to contact
+	 at the horizon lands on MAX_DISTANCE_MM and contact right now lands on MIN_DISTANCE_MM
+	 /*******************************************/
+	public static int getEffectiveDistance(int distance, float timeToContactS)
+	{
+		if (timeToContactS >= TIME_TO_CONTACT_HORIZON_S)
+		{
+			return distance;
+		}
+		final int byTime = MIN_DISTANCE_MM + (int) ((MAX_DISTANCE_MM - MIN_DISTANCE_MM) * timeToContactS / TIME_TO_CONTACT_HORIZON_S);
+		return Math.min(distance, byTime);
+	}
+
+	// effective distance of the sensor the last decision went with, on the shared scale; MAX_VALUE before the first one
+	public int getClosestDistanceMm()
+	{
+		return mClosestDistance;
+	}
+
+	// sensor's own state from the last decision, ToneScheduler.SILENT if it is out of range
+	public long getSensorState(int sensor)
+	{
+		return mSensorStates[sensor];
+	}
+
+	public SensorLayout getLayout()
+	{
+		return mLayout;
+	}
+
+	// forget what count sensors from firstSensor had, e.g. the pod they are on connected again; the others
+	// carry on as they were
+	public void reset(int firstSensor, int count)
+	{
+		for (int sensor = firstSensor; sensor < firstSensor + count; sensor++)
+		{
+			mFilter.reset(sensor);
+			if (mVelocity != null)
+				mVelocity.reset(sensor);
+			mEffective[sensor] = SensorFrame.NO_READING_MM;
+			mSensorStates[sensor] = ToneScheduler.SILENT;
+			mSensorAlerting[sensor] = false;
+			mMissed[sensor] = 0;
+		}
+		if (mClosest >= firstSensor && mClosest < firstSensor + count)
+			mClosest = -1;
+	}
+
+	// forget the filter history and hysteresis, e.g. after the link drops
+	public void reset()
+	{
+		mFilter.reset();
+		if (mVelocity != null)
+			mVelocity.reset();
+		mClosest = -1;
+		mClosestDistance = Integer.MAX_VALUE;
+		mAlerting = false;
+		mLastState = ToneScheduler.SILENT;
+		Arrays.fill(mEffective, SensorFrame.NO_READING_MM);
+		Arrays.fill(mSensorStates, ToneScheduler.SILENT);
+		Arrays.fill(mSensorAlerting, false);
+		Arrays.fill(mMissed, 0);
+	}
+}
@@ -0,0 +1,81 @@
+package personal.thornupple.proximity;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*******************************************
+ /***** RECONNECT POLICY ****
+ /*******************************************
+ how long to wait before the next connect attempt after a link drops or a connect fails.  exponential:
+ initialMs, then twice that, and so on up to maxMs; each delay is picked at random between half and all of
+ that ceiling, so a phone and a chair that both come back at the same moment do not keep colliding and
+ several phones do not hammer the chair in step.
+
+ the count starts over once a connection has delivered a sample, so the first retry after a drop is
+ always quick.  a device that has never answered in this run (a cached address for a chair that is gone,
+ say) only gets maxColdAttempts before we give up on it; one that has answered is retried forever.
+
+ not thread safe, GattSession calls it under its own lock
+ /*******************************************/
+public class ReconnectPolicy
+{
+	// returned from nextDelayNanos when it is time to stop trying
+	public static final long GIVE_UP = -1;
+
+	private final long mInitialNanos;
+	private final long mMaxNanos;
+	private final int mMaxColdAttempts;
+	private final Random mRandom;
+
+	private int mAttempts;
+
+	public ReconnectPolicy(int initialMs, int maxMs, int maxColdAttempts, long seed)
+	{
+		if (initialMs <= 0 || maxMs < initialMs)
+			throw new IllegalArgumentException("Delays must be positive and initial <= max: " + initialMs + ", " + maxMs);
+		if (maxColdAttempts < 1)
+			throw new IllegalArgumentException("Need at least one attempt: " + maxColdAttempts);
+		mInitialNanos = TimeUnit.MILLISECONDS.toNanos(initialMs);
+		mMaxNanos = TimeUnit.MILLISECONDS.toNanos(maxMs);
+		mMaxColdAttempts = maxColdAttempts;
+		mRandom = new Random(seed);
+	}
+
+	// a quarter second first, never more than 30 s apart; 5 tries for a device we have not heard from yet
+	public static ReconnectPolicy defaults()
+	{
+		return new ReconnectPolicy(250, 30000, 5, System.nanoTime());
+	}
+
+	/*******************************************
+	 /***** NEXT DELAY ****
+	 /*******************************************
+	 call once per failed connect or dropped link.  everConnected is whether this device has answered since
+	 the last reset()
+	 RETURNS:  how long to wait before connecting again, or GIVE_UP
+	 /*******************************************/
+	public long nextDelayNanos(boolean everConnected)
+	{
+		if (!everConnected && mAttempts >= mMaxColdAttempts)
+		{
+			return GIVE_UP;
+		}
+		// the shift stops growing once it is past the cap, so it cannot overflow
+		final long ceiling = mAttempts >= 30 ? mMaxNanos : Math.min(mMaxNanos, mInitialNanos << mAttempts);
+		mAttempts++;
+		final long half = ceiling / 2;
+		return half + (long) (mRandom.nextDouble() * (ceiling - half));
+	}
+
+	// the link is healthy again (or it is a new device)
+	public void reset()
+	{
+		mAttempts = 0;
+	}
+
+	// attempts since the last reset
+	public int getAttempts()
+	{
+		return mAttempts;
+	}
+}
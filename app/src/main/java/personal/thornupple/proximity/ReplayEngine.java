@@ -0,0 +1,221 @@
+package personal.thornupple.proximity;
+
+import java.util.concurrent.TimeUnit;
+
+/*******************************************
+ /***** REPLAY ENGINE ****
+ /*******************************************
+ runs the same decision and tone scheduler the chair uses, but headless and on a virtual clock.  frames are
+ fed in with their recorded timestamps; in between, the clock jumps straight to the next pulse edge the
+ scheduler asked for, so an hour of driving replays as fast as the cpu can go.
+
+ what comes out is the exact alert timeline - every tone start (which tone, for how long) and stop, with
+ the virtual time it happened at.  single threaded; nothing here starts a thread
+
+ and how even it was: every frame is a packet to the scheduler's phase lock, as on the chair, and each
+ tone start is measured against the beat of the starts before it (a skipped beat is no jitter, a train that
+ went quiet and restarted out of step is) and for how old the newest frame was when it started
+ /*******************************************/
+public class ReplayEngine
+{
+	/*******************************************
+	 /***** TIMELINE LISTENER ****
+	 /*******************************************/
+	public interface TimelineListener
+	{
+		// durationMs <= 0 is a solid tone that runs until the next stop
+		void onToneStart(long timeNanos, int tone, int durationMs);
+
+		void onToneStop(long timeNanos);
+	}
+
+	private final VirtualClock mClock = new VirtualClock();
+	private final ProximityDecision mDecision;
+	private final ToneScheduler mScheduler;
+
+	private long mNextDueNanos = ToneScheduler.IDLE;
+	private long mFrameCount;
+	private long mToneStarts;
+	private long mToneChanges;
+	private int mLastTone = -1;
+
+	// gap jitter: how far each start is from a whole number of beats after the one before, within a train
+	// (one sensor at one asked for period, never quiet for longer than TRAIN_BREAK)
+	private static final long TRAIN_BREAK_NANOS = 2 * TimeUnit.MILLISECONDS.toNanos(AlertProfile.MAX_PERIOD_MS);
+	private long mLastStartNanos = -1;
+	private long mBeatNanos;
+	private long mLastRestarts;
+	private long mLastResumes;
+	private int mTrainTone = -1;
+	private int mTrainPeriodMs;
+	private long mOffBeats;
+	private long mOffBeatNanos;
+	// the newest frame, what it asked for and when; state age is from then to a start on the beat
+	private long mFrameState = ToneScheduler.SILENT;
+	private long mLastFrameNanos = -1;
+	private long mBeats;
+	private long mStateAgeNanos;
+	private long mMaxStateAgeNanos;
+
+	public ReplayEngine(ProximityDecision decision, final TimelineListener listener)
+	{
+		mDecision = decision;
+		mScheduler = new ToneScheduler(new ToneSink()
+		{
+			@Override
+			public void startTone(int tone, int durationMs)
+			{
+				mToneStarts++;
+				if (tone != mLastTone)
+				{
+					mToneChanges++;
+					mLastTone = tone;
+				}
+				onStart(mClock.nanoTime(), tone);
+				listener.onToneStart(mClock.nanoTime(), tone, durationMs);
+			}
+
+			@Override
+			public void stopTone()
+			{
+				listener.onToneStop(mClock.nanoTime());
+			}
+		});
+	}
+
+	/*******************************************
+	 /***** ON FRAME ****
+	 /*******************************************
+	 one recorded [right, center, left] reading in mm.  timestamps must not go backwards
+	 /*******************************************/
+	public void onFrame(long timestampNanos, int[] distancesMm)
+	{
+		advanceTo(timestampNanos);
+		mFrameCount++;
+
+		mLastFrameNanos = timestampNanos;
+		mScheduler.onPacket(timestampNanos);
+		mFrameState = mDecision.decide(distancesMm, 0, timestampNanos);
+		mScheduler.publishState(mFrameState);
+		mNextDueNanos = mScheduler.step(timestampNanos);
+	}
+
+	private void onStart(long nowNanos, int tone)
+	{
+		final long resumes = mScheduler.getResumeCount();
+		if (resumes != mLastResumes)
+		{
+			// the rest of a pulse that was cut short, not a beat
+			mLastResumes = resumes;
+			return;
+		}
+		final long gap = nowNanos - mLastStartNanos;
+		final int periodMs = ToneScheduler.statePeriodMs(mFrameState);
+		if (tone != mTrainTone || periodMs != mTrainPeriodMs || mLastStartNanos < 0 || gap > TRAIN_BREAK_NANOS)
+		{
+			// a new train, for another sensor or cadence or after a real silence; nothing to compare with yet
+			mTrainTone = tone;
+			mTrainPeriodMs = periodMs;
+			mBeatNanos = 0;
+		}
+		else if (mBeatNanos == 0)
+		{
+			mBeatNanos = gap;
+		}
+		else
+		{
+			// off the beat by this much: a skipped beat is still on it, a train restarted out of step is not
+			final long beats = Math.max(1, (gap + mBeatNanos / 2) / mBeatNanos);
+			mOffBeats++;
+			mOffBeatNanos += Math.abs(gap - beats * mBeatNanos);
+			mBeatNanos = gap / beats;
+		}
+		mLastStartNanos = nowNanos;
+
+		final long restarts = mScheduler.getRestartCount();
+		if (restarts != mLastRestarts)
+		{
+			// out of silence, so right on a frame
+			mLastRestarts = restarts;
+			return;
+		}
+		// a start on the beat: how long ago the reading it plays came in
+		final long age = nowNanos - mLastFrameNanos;
+		mBeats++;
+		mStateAgeNanos += age;
+		mMaxStateAgeNanos = Math.max(mMaxStateAgeNanos, age);
+	}
+
+	// true (the default) keeps the pulses in step with the frames, as the app does; false is the fixed cadence
+	public void setPhaseLock(boolean phaseLock)
+	{
+		mScheduler.setPhaseLock(phaseLock);
+	}
+
+	/*******************************************
+	 /***** ADVANCE TO ****
+	 /*******************************************
+	 plays out every pulse edge up to and including timeNanos
+	 /*******************************************/
+	public void advanceTo(long timeNanos)
+	{
+		while (mNextDueNanos != ToneScheduler.IDLE && mNextDueNanos <= timeNanos)
+		{
+			mClock.advanceTo(mNextDueNanos);
+			mNextDueNanos = mScheduler.step(mNextDueNanos);
+		}
+		mClock.advanceTo(timeNanos);
+	}
+
+	// end of the recording: let whatever is playing finish its pulse, then go quiet
+	public void finish()
+	{
+		advanceTo(mNextDueNanos == ToneScheduler.IDLE ? mClock.nanoTime() : mNextDueNanos);
+		mScheduler.silence();
+		mNextDueNanos = mScheduler.step(mClock.nanoTime());
+	}
+
+	public long getFrameCount()
+	{
+		return mFrameCount;
+	}
+
+	public long getToneStartCount()
+	{
+		return mToneStarts;
+	}
+
+	// starts that switched to a different sensor's tone than the one before - the thrash a user hears
+	public long getToneChangeCount()
+	{
+		return mToneChanges;
+	}
+
+	// pulse trains started from silence on a beat of their own
+	public long getRestartCount()
+	{
+		return mScheduler.getRestartCount();
+	}
+
+	// mean distance of a start from the beat of the ones before it; 0 for a perfectly even cadence
+	public long getGapJitterNanos()
+	{
+		return mOffBeats == 0 ? 0 : mOffBeatNanos / mOffBeats;
+	}
+
+	// how old the newest frame was when a tone started on the beat (not out of silence), on average and at worst
+	public long getMeanStateAgeNanos()
+	{
+		return mBeats == 0 ? 0 : mStateAgeNanos / mBeats;
+	}
+
+	public long getMaxStateAgeNanos()
+	{
+		return mMaxStateAgeNanos;
+	}
+
+	public long getNowNanos()
+	{
+		return mClock.nanoTime();
+	}
+}
@@ -0,0 +1,183 @@
+package personal.thornupple.proximity;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*******************************************
+ /***** SAMPLE CHANNEL ****
+ /*******************************************
+ single producer / single consumer hand off between the gatt callback (producer) and whoever turns readings
+ into tones (consumer).  it replaces the intent broadcast for the data path, so there is no intent, no extras
+ bundle and no system-wide sendBroadcast for every notification.
+
+ every slot is allocated up front, so publishing is a bounded array copy.  the consumer takes the samples
+ in order and is expected to drain the lot on each wake: every one of them goes to the decoder, the recorder
+ and the trace, and it is only the decision's output that is newest-wins (see ToneScheduler.publishState).
+ if the consumer falls a whole ring behind, the oldest sample is overwritten, never the newest - an old
+ distance is useless to somebody rolling toward a wall.
+
+ this used to hand the consumer only the newest sample and skip the rest.  that kept a slow consumer off
+ stale frames, but the skipped ones never reached the filters, the recorder or the trace, and the decoder
+ counted them as radio drops.  the ring keeps the first rule within a bound instead: however far behind a
+ consumer is, it works through at most a ring of older samples before the newest, and it decides on the
+ newest in the same wake.  at 16 slots and a few us a sample that is well under a ms
+ /*******************************************/
+public class SampleChannel
+{
+	// biggest payload a notification can carry with a 247 byte MTU (3 bytes of ATT header)
+	public static final int MAX_PAYLOAD_BYTES = 244;
+
+	/*******************************************
+	 /***** LISTENER ****
+	 /*******************************************
+	 called on the producer thread right after a sample has been published
+	 /*******************************************/
+	public interface Listener
+	{
+		void onSampleAvailable(SampleChannel channel);
+	}
+
+	/*******************************************
+	 /***** SAMPLE ****
+	 /*******************************************
+	 consumer owned holder a slot is copied into; allocate once and reuse it.
+	 buffer wraps data (little endian) and its limit is kept at length, ready for the frame decoder
+	 /*******************************************/
+	public static final class Sample
+	{
+		public final byte[] data = new byte[MAX_PAYLOAD_BYTES];
+		public final ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+		public int length;
+		public long arrivalNanos;
+		public long sequence;
+		// which connection it came over (see newConnection), so the consumer knows when to start its
+		// per link state - sequence numbers, the packet rhythm - over
+		public int connection;
+	}
+
+	private final int mMask;
+	private final byte[] mPayloads;
+	private final int[] mLengths;
+	private final long[] mArrivalNanos;
+	private final int[] mConnections;
+	// producer only: stamped on every sample published from now on
+	private int mConnection;
+
+	// mTail is only written by the producer.  mHead is moved on by the consumer as it takes samples, and by
+	// the producer when the ring is full and it throws the oldest one away; both go through compareAndSet,
+	// so a consumer whose slot was overwritten while it was copying finds out and takes the next one
+	private final AtomicLong mTail = new AtomicLong();
+	private final AtomicLong mHead = new AtomicLong();
+
+	// producer side: oldest samples overwritten because the consumer was a whole ring behind
+	private final AtomicLong mDropped = new AtomicLong();
+
+	public SampleChannel(int capacity)
+	{
+		if (capacity < 2 || Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("Capacity must be a power of two and at least 2: " + capacity);
+
+		mMask = capacity - 1;
+		mPayloads = new byte[capacity * MAX_PAYLOAD_BYTES];
+		mLengths = new int[capacity];
+		mArrivalNanos = new long[capacity];
+		mConnections = new int[capacity];
+	}
+
+	// producer only: the link came up again, so whatever is published next comes over a new connection
+	public void newConnection()
+	{
+		mConnection++;
+	}
+
+	/*******************************************
+	 /***** PUBLISH (PRODUCER ONLY) ****
+	 /*******************************************
+	 never refuses a sample: when the ring is full the oldest one is dropped to make room
+	 RETURNS:  false if that happened
+	 /*******************************************/
+	public boolean publish(byte[] data, long arrivalNanos)
+	{
+		final long tail = mTail.get();
+		boolean overwrote = false;
+
+		// full: move the head past the oldest slot before touching it.  if the consumer takes it first its
+		// compareAndSet wins and there is room anyway
+		long head = mHead.get();
+		while (tail - head > mMask)
+		{
+			if (mHead.compareAndSet(head, head + 1))
+			{
+				mDropped.lazySet(mDropped.get() + 1);
+				overwrote = true;
+				break;
+			}
+			head = mHead.get();
+		}
+
+		final int slot = (int) (tail & mMask);
+		final int length = data == null ? 0 : Math.min(data.length, MAX_PAYLOAD_BYTES);
+		if (length > 0)
+			System.arraycopy(data, 0, mPayloads, slot * MAX_PAYLOAD_BYTES, length);
+		mLengths[slot] = length;
+		mArrivalNanos[slot] = arrivalNanos;
+		mConnections[slot] = mConnection;
+
+		// release: the slot contents become visible to the consumer along with the new tail
+		mTail.lazySet(tail + 1);
+		return !overwrote;
+	}
+
+	/*******************************************
+	 /***** POLL (CONSUMER ONLY) ****
+	 /*******************************************
+	 copies the oldest sample still in the ring into out and releases its slot; call it until it says no
+	 RETURNS:  false if there is nothing left
+	 /*******************************************/
+	public boolean poll(Sample out)
+	{
+		while (true)
+		{
+			final long head = mHead.get();
+			final long tail = mTail.get();
+			if (tail == head)
+			{
+				return false;
+			}
+
+			final int slot = (int) (head & mMask);
+			final int length = Math.min(mLengths[slot], MAX_PAYLOAD_BYTES);
+			System.arraycopy(mPayloads, slot * MAX_PAYLOAD_BYTES, out.data, 0, length);
+			out.length = length;
+			out.arrivalNanos = mArrivalNanos[slot];
+			out.connection = mConnections[slot];
+			out.sequence = head;
+
+			// the producer only writes this slot after moving the head past it, so if the head is still
+			// where it was the copy is whole; otherwise it was overwritten under us and the next one is wanted
+			if (mHead.compareAndSet(head, head + 1))
+			{
+				out.buffer.clear();
+				out.buffer.limit(length);
+				return true;
+			}
+		}
+	}
+
+	// the most a consumer that fell behind works through before it gets to the newest sample
+	public int getCapacity()
+	{
+		return mMask + 1;
+	}
+
+	public long getPublishedCount()
+	{
+		return mTail.get();
+	}
+
+	public long getDroppedCount()
+	{
+		return mDropped.get();
+	}
+}
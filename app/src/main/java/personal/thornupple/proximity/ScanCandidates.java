@@ -0,0 +1,202 @@
+package personal.thornupple.proximity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*******************************************
+ /***** SCAN CANDIDATES ****
+ /*******************************************
+ everything a scan has heard, one entry per address however many times it advertised, so the chair can be
+ picked by signal strength instead of by whichever pod answered first.  each entry keeps a smoothed rssi
+ (one advertisement can be 10 dB off either way) and when it was last heard; one not heard from for maxAge
+ drops out of the ranking.
+
+ it also counts what the scan cost.  every callback is a cpu wakeup however many results it carries, so
+ callbacks and results per minute are the energy proxies for batched against unbatched scanning.
+
+ no android in here; one thread (the main one) at a time
+ /*******************************************/
+public class ScanCandidates
+{
+	public static final long DEFAULT_MAX_AGE_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+	// weight of each new rssi reading against what we had
+	private static final float SMOOTHING = 0.25f;
+
+	/*******************************************
+	 /***** CANDIDATE ****
+	 /*******************************************/
+	public static final class Candidate
+	{
+		private final String mAddress;
+		private String mName;
+		private float mRssi;
+		private int mSightings;
+		private long mLastNanos;
+
+		private Candidate(String address)
+		{
+			mAddress = address;
+		}
+
+		public String getAddress()
+		{
+			return mAddress;
+		}
+
+		// null until an advertisement (or scan response) carried one
+		public String getName()
+		{
+			return mName;
+		}
+
+		// smoothed, dBm
+		public int getRssi()
+		{
+			return Math.round(mRssi);
+		}
+
+		public int getSightings()
+		{
+			return mSightings;
+		}
+	}
+
+	private final Map<String, Candidate> mCandidates = new HashMap<>();
+	private final long mMaxAgeNanos;
+
+	private long mStartNanos;
+	// when the scan stopped, so the rates do not keep falling afterwards; 0 while it runs
+	private long mEndNanos;
+	private long mCallbacks;
+	private long mResults;
+
+	public ScanCandidates()
+	{
+		this(DEFAULT_MAX_AGE_NANOS);
+	}
+
+	public ScanCandidates(long maxAgeNanos)
+	{
+		mMaxAgeNanos = maxAgeNanos;
+	}
+
+	// a new scan: forget who was heard and start counting again
+	public void start(long nowNanos)
+	{
+		mCandidates.clear();
+		mStartNanos = nowNanos;
+		mEndNanos = 0;
+		mCallbacks = 0;
+		mResults = 0;
+	}
+
+	// the scan stopped; the counts stay as they were for describe()
+	public void finish(long nowNanos)
+	{
+		mEndNanos = nowNanos;
+	}
+
+	// one callback with results results in it
+	public void onCallback(int results)
+	{
+		mCallbacks++;
+		mResults += results;
+	}
+
+	/*******************************************
+	 /***** OFFER ****
+	 /*******************************************
+	 one advertisement.  name may be null (not every packet has it)
+	 RETURNS:  true if this address had not been heard before
+	 /*******************************************/
+	public boolean offer(String address, String name, int rssi, long nowNanos)
+	{
+		Candidate candidate = mCandidates.get(address);
+		final boolean fresh = candidate == null;
+		if (fresh)
+		{
+			candidate = new Candidate(address);
+			candidate.mRssi = rssi;
+			mCandidates.put(address, candidate);
+		}
+		else
+		{
+			candidate.mRssi += SMOOTHING * (rssi - candidate.mRssi);
+		}
+		if (name != null)
+			candidate.mName = name;
+		candidate.mSightings++;
+		candidate.mLastNanos = Math.max(candidate.mLastNanos, nowNanos);
+		return fresh;
+	}
+
+	/*******************************************
+	 /***** RANK ****
+	 /*******************************************
+	 RETURNS:  everyone heard within maxAge of nowNanos, strongest first (more sightings breaks a tie)
+	 /*******************************************/
+	public List<Candidate> rank(long nowNanos)
+	{
+		final List<Candidate> ranked = new ArrayList<>(mCandidates.size());
+		for (Candidate candidate : mCandidates.values())
+		{
+			if (nowNanos - candidate.mLastNanos <= mMaxAgeNanos)
+				ranked.add(candidate);
+		}
+		Collections.sort(ranked, (a, b) -> a.getRssi() != b.getRssi()
+				? Integer.compare(b.getRssi(), a.getRssi())
+				: Integer.compare(b.mSightings, a.mSightings));
+		return ranked;
+	}
+
+	public int size()
+	{
+		return mCandidates.size();
+	}
+
+	public long getCallbackCount()
+	{
+		return mCallbacks;
+	}
+
+	public long getResultCount()
+	{
+		return mResults;
+	}
+
+	public float getCallbacksPerMinute(long nowNanos)
+	{
+		return perMinute(mCallbacks, nowNanos);
+	}
+
+	public float getResultsPerMinute(long nowNanos)
+	{
+		return perMinute(mResults, nowNanos);
+	}
+
+	private float perMinute(long count, long nowNanos)
+	{
+		final long elapsed = getElapsedNanos(nowNanos);
+		return elapsed <= 0 ? 0 : count * (float) TimeUnit.MINUTES.toNanos(1) / elapsed;
+	}
+
+	// how long the scan has been (or was) running
+	public long getElapsedNanos(long nowNanos)
+	{
+		return (mEndNanos != 0 ? mEndNanos : nowNanos) - mStartNanos;
+	}
+
+	// one line for the log and the diagnostics
+	public String describe(long nowNanos)
+	{
+		return String.format(Locale.US, "%.1f s: %d devices, %.1f wakeups/min, %.1f results/min, %.1f results per wakeup",
+				getElapsedNanos(nowNanos) / 1e9, mCandidates.size(), getCallbacksPerMinute(nowNanos), getResultsPerMinute(nowNanos),
+				mCallbacks == 0 ? 0f : (float) mResults / mCallbacks);
+	}
+}
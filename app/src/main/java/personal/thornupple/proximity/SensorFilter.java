@@ -0,0 +1,187 @@
+package personal.thornupple.proximity;
+
+/*******************************************
+ /***** SENSOR FILTER ****
+ /*******************************************
+ smooths each sensor's readings before the decision sees them, so one bad echo does not flip the closest
+ sensor or restart the tone.  O(1) per sample, and the state for every sensor lives in flat primitive arrays
+ (sensor * width + i) - nothing is allocated after construction.
+
+ MEDIAN - median of the last 3 or 5 readings, best at throwing away single spikes
+ EMA    - exponential moving average, alpha is the weight of the newest reading
+ KALMAN - 1-d kalman on a constant distance model; processNoise is how far the distance is expected to
+          wander per sample, measurementNoise is how noisy the sensor is (both in mm squared)
+ /*******************************************/
+public class SensorFilter
+{
+	public enum Mode
+	{
+		NONE,
+		MEDIAN,
+		EMA,
+		KALMAN
+	}
+
+	private final Mode mMode;
+	private final int mSensorCount;
+
+	// median
+	private final int mWindow;
+	private final int[] mHistory;
+	private final int[] mHistoryCount;
+	private final int[] mHistoryNext;
+	private final int[] mScratch;
+
+	// ema / kalman
+	private final float mAlpha;
+	private final float mProcessNoise;
+	private final float mMeasurementNoise;
+	private final float[] mEstimate;
+	private final float[] mVariance;
+	private final boolean[] mPrimed;
+
+	private SensorFilter(Mode mode, int sensorCount, int window, float alpha, float processNoise, float measurementNoise)
+	{
+		mMode = mode;
+		mSensorCount = sensorCount;
+		mWindow = window;
+		mHistory = new int[sensorCount * window];
+		mHistoryCount = new int[sensorCount];
+		mHistoryNext = new int[sensorCount];
+		mScratch = new int[window];
+		mAlpha = alpha;
+		mProcessNoise = processNoise;
+		mMeasurementNoise = measurementNoise;
+		mEstimate = new float[sensorCount];
+		mVariance = new float[sensorCount];
+		mPrimed = new boolean[sensorCount];
+	}
+
+	public static SensorFilter none(int sensorCount)
+	{
+		return new SensorFilter(Mode.NONE, sensorCount, 1, 1f, 0f, 0f);
+	}
+
+	public static SensorFilter median(int sensorCount, int window)
+	{
+		if (window != 3 && window != 5)
+			throw new IllegalArgumentException("Median window must be 3 or 5: " + window);
+		return new SensorFilter(Mode.MEDIAN, sensorCount, window, 1f, 0f, 0f);
+	}
+
+	public static SensorFilter ema(int sensorCount, float alpha)
+	{
+		if (alpha <= 0f || alpha > 1f)
+			throw new IllegalArgumentException("EMA alpha must be in (0, 1]: " + alpha);
+		return new SensorFilter(Mode.EMA, sensorCount, 1, alpha, 0f, 0f);
+	}
+
+	public static SensorFilter kalman(int sensorCount, float processNoise, float measurementNoise)
+	{
+		if (processNoise <= 0f || measurementNoise <= 0f)
+			throw new IllegalArgumentException("Kalman noise values must be positive");
+		return new SensorFilter(Mode.KALMAN, sensorCount, 1, 1f, processNoise, measurementNoise);
+	}
+
+	public Mode getMode()
+	{
+		return mMode;
+	}
+
+	public int getSensorCount()
+	{
+		return mSensorCount;
+	}
+
+	/*******************************************
+	 /***** FILTER ****
+	 /*******************************************
+	 RETURNS:  the smoothed distance for this sensor, in the same units as the reading
+	 /*******************************************/
+	public int filter(int sensor, int reading)
+	{
+		switch (mMode)
+		{
+			case MEDIAN:
+				return filterMedian(sensor, reading);
+			case EMA:
+				return filterEma(sensor, reading);
+			case KALMAN:
+				return filterKalman(sensor, reading);
+			default:
+				return reading;
+		}
+	}
+
+	private int filterMedian(int sensor, int reading)
+	{
+		final int base = sensor * mWindow;
+		mHistory[base + mHistoryNext[sensor]] = reading;
+		mHistoryNext[sensor] = (mHistoryNext[sensor] + 1) % mWindow;
+		if (mHistoryCount[sensor] < mWindow)
+			mHistoryCount[sensor]++;
+
+		// until the window fills, the median of what we have; insertion sort of at most 5 ints
+		final int count = mHistoryCount[sensor];
+		for (int i = 0; i < count; i++)
+		{
+			final int value = mHistory[base + i];
+			int j = i - 1;
+			while (j >= 0 && mScratch[j] > value)
+			{
+				mScratch[j + 1] = mScratch[j];
+				j--;
+			}
+			mScratch[j + 1] = value;
+		}
+		return mScratch[(count - 1) / 2];
+	}
+
+	private int filterEma(int sensor, int reading)
+	{
+		if (!mPrimed[sensor])
+		{
+			mEstimate[sensor] = reading;
+			mPrimed[sensor] = true;
+		}
+		else
+		{
+			mEstimate[sensor] += mAlpha * (reading - mEstimate[sensor]);
+		}
+		return Math.round(mEstimate[sensor]);
+	}
+
+	private int filterKalman(int sensor, int reading)
+	{
+		if (!mPrimed[sensor])
+		{
+			mEstimate[sensor] = reading;
+			mVariance[sensor] = mMeasurementNoise;
+			mPrimed[sensor] = true;
+			return reading;
+		}
+
+		// predict (distance stays put, uncertainty grows), then correct with the reading
+		final float predictedVariance = mVariance[sensor] + mProcessNoise;
+		final float gain = predictedVariance / (predictedVariance + mMeasurementNoise);
+		mEstimate[sensor] += gain * (reading - mEstimate[sensor]);
+		mVariance[sensor] = (1f - gain) * predictedVariance;
+		return Math.round(mEstimate[sensor]);
+	}
+
+	public void reset()
+	{
+		for (int sensor = 0; sensor < mSensorCount; sensor++)
+		{
+			reset(sensor);
+		}
+	}
+
+	// one sensor starts over, e.g. after a gap in its readings
+	public void reset(int sensor)
+	{
+		mHistoryCount[sensor] = 0;
+		mHistoryNext[sensor] = 0;
+		mPrimed[sensor] = false;
+	}
+}
@@ -0,0 +1,36 @@
+package personal.thornupple.proximity;
+
+// one decoded notification: sampleCount readings of sensorCount sensors each, distances in mm.
+// preallocated for the biggest frame that fits in a notification, so decoding into it never allocates
+public class SensorFrame
+{
+	public static final int MAX_SENSORS = 16;
+	public static final int MAX_DISTANCES = (SampleChannel.MAX_PAYLOAD_BYTES - FrameDecoder.HEADER_BYTES) / 2;
+
+	// sensor gave no echo / out of range
+	public static final int NO_READING_MM = 0xFFFF;
+
+	public int version;
+	public int sequence;
+	public long deviceTimeMs;
+	public int samplePeriodMs;
+	public int sensorCount;
+	public int sampleCount;
+	// bit per sensor: no new data for it in this frame, the reading was held over or filled in (StreamMerger)
+	// and is there for the display and the mixer only.  0 from the decoder, everything is a fresh measurement
+	public int heldSensors;
+
+	// sample-major: distancesMm[sample * sensorCount + sensor]
+	public final int[] distancesMm = new int[MAX_DISTANCES];
+
+	public int getDistanceMm(int sample, int sensor)
+	{
+		return distancesMm[sample * sensorCount + sensor];
+	}
+
+	// offset of a sample's first sensor in distancesMm
+	public int getSampleOffset(int sample)
+	{
+		return sample * sensorCount;
+	}
+}
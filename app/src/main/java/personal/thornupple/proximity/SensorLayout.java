@@ -0,0 +1,147 @@
+package personal.thornupple.proximity;
+
+/*******************************************
+ /***** SENSOR LAYOUT ****
+ /*******************************************
+ which sensors the chair has and where they point.  sensor i is the i-th distance in every frame; each one
+ has a label for the screen, a direction (degrees clockwise from straight ahead, so -90 is left and 180 is
+ behind) and the tone it plays.  sensors can share a tone, e.g. front and rear corners on the same side.
+
+ the decision, the tones and the screen all size themselves from this instead of assuming three sensors
+ /*******************************************/
+public class SensorLayout
+{
+	private final String[] mLabels;
+	private final int[] mAzimuthDegrees;
+	private final int[] mTones;
+	private final int mToneCount;
+
+	public SensorLayout(String[] labels, int[] azimuthDegrees, int[] tones)
+	{
+		if (labels.length == 0 || labels.length != azimuthDegrees.length || labels.length != tones.length)
+			throw new IllegalArgumentException("Labels, directions and tones must all have one entry per sensor");
+		if (labels.length > SensorFrame.MAX_SENSORS)
+			throw new IllegalArgumentException("At most " + SensorFrame.MAX_SENSORS + " sensors fit in a frame: " + labels.length);
+
+		int toneCount = 0;
+		for (int tone : tones)
+		{
+			if (tone < 0)
+				throw new IllegalArgumentException("Tone indexes cannot be negative: " + tone);
+			toneCount = Math.max(toneCount, tone + 1);
+		}
+
+		mLabels = labels.clone();
+		mAzimuthDegrees = azimuthDegrees.clone();
+		mTones = tones.clone();
+		mToneCount = toneCount;
+	}
+
+	// what the chair has always sent: [right, center, left] - must reverse the bytes, dang endians
+	public static SensorLayout legacy()
+	{
+		return new SensorLayout(
+				new String[]{"Right", "Center", "Left"},
+				new int[]{45, 0, -45},
+				new int[]{0, 1, 2});
+	}
+
+	// the same pod mounted on the back facing backward: its right is the chair's rear left, and it shares the
+	// side tones with the front pod so a sound on the left is always something on the left
+	public static SensorLayout legacyRear()
+	{
+		return new SensorLayout(
+				new String[]{"Rear Left", "Rear", "Rear Right"},
+				new int[]{-135, 180, 135},
+				new int[]{2, 1, 0});
+	}
+
+	// several pods as one chair: the first pod's sensors, then the second's, and so on (see StreamMerger)
+	public static SensorLayout combine(SensorLayout... pods)
+	{
+		int count = 0;
+		for (SensorLayout pod : pods)
+			count += pod.getCount();
+		final String[] labels = new String[count];
+		final int[] azimuths = new int[count];
+		final int[] tones = new int[count];
+		int sensor = 0;
+		for (SensorLayout pod : pods)
+		{
+			System.arraycopy(pod.mLabels, 0, labels, sensor, pod.getCount());
+			System.arraycopy(pod.mAzimuthDegrees, 0, azimuths, sensor, pod.getCount());
+			System.arraycopy(pod.mTones, 0, tones, sensor, pod.getCount());
+			sensor += pod.getCount();
+		}
+		return new SensorLayout(labels, azimuths, tones);
+	}
+
+	// count sensors spaced evenly around the chair, clockwise from straight ahead, one tone each
+	public static SensorLayout ring(int count)
+	{
+		final String[] labels = new String[count];
+		final int[] azimuths = new int[count];
+		final int[] tones = new int[count];
+		for (int i = 0; i < count; i++)
+		{
+			int azimuth = Math.round(360f * i / count);
+			if (azimuth > 180)
+				azimuth -= 360;
+			azimuths[i] = azimuth;
+			// a dozen heads means several share a compass point, so the angle goes on the label too
+			labels[i] = describe(azimuth) + " " + azimuth + "\u00b0";
+			tones[i] = i;
+		}
+		return new SensorLayout(labels, azimuths, tones);
+	}
+
+	private static String describe(int azimuth)
+	{
+		final int rounded = Math.round(azimuth / 45f) * 45;
+		switch (rounded)
+		{
+			case 0:
+				return "Front";
+			case 45:
+				return "Front Right";
+			case 90:
+				return "Right";
+			case 135:
+				return "Rear Right";
+			case -45:
+				return "Front Left";
+			case -90:
+				return "Left";
+			case -135:
+				return "Rear Left";
+			default:
+				return "Rear";
+		}
+	}
+
+	public int getCount()
+	{
+		return mLabels.length;
+	}
+
+	public String getLabel(int sensor)
+	{
+		return mLabels[sensor];
+	}
+
+	public int getAzimuthDegrees(int sensor)
+	{
+		return mAzimuthDegrees[sensor];
+	}
+
+	public int getTone(int sensor)
+	{
+		return mTones[sensor];
+	}
+
+	// how many distinct tones the tone bank has to hold
+	public int getToneCount()
+	{
+		return mToneCount;
+	}
+}
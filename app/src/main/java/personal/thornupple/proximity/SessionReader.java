@@ -0,0 +1,181 @@
+package personal.thornupple.proximity;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*******************************************
+ /***** SESSION READER ****
+ /*******************************************
+ reads back what SessionRecorder wrote, one sample at a time, oldest segment first.  it streams: only one
+ segment is open at a time and nothing is held on to, so a week of recordings reads in constant memory.
+ a segment the recorder is still writing reads up to its last flush
+ /*******************************************/
+public final class SessionReader implements Closeable
+{
+	/*******************************************
+	 /***** SAMPLE ****
+	 /*******************************************
+	 caller owned holder next() fills in; allocate once and reuse it
+	 /*******************************************/
+	public static final class Sample
+	{
+		// wall clock, from the segment header; good to the ms and for lining up with a user's report
+		public long wallTimeMs;
+		// System.nanoTime of the recording phone, only comparable within one boot
+		public long timeNanos;
+		public int sequence;
+		public int sensorCount;
+		// sensor order, mm, SensorFrame.NO_READING_MM for no echo
+		public final int[] distancesMm = new int[SensorFrame.MAX_SENSORS];
+	}
+
+	private final List<File> mSegments;
+	private int mNextSegment;
+
+	// the open segment
+	private DataInputStream mIn;
+	private File mFile;
+	private long mRemaining;
+	private int mSensors;
+	private long mWallBaseMs;
+	private long mBaseNanos;
+	private long mTimeMs;
+	private int mSequence;
+	private final int[] mDistances = new int[SensorFrame.MAX_SENSORS];
+
+	public SessionReader(List<File> segments)
+	{
+		mSegments = new ArrayList<>(segments);
+	}
+
+	// a directory of segments, or a single segment
+	public static SessionReader open(File path)
+	{
+		return new SessionReader(path.isDirectory() ? listSegments(path) : Collections.singletonList(path));
+	}
+
+	// the recorder's segments in a directory, oldest first; empty if there is no such directory
+	public static List<File> listSegments(File directory)
+	{
+		final List<File> segments = new ArrayList<>();
+		final File[] files = directory.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				if (SessionRecorder.segmentIndex(file) >= 0)
+					segments.add(file);
+			}
+		}
+		Collections.sort(segments, (a, b) -> Integer.compare(SessionRecorder.segmentIndex(a), SessionRecorder.segmentIndex(b)));
+		return segments;
+	}
+
+	/*******************************************
+	 /***** NEXT ****
+	 /*******************************************
+	 RETURNS:  false once every segment has been read
+	 THROWS:   IOException for a file that is not a segment or is cut off inside a record
+	 /*******************************************/
+	public boolean next(Sample out) throws IOException
+	{
+		while (mIn == null || mRemaining <= 0)
+		{
+			if (!openNext())
+			{
+				return false;
+			}
+		}
+
+		try
+		{
+			mTimeMs += unzigzag(readVarint());
+			mSequence += (int) unzigzag(readVarint());
+			for (int sensor = 0; sensor < mSensors; sensor++)
+			{
+				mDistances[sensor] += (int) unzigzag(readVarint());
+			}
+		}
+		catch (EOFException exception)
+		{
+			throw new IOException(mFile + " ends inside a record", exception);
+		}
+
+		out.wallTimeMs = mWallBaseMs + mTimeMs;
+		out.timeNanos = mBaseNanos + mTimeMs * 1_000_000L;
+		out.sequence = mSequence;
+		out.sensorCount = mSensors;
+		System.arraycopy(mDistances, 0, out.distancesMm, 0, mSensors);
+		return true;
+	}
+
+	private boolean openNext() throws IOException
+	{
+		close();
+		if (mNextSegment >= mSegments.size())
+		{
+			return false;
+		}
+		mFile = mSegments.get(mNextSegment++);
+		mIn = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+		if (mIn.readInt() != SessionRecorder.MAGIC)
+			throw new IOException(mFile + " is not a session recording");
+		final int version = mIn.readUnsignedShort();
+		if (version != SessionRecorder.FILE_VERSION)
+			throw new IOException(mFile + " has unknown version " + version);
+		mSensors = mIn.readUnsignedByte();
+		mIn.readUnsignedByte();
+		mWallBaseMs = mIn.readLong();
+		mBaseNanos = mIn.readLong();
+		mRemaining = mIn.readInt() - SessionRecorder.HEADER_BYTES;
+		if (mSensors > SensorFrame.MAX_SENSORS)
+			throw new IOException(mFile + " has " + mSensors + " sensors");
+
+		mTimeMs = 0;
+		mSequence = 0;
+		for (int sensor = 0; sensor < mDistances.length; sensor++)
+		{
+			mDistances[sensor] = 0;
+		}
+		return true;
+	}
+
+	private long readVarint() throws IOException
+	{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			final int b = mIn.readUnsignedByte();
+			mRemaining--;
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+		throw new IOException(mFile + " has a varint longer than 64 bits");
+	}
+
+	private static long unzigzag(long value)
+	{
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (mIn != null)
+		{
+			mIn.close();
+			mIn = null;
+		}
+	}
+}
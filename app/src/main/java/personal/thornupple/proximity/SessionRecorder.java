@@ -0,0 +1,347 @@
+package personal.thornupple.proximity;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*******************************************
+ /***** SESSION RECORDER ****
+ /*******************************************
+ keeps every decoded sample on disk, so a near miss somebody tells us about can be replayed
+ (./gradlew :benchmark:replay --args="sessions/") instead of guessed at.
+
+ the sample path only copies the sample into a preallocated single producer / single consumer ring and
+ carries on; it never blocks, never allocates and never touches a file.  if the ring is full the sample is
+ counted and dropped.  a background thread wakes every 250 ms, drains the ring and appends to the
+ current segment, a memory mapped file of segmentBytes, so a write is a few stores into the page cache.
+
+ segments are session-NNNNNN.pxsr in one directory.  a new one is started when the current one is full,
+ when the number of sensors changes and on every start(); the oldest are deleted once there are more than
+ maxSegments, so the directory never grows past maxSegments * segmentBytes.
+
+ segment format (big endian, see SessionReader): "PXSR", u16 version, u8 sensor count, u8 0, i64 wall clock
+ ms and i64 nanoTime when the segment was started, i32 end of the written records (updated after every
+ flush, so a segment cut off by a crash still reads up to the last flush), then the records.  a record is
+ unsigned LEB128 varints of zigzagged differences from the record before (zero for the first): time in
+ ms since the segment started, sequence number, then one distance in mm per sensor.  a reading that barely
+ moved costs a byte, so a sample of 3 sensors is about 5 bytes and of 12 about 15: an hour of 3 sensors
+ at 20 Hz is under 2 MB
+ /*******************************************/
+public final class SessionRecorder implements Runnable
+{
+	public static final int MAGIC = 0x50585352; // PXSR
+	public static final int FILE_VERSION = 1;
+	public static final String EXTENSION = ".pxsr";
+
+	static final int HEADER_BYTES = 28;
+	static final int END_OFFSET = 24;
+	// time, sequence and MAX_SENSORS distances at their longest
+	private static final int MAX_RECORD_BYTES = 10 + 10 + SensorFrame.MAX_SENSORS * 3;
+
+	private static final long FLUSH_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+	// a few seconds of batched notifications at the fastest rate
+	private static final int RING_CAPACITY = 4096;
+
+	private final File mDirectory;
+	private final int mSegmentBytes;
+	private final int mMaxSegments;
+
+	// the ring: one slot per sample, distances MAX_SENSORS wide
+	private final int mMask = RING_CAPACITY - 1;
+	private final long[] mTimes = new long[RING_CAPACITY];
+	private final int[] mSequences = new int[RING_CAPACITY];
+	private final int[] mSensorCounts = new int[RING_CAPACITY];
+	private final int[] mDistances = new int[RING_CAPACITY * SensorFrame.MAX_SENSORS];
+	// mTail is only written by record(), mHead only by the writer thread
+	private final AtomicLong mTail = new AtomicLong();
+	private final AtomicLong mHead = new AtomicLong();
+	private final AtomicLong mDropped = new AtomicLong();
+
+	private volatile boolean mRunning;
+	private volatile Thread mThread;
+	private volatile IOException mError;
+	private volatile long mBytesWritten;
+
+	// everything below is only touched from the writer thread
+	private MappedByteBuffer mSegment;
+	private int mSegmentIndex;
+	private int mSegmentSensors;
+	private long mSegmentBaseNanos;
+	private long mClosedBytes;
+	private long mLastTimeMs;
+	private int mLastSequence;
+	private final int[] mLastDistances = new int[SensorFrame.MAX_SENSORS];
+
+	public SessionRecorder(File directory, int segmentBytes, int maxSegments)
+	{
+		if (segmentBytes < HEADER_BYTES + MAX_RECORD_BYTES)
+			throw new IllegalArgumentException("Segment too small: " + segmentBytes);
+		if (maxSegments < 1)
+			throw new IllegalArgumentException("Need at least one segment: " + maxSegments);
+		mDirectory = directory;
+		mSegmentBytes = segmentBytes;
+		mMaxSegments = maxSegments;
+	}
+
+	// 1 MB segments, 32 of them: a few days of riding in 32 MB at most
+	public static SessionRecorder defaults(File directory)
+	{
+		return new SessionRecorder(directory, 1 << 20, 32);
+	}
+
+	/*******************************************
+	 /***** RECORD (ONE PRODUCER) ****
+	 /*******************************************
+	 every sample in a decoded frame, back-dated from arrivalNanos by the frame's sample period the way
+	 ProximityDecision sees them.  call from one thread only, the one decoding
+	 /*******************************************/
+	public void record(SensorFrame frame, long arrivalNanos)
+	{
+		final int sensors = Math.min(frame.sensorCount, SensorFrame.MAX_SENSORS);
+		final long periodNanos = frame.samplePeriodMs * 1_000_000L;
+		long tail = mTail.get();
+		for (int sample = 0; sample < frame.sampleCount; sample++)
+		{
+			// the writer may still be reading the slot it is on, so never lap it
+			if (tail - mHead.get() > mMask)
+			{
+				mDropped.lazySet(mDropped.get() + frame.sampleCount - sample);
+				break;
+			}
+			final int slot = (int) (tail & mMask);
+			mTimes[slot] = arrivalNanos - (frame.sampleCount - 1 - sample) * periodNanos;
+			mSequences[slot] = frame.sequence;
+			mSensorCounts[slot] = sensors;
+			System.arraycopy(frame.distancesMm, frame.getSampleOffset(sample), mDistances, slot * SensorFrame.MAX_SENSORS, sensors);
+			tail++;
+		}
+		// release: the slots become visible to the writer along with the new tail
+		mTail.lazySet(tail);
+	}
+
+	/*******************************************
+	 /***** START / STOP ****
+	 /*******************************************/
+	public synchronized void start()
+	{
+		if (mRunning)
+		{
+			return;
+		}
+		mRunning = true;
+		final Thread thread = new Thread(this, "session-recorder");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		mThread = thread;
+		thread.start();
+	}
+
+	// writes out whatever is still in the ring before it returns
+	public synchronized void stop()
+	{
+		mRunning = false;
+		final Thread thread = mThread;
+		mThread = null;
+		if (thread != null)
+		{
+			LockSupport.unpark(thread);
+			try
+			{
+				thread.join(TimeUnit.SECONDS.toMillis(2));
+			}
+			catch (InterruptedException exception)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		final Thread self = Thread.currentThread();
+		try
+		{
+			mSegmentIndex = nextSegmentIndex();
+			while (mRunning && mThread == self)
+			{
+				drain();
+				LockSupport.parkNanos(this, FLUSH_NANOS);
+			}
+			drain();
+			if (mSegment != null)
+			{
+				mSegment.force();
+			}
+		}
+		catch (IOException exception)
+		{
+			// stop recording rather than fill the log; the ring just stays full and counts drops
+			mError = exception;
+		}
+		mSegment = null;
+	}
+
+	/*******************************************
+	 /***** DRAIN ****
+	 /*******************************************
+	 encodes everything in the ring into the current segment, rolling over as needed, then moves the
+	 segment's end marker past it
+	 /*******************************************/
+	private void drain() throws IOException
+	{
+		final long tail = mTail.get();
+		long head = mHead.get();
+		if (head == tail)
+		{
+			return;
+		}
+		for (; head < tail; head++)
+		{
+			final int slot = (int) (head & mMask);
+			final int sensors = mSensorCounts[slot];
+			if (mSegment == null || sensors != mSegmentSensors || mSegment.remaining() < MAX_RECORD_BYTES)
+			{
+				roll(sensors, mTimes[slot]);
+			}
+
+			final long timeMs = (mTimes[slot] - mSegmentBaseNanos) / 1_000_000L;
+			putVarint(zigzag(timeMs - mLastTimeMs));
+			putVarint(zigzag(mSequences[slot] - mLastSequence));
+			mLastTimeMs = timeMs;
+			mLastSequence = mSequences[slot];
+			final int base = slot * SensorFrame.MAX_SENSORS;
+			for (int sensor = 0; sensor < sensors; sensor++)
+			{
+				final int mm = mDistances[base + sensor];
+				putVarint(zigzag(mm - mLastDistances[sensor]));
+				mLastDistances[sensor] = mm;
+			}
+			// freed one at a time, so record() can refill the ring while a big backlog is written
+			mHead.lazySet(head + 1);
+		}
+		mSegment.putInt(END_OFFSET, mSegment.position());
+		mBytesWritten = mClosedBytes + mSegment.position();
+	}
+
+	private void roll(int sensors, long baseNanos) throws IOException
+	{
+		if (mSegment != null)
+		{
+			// what went in since the last flush would otherwise be past the end marker
+			mSegment.putInt(END_OFFSET, mSegment.position());
+			mSegment.force();
+			mClosedBytes += mSegment.position();
+		}
+
+		final File file = new File(mDirectory, segmentName(mSegmentIndex++));
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+		{
+			// the mapping outlives the channel
+			mSegment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentBytes);
+		}
+		mSegment.order(ByteOrder.BIG_ENDIAN);
+		mSegment.putInt(MAGIC);
+		mSegment.putShort((short) FILE_VERSION);
+		mSegment.put((byte) sensors);
+		mSegment.put((byte) 0);
+		mSegment.putLong(System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - baseNanos));
+		mSegment.putLong(baseNanos);
+		mSegment.putInt(HEADER_BYTES);
+
+		mSegmentSensors = sensors;
+		mSegmentBaseNanos = baseNanos;
+		mLastTimeMs = 0;
+		mLastSequence = 0;
+		for (int sensor = 0; sensor < mLastDistances.length; sensor++)
+		{
+			mLastDistances[sensor] = 0;
+		}
+
+		// retention: oldest first, never the one we just opened
+		final List<File> segments = SessionReader.listSegments(mDirectory);
+		for (int i = 0; i < segments.size() - mMaxSegments; i++)
+		{
+			//noinspection ResultOfMethodCallIgnored
+			segments.get(i).delete();
+		}
+	}
+
+	private int nextSegmentIndex() throws IOException
+	{
+		if (!mDirectory.isDirectory() && !mDirectory.mkdirs())
+		{
+			throw new IOException("Could not create " + mDirectory);
+		}
+		int next = 0;
+		for (File segment : SessionReader.listSegments(mDirectory))
+		{
+			next = Math.max(next, segmentIndex(segment) + 1);
+		}
+		return next;
+	}
+
+	static String segmentName(int index)
+	{
+		return String.format(Locale.US, "session-%06d%s", index, EXTENSION);
+	}
+
+	// -1 if it is not one of ours
+	static int segmentIndex(File file)
+	{
+		final String name = file.getName();
+		if (!name.startsWith("session-") || !name.endsWith(EXTENSION))
+		{
+			return -1;
+		}
+		try
+		{
+			return Integer.parseInt(name.substring("session-".length(), name.length() - EXTENSION.length()));
+		}
+		catch (NumberFormatException exception)
+		{
+			return -1;
+		}
+	}
+
+	private static long zigzag(long value)
+	{
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private void putVarint(long value)
+	{
+		while ((value & ~0x7FL) != 0)
+		{
+			mSegment.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		mSegment.put((byte) value);
+	}
+
+	// samples record() threw away because the writer had fallen a whole ring behind (or stopped on an error)
+	public long getDroppedCount()
+	{
+		return mDropped.get();
+	}
+
+	// everything that went to disk since start, headers included
+	public long getBytesWritten()
+	{
+		return mBytesWritten;
+	}
+
+	// the error that stopped the writer, or null
+	public IOException getError()
+	{
+		return mError;
+	}
+}
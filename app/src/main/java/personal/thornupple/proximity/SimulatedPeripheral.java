@@ -0,0 +1,693 @@
+package personal.thornupple.proximity;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*******************************************
+ /***** SIMULATED PERIPHERAL ****
+ /*******************************************
+ a chair that lives in the JVM.  it answers connect / discover / subscribe / read like the real one, then
+ samples every sensor at rateHz and sends batched (version 2) frames, samplesPerNotification samples each.
+ on top of that it can be made to misbehave:
+   jitter     - each notification goes out up to jitterMs late (never early, never out of order)
+   loss       - that fraction of notifications is never delivered; the sequence number still moves on,
+                so the frame decoder sees the gap exactly like it would over the air
+   disconnect - drops the link at random, on average every disconnectMeanMs while connected
+ it also plays along with link tuning: the mtu exchange settles on the smaller of what was asked and
+ setSupportedMtu, 2M is granted unless setSupports2M(false), and a notify interval write changes the rate
+ (refused if setIntervalControl(false), like older firmware)
+
+ one thread ("simulated-peripheral") does everything and all callbacks arrive on it, the way the ble-io
+ thread gets them on android.  step(now) is the whole state machine, so after setClock() no thread is
+ started and a test drives step() from a VirtualClock instead.  set everything up before connect()
+ /*******************************************/
+public class SimulatedPeripheral implements GattTransport, Runnable
+{
+	// returned from step() when there is nothing to do until somebody calls in
+	public static final long IDLE = Long.MAX_VALUE;
+
+	/*******************************************
+	 /***** DISTANCE SOURCE ****
+	 /*******************************************
+	 what sensor sees at a given time (since connect), in mm.  called on the peripheral thread
+	 /*******************************************/
+	public interface DistanceSource
+	{
+		int distanceMm(int sensor, long elapsedNanos);
+	}
+
+	// pending requests, one due time each (0 = nothing pending)
+	private static final int OP_CONNECT = 0;
+	private static final int OP_DISCOVER = 1;
+	private static final int OP_SUBSCRIBE = 2;
+	private static final int OP_READ = 3;
+	private static final int OP_DISCONNECT = 4;
+	private static final int OP_MTU = 5;
+	private static final int OP_PHY = 6;
+	private static final int OP_INTERVAL = 7;
+	private static final int OP_COUNT = 8;
+
+	// how long the gatt round trips take; short, we are not simulating the radio's setup time
+	private static final long CONNECT_NANOS = TimeUnit.MILLISECONDS.toNanos(30);
+	private static final long ROUND_TRIP_NANOS = TimeUnit.MILLISECONDS.toNanos(8);
+
+	// where the proximity characteristic sits in our pretend gatt table
+	private static final int VALUE_HANDLE = 0x002a;
+
+	// remembers when the newest sample of each recent notification was taken, by sequence number
+	private static final int HISTORY = 1024;
+
+	private final int mSensorCount;
+	private final long mDefaultPeriodNanos;
+
+	private int mSamplesPerNotification = 1;
+	private long mJitterNanos;
+	private double mLossRate;
+	private long mDisconnectMeanNanos;
+	private long mOutageNanos;
+	private DistanceSource mSource;
+	private int mSupportedMtu = LinkNegotiator.PREFERRED_MTU;
+	private boolean mSupports2M = true;
+	private boolean mIntervalControl = true;
+	private VirtualClock mClock;
+	private final Random mRandom = new Random(42);
+
+	private final AtomicLongArray mDue = new AtomicLongArray(OP_COUNT);
+	private volatile Callback mCallback;
+	private volatile boolean mClosed;
+	private volatile boolean mRunning;
+	private volatile Thread mThread;
+
+	// arguments for the pending link requests
+	private volatile int mRequestedMtu;
+	private volatile int mRequestedPhy;
+	private volatile int mRequestedIntervalMs;
+
+	// everything below is only touched from the peripheral thread (or whoever calls step)
+	private byte[] mPayload;
+	private ByteBuffer mPayloadBuffer;
+	private boolean mConnected;
+	private boolean mDiscovered;
+	private boolean mSubscribed;
+	// volatile only so getRateHz can look at it from outside
+	private volatile long mSamplePeriodNanos;
+	private int mMtu = GattTransport.DEFAULT_MTU;
+	private int mPhy = GattTransport.PHY_LE_1M;
+	private boolean mHighPriority;
+	private long mEpochNanos;
+	private long mNextSampleNanos;
+	private long mNextDisconnectNanos;
+	private long mOutageEndNanos;
+	private long mStallEndNanos;
+	private boolean mPending;
+	private boolean mPendingLost;
+	private long mPendingNanos;
+	private long mLastDeliveryNanos;
+	private int mSequence;
+	private final long[] mSampleNanos = new long[HISTORY];
+
+	private volatile long mNotifications;
+	private volatile long mDelivered;
+	private volatile long mLost;
+	private volatile long mDisconnects;
+	private volatile long mStalls;
+	private volatile long mFailedConnects;
+
+	public SimulatedPeripheral(SensorLayout layout, int rateHz)
+	{
+		if (rateHz <= 0 || rateHz > 1000)
+			throw new IllegalArgumentException("Rate must be between 1 and 1000 Hz: " + rateHz);
+		mSensorCount = layout.getCount();
+		mDefaultPeriodNanos = TimeUnit.SECONDS.toNanos(1) / rateHz;
+		mSamplePeriodNanos = mDefaultPeriodNanos;
+		mSource = approach(mSensorCount);
+		setSamplesPerNotification(1);
+	}
+
+	/*******************************************
+	 /***** SETTINGS ****
+	 /*******************************************
+	 only before connect(), they are not thread safe
+	 /*******************************************/
+	public void setSamplesPerNotification(int samples)
+	{
+		final int length = FrameDecoder.HEADER_BYTES + samples * mSensorCount * 2;
+		if (samples <= 0 || length > SampleChannel.MAX_PAYLOAD_BYTES)
+			throw new IllegalArgumentException(samples + " samples of " + mSensorCount + " sensors do not fit in a notification");
+		mSamplesPerNotification = samples;
+		mPayload = new byte[length];
+		mPayloadBuffer = ByteBuffer.wrap(mPayload).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	public void setJitterMs(int jitterMs)
+	{
+		mJitterNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, jitterMs));
+	}
+
+	public void setLossRate(double lossRate)
+	{
+		if (lossRate < 0 || lossRate >= 1)
+			throw new IllegalArgumentException("Loss rate must be in [0, 1): " + lossRate);
+		mLossRate = lossRate;
+	}
+
+	// 0 = never drop the link
+	public void setDisconnectMeanMs(int disconnectMeanMs)
+	{
+		mDisconnectMeanNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, disconnectMeanMs));
+	}
+
+	// after an injected drop the chair is out of reach this long and connects fail, like rolling out of range
+	public void setOutageMs(int outageMs)
+	{
+		mOutageNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, outageMs));
+	}
+
+	public void setSupportedMtu(int mtu)
+	{
+		mSupportedMtu = Math.max(GattTransport.DEFAULT_MTU, mtu);
+	}
+
+	public void setSupports2M(boolean supports2M)
+	{
+		mSupports2M = supports2M;
+	}
+
+	public void setIntervalControl(boolean intervalControl)
+	{
+		mIntervalControl = intervalControl;
+	}
+
+	public void setDistanceSource(DistanceSource source)
+	{
+		mSource = source;
+	}
+
+	public void setSeed(long seed)
+	{
+		mRandom.setSeed(seed);
+	}
+
+	// no thread then: requests are timed off this clock and nothing happens until somebody calls step()
+	public void setClock(VirtualClock clock)
+	{
+		mClock = clock;
+	}
+
+	// something to look at: every sensor rolls up to a wall and back over 8 s, each a little out of step
+	public static DistanceSource approach(final int sensorCount)
+	{
+		return (sensor, elapsedNanos) ->
+		{
+			final double cycle = (elapsedNanos / 1e9 + sensor * 8.0 / sensorCount) % 8.0;
+			return (int) Math.round(cycle < 4.0 ? 900 - cycle * 200 : 100 + (cycle - 4.0) * 200);
+		};
+	}
+
+	/*******************************************
+	 /***** GATT TRANSPORT ****
+	 /*******************************************/
+	@Override
+	public void setCallback(Callback callback)
+	{
+		mCallback = callback;
+	}
+
+	@Override
+	public boolean connect(String deviceAddress)
+	{
+		if (mClock == null)
+		{
+			start();
+		}
+		return request(OP_CONNECT, CONNECT_NANOS);
+	}
+
+	@Override
+	public boolean discoverServices()
+	{
+		return request(OP_DISCOVER, ROUND_TRIP_NANOS);
+	}
+
+	@Override
+	public boolean subscribe()
+	{
+		return request(OP_SUBSCRIBE, ROUND_TRIP_NANOS);
+	}
+
+	@Override
+	public boolean read()
+	{
+		return request(OP_READ, ROUND_TRIP_NANOS);
+	}
+
+	@Override
+	public boolean requestConnectionPriority(int priority)
+	{
+		if (mClosed)
+		{
+			return false;
+		}
+		mHighPriority = priority == PRIORITY_HIGH;
+		return true;
+	}
+
+	@Override
+	public boolean requestMtu(int mtu)
+	{
+		mRequestedMtu = mtu;
+		return request(OP_MTU, ROUND_TRIP_NANOS);
+	}
+
+	@Override
+	public boolean setPreferredPhy(int phy)
+	{
+		mRequestedPhy = phy;
+		return request(OP_PHY, ROUND_TRIP_NANOS);
+	}
+
+	@Override
+	public boolean writeNotifyInterval(int intervalMs)
+	{
+		if (!mIntervalControl || intervalMs <= 0)
+		{
+			return false;
+		}
+		mRequestedIntervalMs = intervalMs;
+		return request(OP_INTERVAL, ROUND_TRIP_NANOS);
+	}
+
+	@Override
+	public int getValueHandle()
+	{
+		return VALUE_HANDLE;
+	}
+
+	@Override
+	public void disconnect()
+	{
+		request(OP_DISCONNECT, ROUND_TRIP_NANOS);
+	}
+
+	@Override
+	public void close()
+	{
+		mCallback = null;
+		mClosed = true;
+		mRunning = false;
+		final Thread thread = mThread;
+		mThread = null;
+		if (thread != null)
+		{
+			LockSupport.unpark(thread);
+		}
+	}
+
+	private boolean request(int op, long delayNanos)
+	{
+		if (mClosed)
+		{
+			return false;
+		}
+		final long now = mClock == null ? System.nanoTime() : mClock.nanoTime();
+		// never 0, that means nothing pending
+		mDue.set(op, Math.max(1, now + delayNanos));
+		final Thread thread = mThread;
+		if (thread != null)
+		{
+			LockSupport.unpark(thread);
+		}
+		return true;
+	}
+
+	private synchronized void start()
+	{
+		if (mRunning)
+		{
+			return;
+		}
+		mRunning = true;
+		Thread thread = new Thread(this, "simulated-peripheral");
+		thread.setDaemon(true);
+		mThread = thread;
+		thread.start();
+	}
+
+	@Override
+	public void run()
+	{
+		final Thread self = Thread.currentThread();
+		while (mRunning && mThread == self)
+		{
+			final long now = System.nanoTime();
+			final long next = step(now);
+			if (next == IDLE)
+			{
+				LockSupport.park(this);
+			}
+			else if (next > now)
+			{
+				LockSupport.parkNanos(this, next - now);
+			}
+		}
+	}
+
+	/*******************************************
+	 /***** STEP ****
+	 /*******************************************
+	 answers whatever requests are due, then sends whatever notifications are due at nowNanos.
+	 RETURNS:  the next time something is due, or IDLE
+	 /*******************************************/
+	public long step(long nowNanos)
+	{
+		long next = IDLE;
+		for (int op = 0; op < OP_COUNT; op++)
+		{
+			final long due = mDue.get(op);
+			if (due == 0)
+			{
+				continue;
+			}
+			if (due > nowNanos)
+			{
+				next = Math.min(next, due);
+			}
+			else if (mDue.compareAndSet(op, due, 0))
+			{
+				answer(op, nowNanos);
+			}
+		}
+
+		if (!mConnected)
+		{
+			return next;
+		}
+
+		if (mDisconnectMeanNanos > 0 && nowNanos >= mNextDisconnectNanos)
+		{
+			mDisconnects++;
+			mOutageEndNanos = nowNanos + mOutageNanos;
+			dropLink();
+			return next;
+		}
+		if (mDisconnectMeanNanos > 0)
+		{
+			next = Math.min(next, mNextDisconnectNanos);
+		}
+
+		if (!mSubscribed)
+		{
+			return next;
+		}
+
+		// hung: the link stays up and nothing is sent, and nothing is made up for afterwards either
+		if (mStallEndNanos != 0)
+		{
+			if (nowNanos < mStallEndNanos)
+			{
+				return Math.min(next, mStallEndNanos);
+			}
+			mNextSampleNanos = Math.max(mNextSampleNanos, mStallEndNanos);
+			mLastDeliveryNanos = Math.max(mLastDeliveryNanos, mStallEndNanos);
+			mStallEndNanos = 0;
+		}
+
+		// one notification in flight at a time, so a late one holds up the next and the order is kept
+		while (true)
+		{
+			if (mPending)
+			{
+				if (nowNanos < mPendingNanos)
+				{
+					return Math.min(next, mPendingNanos);
+				}
+				deliver(nowNanos);
+			}
+
+			final long batchEnd = mNextSampleNanos + (mSamplesPerNotification - 1) * mSamplePeriodNanos;
+			if (nowNanos < batchEnd)
+			{
+				return Math.min(next, batchEnd);
+			}
+			encode(mNextSampleNanos);
+			mNextSampleNanos = batchEnd + mSamplePeriodNanos;
+
+			mPending = true;
+			mPendingLost = mLossRate > 0 && mRandom.nextDouble() < mLossRate;
+			final long jitter = mJitterNanos > 0 ? (long) (mRandom.nextDouble() * mJitterNanos) : 0;
+			mPendingNanos = Math.max(mLastDeliveryNanos, batchEnd + jitter);
+		}
+	}
+
+	private void answer(int op, long nowNanos)
+	{
+		final Callback callback = mCallback;
+		switch (op)
+		{
+			case OP_CONNECT:
+				if (mConnected)
+				{
+					return;
+				}
+				if (nowNanos < mOutageEndNanos)
+				{
+					// android answers a connect to a device that is not there with a disconnect (status 133)
+					mFailedConnects++;
+					if (callback != null)
+						callback.onConnectionStateChange(false);
+					return;
+				}
+				mConnected = true;
+				// a new link starts from the firmware defaults again
+				mMtu = GattTransport.DEFAULT_MTU;
+				mPhy = GattTransport.PHY_LE_1M;
+				mSamplePeriodNanos = mDefaultPeriodNanos;
+				mEpochNanos = nowNanos;
+				mNextDisconnectNanos = nowNanos + nextDisconnectDelay();
+				if (callback != null)
+					callback.onConnectionStateChange(true);
+				return;
+			case OP_DISCOVER:
+				mDiscovered = mConnected;
+				if (callback != null)
+					callback.onServicesDiscovered(mDiscovered);
+				return;
+			case OP_SUBSCRIBE:
+				if (mDiscovered && !mSubscribed)
+				{
+					mSubscribed = true;
+					mPending = false;
+					mNextSampleNanos = nowNanos;
+					mLastDeliveryNanos = nowNanos;
+				}
+				if (callback != null)
+					callback.onSubscribed(mSubscribed);
+				return;
+			case OP_READ:
+				if (mDiscovered)
+				{
+					encode(nowNanos - (mSamplesPerNotification - 1) * mSamplePeriodNanos);
+					if (callback != null)
+						callback.onValue(mPayload, nowNanos);
+				}
+				return;
+			case OP_DISCONNECT:
+				if (mConnected)
+				{
+					dropLink();
+				}
+				return;
+			case OP_MTU:
+				if (mConnected)
+				{
+					mMtu = Math.max(GattTransport.DEFAULT_MTU, Math.min(mRequestedMtu, mSupportedMtu));
+				}
+				if (callback != null)
+					callback.onMtuChanged(mMtu, mConnected);
+				return;
+			case OP_PHY:
+				if (mConnected)
+				{
+					mPhy = mRequestedPhy == GattTransport.PHY_LE_2M && mSupports2M ? GattTransport.PHY_LE_2M : GattTransport.PHY_LE_1M;
+				}
+				if (callback != null)
+					callback.onPhyUpdate(mPhy, mPhy, mConnected);
+				return;
+			case OP_INTERVAL:
+				if (mConnected)
+				{
+					// the interval is per notification, the samples in a batch split it
+					mSamplePeriodNanos = TimeUnit.MILLISECONDS.toNanos(mRequestedIntervalMs) / mSamplesPerNotification;
+				}
+				if (callback != null)
+					callback.onNotifyIntervalWritten(mConnected);
+				return;
+			default:
+				throw new IllegalStateException("Unknown op: " + op);
+		}
+	}
+
+	/*******************************************
+	 /***** STALL ****
+	 /*******************************************
+	 the firmware hangs until untilNanos: still connected, still subscribed, not a single notification.  the
+	 case a disconnect callback never tells anybody about.  whatever was already in the air goes with it.
+	 only from whoever calls step (or before connect)
+	 /*******************************************/
+	public void stall(long untilNanos)
+	{
+		mStalls++;
+		mStallEndNanos = untilNanos;
+		if (mPending)
+		{
+			mLost++;
+			mPending = false;
+		}
+	}
+
+	private void dropLink()
+	{
+		mConnected = false;
+		mDiscovered = false;
+		mSubscribed = false;
+		if (mPending)
+		{
+			// it was in the air when the link went
+			mLost++;
+			mPending = false;
+		}
+		final Callback callback = mCallback;
+		if (callback != null)
+			callback.onConnectionStateChange(false);
+	}
+
+	private long nextDisconnectDelay()
+	{
+		if (mDisconnectMeanNanos <= 0)
+		{
+			return 0;
+		}
+		// exponential, so drops come at random instead of like clockwork
+		return (long) (-Math.log(1.0 - mRandom.nextDouble()) * mDisconnectMeanNanos);
+	}
+
+	// fills mPayload with the batch starting at firstSampleNanos and gives it the next sequence number
+	private void encode(long firstSampleNanos)
+	{
+		final int sequence = mSequence;
+		mSequence = (mSequence + 1) & 0xFFFF;
+		mNotifications++;
+
+		final ByteBuffer out = mPayloadBuffer;
+		out.put(0, (byte) FrameDecoder.VERSION_BATCHED);
+		out.put(1, (byte) mSensorCount);
+		out.put(2, (byte) mSamplesPerNotification);
+		out.put(3, (byte) 0);
+		out.putShort(4, (short) sequence);
+		out.putShort(6, (short) TimeUnit.NANOSECONDS.toMillis(mSamplePeriodNanos));
+		out.putInt(8, (int) TimeUnit.NANOSECONDS.toMillis(firstSampleNanos - mEpochNanos));
+
+		int offset = FrameDecoder.HEADER_BYTES;
+		long sampleNanos = firstSampleNanos;
+		for (int sample = 0; sample < mSamplesPerNotification; sample++, sampleNanos += mSamplePeriodNanos)
+		{
+			for (int sensor = 0; sensor < mSensorCount; sensor++, offset += 2)
+			{
+				final int mm = mSource.distanceMm(sensor, sampleNanos - mEpochNanos);
+				out.putShort(offset, (short) Math.max(0, Math.min(SensorFrame.NO_READING_MM, mm)));
+			}
+		}
+		mSampleNanos[sequence & (HISTORY - 1)] = sampleNanos - mSamplePeriodNanos;
+	}
+
+	private void deliver(long nowNanos)
+	{
+		mPending = false;
+		mLastDeliveryNanos = nowNanos;
+		if (mPendingLost)
+		{
+			mLost++;
+			return;
+		}
+		mDelivered++;
+		final Callback callback = mCallback;
+		if (callback != null)
+		{
+			callback.onValue(mPayload, nowNanos);
+		}
+	}
+
+	/*******************************************
+	 /***** SAMPLE TIME ****
+	 /*******************************************
+	 when the newest sample in notification sequence was taken (System.nanoTime, or the step clock).  only
+	 the last HISTORY sequence numbers are remembered - ask from the callback or soon after
+	 /*******************************************/
+	public long getSampleNanos(int sequence)
+	{
+		return mSampleNanos[sequence & (HISTORY - 1)];
+	}
+
+	// current sample rate; moves when somebody writes a notify interval
+	public int getRateHz()
+	{
+		return (int) (TimeUnit.SECONDS.toNanos(1) / mSamplePeriodNanos);
+	}
+
+	public int getMtu()
+	{
+		return mMtu;
+	}
+
+	public int getPhy()
+	{
+		return mPhy;
+	}
+
+	public boolean isHighPriority()
+	{
+		return mHighPriority;
+	}
+
+	public int getSamplesPerNotification()
+	{
+		return mSamplesPerNotification;
+	}
+
+	// notifications built, whether or not they made it
+	public long getNotificationCount()
+	{
+		return mNotifications;
+	}
+
+	public long getDeliveredCount()
+	{
+		return mDelivered;
+	}
+
+	public long getStallCount()
+	{
+		return mStalls;
+	}
+
+	public long getLostCount()
+	{
+		return mLost;
+	}
+
+	// only the injected ones, not the ones somebody asked for
+	public long getDisconnectCount()
+	{
+		return mDisconnects;
+	}
+
+	// connects turned away during an outage
+	public long getFailedConnectCount()
+	{
+		return mFailedConnects;
+	}
+}
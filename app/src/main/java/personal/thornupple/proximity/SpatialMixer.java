@@ -0,0 +1,391 @@
+package personal.thornupple.proximity;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*******************************************
+ /***** SPATIAL MIXER ****
+ /*******************************************
+ every sensor that is in range at once, instead of only the closest one.  each sensor is a voice: a sine at
+ its tone's frequency, panned left to right by the way the sensor points, pulsing with its own state from
+ the alert table and louder the longer its pulses get.  rolling between two obstacles sounds like one on each
+ side instead of whichever one is a few mm closer.
+
+ render() fills a block of 16 bit interleaved stereo on the audio thread.  nothing is allocated there, the
+ sine is a table lookup on a fixed point phase and the per frame work is a handful of integer multiplies per
+ voice.  only the maxVoices most urgent sensors sound in a block, so a block costs the same however many
+ sensors are in range - the rest wait for a voice to free up.
+
+ the states come in like they do for ToneScheduler: packed longs (ToneScheduler.packState), one per sensor,
+ newest wins.  a voice takes a new state at its next pulse boundary, so the cadence is not chopped up, and
+ going silent fades it out straight away.  publish from one thread (the decision thread), render from one
+ other (the audio thread)
+ /*******************************************/
+public final class SpatialMixer
+{
+	public static final int CHANNELS = 2;
+	public static final int DEFAULT_MAX_VOICES = 4;
+
+	// 4096 entry sine, indexed by the top bits of a 32 bit phase that wraps around on its own
+	private static final int SINE_BITS = 12;
+	private static final short[] SINE = new short[1 << SINE_BITS];
+
+	static
+	{
+		for (int i = 0; i < SINE.length; i++)
+		{
+			SINE[i] = (short) Math.round(Short.MAX_VALUE * Math.sin(2 * Math.PI * i / SINE.length));
+		}
+	}
+
+	// gains are q15, ONE being full scale
+	private static final int ONE = 1 << 15;
+	// the shortest pulse (edge of the range) plays at a third of a solid tone's volume
+	private static final int QUIETEST = ONE / 3;
+	// one voice peaks at half scale, so two sensors side by side at full urgency still do not clip
+	private static final int HEADROOM = ONE / 2;
+
+	private final int mSensors;
+	private final int mMaxVoices;
+	private final int mMaxBlockFrames;
+	private final int mSampleRate;
+	private final int mFadeStep;
+	private final int mVolume;
+	private final FlightRecorder mRecorder = FlightRecorder.get();
+	private final PipelineLatency mLatency = PipelineLatency.get();
+
+	// per sensor, fixed: tone, phase step per frame and the left / right gains from the direction
+	private final int[] mTones;
+	private final int[] mIncrement;
+	private final int[] mLeft;
+	private final int[] mRight;
+
+	// per sensor, newest published state; any thread writes, the audio thread reads
+	private final AtomicLongArray mRequested;
+	private volatile long mRequestedArrivalNanos;
+	private volatile long mRequestedDecidedNanos;
+
+	// per sensor, only touched from the audio thread.  mState is the pulse being played, SILENT once the
+	// voice is fading out or done
+	private final long[] mState;
+	private final int[] mPhase;
+	private final int[] mPosition;
+	private final int[] mOnFrames;
+	private final int[] mPeriodFrames;
+	private final int[] mTarget;
+	private final int[] mEnvelope;
+
+	// the sensors that get a voice this block, most urgent first
+	private final int[] mVoices;
+	private final int[] mVoiceUrgency;
+	private int mVoiceCount;
+	private final int[] mMix;
+
+	private long mPulses;
+	private long mBumped;
+
+	/*******************************************
+	 /***** CONSTRUCTOR ****
+	 /*******************************************
+	 frequencies and volume from config, directions and tones from layout.  maxBlockFrames is the most
+	 render() will be asked for at once; everything is sized for it up front
+	 /*******************************************/
+	public SpatialMixer(ToneConfig config, SensorLayout layout, int maxVoices, int maxBlockFrames)
+	{
+		if (config.getToneCount() < layout.getToneCount())
+			throw new IllegalArgumentException("Layout uses " + layout.getToneCount() + " tones but only " + config.getToneCount() + " are configured");
+		if (maxVoices <= 0 || maxBlockFrames <= 0)
+			throw new IllegalArgumentException("Need at least one voice and one frame per block");
+
+		mSensors = layout.getCount();
+		mMaxVoices = Math.min(maxVoices, mSensors);
+		mMaxBlockFrames = maxBlockFrames;
+		mSampleRate = config.sampleRate;
+		mFadeStep = Math.max(1, ONE / Math.max(1, config.sampleRate * config.fadeMs / 1000));
+		mVolume = Math.round(config.volume * HEADROOM);
+
+		mTones = new int[mSensors];
+		mIncrement = new int[mSensors];
+		mLeft = new int[mSensors];
+		mRight = new int[mSensors];
+		for (int sensor = 0; sensor < mSensors; sensor++)
+		{
+			mTones[sensor] = layout.getTone(sensor);
+			mIncrement[sensor] = (int) (((long) config.frequenciesHz[mTones[sensor]] << 32) / config.sampleRate);
+
+			// constant power: straight ahead (and straight behind) is the same in both ears, 90 is all right
+			final double pan = Math.sin(Math.toRadians(layout.getAzimuthDegrees(sensor)));
+			final double angle = (pan + 1) * Math.PI / 4;
+			mLeft[sensor] = (int) Math.round(ONE * Math.cos(angle));
+			mRight[sensor] = (int) Math.round(ONE * Math.sin(angle));
+		}
+
+		mRequested = new AtomicLongArray(mSensors);
+		mState = new long[mSensors];
+		mPhase = new int[mSensors];
+		mPosition = new int[mSensors];
+		mOnFrames = new int[mSensors];
+		mPeriodFrames = new int[mSensors];
+		mTarget = new int[mSensors];
+		mEnvelope = new int[mSensors];
+		mVoices = new int[mMaxVoices];
+		mVoiceUrgency = new int[mMaxVoices];
+		mMix = new int[maxBlockFrames * CHANNELS];
+	}
+
+	/*******************************************
+	 /***** PUBLISH ****
+	 /*******************************************
+	 one sensor's newest state, ToneScheduler.SILENT when it is out of range.
+	 RETURNS:  true if that changed anything, i.e. the audio thread may want waking
+	 /*******************************************/
+	public boolean publish(int sensor, long state)
+	{
+		if (mRequested.get(sensor) == state)
+		{
+			return false;
+		}
+		mRequested.lazySet(sensor, state);
+		return true;
+	}
+
+	// the System.nanoTime stamps of the sample behind the newest states, for PipelineLatency
+	public void setStamps(long arrivalNanos, long decidedNanos)
+	{
+		mRequestedArrivalNanos = arrivalNanos;
+		mRequestedDecidedNanos = decidedNanos;
+	}
+
+	public void silence()
+	{
+		for (int sensor = 0; sensor < mSensors; sensor++)
+		{
+			mRequested.lazySet(sensor, ToneScheduler.SILENT);
+		}
+	}
+
+	/*******************************************
+	 /***** RENDER ****
+	 /*******************************************
+	 audio thread.  the next frames frames of stereo into out[0 .. frames * CHANNELS), left first
+	 /*******************************************/
+	public void render(short[] out, int frames)
+	{
+		if (frames > mMaxBlockFrames)
+			throw new IllegalArgumentException("Asked for " + frames + " frames, sized for " + mMaxBlockFrames);
+
+		pickVoices();
+		Arrays.fill(mMix, 0, frames * CHANNELS, 0);
+		for (int voice = 0; voice < mVoiceCount; voice++)
+		{
+			renderVoice(mVoices[voice], frames);
+		}
+		for (int i = 0; i < frames * CHANNELS; i++)
+		{
+			out[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, mMix[i]));
+		}
+	}
+
+	// the most urgent sensors that are asking for sound or still fading out; anyone else is cut off
+	private void pickVoices()
+	{
+		mVoiceCount = 0;
+		for (int sensor = 0; sensor < mSensors; sensor++)
+		{
+			final long requested = mRequested.get(sensor);
+			if (requested == ToneScheduler.SILENT && mState[sensor] != ToneScheduler.SILENT)
+			{
+				mState[sensor] = ToneScheduler.SILENT;
+				mRecorder.record(FlightRecorder.TONE_STOP, mTones[sensor], 0);
+			}
+			if (requested == ToneScheduler.SILENT && mEnvelope[sensor] == 0)
+			{
+				continue;
+			}
+
+			// a fading voice only needs its slot for as long as it is still audible
+			final int urgency = requested != ToneScheduler.SILENT ? getTarget(requested) : mEnvelope[sensor];
+			int slot = mVoiceCount;
+			while (slot > 0 && mVoiceUrgency[slot - 1] < urgency)
+			{
+				slot--;
+			}
+			if (slot == mMaxVoices)
+			{
+				cut(sensor);
+				continue;
+			}
+			if (mVoiceCount == mMaxVoices)
+			{
+				cut(mVoices[mMaxVoices - 1]);
+			}
+			else
+			{
+				mVoiceCount++;
+			}
+			System.arraycopy(mVoices, slot, mVoices, slot + 1, mVoiceCount - 1 - slot);
+			System.arraycopy(mVoiceUrgency, slot, mVoiceUrgency, slot + 1, mVoiceCount - 1 - slot);
+			mVoices[slot] = sensor;
+			mVoiceUrgency[slot] = urgency;
+		}
+	}
+
+	// over the voice budget: straight off.  it starts a fresh pulse once it gets a voice again
+	private void cut(int sensor)
+	{
+		if (mEnvelope[sensor] > 0 || mState[sensor] != ToneScheduler.SILENT)
+		{
+			mBumped++;
+		}
+		mEnvelope[sensor] = 0;
+		mState[sensor] = ToneScheduler.SILENT;
+	}
+
+	private void renderVoice(int sensor, int frames)
+	{
+		final int increment = mIncrement[sensor];
+		final int left = mLeft[sensor];
+		final int right = mRight[sensor];
+		int phase = mPhase[sensor];
+		int envelope = mEnvelope[sensor];
+		int position = mPosition[sensor];
+
+		// out of silence a pulse starts right away; after that they start on the voice's own grid
+		if (mState[sensor] == ToneScheduler.SILENT && envelope == 0)
+		{
+			position = 0;
+			startPulse(sensor, true);
+		}
+
+		int frame = 0;
+		while (frame < frames)
+		{
+			final long state = mState[sensor];
+			if (state != ToneScheduler.SILENT && position >= mPeriodFrames[sensor])
+			{
+				position = 0;
+				startPulse(sensor, false);
+				continue;
+			}
+
+			// how long the gate stays as it is: to the end of the on time, the end of the period, or for a voice
+			// that is fading out, until it gets there
+			final int target;
+			final int end;
+			if (state == ToneScheduler.SILENT)
+			{
+				if (envelope == 0)
+				{
+					break;
+				}
+				target = 0;
+				end = frames;
+			}
+			else if (position < mOnFrames[sensor])
+			{
+				target = mTarget[sensor];
+				end = Math.min(frames, frame + mOnFrames[sensor] - position);
+			}
+			else
+			{
+				target = 0;
+				end = Math.min(frames, frame + mPeriodFrames[sensor] - position);
+			}
+
+			position += end - frame;
+			for (; frame < end; frame++)
+			{
+				envelope = envelope < target ? Math.min(target, envelope + mFadeStep) : Math.max(target, envelope - mFadeStep);
+				final int sample = (SINE[phase >>> (32 - SINE_BITS)] * envelope) >> 15;
+				mMix[frame * CHANNELS] += (sample * left) >> 15;
+				mMix[frame * CHANNELS + 1] += (sample * right) >> 15;
+				phase += increment;
+			}
+		}
+
+		mPhase[sensor] = phase;
+		mEnvelope[sensor] = envelope;
+		mPosition[sensor] = position;
+	}
+
+	// takes the sensor's newest state for the pulse starting now
+	private void startPulse(int sensor, boolean fromSilence)
+	{
+		final long state = mRequested.get(sensor);
+		mState[sensor] = state;
+		if (state == ToneScheduler.SILENT)
+		{
+			mRecorder.record(FlightRecorder.TONE_STOP, mTones[sensor], 0);
+			return;
+		}
+
+		final int onMs = ToneScheduler.stateOnMs(state);
+		final int periodMs = ToneScheduler.statePeriodMs(state);
+		mOnFrames[sensor] = onMs * mSampleRate / 1000;
+		mPeriodFrames[sensor] = Math.max(1, periodMs * mSampleRate / 1000);
+		mTarget[sensor] = getTarget(state);
+		mPulses++;
+		mRecorder.record(FlightRecorder.TONE_START, mTones[sensor], onMs >= periodMs ? 0 : onMs);
+
+		final long decidedNanos = mRequestedDecidedNanos;
+		if (fromSilence && decidedNanos != 0)
+		{
+			mLatency.onAudioStart(mRequestedArrivalNanos, decidedNanos, System.nanoTime());
+		}
+	}
+
+	// loudness from urgency: the share of the period the tone is on, from QUIETEST at the edge to full when solid
+	private int getTarget(long state)
+	{
+		final int onMs = ToneScheduler.stateOnMs(state);
+		final int periodMs = ToneScheduler.statePeriodMs(state);
+		final int duty = (int) ((long) Math.min(onMs, periodMs) * ONE / periodMs);
+		final int gain = QUIETEST + (int) ((long) (ONE - QUIETEST) * duty >> 15);
+		return gain * mVolume >> 15;
+	}
+
+	/*******************************************
+	 /***** IS SILENT ****
+	 /*******************************************
+	 audio thread.  nothing sounding, nothing fading and nothing asked for, so the output can stop
+	 rendering until the next publish
+	 /*******************************************/
+	public boolean isSilent()
+	{
+		for (int sensor = 0; sensor < mSensors; sensor++)
+		{
+			if (mEnvelope[sensor] != 0 || mState[sensor] != ToneScheduler.SILENT || mRequested.get(sensor) != ToneScheduler.SILENT)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int getSensorCount()
+	{
+		return mSensors;
+	}
+
+	public int getMaxVoices()
+	{
+		return mMaxVoices;
+	}
+
+	public int getMaxBlockFrames()
+	{
+		return mMaxBlockFrames;
+	}
+
+	// pulses started, all voices together; only read from the audio thread or once it has stopped
+	public long getPulseCount()
+	{
+		return mPulses;
+	}
+
+	// voices cut off because more sensors than maxVoices wanted to sound
+	public long getBumpedCount()
+	{
+		return mBumped;
+	}
+}
@@ -0,0 +1,187 @@
+package personal.thornupple.proximity;
+
+import java.util.concurrent.TimeUnit;
+
+/*******************************************
+ /***** STREAM MERGER ****
+ /*******************************************
+ several sensor pods on one chair (say one on the front, one on the back), each on its own connection and
+ notifying at its own rate, turned into one frame of the combined layout (SensorLayout.combine) the
+ decision can take as if it were one chair.
+
+ every pod sample is put on the phone's clock the way the decision sees them: the notification's arrival
+ time, back-dated by the frame's sample period.  each pod keeps its last HISTORY samples.  when a pod's
+ frame comes in, every sample in it becomes a merged sample at its own time, with the other pods' newest
+ reading taken at or before that time - so the decision never sees a reading from the future, and a
+ fast pod is not held back waiting on a slow one.  a pod with nothing newer than maxAgeNanos (link gone,
+ never connected) reads as no echo.  either way the other pods' sensors are flagged in heldSensors: the
+ decision already had those readings when their own pod's frame came in, and must not take a held copy
+ for a new measurement.
+
+ a merged frame holds at most SensorFrame.MAX_DISTANCES distances, so a long batch from one pod keeps its
+ newest samples.  not thread safe - the decision thread calls it for every pod
+ /*******************************************/
+public final class StreamMerger
+{
+	// a couple of seconds of the fastest pod; a slow pod only ever needs its newest few
+	private static final int HISTORY = 64;
+
+	// twice the slowest notify interval (NotifyRatePolicy's clear rate), so a quiet pod is not dropped
+	public static final long DEFAULT_MAX_AGE_NANOS = TimeUnit.MILLISECONDS.toNanos(1000);
+
+	private final SensorLayout mLayout;
+	private final int mPods;
+	private final int[] mFirstSensor;
+	private final int[] mSensors;
+	private final long mMaxAgeNanos;
+
+	// per pod ring of samples: [pod * HISTORY + slot] and [(pod * HISTORY + slot) * MAX_SENSORS + sensor]
+	private final long[] mTimes;
+	private final int[] mDistances;
+	private final long[] mWritten;
+
+	private int mSequence;
+	private long mStaleReadings;
+	private long mMerged;
+
+	public StreamMerger(SensorLayout[] pods, long maxAgeNanos)
+	{
+		mLayout = SensorLayout.combine(pods);
+		mPods = pods.length;
+		mFirstSensor = new int[mPods];
+		mSensors = new int[mPods];
+		int first = 0;
+		for (int pod = 0; pod < mPods; pod++)
+		{
+			mFirstSensor[pod] = first;
+			mSensors[pod] = pods[pod].getCount();
+			first += mSensors[pod];
+		}
+		mMaxAgeNanos = maxAgeNanos;
+		mTimes = new long[mPods * HISTORY];
+		mDistances = new int[mPods * HISTORY * SensorFrame.MAX_SENSORS];
+		mWritten = new long[mPods];
+	}
+
+	public StreamMerger(SensorLayout[] pods)
+	{
+		this(pods, DEFAULT_MAX_AGE_NANOS);
+	}
+
+	/*******************************************
+	 /***** MERGE ****
+	 /*******************************************
+	 frame is pod's newest notification, arrivalNanos when it came off the radio.  out gets the merged frame,
+	 with the same sample period, so ProximityDecision.decide(out, arrivalNanos) back-dates it the same way
+	 RETURNS:  false (and out untouched) if the frame has fewer sensors than the pod is supposed to have
+	 /*******************************************/
+	public boolean merge(int pod, SensorFrame frame, long arrivalNanos, SensorFrame out)
+	{
+		final int podSensors = mSensors[pod];
+		if (frame.sensorCount < podSensors || frame.sampleCount == 0)
+		{
+			return false;
+		}
+
+		final long periodNanos = frame.samplePeriodMs * 1_000_000L;
+		for (int sample = 0; sample < frame.sampleCount; sample++)
+		{
+			final int slot = pod * HISTORY + (int) (mWritten[pod] & (HISTORY - 1));
+			mTimes[slot] = arrivalNanos - (frame.sampleCount - 1 - sample) * periodNanos;
+			System.arraycopy(frame.distancesMm, frame.getSampleOffset(sample), mDistances, slot * SensorFrame.MAX_SENSORS, podSensors);
+			mWritten[pod]++;
+		}
+
+		final int sensors = mLayout.getCount();
+		final int samples = Math.min(frame.sampleCount, SensorFrame.MAX_DISTANCES / sensors);
+		final int skipped = frame.sampleCount - samples;
+		out.version = FrameDecoder.VERSION_BATCHED;
+		out.sequence = mSequence++ & 0xFFFF;
+		out.deviceTimeMs = 0;
+		out.samplePeriodMs = frame.samplePeriodMs;
+		out.sensorCount = sensors;
+		out.sampleCount = samples;
+		out.heldSensors = ((1 << sensors) - 1) & ~(((1 << podSensors) - 1) << mFirstSensor[pod]);
+		for (int sample = 0; sample < samples; sample++)
+		{
+			final long timeNanos = arrivalNanos - (samples - 1 - sample) * periodNanos;
+			final int offset = out.getSampleOffset(sample);
+			for (int other = 0; other < mPods; other++)
+			{
+				if (other == pod)
+				{
+					System.arraycopy(frame.distancesMm, frame.getSampleOffset(skipped + sample), out.distancesMm, offset + mFirstSensor[pod], podSensors);
+				}
+				else
+				{
+					fill(other, timeNanos, out.distancesMm, offset + mFirstSensor[other]);
+				}
+			}
+		}
+		mMerged++;
+		return true;
+	}
+
+	// pod's reading as of timeNanos into out[offset...]; no echo if it has nothing recent enough
+	private void fill(int pod, long timeNanos, int[] out, int offset)
+	{
+		final long written = mWritten[pod];
+		final long oldest = Math.max(0, written - HISTORY);
+		int found = -1;
+		for (long index = written - 1; index >= oldest; index--)
+		{
+			// the newest at or before the time.  if they are all after it (the pod only just started) there is
+			// nothing to go on yet
+			final int slot = pod * HISTORY + (int) (index & (HISTORY - 1));
+			if (mTimes[slot] <= timeNanos)
+			{
+				found = slot;
+				break;
+			}
+		}
+
+		if (found < 0 || timeNanos - mTimes[found] > mMaxAgeNanos)
+		{
+			for (int sensor = 0; sensor < mSensors[pod]; sensor++)
+			{
+				out[offset + sensor] = SensorFrame.NO_READING_MM;
+			}
+			mStaleReadings++;
+			return;
+		}
+		System.arraycopy(mDistances, found * SensorFrame.MAX_SENSORS, out, offset, mSensors[pod]);
+	}
+
+	// the combined layout the merged frames are in
+	public SensorLayout getLayout()
+	{
+		return mLayout;
+	}
+
+	public int getPodCount()
+	{
+		return mPods;
+	}
+
+	// first sensor of pod in the merged frame
+	public int getFirstSensor(int pod)
+	{
+		return mFirstSensor[pod];
+	}
+
+	public int getSensorCount(int pod)
+	{
+		return mSensors[pod];
+	}
+
+	public long getMergedCount()
+	{
+		return mMerged;
+	}
+
+	// pod readings filled in as no echo because that pod had nothing recent
+	public long getStaleCount()
+	{
+		return mStaleReadings;
+	}
+}
@@ -0,0 +1,147 @@
+package personal.thornupple.proximity;
+
+/*******************************************
+ /***** TONE BANK ****
+ /*******************************************
+ synthesizes every sensor tone once, up front, into 16 bit mono pcm.  each buffer is a short fade in, a
+ few ms of sine holding a whole number of cycles (the loop), and a short fade out.  a pulse of any length
+ is the loop played over as many times as fit (getLoopCount) and then the fade out, so every pulse ends on
+ the baked fade instead of being cut off; a solid tone loops until it is stopped.  the loop starts and
+ ends at phase zero, so there is no seam either way.
+
+ plain java on purpose - no android in here so it can be checked on the jvm
+ /*******************************************/
+public class ToneBank
+{
+	// the loop is somewhere between these long, which is also how finely a pulse length is matched
+	private static final int MIN_LOOP_MS = 5;
+	private static final int MAX_LOOP_MS = 10;
+
+	private final ToneConfig mConfig;
+	private final short[][] mPcm;
+	private final int[] mLoopStartFrames;
+	private final int[] mLoopEndFrames;
+	private final double[] mFrequenciesHz;
+
+	public ToneBank(ToneConfig config)
+	{
+		mConfig = config;
+
+		final int toneCount = config.getToneCount();
+		mPcm = new short[toneCount][];
+		mLoopStartFrames = new int[toneCount];
+		mLoopEndFrames = new int[toneCount];
+		mFrequenciesHz = new double[toneCount];
+
+		for (int tone = 0; tone < toneCount; tone++)
+		{
+			synthesize(tone);
+		}
+	}
+
+	private void synthesize(int tone)
+	{
+		final int sampleRate = mConfig.sampleRate;
+		final int fadeFrames = (int) ((long) sampleRate * mConfig.fadeMs / 1000);
+		final int wanted = mConfig.frequenciesHz[tone];
+
+		// the number of cycles in the loop that puts the frequency closest to the one asked for
+		long bestCycles = 1;
+		int loopFrames = Math.max(1, (int) Math.round((double) sampleRate / wanted));
+		double bestError = Double.MAX_VALUE;
+		final long minCycles = Math.max(1, (long) wanted * MIN_LOOP_MS / 1000);
+		final long maxCycles = Math.max(minCycles, (long) wanted * MAX_LOOP_MS / 1000);
+		for (long cycles = minCycles; cycles <= maxCycles; cycles++)
+		{
+			final int frames = (int) Math.max(1, Math.round((double) cycles * sampleRate / wanted));
+			final double error = Math.abs((double) cycles * sampleRate / frames - wanted);
+			if (error < bestError)
+			{
+				bestError = error;
+				bestCycles = cycles;
+				loopFrames = frames;
+			}
+		}
+		final double frequency = (double) bestCycles * sampleRate / loopFrames;
+
+		final double amplitude = Short.MAX_VALUE * mConfig.volume;
+		final double step = 2 * Math.PI * frequency / sampleRate;
+
+		// the loop starts at phase zero right where the fade in ends, and the fade out carries straight on
+		final int frames = 2 * fadeFrames + loopFrames;
+		final short[] pcm = new short[frames];
+		for (int i = 0; i < frames; i++)
+		{
+			double envelope = 1.0;
+			if (i < fadeFrames)
+				envelope = ramp(i, fadeFrames);
+			else if (i >= frames - fadeFrames)
+				envelope = ramp(frames - 1 - i, fadeFrames);
+
+			pcm[i] = (short) Math.round(amplitude * envelope * Math.sin(step * (i - fadeFrames)));
+		}
+
+		mPcm[tone] = pcm;
+		mLoopStartFrames[tone] = fadeFrames;
+		mLoopEndFrames[tone] = fadeFrames + loopFrames;
+		mFrequenciesHz[tone] = frequency;
+	}
+
+	// raised cosine, 0 at the edge and 1 once the fade is done
+	private static double ramp(int index, int length)
+	{
+		return 0.5 - 0.5 * Math.cos(Math.PI * index / length);
+	}
+
+	public ToneConfig getConfig()
+	{
+		return mConfig;
+	}
+
+	public int getToneCount()
+	{
+		return mPcm.length;
+	}
+
+	// the cached buffer itself, do not write into it
+	public short[] getPcm(int tone)
+	{
+		return mPcm[tone];
+	}
+
+	public int getLoopStartFrame(int tone)
+	{
+		return mLoopStartFrames[tone];
+	}
+
+	public int getLoopEndFrame(int tone)
+	{
+		return mLoopEndFrames[tone];
+	}
+
+	// what the tone really plays at, a hair off the configured one so the loop is whole cycles
+	public double getFrequencyHz(int tone)
+	{
+		return mFrequenciesHz[tone];
+	}
+
+	/*******************************************
+	 /***** GET LOOP COUNT ****
+	 /*******************************************
+	 how many extra times the loop has to play for a pulse of durationMs, fades included (AudioTrack
+	 setLoopPoints counting: the buffer plays through once plus this many repeats of the loop).  the
+	 shortest pulse is the buffer as it is
+	 RETURNS:  -1 (forever) for durationMs <= 0, a solid tone
+	 /*******************************************/
+	public int getLoopCount(int tone, int durationMs)
+	{
+		if (durationMs <= 0)
+		{
+			return -1;
+		}
+		final long frames = (long) mConfig.sampleRate * durationMs / 1000;
+		final int loopFrames = mLoopEndFrames[tone] - mLoopStartFrames[tone];
+		final long loops = Math.round((double) (frames - 2 * mLoopStartFrames[tone]) / loopFrames) - 1;
+		return (int) Math.max(0, Math.min(Integer.MAX_VALUE, loops));
+	}
+}
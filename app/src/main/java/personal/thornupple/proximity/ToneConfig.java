@@ -0,0 +1,64 @@
+package personal.thornupple.proximity;
+
+import java.util.Arrays;
+
+// settings for the synthesized alert tones.  one frequency per tone; the sensor layout says which sensor
+// plays which tone (the legacy layout is 0 = right, 1 = center, 2 = left)
+public class ToneConfig
+{
+	public final int sampleRate;
+	public final int[] frequenciesHz;
+	public final float volume;
+	public final int fadeMs;
+
+	public ToneConfig(int sampleRate, int[] frequenciesHz, float volume, int fadeMs)
+	{
+		if (sampleRate <= 0 || fadeMs < 0 || frequenciesHz == null || frequenciesHz.length == 0)
+			throw new IllegalArgumentException("Bad tone config");
+
+		for (int frequency : frequenciesHz)
+		{
+			if (frequency <= 0 || frequency * 2 >= sampleRate)
+				throw new IllegalArgumentException("Frequency " + frequency + " Hz is not playable at " + sampleRate + " Hz");
+		}
+
+		this.sampleRate = sampleRate;
+		this.frequenciesHz = frequenciesHz.clone();
+		this.volume = Math.max(0f, Math.min(1f, volume));
+		this.fadeMs = fadeMs;
+	}
+
+	// single frequencies borrowed from the dtmf keypad, so it still sounds like the old tones but each
+	// sensor is one clean sine instead of a dual-tone pair
+	public static ToneConfig defaults()
+	{
+		return new ToneConfig(22050, new int[]{1209, 941, 697}, 1f, 5);
+	}
+
+	// the three classic tones first, then anything past that a whole step apart going up
+	public static ToneConfig defaults(int toneCount)
+	{
+		final int[] frequencies = new int[Math.max(1, toneCount)];
+		final int[] classic = defaults().frequenciesHz;
+		for (int tone = 0; tone < frequencies.length; tone++)
+		{
+			frequencies[tone] = tone < classic.length
+					? classic[tone]
+					: (int) Math.round(1209 * Math.pow(2, (tone - classic.length + 1) / 6.0));
+		}
+		return new ToneConfig(22050, frequencies, 1f, 5);
+	}
+
+	// the same with one more tone on the end, for something that is not a sensor (the sensor lost alert)
+	public ToneConfig plusTone(int frequencyHz)
+	{
+		final int[] frequencies = Arrays.copyOf(frequenciesHz, frequenciesHz.length + 1);
+		frequencies[frequenciesHz.length] = frequencyHz;
+		return new ToneConfig(sampleRate, frequencies, volume, fadeMs);
+	}
+
+	public int getToneCount()
+	{
+		return frequenciesHz.length;
+	}
+}
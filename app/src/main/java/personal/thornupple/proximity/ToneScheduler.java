@@ -0,0 +1,442 @@
+package personal.thornupple.proximity;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*******************************************
+ /***** TONE SCHEDULER ****
+ /*******************************************
+ one long lived audio thread that owns the on/off pulse cadence.  the decision code just publishes the newest
+ hazard state (tone, on time, period) and carries on; it never creates threads, never interrupts anything and
+ never touches the tone sink itself.
+
+ the hazard state is packed into a single long so the hand off is one atomic write.  a new state is picked up
+ at the next pulse boundary, so an update in the middle of a pulse does not chop it off.  going silent is the
+ exception - that stops the tone straight away.  and a more urgent state (a bigger share of the period on)
+ does not sit out the quiet gap after a pulse either: its first pulse starts as soon as it is published.
+
+ the pulses keep time with the chair (phase lock, on by default).  the publisher reports every packet with
+ onPacket and a PacketCadence follows their real rhythm; each pulse's period is fitted to a whole number of
+ packet periods (PacketCadence.fitPeriod, on time scaled with it) and its end is nudged towards a lead
+ after a packet's grid point - LEAD, plus JITTER_LEADS times the packets' jitter so a late one still
+ makes it.  so every pulse starts with the newest reading already in, the same distance behind it each
+ time, instead of wherever the fixed cadence happened to fall.  and a train that goes quiet for less than
+ a period (one reading that fell out of range) picks up on its old beat when it comes back, rather than
+ restarting out of step
+ /*******************************************/
+public class ToneScheduler implements Runnable
+{
+	public static final long SILENT = 0;
+
+	// returned from step() when there is nothing to do until a new state is published
+	public static final long IDLE = Long.MAX_VALUE;
+
+	private final ToneSink mSink;
+	private final ThreadFactory mThreadFactory;
+	// starts and stops go into the flight recorder on the scheduler's clock
+	private final FlightRecorder mRecorder = FlightRecorder.get();
+	private final PipelineLatency mLatency = PipelineLatency.get();
+	private final AtomicLong mRequested = new AtomicLong(SILENT);
+
+	// how long after a packet a pulse edge goes: room for the decision to get its state in first...
+	private static final long LEAD_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+	// ...and for a packet that is late by this many times the jitter (never more than half a packet period)
+	private static final int JITTER_LEADS = 2;
+	// a pulse is stretched or shortened by at most this share of its period to get back in step, so the
+	// cadence never lurches
+	private static final int MAX_NUDGE_DIVISOR = 16;
+	// only the publishing thread (onPacket)
+	private final PacketCadence mCadence = new PacketCadence();
+	// what it makes of the packets, for the scheduler thread; a torn pair only puts one edge a little off
+	private volatile long mPacketPeriodNanos;
+	private volatile long mPacketAnchorNanos;
+	private volatile long mPacketLeadNanos;
+	private volatile boolean mPhaseLock = true;
+	// when the newest state's sample came off the radio and when it was decided; 0 if nobody said
+	private volatile long mRequestedArrivalNanos;
+	private volatile long mRequestedDecidedNanos;
+
+	private volatile boolean mRunning;
+	private volatile Thread mThread;
+
+	// everything below is only touched from the scheduler thread (or whoever calls step)
+	private boolean mPulseActive;
+	private boolean mToneOn;
+	private boolean mContinuous;
+	private int mTone = -1;
+	// the state the current pulse was started for, to tell whether a new one is more urgent
+	private long mPulseState = SILENT;
+	private long mPulseStartNanos;
+	private long mOnNanos;
+	private long mPeriodNanos;
+	// when the pulse train last went quiet, -1 once it is picked back up (or a new one started)
+	private long mSilentSinceNanos = -1;
+	private long mToneStarts;
+	private long mRestarts;
+	private long mResumes;
+	private long mCutShort;
+
+	public ToneScheduler(ToneSink sink)
+	{
+		this(sink, runnable -> new Thread(runnable, "tone-scheduler"));
+	}
+
+	// the app runs the scheduler at audio priority (see PriorityThreadFactory)
+	public ToneScheduler(ToneSink sink, ThreadFactory threadFactory)
+	{
+		mSink = sink;
+		mThreadFactory = threadFactory;
+	}
+
+	/*******************************************
+	 /***** PACK STATE ****
+	 /*******************************************
+	 tone in the top bits (offset by one so tone 0 is not mistaken for silence), then on and period in ms
+	 /*******************************************/
+	public static long packState(int tone, int onMs, int periodMs)
+	{
+		if (onMs <= 0 || periodMs <= 0)
+		{
+			return SILENT;
+		}
+		return ((long) (tone + 1) << 40) | ((long) (onMs & 0xFFFFF) << 20) | (periodMs & 0xFFFFF);
+	}
+
+	public static int stateTone(long state)
+	{
+		return (int) (state >>> 40) - 1;
+	}
+
+	public static int stateOnMs(long state)
+	{
+		return (int) ((state >>> 20) & 0xFFFFF);
+	}
+
+	public static int statePeriodMs(long state)
+	{
+		return (int) (state & 0xFFFFF);
+	}
+
+	/*******************************************
+	 /***** PUBLISH ****
+	 /*******************************************
+	 any thread.  newest state wins, older ones are never played
+	 /*******************************************/
+	public void publish(int tone, int onMs, int periodMs)
+	{
+		publishState(packState(tone, onMs, periodMs));
+	}
+
+	public void silence()
+	{
+		publishState(SILENT);
+	}
+
+	public void publishState(long state)
+	{
+		publishState(state, 0, 0);
+	}
+
+	/*******************************************
+	 /***** PUBLISH STATE ****
+	 /*******************************************
+	 any thread.  with the System.nanoTime stamps of the sample behind it, so a tone that starts from silence
+	 lands in PipelineLatency with how long it took to get from the radio to the speaker
+	 /*******************************************/
+	public void publishState(long state, long arrivalNanos, long decidedNanos)
+	{
+		// stamps first, so whoever sees the state sees them (or a newer pair)
+		mRequestedArrivalNanos = arrivalNanos;
+		mRequestedDecidedNanos = decidedNanos;
+		if (mRequested.getAndSet(state) != state)
+		{
+			final Thread thread = mThread;
+			if (thread != null)
+			{
+				LockSupport.unpark(thread);
+			}
+		}
+	}
+
+	/*******************************************
+	 /***** ON PACKET ****
+	 /*******************************************
+	 the publishing thread (one of them), for every packet from the chair whether it changed the state or
+	 not.  the pulses follow the packets' rhythm from the next pulse on
+	 /*******************************************/
+	public void onPacket(long arrivalNanos)
+	{
+		mCadence.onArrival(arrivalNanos);
+		mPacketAnchorNanos = mCadence.getAnchorNanos();
+		mPacketPeriodNanos = mCadence.getPeriodNanos();
+		mPacketLeadNanos = Math.min(mPacketPeriodNanos / 2, LEAD_NANOS + JITTER_LEADS * mCadence.getJitterNanos());
+	}
+
+	// the publishing thread: the packets start over (a new connection), so the rhythm is learnt again and
+	// the pulses run on the profile's cadence until it is
+	public void resetCadence()
+	{
+		mCadence.reset();
+		mPacketAnchorNanos = 0;
+		mPacketLeadNanos = 0;
+		mPacketPeriodNanos = 0;
+	}
+
+	// any thread; false runs the profile's cadence as it is, on its own clock
+	public void setPhaseLock(boolean phaseLock)
+	{
+		mPhaseLock = phaseLock;
+	}
+
+	public boolean isPhaseLock()
+	{
+		return mPhaseLock;
+	}
+
+	// the packet period the pulses are fitted to, 0 before there is one
+	public long getPacketPeriodNanos()
+	{
+		return mPacketPeriodNanos;
+	}
+
+	/*******************************************
+	 /***** START / STOP ****
+	 /*******************************************/
+	public synchronized void start()
+	{
+		if (mRunning)
+		{
+			return;
+		}
+		mRunning = true;
+		Thread thread = mThreadFactory.newThread(this);
+		thread.setDaemon(true);
+		mThread = thread;
+		thread.start();
+	}
+
+	public synchronized void stop()
+	{
+		mRunning = false;
+		mRequested.set(SILENT);
+		final Thread thread = mThread;
+		mThread = null;
+		if (thread != null)
+		{
+			LockSupport.unpark(thread);
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		final Thread self = Thread.currentThread();
+		while (mRunning && mThread == self)
+		{
+			final long now = System.nanoTime();
+			final long next = step(now);
+			if (next == IDLE)
+			{
+				LockSupport.park(this);
+			}
+			else if (next > now)
+			{
+				LockSupport.parkNanos(this, next - now);
+			}
+		}
+		if (mToneOn)
+		{
+			mSink.stopTone();
+			mToneOn = false;
+		}
+		mPulseActive = false;
+		mSilentSinceNanos = -1;
+	}
+
+	/*******************************************
+	 /***** STEP ****
+	 /*******************************************
+	 does whatever is due at nowNanos.  safe to call early or more than once for the same time.
+	 RETURNS:  the next time something is due, or IDLE
+	 /*******************************************/
+	public long step(long nowNanos)
+	{
+		final long state = mRequested.get();
+		boolean fromSilence = false;
+
+		if (state == SILENT)
+		{
+			if (mToneOn)
+			{
+				mSink.stopTone();
+				mToneOn = false;
+				mRecorder.record(FlightRecorder.TONE_STOP, nowNanos, mTone, 0);
+			}
+			if (mPulseActive)
+			{
+				// the grid is kept, in case it is back within a period
+				mPulseActive = false;
+				mSilentSinceNanos = nowNanos;
+			}
+			mTone = -1;
+			return IDLE;
+		}
+
+		final int tone = stateTone(state);
+		final int onMs = stateOnMs(state);
+		final int periodMs = statePeriodMs(state);
+		final boolean continuous = onMs >= periodMs;
+
+		if (mPulseActive)
+		{
+			final long onEnd = mPulseStartNanos + mOnNanos;
+			final long periodEnd = mPulseStartNanos + mPeriodNanos;
+
+			if (mToneOn && !mContinuous && nowNanos >= onEnd)
+			{
+				mSink.stopTone();
+				mToneOn = false;
+				mRecorder.record(FlightRecorder.TONE_STOP, nowNanos, mTone, 0);
+			}
+			if (nowNanos < periodEnd)
+			{
+				if (mToneOn || !isMoreUrgent(onMs, periodMs))
+				{
+					return mToneOn && !mContinuous ? onEnd : periodEnd;
+				}
+				// closer than the gap was timed for: no waiting out the rest of it.  the phase lock's nudge
+				// brings the beat back in step with the packets over the next few pulses
+				mPulseStartNanos = nowNanos;
+				mCutShort++;
+			}
+			else
+			{
+				// stay on the old grid so the cadence does not drift, unless we overslept a whole period
+				mPulseStartNanos = nowNanos - periodEnd >= mPeriodNanos ? nowNanos : periodEnd;
+			}
+		}
+		else if (mPhaseLock && mSilentSinceNanos >= 0 && nowNanos - mSilentSinceNanos < mPeriodNanos)
+		{
+			// back after a moment's quiet: on the old beat.  the pulse the beat is in plays out what is left
+			// of its on time; past that, the next one is waited for like any other
+			mPulseStartNanos += (nowNanos - mPulseStartNanos) / mPeriodNanos * mPeriodNanos;
+			mPulseActive = true;
+			mSilentSinceNanos = -1;
+			mResumes++;
+			mTone = tone;
+			mPulseState = state;
+			mContinuous = continuous;
+			// the new state's share of the old beat's period
+			mOnNanos = continuous ? mPeriodNanos : TimeUnit.MILLISECONDS.toNanos(onMs) * mPeriodNanos / TimeUnit.MILLISECONDS.toNanos(periodMs);
+			final long onEnd = mPulseStartNanos + mOnNanos;
+			if (!continuous && nowNanos >= onEnd)
+			{
+				return mPulseStartNanos + mPeriodNanos;
+			}
+			// what is left of it, and never 0 - that would be solid
+			final int leftMs = continuous ? 0 : (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(onEnd - nowNanos));
+			mSink.startTone(tone, leftMs);
+			mToneOn = true;
+			mToneStarts++;
+			mRecorder.record(FlightRecorder.TONE_START, nowNanos, tone, leftMs);
+			final long decidedNanos = mRequestedDecidedNanos;
+			if (decidedNanos != 0)
+			{
+				mLatency.onAudioStart(mRequestedArrivalNanos, decidedNanos, System.nanoTime());
+			}
+			return continuous ? mPulseStartNanos + mPeriodNanos : onEnd;
+		}
+		else
+		{
+			mPulseStartNanos = nowNanos;
+			mPulseActive = true;
+			mSilentSinceNanos = -1;
+			fromSilence = true;
+			mRestarts++;
+		}
+
+		// the pulse's length, fitted to the chair's rhythm and nudged back into step with it
+		long periodNanos = TimeUnit.MILLISECONDS.toNanos(periodMs);
+		long onNanos = TimeUnit.MILLISECONDS.toNanos(onMs);
+		final long packetNanos = mPhaseLock ? mPacketPeriodNanos : 0;
+		final long fittedNanos = PacketCadence.fitPeriod(periodNanos, packetNanos);
+		if (fittedNanos > 0)
+		{
+			onNanos = continuous ? fittedNanos : onNanos * fittedNanos / periodNanos;
+			periodNanos = fittedNanos;
+
+			// how far this pulse's end is from the lead after a packet, either way
+			final long grid = Math.min(periodNanos, packetNanos);
+			long error = Math.floorMod(mPulseStartNanos + periodNanos - mPacketAnchorNanos - mPacketLeadNanos, grid);
+			if (error >= grid / 2)
+				error -= grid;
+			final long limit = periodNanos / MAX_NUDGE_DIVISOR;
+			periodNanos -= Math.max(-limit, Math.min(limit, error / 2));
+			if (!continuous)
+				onNanos = Math.min(onNanos, periodNanos);
+		}
+		final int pulseOnMs = (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(onNanos));
+
+		// a solid tone that is still solid and on the same sensor just keeps going - no gap at the boundary
+		if (mToneOn && !(continuous && mContinuous && tone == mTone))
+		{
+			mSink.stopTone();
+			mToneOn = false;
+			mRecorder.record(FlightRecorder.TONE_STOP, nowNanos, mTone, 0);
+		}
+		if (!mToneOn)
+		{
+			mSink.startTone(tone, continuous ? 0 : pulseOnMs);
+			mToneOn = true;
+			mToneStarts++;
+			mRecorder.record(FlightRecorder.TONE_START, nowNanos, tone, continuous ? 0 : pulseOnMs);
+
+			// later pulses wait for the cadence on purpose, so only a tone out of silence says anything about latency
+			final long decidedNanos = mRequestedDecidedNanos;
+			if (fromSilence && decidedNanos != 0)
+			{
+				mLatency.onAudioStart(mRequestedArrivalNanos, decidedNanos, System.nanoTime());
+			}
+		}
+
+		mTone = tone;
+		mPulseState = state;
+		mContinuous = continuous;
+		mOnNanos = onNanos;
+		mPeriodNanos = periodNanos;
+
+		return continuous ? mPulseStartNanos + mPeriodNanos : mPulseStartNanos + mOnNanos;
+	}
+
+	// on the requested ms, not the fitted pulse, so the same state is never more urgent than itself
+	private boolean isMoreUrgent(int onMs, int periodMs)
+	{
+		return (long) onMs * statePeriodMs(mPulseState) > (long) stateOnMs(mPulseState) * periodMs;
+	}
+
+	// how many times the sink was asked to start a tone; only read from the scheduler thread or after stop()
+	public long getToneStartCount()
+	{
+		return mToneStarts;
+	}
+
+	// how many pulse trains started out of silence on a beat of their own, the same
+	public long getRestartCount()
+	{
+		return mRestarts;
+	}
+
+	// and how many picked up on the old one instead
+	public long getResumeCount()
+	{
+		return mResumes;
+	}
+
+	// how many quiet gaps a more urgent state cut short
+	public long getCutShortCount()
+	{
+		return mCutShort;
+	}
+}
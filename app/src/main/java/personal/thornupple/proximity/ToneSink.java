@@ -0,0 +1,11 @@
+package personal.thornupple.proximity;
+
+// whatever actually makes the noise.  the tone scheduler only ever talks to this so the cadence can be
+// driven against a fake sink without a speaker attached
+public interface ToneSink
+{
+	// durationMs <= 0 means keep playing until stopTone
+	void startTone(int tone, int durationMs);
+
+	void stopTone();
+}
@@ -0,0 +1,146 @@
+package personal.thornupple.proximity;
+
+import java.util.concurrent.TimeUnit;
+
+/*******************************************
+ /***** VELOCITY ESTIMATOR ****
+ /*******************************************
+ per sensor closing speed from a least squares line through the last few timestamped distances.  the window
+ is short (a handful of samples, at most maxWindowMs old) so it follows the chair, not the room.
+
+ distances are in mm, speeds in mm/s.  positive speed means the obstacle is getting closer.  the window
+ per sensor is a small ring in flat primitive arrays; the fit is redone over the ring on each sample,
+ which at this size is cheaper than keeping running sums honest
+ /*******************************************/
+public class VelocityEstimator
+{
+	// less than this and we call it standing still (mm/s) - sensor jitter alone gets close to this
+	public static final float DEFAULT_MIN_CLOSING_SPEED = 50f;
+
+	private final int mSensorCount;
+	private final int mWindow;
+	private final long mMaxWindowNanos;
+	private final float mMinClosingSpeed;
+
+	private final long[] mTimes;
+	private final int[] mDistances;
+	private final int[] mCount;
+	private final int[] mNext;
+	private final float[] mClosingSpeed;
+
+	public VelocityEstimator(int sensorCount, int window, int maxWindowMs, float minClosingSpeed)
+	{
+		if (window < 2)
+			throw new IllegalArgumentException("Need at least two samples to fit a velocity: " + window);
+		mSensorCount = sensorCount;
+		mWindow = window;
+		mMaxWindowNanos = TimeUnit.MILLISECONDS.toNanos(maxWindowMs);
+		mMinClosingSpeed = minClosingSpeed;
+
+		mTimes = new long[sensorCount * window];
+		mDistances = new int[sensorCount * window];
+		mCount = new int[sensorCount];
+		mNext = new int[sensorCount];
+		mClosingSpeed = new float[sensorCount];
+	}
+
+	// 6 samples over at most 1.5 s covers 3 readings at 2 Hz and plenty at 50 Hz
+	public static VelocityEstimator defaults(int sensorCount)
+	{
+		return new VelocityEstimator(sensorCount, 6, 1500, DEFAULT_MIN_CLOSING_SPEED);
+	}
+
+	public int getSensorCount()
+	{
+		return mSensorCount;
+	}
+
+	/*******************************************
+	 /***** UPDATE ****
+	 /*******************************************
+	 RETURNS:  the closing speed in mm/s after adding this sample (0 if not approaching)
+	 /*******************************************/
+	public float update(int sensor, long timestampNanos, int distanceMm)
+	{
+		final int base = sensor * mWindow;
+		mTimes[base + mNext[sensor]] = timestampNanos;
+		mDistances[base + mNext[sensor]] = distanceMm;
+		mNext[sensor] = (mNext[sensor] + 1) % mWindow;
+		if (mCount[sensor] < mWindow)
+			mCount[sensor]++;
+
+		// times relative to the newest sample, in seconds, so the sums stay small
+		double sumT = 0;
+		double sumD = 0;
+		int used = 0;
+		for (int i = 0; i < mCount[sensor]; i++)
+		{
+			final long age = timestampNanos - mTimes[base + i];
+			if (age < 0 || age > mMaxWindowNanos)
+				continue;
+			sumT -= age / 1e9;
+			sumD += mDistances[base + i];
+			used++;
+		}
+
+		float closing = 0f;
+		if (used >= 2)
+		{
+			final double meanT = sumT / used;
+			final double meanD = sumD / used;
+			double covariance = 0;
+			double variance = 0;
+			for (int i = 0; i < mCount[sensor]; i++)
+			{
+				final long age = timestampNanos - mTimes[base + i];
+				if (age < 0 || age > mMaxWindowNanos)
+					continue;
+				final double dt = -age / 1e9 - meanT;
+				covariance += dt * (mDistances[base + i] - meanD);
+				variance += dt * dt;
+			}
+			if (variance > 0)
+			{
+				// distance shrinking = negative slope = positive closing speed
+				closing = (float) (-covariance / variance);
+			}
+		}
+
+		mClosingSpeed[sensor] = closing >= mMinClosingSpeed ? closing : 0f;
+		return mClosingSpeed[sensor];
+	}
+
+	public float getClosingSpeed(int sensor)
+	{
+		return mClosingSpeed[sensor];
+	}
+
+	/*******************************************
+	 /***** TIME TO CONTACT ****
+	 /*******************************************
+	 RETURNS:  seconds until contact at the current closing speed, or infinity if not approaching
+	 /*******************************************/
+	public float getTimeToContact(int sensor, int distanceMm)
+	{
+		final float closing = mClosingSpeed[sensor];
+		if (closing <= 0f)
+			return Float.POSITIVE_INFINITY;
+		return Math.max(0, distanceMm) / closing;
+	}
+
+	public void reset()
+	{
+		for (int sensor = 0; sensor < mSensorCount; sensor++)
+		{
+			reset(sensor);
+		}
+	}
+
+	// one sensor's window is emptied, e.g. after a gap: a line through both sides of it means nothing
+	public void reset(int sensor)
+	{
+		mCount[sensor] = 0;
+		mNext[sensor] = 0;
+		mClosingSpeed[sensor] = 0f;
+	}
+}
@@ -0,0 +1,22 @@
+package personal.thornupple.proximity;
+
+// a clock that only moves when it is told to.  replay and anything else that runs on recorded time
+// reads "now" from here instead of System.nanoTime
+public class VirtualClock
+{
+	private long mNowNanos;
+
+	public long nanoTime()
+	{
+		return mNowNanos;
+	}
+
+	public void advanceTo(long nanos)
+	{
+		if (nanos < mNowNanos)
+		{
+			throw new IllegalArgumentException("Virtual time cannot go backwards: " + nanos + " < " + mNowNanos);
+		}
+		mNowNanos = nanos;
+	}
+}
@@ -0,0 +1,138 @@
+package personal.thornupple.proximity;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/*******************************************
+ /***** ALERT PROFILE TEST ****
+ /*******************************************
+ every named profile compiled for a few layouts says what the profile says, mm for mm, and a profile
+ swapped into a running ProximityDecision counts from the very next reading
+ /*******************************************/
+public class AlertProfileTest
+{
+	private static final SensorLayout[] LAYOUTS = {
+			SensorLayout.legacy(), SensorLayout.combine(SensorLayout.legacy(), SensorLayout.legacyRear()), SensorLayout.ring(12)};
+
+	@Test
+	public void compiledTableMatchesTheProfile()
+	{
+		for (SensorLayout layout : LAYOUTS)
+		{
+			for (String name : AlertProfile.NAMES)
+			{
+				final AlertProfile profile = AlertProfile.named(name, layout);
+				final AlertTable table = profile.compile(layout);
+				assertEquals(name, profile.getName());
+				assertEquals(layout.getCount(), table.getSensorCount());
+				for (int sensor = 0; sensor < layout.getCount(); sensor++)
+					checkSensor(name + " sensor " + sensor, profile, table, layout.getTone(sensor), sensor);
+			}
+		}
+	}
+
+	// in raw mm: solid up to solidMm, pulsing with a shrinking on time out to alertMm, nothing past it
+	private static void checkSensor(String which, AlertProfile profile, AlertTable table, int tone, int sensor)
+	{
+		final int alert = profile.getAlertMm(sensor);
+		final int solid = profile.getSolidMm(sensor);
+		assertEquals(which, ProximityDecision.MIN_DISTANCE_MM, table.normalize(sensor, solid));
+		assertTrue(which, table.normalize(sensor, alert - 1) < ProximityDecision.MAX_DISTANCE_MM);
+		assertTrue(which, table.normalize(sensor, alert + 1) >= ProximityDecision.MAX_DISTANCE_MM);
+		assertEquals(which, SensorFrame.NO_READING_MM, table.normalize(sensor, SensorFrame.NO_READING_MM));
+
+		int lastOnMs = Integer.MAX_VALUE;
+		for (int mm = 0; mm < alert; mm++)
+		{
+			final long state = table.getState(sensor, table.normalize(sensor, mm));
+			final int onMs = ToneScheduler.stateOnMs(state);
+			assertEquals(which + " at " + mm, tone, ToneScheduler.stateTone(state));
+			assertEquals(which + " at " + mm, profile.getPeriodMs(), ToneScheduler.statePeriodMs(state));
+			assertTrue(which + " at " + mm, onMs >= profile.getShortestOnMs() && onMs <= lastOnMs);
+			if (mm <= solid)
+				assertEquals(which + " solid at " + mm, profile.getPeriodMs(), onMs);
+			lastOnMs = onMs;
+		}
+		assertEquals(which + " at the edge", profile.getShortestOnMs(), lastOnMs);
+	}
+
+	@Test
+	public void doorwayShortensOnlyTheSides()
+	{
+		final SensorLayout layout = SensorLayout.combine(SensorLayout.legacy(), SensorLayout.legacyRear());
+		final AlertProfile profile = AlertProfile.doorway(layout);
+		for (int sensor = 0; sensor < layout.getCount(); sensor++)
+		{
+			final int azimuth = Math.abs(layout.getAzimuthDegrees(sensor));
+			final boolean side = azimuth >= 45 && azimuth <= 135;
+			assertEquals(layout.getLabel(sensor), side ? 250 : ProximityDecision.MAX_DISTANCE_MM, profile.getAlertMm(sensor));
+			assertEquals(layout.getLabel(sensor), side ? 60 : ProximityDecision.MIN_DISTANCE_MM, profile.getSolidMm(sensor));
+		}
+		// a changed copy, not a changed profile
+		final AlertProfile wider = profile.withSensorRange(1, 900, 200);
+		assertEquals(900, wider.getAlertMm(1));
+		assertEquals(ProximityDecision.MAX_DISTANCE_MM, profile.getAlertMm(1));
+	}
+
+	@Test
+	public void nonsenseIsRefused()
+	{
+		refused(() -> new AlertProfile("x", 3, 600, 100, AlertProfile.MAX_PERIOD_MS + 1, 15));
+		refused(() -> new AlertProfile("x", 3, 600, 100, 500, 500));
+		refused(() -> new AlertProfile("x", 3, 100, 100, 500, 15));
+		refused(() -> new AlertProfile("x", 3, 600, -1, 500, 15));
+		refused(() -> AlertProfile.indoor(SensorLayout.legacy()).withSensorRange(0, 50, 60));
+		refused(() -> AlertProfile.indoor(SensorLayout.legacy()).compile(SensorLayout.ring(4)));
+	}
+
+	private static void refused(Runnable build)
+	{
+		try
+		{
+			build.run();
+			fail("accepted");
+		}
+		catch (IllegalArgumentException expected)
+		{
+			// what we wanted
+		}
+	}
+
+	@Test
+	public void newProfileCountsFromTheNextReading()
+	{
+		final SensorLayout layout = SensorLayout.legacy();
+		final ProximityDecision decision = new ProximityDecision(layout);
+		final AlertTable indoor = AlertProfile.indoor(layout).compile(layout);
+		final AlertTable outdoor = AlertProfile.outdoor(layout).compile(layout);
+		final long step = TimeUnit.MILLISECONDS.toNanos(50);
+		final int[] reading = {2000, 500, 2000};
+		long now = TimeUnit.SECONDS.toNanos(100);
+
+		// parked half a metre from something: inside both ranges, so a swap must not go quiet in between
+		for (int i = 0; i < 20; i++)
+			assertEquals(indoor.getState(1, indoor.normalize(1, 500)), decision.decide(reading, 0, now += step));
+
+		decision.setAlertProfile(AlertProfile.outdoor(layout));
+		assertEquals(AlertProfile.OUTDOOR, decision.getAlertProfile().getName());
+		final long outdoorState = outdoor.getState(1, outdoor.normalize(1, 500));
+		assertNotEquals(indoor.getState(1, indoor.normalize(1, 500)), outdoorState);
+		for (int i = 0; i < 20; i++)
+			assertEquals("reading " + i + " after the swap", outdoorState, decision.decide(reading, 0, now += step));
+		assertEquals(outdoorState, decision.getSensorState(1));
+
+		// 90 cm is only in the outdoor range; going back to indoor lets it go on the next reading
+		reading[1] = 900;
+		for (int i = 0; i < 10; i++)
+			decision.decide(reading, 0, now += step);
+		assertEquals(outdoor.getState(1, outdoor.normalize(1, 900)), decision.getSensorState(1));
+		decision.setAlertProfile(AlertProfile.indoor(layout));
+		assertEquals(ToneScheduler.SILENT, decision.decide(reading, 0, now += step));
+	}
+}
@@ -0,0 +1,30 @@
+package personal.thornupple.proximity;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/*******************************************
+ /***** ALLOCATIONS ****
+ /*******************************************
+ what the calling thread has allocated so far, for the tests that check a hot path allocates nothing.
+ count before and after, warmed up first (class loading, the jit), and take the least of a few passes
+ /*******************************************/
+final class Allocations
+{
+	// looked up once; getting hold of the bean allocates, reading it does not
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	private Allocations()
+	{
+	}
+
+	// bytes, or -1 where the jvm cannot count them (assume it away, do not fail)
+	static long allocatedBytes()
+	{
+		if (!(THREADS instanceof com.sun.management.ThreadMXBean))
+		{
+			return -1;
+		}
+		return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
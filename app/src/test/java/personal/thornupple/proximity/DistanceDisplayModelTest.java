@@ -0,0 +1,150 @@
+package personal.thornupple.proximity;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/*******************************************
+ /***** DISTANCE DISPLAY MODEL TEST ****
+ /*******************************************
+ the labels' text, which of them a frame rewrites, and the hand over from the decision thread to the ui
+ /*******************************************/
+public class DistanceDisplayModelTest
+{
+	private final DistanceDisplayModel mModel = new DistanceDisplayModel(SensorLayout.legacy());
+
+	private String text(int sensor)
+	{
+		return new String(mModel.getText(sensor), 0, mModel.getTextLength(sensor));
+	}
+
+	@Test
+	public void firstRenderWritesEveryLabel()
+	{
+		assertTrue(mModel.publish(new int[]{123, 4567, 0}, 0));
+		assertEquals(0b111, mModel.render());
+		assertEquals("Right Distance \n\t\t\t12.3cm", text(0));
+		assertEquals("Center Distance \n\t\t\t456.7cm", text(1));
+		assertEquals("Left Distance \n\t\t\t0.0cm", text(2));
+	}
+
+	@Test
+	public void formatsEveryDistanceAsCmWithOneDecimal()
+	{
+		final char[] out = new char[16];
+		final int[] mm = {0, 5, 10, 99, 100, 1234, 65534};
+		final String[] expected = {"0.0cm", "0.5cm", "1.0cm", "9.9cm", "10.0cm", "123.4cm", "6553.4cm"};
+		for (int i = 0; i < mm.length; i++)
+		{
+			final int end = DistanceDisplayModel.formatCm(mm[i], out, 2);
+			assertEquals(expected[i], new String(out, 2, end - 2));
+		}
+	}
+
+	@Test
+	public void noEchoShowsDashes()
+	{
+		mModel.publish(new int[]{SensorFrame.NO_READING_MM, 500, SensorFrame.NO_READING_MM}, 0);
+		mModel.render();
+		assertEquals("Right Distance \n\t\t\t--", text(0));
+		assertEquals("Left Distance \n\t\t\t--", text(2));
+	}
+
+	@Test
+	public void onlyChangedLabelsAreRewritten()
+	{
+		mModel.publish(new int[]{1000, 2000, 3000}, 0);
+		mModel.render();
+		mModel.publish(new int[]{1000, 1990, 3000}, 0);
+		assertEquals(0b010, mModel.render());
+		assertEquals("Center Distance \n\t\t\t199.0cm", text(1));
+		// the same reading again is no change
+		mModel.publish(new int[]{1000, 1990, 3000}, 0);
+		assertEquals(0, mModel.render());
+	}
+
+	@Test
+	public void frameShowsTheNewestReading()
+	{
+		// three readings, one frame: one request for it, and it shows the last
+		final int[] readings = {100, 200, 300, 400, 500, 600, 700, 800, 900};
+		assertTrue(mModel.publish(readings, 0));
+		assertFalse(mModel.publish(readings, 3));
+		assertFalse(mModel.publish(readings, 6));
+		assertEquals(0b111, mModel.render());
+		assertEquals("Right Distance \n\t\t\t70.0cm", text(0));
+		// nothing new since
+		assertEquals(0, mModel.render());
+		assertTrue(mModel.publish(readings, 0));
+	}
+
+	@Test
+	public void readingIsNeverHalfOldHalfNew()
+	{
+		final AtomicBoolean done = new AtomicBoolean();
+		final Thread writer = new Thread(() ->
+		{
+			// every sensor the same distance, so a torn reading shows up as labels that disagree
+			final int[] readings = new int[3];
+			for (int mm = 0; mm < 2_000_000; mm++)
+			{
+				readings[0] = readings[1] = readings[2] = mm % 60000;
+				mModel.publish(readings, 0);
+			}
+			done.set(true);
+		}, "decision");
+		writer.start();
+
+		String torn = null;
+		long frames = 0;
+		while (!done.get() && torn == null)
+		{
+			if (mModel.render() == 0)
+				continue;
+			frames++;
+			final String right = text(0).substring(text(0).indexOf('\t'));
+			if (!right.equals(text(1).substring(text(1).indexOf('\t'))) || !right.equals(text(2).substring(text(2).indexOf('\t'))))
+				torn = text(0) + " / " + text(1) + " / " + text(2);
+		}
+		assertNull(torn);
+		assertTrue(frames > 0);
+	}
+
+	@Test
+	public void nothingIsAllocatedAfterTheFirstFrame()
+	{
+		final int[] readings = new int[3000];
+		for (int i = 0; i < readings.length; i++)
+			readings[i] = 100 + i * 7919 % 6000;
+		// warm up (class loading, the jit), then the same again counted; see ToneBankTest
+		for (int pass = 0; pass < 20; pass++)
+			feed(readings);
+		long least = Long.MAX_VALUE;
+		for (int pass = 0; pass < 5 && least > 0; pass++)
+		{
+			final long before = Allocations.allocatedBytes();
+			feed(readings);
+			final long after = Allocations.allocatedBytes();
+			Assume.assumeTrue("thread allocation counting not available", before >= 0 && after >= 0);
+			least = Math.min(least, after - before);
+		}
+		assertEquals("bytes allocated for 1000 readings", 0, least);
+	}
+
+	// 1000 readings at 500 Hz with a frame every 1/60 s, the way DisplayBenchmark does it
+	private void feed(int[] readings)
+	{
+		for (int sample = 0; sample < readings.length / 3; sample++)
+		{
+			mModel.publish(readings, sample * 3);
+			if (sample % 8 == 0)
+				mModel.render();
+		}
+	}
+}
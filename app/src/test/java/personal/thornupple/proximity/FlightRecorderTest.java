@@ -0,0 +1,179 @@
+package personal.thornupple.proximity;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*******************************************
+ /***** FLIGHT RECORDER TEST ****
+ /*******************************************
+ events recorded, written out and read back the way TraceTool reads them: every type, the ring wrapping,
+ and a GattSession's connection events on the clock the session runs on
+ /*******************************************/
+public class FlightRecorderTest
+{
+	@Test
+	public void everyTypeComesBackAsItWent() throws IOException
+	{
+		final FlightRecorder recorder = new FlightRecorder(64);
+		for (int type = 1; type < FlightRecorder.TYPE_COUNT; type++)
+			recorder.record(type, 1000L * type, -type, Long.MAX_VALUE - type);
+
+		final Dump dump = dump(recorder);
+		assertEquals(FlightRecorder.TYPE_COUNT - 1, dump.count);
+		for (int i = 0; i < dump.count; i++)
+		{
+			final int type = i + 1;
+			assertEquals(type, dump.types[i]);
+			assertEquals(1000L * type, dump.times[i]);
+			assertEquals(-type, dump.as[i]);
+			assertEquals(Long.MAX_VALUE - type, dump.bs[i]);
+			assertTrue(!FlightRecorder.typeName(type).startsWith("type "));
+		}
+	}
+
+	@Test
+	public void fullRingKeepsTheNewestOldestFirst() throws IOException
+	{
+		final FlightRecorder recorder = new FlightRecorder(8);
+		for (int event = 0; event < 21; event++)
+			recorder.record(FlightRecorder.DECISION, event, event, 0);
+		assertEquals(21, recorder.getRecordedCount());
+
+		final Dump dump = dump(recorder);
+		assertEquals(8, dump.count);
+		for (int i = 0; i < dump.count; i++)
+			assertEquals(13 + i, dump.as[i]);
+	}
+
+	@Test
+	public void emptyRingWritesAnEmptyDump() throws IOException
+	{
+		assertEquals(0, dump(new FlightRecorder(8)).count);
+	}
+
+	@Test
+	public void withoutATimeItIsStampedNow() throws IOException
+	{
+		final FlightRecorder recorder = new FlightRecorder(8);
+		final long before = System.nanoTime();
+		recorder.record(FlightRecorder.TONE_STOP, 3, 0);
+		final long after = System.nanoTime();
+
+		final Dump dump = dump(recorder);
+		assertEquals(FlightRecorder.TONE_STOP, dump.types[0]);
+		assertTrue(dump.times[0] >= before && dump.times[0] <= after);
+	}
+
+	@Test
+	public void packsTheNewestSamplesFirstFourDistances()
+	{
+		final SensorFrame frame = new SensorFrame();
+		frame.sensorCount = 2;
+		frame.sampleCount = 2;
+		frame.distancesMm[0] = 1;
+		frame.distancesMm[1] = 2;
+		frame.distancesMm[2] = 300;
+		frame.distancesMm[3] = SensorFrame.NO_READING_MM - 1;
+		final long packed = FlightRecorder.packDistances(frame);
+		assertEquals(300, packed & 0xFFFF);
+		assertEquals(SensorFrame.NO_READING_MM - 1, packed >>> 16 & 0xFFFF);
+		// sensors the frame does not have read as no echo
+		assertEquals(SensorFrame.NO_READING_MM, packed >>> 32 & 0xFFFF);
+		assertEquals(SensorFrame.NO_READING_MM, packed >>> 48 & 0xFFFF);
+	}
+
+	@Test
+	public void sessionEventsAreOnTheSessionsClock() throws IOException
+	{
+		// an hour past System.nanoTime, so an event stamped on the wrong clock shows
+		final long start = System.nanoTime() + TimeUnit.HOURS.toNanos(1);
+		final long step = TimeUnit.MILLISECONDS.toNanos(1);
+		final long end = start + 500 * step;
+		final VirtualClock clock = new VirtualClock();
+		clock.advanceTo(start);
+		final SimulatedPeripheral peripheral = new SimulatedPeripheral(SensorLayout.legacy(), 20);
+		peripheral.setClock(clock);
+		final GattSession session = new GattSession(peripheral, new QuietSessionListener(), null, null);
+		session.setClock(clock);
+
+		final long first = FlightRecorder.get().getRecordedCount();
+		session.connect("sim");
+		for (long now = start; now <= end; now += step)
+		{
+			clock.advanceTo(now);
+			if (now == end - 100 * step)
+				session.disconnect();
+			peripheral.step(now);
+		}
+		final long recorded = FlightRecorder.get().getRecordedCount() - first;
+
+		final Dump dump = dump(FlightRecorder.get());
+		final int[] seen = new int[FlightRecorder.TYPE_COUNT];
+		for (int i = (int) Math.max(0, dump.count - recorded); i < dump.count; i++)
+		{
+			final int type = dump.types[i];
+			if (type < FlightRecorder.GATT_CONNECTED || type > FlightRecorder.GATT_LINK_READY)
+				continue;
+			seen[type]++;
+			assertTrue(FlightRecorder.typeName(type) + " at " + dump.times[i], dump.times[i] >= start && dump.times[i] <= end);
+		}
+		assertEquals(1, seen[FlightRecorder.GATT_CONNECTED]);
+		assertEquals(1, seen[FlightRecorder.GATT_DISCOVERED]);
+		assertEquals(1, seen[FlightRecorder.GATT_LINK_READY]);
+		assertEquals(1, seen[FlightRecorder.GATT_FIRST_SAMPLE]);
+		assertEquals(1, seen[FlightRecorder.GATT_DISCONNECTED]);
+	}
+
+	private static Dump dump(FlightRecorder recorder) throws IOException
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final int written = recorder.write(bytes);
+		final Dump dump = new Dump(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		assertEquals(written, dump.count);
+		return dump;
+	}
+
+	/*******************************************
+	 /***** DUMP ****
+	 /*******************************************
+	 a written ring read back, checking the header on the way
+	 /*******************************************/
+	private static final class Dump
+	{
+		final int count;
+		final int[] types;
+		final long[] times;
+		final long[] as;
+		final long[] bs;
+
+		Dump(DataInputStream in) throws IOException
+		{
+			assertEquals(FlightRecorder.MAGIC, in.readInt());
+			assertEquals(FlightRecorder.FILE_VERSION, in.readUnsignedShort());
+			final long wallMillis = in.readLong();
+			assertTrue(Math.abs(System.currentTimeMillis() - wallMillis) < TimeUnit.MINUTES.toMillis(1));
+			in.readLong();
+			count = in.readInt();
+			types = new int[count];
+			times = new long[count];
+			as = new long[count];
+			bs = new long[count];
+			for (int i = 0; i < count; i++)
+			{
+				types[i] = in.readUnsignedByte();
+				times[i] = in.readLong();
+				as[i] = in.readLong();
+				bs[i] = in.readLong();
+			}
+			assertEquals("bytes after the last event", -1, in.read());
+		}
+	}
+}
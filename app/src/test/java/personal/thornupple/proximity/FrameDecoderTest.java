@@ -0,0 +1,115 @@
+package personal.thornupple.proximity;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*******************************************
+ /***** FRAME DECODER TEST ****
+ /*******************************************/
+public class FrameDecoderTest
+{
+	private final FrameDecoder mDecoder = new FrameDecoder();
+	private final SensorFrame mFrame = new SensorFrame();
+
+	// a version 2 frame of one sample, three sensors
+	private static ByteBuffer frame(int sequence, int right, int center, int left)
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate(FrameDecoder.HEADER_BYTES + 6).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.put((byte) FrameDecoder.VERSION_BATCHED).put((byte) 3).put((byte) 1).put((byte) 0);
+		buffer.putShort((short) sequence).putShort((short) 20).putInt(0);
+		buffer.putShort((short) right).putShort((short) center).putShort((short) left);
+		buffer.flip();
+		return buffer;
+	}
+
+	@Test
+	public void decodesABatchedFrame()
+	{
+		assertTrue(mDecoder.decode(frame(7, 100, 200, SensorFrame.NO_READING_MM), mFrame));
+		assertEquals(7, mFrame.sequence);
+		assertEquals(3, mFrame.sensorCount);
+		assertEquals(1, mFrame.sampleCount);
+		assertEquals(20, mFrame.samplePeriodMs);
+		assertEquals(200, mFrame.getDistanceMm(0, 1));
+		assertEquals(SensorFrame.NO_READING_MM, mFrame.getDistanceMm(0, 2));
+		assertEquals(0, mFrame.heldSensors);
+	}
+
+	@Test
+	public void decodesALegacyFrameUnsignedInCm()
+	{
+		// 200 and 255 cm would read negative as signed bytes; here past a byte of something else
+		final ByteBuffer buffer = ByteBuffer.wrap(new byte[]{99, (byte) 200, 5, (byte) 255});
+		buffer.position(1);
+		assertTrue(mDecoder.decode(buffer, mFrame));
+		assertEquals(FrameDecoder.VERSION_LEGACY, mFrame.version);
+		assertEquals(3, mFrame.sensorCount);
+		assertEquals(1, mFrame.sampleCount);
+		assertEquals(0, mFrame.samplePeriodMs);
+		assertEquals(0, mFrame.heldSensors);
+		assertEquals(2000, mFrame.getDistanceMm(0, 0));
+		assertEquals(50, mFrame.getDistanceMm(0, 1));
+		assertEquals(2550, mFrame.getDistanceMm(0, 2));
+		assertEquals(1, buffer.position());
+	}
+
+	@Test
+	public void legacyFramesAreNumberedButNeverCountedAsDropped()
+	{
+		// no sequence on the wire, so each one is taken to be the next: a lost one cannot show
+		final ByteBuffer legacy = ByteBuffer.wrap(new byte[]{10, 20, 30});
+		for (int i = 0; i < 3; i++)
+		{
+			assertTrue(mDecoder.decode(legacy, mFrame));
+			assertEquals(i, mFrame.sequence);
+		}
+		assertEquals(0, mDecoder.getDroppedFrameCount());
+
+		// and they carry on from wherever a batched frame left the count (2 to 500 is 497 lost)
+		mDecoder.decode(frame(500, 1, 1, 1), mFrame);
+		mDecoder.decode(legacy, mFrame);
+		assertEquals(501, mFrame.sequence);
+		assertEquals(497, mDecoder.getDroppedFrameCount());
+	}
+
+	@Test
+	public void countsTheGapsInTheSequence()
+	{
+		mDecoder.decode(frame(10, 1, 1, 1), mFrame);
+		mDecoder.decode(frame(11, 1, 1, 1), mFrame);
+		mDecoder.decode(frame(14, 1, 1, 1), mFrame);
+		assertEquals(2, mDecoder.getDroppedFrameCount());
+	}
+
+	@Test
+	public void resetStartsTheSequenceOver()
+	{
+		// a reconnect: the chair's new sequence has nothing to do with the old one
+		mDecoder.decode(frame(100, 1, 1, 1), mFrame);
+		mDecoder.reset();
+		mDecoder.decode(frame(20000, 1, 1, 1), mFrame);
+		mDecoder.decode(frame(20001, 1, 1, 1), mFrame);
+		assertEquals(0, mDecoder.getDroppedFrameCount());
+
+		// without the reset that jump would count as 19899 lost frames
+		final FrameDecoder stale = new FrameDecoder();
+		stale.decode(frame(100, 1, 1, 1), mFrame);
+		stale.decode(frame(20000, 1, 1, 1), mFrame);
+		assertEquals(19899, stale.getDroppedFrameCount());
+	}
+
+	@Test
+	public void rejectsWhatItDoesNotKnow()
+	{
+		final ByteBuffer buffer = frame(1, 1, 1, 1);
+		buffer.put(0, (byte) 9);
+		assertFalse(mDecoder.decode(buffer, mFrame));
+		assertEquals(1, mDecoder.getRejectedFrameCount());
+	}
+}
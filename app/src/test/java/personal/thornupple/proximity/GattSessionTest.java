@@ -0,0 +1,186 @@
+package personal.thornupple.proximity;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*******************************************
+ /***** GATT SESSION TEST ****
+ /*******************************************
+ the receive path on top of a GattSession, against a SimulatedPeripheral that jitters, loses notifications
+ and drops its link, consumed the way ProximityDataClass does it (poll, decode, decide).  the peripheral
+ and the session share one VirtualClock stepped from the test's thread, so the peripheral's callbacks and
+ the session's timer never overlap, the way ble-io keeps them apart in the app, and a run is repeatable
+ /*******************************************/
+public class GattSessionTest
+{
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	@Test
+	public void everyNotificationIsDecodedAndEveryLossIsAGap()
+	{
+		final Pipeline pipeline = new Pipeline(SensorLayout.legacy(), 500, null);
+		pipeline.peripheral.setSamplesPerNotification(4);
+		pipeline.peripheral.setJitterMs(5);
+		pipeline.peripheral.setLossRate(0.02);
+		pipeline.runVirtual(10000 * MS);
+
+		final SimulatedPeripheral peripheral = pipeline.peripheral;
+		assertTrue(peripheral.getLostCount() > 0);
+		// the read answer on connecting comes in as a value too
+		assertEquals(peripheral.getDeliveredCount() + 1, pipeline.decoded);
+		assertEquals(pipeline.decoded * 4, pipeline.samples);
+		assertEquals(0, pipeline.session.getSampleChannel().getDroppedCount());
+		// a loss after the last notification that got through has nothing after it to show the gap
+		assertTrue(pipeline.decoder.getDroppedFrameCount() <= peripheral.getLostCount());
+		assertTrue(pipeline.decoder.getDroppedFrameCount() >= peripheral.getLostCount() - 1);
+	}
+
+	@Test
+	public void notifyRateFollowsTheClosestDistance()
+	{
+		// close for the first 2 s, clear after; the policy only waits 200 ms before slowing down
+		final Pipeline pipeline = new Pipeline(SensorLayout.legacy(), 10, new NotifyRatePolicy(20, 100, 500, 200));
+		pipeline.peripheral.setDistanceSource((sensor, elapsedNanos) -> elapsedNanos < 2000 * MS ? 200 : 3000);
+
+		pipeline.runVirtual(1500 * MS);
+		assertEquals(50, pipeline.peripheral.getRateHz());
+		pipeline.runVirtual(4000 * MS);
+		assertEquals(2, pipeline.peripheral.getRateHz());
+		assertEquals(2, pipeline.session.getNotifyRatePolicy().getChangeCount());
+	}
+
+	@Test
+	public void refusedRateWriteLeavesTheChairAlone()
+	{
+		final Pipeline pipeline = new Pipeline(SensorLayout.legacy(), 10, NotifyRatePolicy.defaults());
+		pipeline.peripheral.setIntervalControl(false);
+		pipeline.peripheral.setDistanceSource((sensor, elapsedNanos) -> 200);
+		pipeline.runVirtual(2000 * MS);
+		assertEquals(10, pipeline.peripheral.getRateHz());
+		assertTrue(pipeline.session.getNotifyRatePolicy().isDisabled());
+		assertTrue(pipeline.decoded > 0);
+	}
+
+	@Test
+	public void droppedLinkComesBackOnItsOwn()
+	{
+		final Pipeline pipeline = new Pipeline(SensorLayout.legacy(), 200, null);
+		pipeline.session.setReconnectPolicy(new ReconnectPolicy(50, 400, 5, 42));
+		pipeline.peripheral.setDisconnectMeanMs(300);
+		pipeline.peripheral.setOutageMs(150);
+		pipeline.peripheral.setSeed(7);
+		pipeline.runVirtual(3000 * MS);
+
+		final long drops = pipeline.peripheral.getDisconnectCount();
+		assertTrue(drops >= 2);
+		assertFalse(pipeline.gaveUp);
+		// every drop but maybe the last one was heard again, and never before the chair was back in reach
+		assertTrue(pipeline.linkDrops + " of " + drops + " drops came back", pipeline.linkDrops >= drops - 1);
+		assertTrue(pipeline.shortestLinkDropNanos >= 150 * MS);
+		assertEquals(pipeline.linkDrops + 1, pipeline.firstSamples);
+		assertTrue(pipeline.session.getReconnectCount() >= pipeline.linkDrops);
+	}
+
+	/*******************************************
+	 /***** PIPELINE ****
+	 /*******************************************
+	 one peripheral, its session and a consumer that decodes and decides every sample, like ProxBLE's pods
+	 /*******************************************/
+	private static final class Pipeline extends QuietSessionListener implements GattSession.Wakeup
+	{
+		final VirtualClock clock = new VirtualClock();
+		final SimulatedPeripheral peripheral;
+		final GattSession session;
+		final FrameDecoder decoder = new FrameDecoder();
+		final ProximityDecision decision;
+		final SampleChannel.Sample sample = new SampleChannel.Sample();
+		final SensorFrame frame = new SensorFrame();
+		long wakeAtNanos = Long.MAX_VALUE;
+
+		long decoded;
+		long samples;
+		int firstSamples;
+		int linkDrops;
+		long shortestLinkDropNanos = Long.MAX_VALUE;
+		boolean gaveUp;
+
+		Pipeline(SensorLayout layout, int rateHz, NotifyRatePolicy ratePolicy)
+		{
+			peripheral = new SimulatedPeripheral(layout, rateHz);
+			peripheral.setClock(clock);
+			session = new GattSession(peripheral, this, this, ratePolicy);
+			session.setClock(clock);
+			session.setSampleListener(channel ->
+			{
+				while (channel.poll(sample))
+					onSample();
+			});
+			decision = new ProximityDecision(layout);
+		}
+
+		private void onSample()
+		{
+			if (!decoder.decode(sample.buffer, frame))
+			{
+				return;
+			}
+			decoded++;
+			samples += frame.sampleCount;
+			decision.decide(frame, sample.arrivalNanos);
+			// on the session's thread, where the policy lives
+			session.updateNotifyRate(decision.getClosestDistanceMm(), clock.nanoTime());
+		}
+
+		// a ms at a time; the session only gets stepped when it asked to be (a retry, a reconnect)
+		void runVirtual(long untilNanos)
+		{
+			if (clock.nanoTime() == 0)
+				session.connect("sim");
+			for (long now = clock.nanoTime(); now <= untilNanos; now += MS)
+			{
+				clock.advanceTo(now);
+				peripheral.step(now);
+				if (now >= wakeAtNanos)
+				{
+					wakeAtNanos = Long.MAX_VALUE;
+					session.step(now);
+				}
+			}
+		}
+
+		@Override
+		public void wakeAt(long deadlineNanos)
+		{
+			wakeAtNanos = deadlineNanos;
+		}
+
+		@Override
+		public void onDisconnected()
+		{
+			// a new link starts its sequence numbers over
+			decoder.reset();
+		}
+
+		@Override
+		public void onFirstSample(long connectNanos, long linkDropNanos)
+		{
+			firstSamples++;
+			if (linkDropNanos >= 0)
+			{
+				linkDrops++;
+				shortestLinkDropNanos = Math.min(shortestLinkDropNanos, linkDropNanos);
+			}
+		}
+
+		@Override
+		public void onGaveUp()
+		{
+			gaveUp = true;
+		}
+	}
+}
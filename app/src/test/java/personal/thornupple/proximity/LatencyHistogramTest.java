@@ -0,0 +1,148 @@
+package personal.thornupple.proximity;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*******************************************
+ /***** LATENCY HISTOGRAM TEST ****
+ /*******************************************
+ where the bucket edges fall, how close a percentile comes to the exact one, what happens past the top
+ bucket, and PipelineLatency turning stamps into the right stage
+ /*******************************************/
+public class LatencyHistogramTest
+{
+	// the buckets below the top one: 31 levels of 32 above the first 64 ns
+	private static final int BUCKETS = 33 * 32 - 1;
+
+	@Test
+	public void bucketsMeetEdgeToEdge()
+	{
+		// every value below 64 ns gets a bucket of its own
+		for (int value = 0; value < 64; value++)
+		{
+			assertEquals(value, LatencyHistogram.indexOf(value));
+			assertEquals(value, LatencyHistogram.highestValueAt(value));
+		}
+		for (int index = 0; index < BUCKETS; index++)
+		{
+			final long highest = LatencyHistogram.highestValueAt(index);
+			assertEquals("top of " + index, index, LatencyHistogram.indexOf(highest));
+			assertEquals("past " + index, index + 1, LatencyHistogram.indexOf(highest + 1));
+			// no wider than 1/32 of what is in it
+			final long lowest = index == 0 ? 0 : LatencyHistogram.highestValueAt(index - 1) + 1;
+			assertTrue("width of " + index, (highest - lowest) * 32 <= Math.max(1, lowest));
+		}
+	}
+
+	@Test
+	public void percentilesAreWithinABucketOfTheExactOnes()
+	{
+		final Random random = new Random(42);
+		final long[] values = new long[100_000];
+		final LatencyHistogram histogram = new LatencyHistogram();
+		long sum = 0;
+		for (int i = 0; i < values.length; i++)
+		{
+			// 10 us to 100 ms, spread over the orders of magnitude the way latencies are
+			values[i] = (long) Math.pow(10, 4 + 4 * random.nextDouble());
+			histogram.record(values[i]);
+			sum += values[i];
+		}
+		Arrays.sort(values);
+
+		assertEquals(values.length, histogram.getCount());
+		assertEquals(values[values.length - 1], histogram.getMax());
+		assertEquals(sum / values.length, histogram.getMean());
+		for (double percentile : new double[]{0, 1, 25, 50, 90, 99, 99.9, 100})
+		{
+			final long exact = values[Math.max(0, (int) Math.ceil(values.length * percentile / 100) - 1)];
+			final long reported = histogram.getValueAtPercentile(percentile);
+			// the top of the exact value's bucket, never below it, never past the max
+			assertTrue("p" + percentile + " " + reported + " for " + exact, reported >= exact && reported - exact <= exact / 32);
+			assertTrue(reported <= histogram.getMax());
+		}
+	}
+
+	@Test
+	public void pastTheTopBucketReadsAsTheMax()
+	{
+		final LatencyHistogram histogram = new LatencyHistogram();
+		final long stuck = TimeUnit.MINUTES.toNanos(10);
+		for (int i = 0; i < 99; i++)
+			histogram.record(TimeUnit.MILLISECONDS.toNanos(5));
+		histogram.record(stuck);
+		histogram.record(Long.MAX_VALUE / 4);
+
+		assertEquals(101, histogram.getCount());
+		assertEquals(Long.MAX_VALUE / 4, histogram.getMax());
+		assertEquals(Long.MAX_VALUE / 4, histogram.getValueAtPercentile(100));
+		assertTrue(histogram.getValueAtPercentile(50) < TimeUnit.MILLISECONDS.toNanos(6));
+		// a clock that went backwards counts as nothing at all, not as a huge unsigned value
+		histogram.record(-5);
+		assertEquals(0, histogram.getValueAtPercentile(0));
+	}
+
+	@Test
+	public void resetStartsOver()
+	{
+		final LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 1000; i++)
+			histogram.record(i * 1000L);
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getMean());
+		assertEquals(0, histogram.getValueAtPercentile(50));
+
+		// and nothing of before is left in the buckets
+		histogram.record(40);
+		histogram.record(50);
+		assertEquals(40, histogram.getValueAtPercentile(50));
+		assertEquals(50, histogram.getValueAtPercentile(100));
+		assertEquals(45, histogram.getMean());
+	}
+
+	@Test
+	public void stampsGoToTheirStages()
+	{
+		final PipelineLatency latency = new PipelineLatency();
+		// 20 ms apart, then 26, then 20 again
+		latency.onArrival(1000);
+		latency.onArrival(21_000);
+		latency.onArrival(47_000);
+		latency.onArrival(67_000);
+		latency.onDecision(67_000, 67_300, 68_000);
+		latency.onAudioStart(67_000, 68_000, 90_000);
+
+		assertEquals(3, latency.getStage(PipelineLatency.INTERVAL).getCount());
+		assertEquals(26_000, latency.getStage(PipelineLatency.INTERVAL).getMax());
+		assertEquals(2, latency.getStage(PipelineLatency.JITTER).getCount());
+		assertEquals(6000, latency.getStage(PipelineLatency.JITTER).getMean());
+		assertEquals(300, latency.getStage(PipelineLatency.RECEIPT).getMax());
+		assertEquals(700, latency.getStage(PipelineLatency.DECISION).getMax());
+		assertEquals(22_000, latency.getStage(PipelineLatency.AUDIO_START).getMax());
+		assertEquals(23_000, latency.getStage(PipelineLatency.END_TO_END).getMax());
+
+		// the wait for a link to come back is neither an interval nor jitter
+		latency.onLinkDropped();
+		latency.onArrival(5_000_000);
+		latency.onArrival(5_020_000);
+		assertEquals(4, latency.getStage(PipelineLatency.INTERVAL).getCount());
+		assertEquals(26_000, latency.getStage(PipelineLatency.INTERVAL).getMax());
+		assertEquals(2, latency.getStage(PipelineLatency.JITTER).getCount());
+
+		final String report = latency.report();
+		for (int stage = 0; stage < PipelineLatency.STAGE_COUNT; stage++)
+			assertTrue(report.contains(PipelineLatency.stageName(stage)));
+
+		latency.reset();
+		for (int stage = 0; stage < PipelineLatency.STAGE_COUNT; stage++)
+			assertEquals(0, latency.getStage(stage).getCount());
+	}
+}
@@ -0,0 +1,456 @@
+package personal.thornupple.proximity;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/*******************************************
+ /***** LIVENESS MONITOR TEST ****
+ /*******************************************
+ one pod's samples fed in by hand, then a front and a rear SimulatedPeripheral that hang, drop their link,
+ jitter and lose notifications.  the monitor is checked the way the decision thread's timer does it: after
+ every sample and when the deadline it last handed back comes round, never on a poll
+ /*******************************************/
+public class LivenessMonitorTest
+{
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final long STEP_NANOS = MS;
+	private static final int FRONT = 0;
+	private static final int REAR = 1;
+
+	private final LivenessMonitor mMonitor = new LivenessMonitor(2);
+	private final Recorder mRecorder = new Recorder();
+	private long mNow;
+	private long mDeadline = LivenessMonitor.IDLE;
+
+	{
+		mMonitor.setListener(mRecorder);
+	}
+
+	// a ms at a time up to untilNanos, checking when the deadline comes round
+	private void runTo(long untilNanos)
+	{
+		for (; mNow < untilNanos; mNow += STEP_NANOS)
+		{
+			if (mNow >= mDeadline)
+				mDeadline = mMonitor.check(mNow);
+		}
+	}
+
+	// a sample every intervalMs until untilNanos, checked after each the way the decision thread does
+	private void sampleEvery(int stream, int intervalMs, long untilNanos)
+	{
+		while (mNow < untilNanos)
+		{
+			mMonitor.onSample(stream, mNow, 0);
+			mDeadline = mMonitor.check(mNow);
+			runTo(mNow + intervalMs * MS);
+		}
+	}
+
+	@Test
+	public void stalePodRaisesSensorLostWithinTheTimeout()
+	{
+		sampleEvery(FRONT, 20, 2000 * MS);
+		final long lastSample = mNow - 20 * MS;
+		final long timeout = mMonitor.getTimeoutNanos(FRONT);
+		assertTrue(timeout < mMonitor.getMaxTimeoutNanos());
+
+		runTo(mNow + 2000 * MS);
+		assertEquals(1, mRecorder.lost);
+		assertTrue(mMonitor.isLost(FRONT));
+		// noticed at the deadline, not before and not a poll later
+		assertTrue(mRecorder.lostAtNanos - lastSample >= timeout);
+		assertTrue(mRecorder.lostAtNanos - lastSample <= timeout + STEP_NANOS);
+		assertEquals(mRecorder.lostAtNanos - lastSample, mRecorder.silentNanos);
+		// once is enough: it does not go on firing while the pod stays quiet
+		assertEquals(LivenessMonitor.IDLE, mDeadline);
+	}
+
+	@Test
+	public void firstSamplesGetTheMaxTimeout()
+	{
+		mMonitor.onSample(FRONT, 0, 0);
+		mDeadline = mMonitor.check(0);
+		assertEquals(mMonitor.getMaxTimeoutNanos(), mDeadline);
+
+		runTo(mMonitor.getMaxTimeoutNanos());
+		assertEquals(0, mRecorder.lost);
+		runTo(mMonitor.getMaxTimeoutNanos() + 2 * STEP_NANOS);
+		assertEquals(1, mRecorder.lost);
+	}
+
+	@Test
+	public void jitterIsNoDropout()
+	{
+		// 50 Hz with up to 8 ms either way
+		for (int sample = 0; sample < 1000; sample++)
+		{
+			final long arrival = sample * 20 * MS + (sample * 7919 % 17 - 8) * MS;
+			runTo(arrival);
+			mMonitor.onSample(FRONT, mNow, 0);
+			mDeadline = mMonitor.check(mNow);
+		}
+		assertEquals(0, mRecorder.lost);
+	}
+
+	@Test
+	public void slowingTheChairDownIsNoDropout()
+	{
+		sampleEvery(FRONT, 20, 2000 * MS);
+		// asked for 500 ms; the deadline moves out straight away, before the first slow sample
+		mMonitor.setExpectedIntervalNanos(FRONT, 500 * MS);
+		mDeadline = mMonitor.check(mNow);
+		sampleEvery(FRONT, 500, 10000 * MS);
+		assertEquals(0, mRecorder.lost);
+		assertTrue(mMonitor.isAlive(FRONT));
+	}
+
+	@Test
+	public void lostPodRecoversWithItsNextSample()
+	{
+		sampleEvery(FRONT, 20, 2000 * MS);
+		runTo(mNow + 3000 * MS);
+		assertTrue(mMonitor.isLost(FRONT));
+
+		mMonitor.onSample(FRONT, mNow, 0);
+		assertEquals(1, mRecorder.recovered);
+		assertFalse(mMonitor.isLost(FRONT));
+		assertFalse(mMonitor.isAnyLost());
+		// and it is watched again
+		mDeadline = mMonitor.check(mNow);
+		assertTrue(mDeadline != LivenessMonitor.IDLE);
+	}
+
+	@Test
+	public void disarmedPodIsNeverLost()
+	{
+		sampleEvery(FRONT, 20, 1000 * MS);
+		sampleEvery(REAR, 140, 2000 * MS);
+		// disconnected on purpose, from another thread
+		mMonitor.disarm(REAR);
+		runTo(mNow + 5000 * MS);
+		assertFalse(mMonitor.isArmed(REAR));
+		assertFalse(mMonitor.isLost(REAR));
+		// the front stopped with it, and that one is reported
+		assertEquals(1, mRecorder.lost);
+		assertTrue(mMonitor.isLost(FRONT));
+	}
+
+	@Test
+	public void disarmClearsALoss()
+	{
+		sampleEvery(REAR, 140, 2000 * MS);
+		runTo(mNow + 3000 * MS);
+		assertTrue(mMonitor.isLost(REAR));
+		mMonitor.disarm(REAR);
+		mMonitor.check(mNow);
+		assertFalse(mMonitor.isAnyLost());
+	}
+
+	@Test
+	public void simulatedPodsThatHangAndDropAreNoticed()
+	{
+		final Simulation run = new Simulation(120, 8, 0.02, 1);
+		assertNull(run.firstFailure);
+		assertTrue(run.longStalls > 0);
+		assertEquals("a hang longer than the max timeout went unnoticed", run.longStalls, run.longStallsNoticed);
+		assertTrue("slowest to notice " + run.slowestNanos / 1e6 + " ms",
+				run.slowestNanos <= run.monitor.getMaxTimeoutNanos() + STEP_NANOS);
+		assertEquals("everything lost comes back", run.lost, run.recovered + run.disarmedLost);
+		assertEquals(0, run.falseAlarms);
+		assertFalse(run.monitor.isAnyLost());
+	}
+
+	// the last loss and when the test's clock saw it
+	private final class Recorder implements LivenessMonitor.Listener
+	{
+		int lost;
+		int recovered;
+		long lostAtNanos = -1;
+		long silentNanos;
+
+		@Override
+		public void onLost(int stream, long silentNanos)
+		{
+			lost++;
+			lostAtNanos = mNow;
+			this.silentNanos = silentNanos;
+		}
+
+		@Override
+		public void onRecovered(int stream, long silentNanos)
+		{
+			recovered++;
+		}
+	}
+
+	/*******************************************
+	 /***** SIMULATION ****
+	 /*******************************************
+	 a front and a rear SimulatedPeripheral behind their own GattSessions, watched by one LivenessMonitor the
+	 way ProximityDataClass does it, on one VirtualClock stepped a ms at a time.
+
+	 front  50 Hz with jitter and loss, its rate driven by NotifyRatePolicy (the distances swing between clear
+	        and close every 10 s, so it keeps going from 500 ms to 20 ms and back).  every 6 s it hangs - still
+	        connected, not a notification - for 100 ms up to 3 s (SimulatedPeripheral.stall)
+	 rear   7 Hz with jitter and loss, and its link drops now and then and stays out of reach for a while
+	        before its session's reconnect policy gets it back.  near the end it is disconnected on purpose and
+	        disarmed
+
+	 every loss is looked at against what was injected: a hang, a dropped link, or notifications lost in a
+	 row (as silent as a hang, so it is right to say so).  anything else is a false alarm
+	 /*******************************************/
+	private static final class Simulation implements LivenessMonitor.Listener
+	{
+		private static final int FRONT_RATE = 50;
+		private static final int REAR_RATE = 7;
+		// the front's distances flip between these every SWING
+		private static final int CLEAR_MM = 3000;
+		private static final int CLOSE_MM = 200;
+		private static final long SWING_NANOS = TimeUnit.SECONDS.toNanos(10);
+		// front hangs: one every STALL_EVERY, starting STALL_EVERY / 2 in, cycling through these lengths
+		private static final long STALL_EVERY_NANOS = TimeUnit.SECONDS.toNanos(6);
+		private static final int[] STALL_MS = {100, 150, 400, 800, 1600, 3000};
+		// rear link drops
+		private static final int REAR_DROP_MEAN_MS = 15000;
+		private static final int REAR_OUTAGE_MS = 2500;
+
+		final VirtualClock clock = new VirtualClock();
+		final LivenessMonitor monitor = new LivenessMonitor(2);
+		final SimulatedPeripheral[] peripherals = new SimulatedPeripheral[2];
+		final Pod[] pods = new Pod[2];
+		// each pod's count of notifications lost in the air when its last sample arrived
+		final long[] lostInAir = new long[2];
+		final FrameDecoder[] decoders = {new FrameDecoder(), new FrameDecoder()};
+		final SampleChannel.Sample sample = new SampleChannel.Sample();
+		final SensorFrame frame = new SensorFrame();
+		boolean sampled;
+
+		// the front's current hang, and whether it was noticed
+		long stallStartNanos = -1;
+		long stallEndNanos = -1;
+		boolean stallNoticed;
+		boolean stallLong;
+		int longStalls;
+		int longStallsNoticed;
+
+		// the rear's link is down (or back and nothing has arrived yet)
+		boolean rearDown;
+		long rearOffNanos = -1;
+
+		long lost;
+		long recovered;
+		long disarmedLost;
+		long falseAlarms;
+		long slowestNanos;
+		String firstFailure;
+
+		Simulation(int seconds, int jitterMs, double loss, long seed)
+		{
+			monitor.setListener(this);
+			final SensorLayout[] layouts = {SensorLayout.legacy(), SensorLayout.legacyRear()};
+			final int[] rates = {FRONT_RATE, REAR_RATE};
+			for (int pod = 0; pod < layouts.length; pod++)
+			{
+				final SimulatedPeripheral peripheral = new SimulatedPeripheral(layouts[pod], rates[pod]);
+				peripheral.setJitterMs(pod == FRONT ? jitterMs : jitterMs * 3);
+				peripheral.setLossRate(loss);
+				peripheral.setSeed(seed + pod);
+				peripheral.setClock(clock);
+				if (pod == FRONT)
+					peripheral.setDistanceSource((sensor, elapsedNanos) -> elapsedNanos / SWING_NANOS % 2 == 0 ? CLEAR_MM : CLOSE_MM);
+				else
+				{
+					peripheral.setDisconnectMeanMs(REAR_DROP_MEAN_MS);
+					peripheral.setOutageMs(REAR_OUTAGE_MS);
+				}
+				peripherals[pod] = peripheral;
+				pods[pod] = new Pod(pod, peripheral, pod == FRONT ? NotifyRatePolicy.defaults() : null);
+				if (pod == REAR)
+					pods[pod].session.setReconnectPolicy(new ReconnectPolicy(250, 2000, 5, seed));
+			}
+			for (Pod pod : pods)
+				pod.session.connect("pod-" + pod.index);
+
+			final long endNanos = TimeUnit.SECONDS.toNanos(seconds);
+			// the rear goes on purpose here; the last hang has to be over (and come back) before the end
+			final long rearOffAt = endNanos * 17 / 20;
+			final long lastStallNanos = endNanos - TimeUnit.SECONDS.toNanos(5);
+			long nextStallNanos = STALL_EVERY_NANOS / 2;
+			int stalls = 0;
+			long deadline = LivenessMonitor.IDLE;
+			for (long now = 0; now <= endNanos; now += STEP_NANOS)
+			{
+				clock.advanceTo(now);
+				if (now == nextStallNanos && now < lastStallNanos)
+				{
+					final long length = TimeUnit.MILLISECONDS.toNanos(STALL_MS[stalls++ % STALL_MS.length]);
+					peripherals[FRONT].stall(now + length);
+					onStall(now, now + length);
+					nextStallNanos += STALL_EVERY_NANOS;
+				}
+				if (now == rearOffAt)
+				{
+					// if it was down just then, it is not coming back and the disarm clears the loss
+					if (monitor.isLost(REAR))
+						disarmedLost++;
+					monitor.disarm(REAR);
+					pods[REAR].session.disconnect();
+					rearOffNanos = now;
+				}
+				for (Pod pod : pods)
+				{
+					if (now >= pod.wakeAtNanos)
+					{
+						pod.wakeAtNanos = Long.MAX_VALUE;
+						pod.session.step(now);
+					}
+				}
+				sampled = false;
+				for (SimulatedPeripheral peripheral : peripherals)
+					peripheral.step(now);
+
+				// the decision thread: after every batch of samples, and at the deadline
+				if (sampled || now >= deadline)
+					deadline = monitor.check(now);
+			}
+			finishStall();
+		}
+
+		// the consumer: decode, feed the monitor, drive the front's rate
+		void onSample(int pod)
+		{
+			final long dropped = decoders[pod].getDroppedFrameCount();
+			if (!decoders[pod].decode(sample.buffer, frame))
+			{
+				fail("pod " + pod + " sent garbage");
+				return;
+			}
+			sampled = true;
+			lostInAir[pod] = peripherals[pod].getLostCount();
+			if (pod == REAR)
+				rearDown = false;
+			monitor.onSample(pod, sample.arrivalNanos, decoders[pod].getDroppedFrameCount() - dropped);
+
+			final NotifyRatePolicy policy = pods[pod].session.getNotifyRatePolicy();
+			if (policy != null)
+			{
+				int closest = SensorFrame.NO_READING_MM;
+				for (int sensor = 0; sensor < frame.sensorCount; sensor++)
+					closest = Math.min(closest, frame.getDistanceMm(frame.sampleCount - 1, sensor));
+				pods[pod].session.updateNotifyRate(closest, sample.arrivalNanos);
+				// what ProxBLE's pods publish for the decision thread
+				monitor.setExpectedIntervalNanos(pod, policy.isDisabled() ? 0 : TimeUnit.MILLISECONDS.toNanos(policy.getIntervalMs()));
+			}
+		}
+
+		void onStall(long startNanos, long endNanos)
+		{
+			finishStall();
+			stallStartNanos = startNanos;
+			stallEndNanos = endNanos;
+			stallNoticed = false;
+			stallLong = endNanos - startNanos > monitor.getMaxTimeoutNanos();
+			if (stallLong)
+				longStalls++;
+		}
+
+		private void finishStall()
+		{
+			if (stallStartNanos >= 0 && stallNoticed && stallLong)
+				longStallsNoticed++;
+			stallStartNanos = -1;
+		}
+
+		@Override
+		public void onLost(int stream, long silentNanos)
+		{
+			lost++;
+			final long now = clock.nanoTime();
+			slowestNanos = Math.max(slowestNanos, silentNanos);
+			if (stream == FRONT)
+			{
+				// a hang, or the silence straight after it before the first notification is back
+				if (stallStartNanos >= 0 && now >= stallStartNanos && now - silentNanos <= stallEndNanos)
+				{
+					stallNoticed = true;
+					return;
+				}
+			}
+			else
+			{
+				if (rearOffNanos >= 0)
+				{
+					fail("rear reported lost after it was disconnected on purpose, at " + now / MS + " ms");
+					return;
+				}
+				if (rearDown)
+				{
+					return;
+				}
+			}
+			if (peripherals[stream].getLostCount() > lostInAir[stream])
+			{
+				return;
+			}
+			falseAlarms++;
+			fail((stream == FRONT ? "front" : "rear") + " lost at " + now / MS + " ms with nothing wrong, silent for "
+					+ silentNanos / MS + " ms");
+		}
+
+		@Override
+		public void onRecovered(int stream, long silentNanos)
+		{
+			recovered++;
+		}
+
+		void fail(String why)
+		{
+			if (firstFailure == null)
+				firstFailure = why;
+		}
+
+		// one connection, its session on the virtual clock: its wakeAt (retries, reconnects) is stepped from the loop
+		private final class Pod extends QuietSessionListener implements GattSession.Wakeup
+		{
+			final int index;
+			final GattSession session;
+			long wakeAtNanos = Long.MAX_VALUE;
+
+			Pod(int index, SimulatedPeripheral peripheral, NotifyRatePolicy policy)
+			{
+				this.index = index;
+				session = new GattSession(peripheral, this, this, policy);
+				session.setClock(clock);
+				session.setSampleListener(channel ->
+				{
+					while (channel.poll(sample))
+						onSample(index);
+				});
+			}
+
+			@Override
+			public void wakeAt(long deadlineNanos)
+			{
+				wakeAtNanos = deadlineNanos;
+			}
+
+			@Override
+			public void onDisconnected()
+			{
+				if (index != REAR || rearOffNanos >= 0)
+				{
+					return;
+				}
+				// the session keeps trying until it is in reach again
+				rearDown = true;
+			}
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package personal.thornupple.proximity;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*******************************************
+ /***** PACKET CADENCE TEST ****
+ /*******************************************
+ made up arrival times in, the grid out: locking on, following a chair that runs slow, shrugging off
+ jitter, a lost packet and a late one, and starting over when the rate or the link changes
+ /*******************************************/
+public class PacketCadenceTest
+{
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final long T0 = TimeUnit.SECONDS.toNanos(100);
+
+	// how far arrivalNanos is from the cadence's nearest grid point
+	private static long offGrid(PacketCadence cadence, long arrivalNanos)
+	{
+		final long period = cadence.getPeriodNanos();
+		long off = Math.floorMod(arrivalNanos - cadence.getAnchorNanos(), period);
+		return off > period / 2 ? off - period : off;
+	}
+
+	@Test
+	public void locksOnTheFirstInterval()
+	{
+		final PacketCadence cadence = new PacketCadence();
+		cadence.onArrival(T0);
+		assertEquals(0, cadence.getPeriodNanos());
+		cadence.onArrival(T0 + 50 * MS);
+		assertEquals(50 * MS, cadence.getPeriodNanos());
+		assertEquals(T0 + 50 * MS, cadence.getAnchorNanos());
+		assertEquals(0, cadence.getRelockCount());
+
+		// on the grid from then on: nothing to learn
+		for (int i = 2; i < 20; i++)
+			cadence.onArrival(T0 + i * 50 * MS);
+		assertEquals(50 * MS, cadence.getPeriodNanos());
+		assertEquals(0, cadence.getJitterNanos());
+		assertEquals(0, offGrid(cadence, T0 + 1000 * MS));
+		assertEquals(20, cadence.getArrivalCount());
+	}
+
+	@Test
+	public void burstOrStallIsNoRhythm()
+	{
+		final PacketCadence cadence = new PacketCadence();
+		// a batch landing all at once, then the link stalling for longer than any rate
+		cadence.onArrival(T0);
+		cadence.onArrival(T0 + MS);
+		cadence.onArrival(T0 + MS + 3 * PacketCadence.MAX_PERIOD_NANOS);
+		assertEquals(0, cadence.getPeriodNanos());
+		cadence.onArrival(T0 + MS + 3 * PacketCadence.MAX_PERIOD_NANOS + 40 * MS);
+		assertEquals(40 * MS, cadence.getPeriodNanos());
+	}
+
+	@Test
+	public void followsAChairThatRunsSlow()
+	{
+		// the firmware's 50 ms is really 50.5
+		final PacketCadence cadence = new PacketCadence();
+		cadence.onArrival(T0);
+		cadence.onArrival(T0 + 50 * MS);
+		final long real = 50 * MS + MS / 2;
+		long arrival = T0 + 50 * MS;
+		for (int i = 0; i < 400; i++)
+			cadence.onArrival(arrival += real);
+		assertEquals(real, cadence.getPeriodNanos(), MS / 20);
+		assertTrue(Math.abs(offGrid(cadence, arrival + real)) < MS / 10);
+		assertEquals(0, cadence.getRelockCount());
+	}
+
+	@Test
+	public void jitterMovesTheGridOnlyALittle()
+	{
+		final Random random = new Random(3);
+		final PacketCadence cadence = new PacketCadence();
+		long totalOff = 0;
+		for (int i = 0; i < 1000; i++)
+		{
+			// up to 4 ms either way of a 50 ms grid
+			final long arrival = T0 + i * 50 * MS + (long) ((random.nextDouble() * 2 - 1) * 4 * MS);
+			cadence.onArrival(arrival);
+			if (i >= 100)
+				totalOff += Math.abs(offGrid(cadence, T0 + (i + 1) * 50 * MS));
+		}
+		// the anchor takes a quarter of each miss, so the grid wanders a fraction of the jitter, not all of it
+		final long meanOff = totalOff / 900;
+		assertTrue("grid " + meanOff / 1e6 + " ms off", meanOff < MS);
+		assertEquals(50 * MS, cadence.getPeriodNanos(), MS / 4);
+		// at least the 2 ms mean of a uniform 0 to 4 ms miss, plus a little for the grid's own wandering
+		final long jitter = cadence.getJitterNanos();
+		assertTrue("jitter " + jitter / 1e6 + " ms", jitter > 2 * MS - MS / 4 && jitter < 3 * MS);
+		assertEquals(0, cadence.getRelockCount());
+	}
+
+	@Test
+	public void lostOrLatePacketKeepsTheLock()
+	{
+		final PacketCadence cadence = new PacketCadence();
+		for (int i = 0; i < 10; i++)
+			cadence.onArrival(T0 + i * 50 * MS);
+		// one lost (a 100 ms interval is two periods), then one 20 ms late, then back on time
+		cadence.onArrival(T0 + 11 * 50 * MS);
+		cadence.onArrival(T0 + 12 * 50 * MS + 20 * MS);
+		cadence.onArrival(T0 + 13 * 50 * MS);
+		cadence.onArrival(T0 + 14 * 50 * MS);
+		assertEquals(0, cadence.getRelockCount());
+		assertEquals(50 * MS, cadence.getPeriodNanos(), MS);
+		assertTrue(Math.abs(offGrid(cadence, T0 + 15 * 50 * MS)) < 2 * MS);
+	}
+
+	@Test
+	public void newRateRelocksAfterThreeMisfits()
+	{
+		final PacketCadence cadence = new PacketCadence();
+		long arrival = T0;
+		for (int i = 0; i < 10; i++)
+			cadence.onArrival(arrival += 50 * MS);
+		// the notify rate policy sped the chair up to 20 ms
+		cadence.onArrival(arrival += 20 * MS);
+		cadence.onArrival(arrival += 20 * MS);
+		assertEquals(50 * MS, cadence.getPeriodNanos());
+		cadence.onArrival(arrival += 20 * MS);
+		assertEquals(20 * MS, cadence.getPeriodNanos());
+		assertEquals(arrival, cadence.getAnchorNanos());
+		assertEquals(1, cadence.getRelockCount());
+	}
+
+	@Test
+	public void resetForgetsTheOldLink()
+	{
+		final PacketCadence cadence = new PacketCadence();
+		for (int i = 0; i < 10; i++)
+			cadence.onArrival(T0 + i * 50 * MS);
+		cadence.reset();
+		assertEquals(0, cadence.getPeriodNanos());
+
+		// the wait for the new link is not an interval, and its rate is its own
+		final long link = T0 + 3000 * MS;
+		cadence.onArrival(link);
+		assertEquals(0, cadence.getPeriodNanos());
+		cadence.onArrival(link + 30 * MS);
+		assertEquals(30 * MS, cadence.getPeriodNanos());
+		assertEquals(link + 30 * MS, cadence.getAnchorNanos());
+		assertEquals(0, cadence.getJitterNanos());
+	}
+
+	@Test
+	public void fitsPulsesToWholePackets()
+	{
+		// whole packets per pulse
+		assertEquals(360 * MS, PacketCadence.fitPeriod(400 * MS, 120 * MS));
+		assertEquals(750 * MS, PacketCadence.fitPeriod(750 * MS, 50 * MS));
+		// whole pulses per packet, for a slow chair
+		assertEquals(500 * MS, PacketCadence.fitPeriod(450 * MS, 1000 * MS));
+		// too far off to sound like the same alert, or nothing to fit to
+		assertEquals(0, PacketCadence.fitPeriod(100 * MS, 140 * MS));
+		assertEquals(0, PacketCadence.fitPeriod(400 * MS, 0));
+	}
+}
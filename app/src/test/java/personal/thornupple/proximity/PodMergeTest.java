@@ -0,0 +1,203 @@
+package personal.thornupple.proximity;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/*******************************************
+ /***** POD MERGE TEST ****
+ /*******************************************
+ a front and a rear SimulatedPeripheral at different rates, each behind its own GattSession the way ProxBLE
+ runs its pods, merged by a StreamMerger and decided on.  everything runs on one VirtualClock stepped a ms
+ at a time on the test's thread, so there is no thread per pod and a run takes well under a second.
+
+ every sensor reports the ms since the pods connected instead of a distance, so each merged sample says
+ exactly when each pod's part of it was taken
+ /*******************************************/
+public class PodMergeTest
+{
+	// a step of the virtual clock; readings are that far off their ideal time at most
+	private static final long STEP_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final long SLACK_MS = 2;
+	private static final long MAX_AGE_MS = TimeUnit.NANOSECONDS.toMillis(StreamMerger.DEFAULT_MAX_AGE_NANOS);
+	// which of the two pods is which, the same order ProxBLE uses
+	private static final int FRONT = 0;
+	private static final int REAR = 1;
+
+	@Test
+	public void everyDecodedFrameIsMerged()
+	{
+		final Run run = new Run(50, 5, 7, 1, 20, false);
+		assertTrue(run.decoded > 0);
+		// the read answer on each connection comes in as a value too, so count what was decoded
+		assertEquals(run.decoded, run.merger.getMergedCount());
+		assertEquals(run.decoded, run.decisions);
+	}
+
+	@Test
+	public void otherPodsReadingIsNeverFromTheFuture()
+	{
+		assertNull(new Run(50, 5, 7, 1, 20, false).future);
+		// the other way round: the rear pod the fast one
+		assertNull(new Run(7, 1, 50, 5, 20, false).future);
+	}
+
+	@Test
+	public void otherPodsReadingIsTheNewestThatArrived()
+	{
+		final Run run = new Run(50, 5, 7, 1, 20, false);
+		assertNull(run.behind);
+		// and the slow pod really was held between its samples, not just missing
+		assertTrue(run.maxLagMs[REAR] > run.intervalMs[FRONT]);
+	}
+
+	@Test
+	public void disconnectedRearPodGoesStaleWithinMaxAge()
+	{
+		final Run run = new Run(50, 5, 7, 1, 20, true);
+		assertTrue("the rear pod never went stale after it was disconnected", run.rearStaleFromMs >= 0);
+		// the first front sample past the max age is the first that can show it
+		assertTrue("stale " + (run.rearStaleFromMs - run.rearDroppedAtMs) + " ms after the drop",
+				run.rearStaleFromMs - run.rearDroppedAtMs <= MAX_AGE_MS + run.intervalMs[FRONT] + SLACK_MS);
+		assertNull(run.cameBack);
+		assertTrue(run.merger.getStaleCount() > 0);
+		// nothing before the drop was off either
+		assertNull(run.future);
+		assertNull(run.behind);
+	}
+
+	/*******************************************
+	 /***** RUN ****
+	 /*******************************************
+	 the two pods for seconds of virtual time, the consumer (decode, merge, decide, like ProximityDataClass)
+	 looking at every merged sample.  with dropRear the rear pod is disconnected half way through
+	 /*******************************************/
+	private static final class Run
+	{
+		final int[] intervalMs = new int[2];
+		final FrameDecoder[] decoders = {new FrameDecoder(), new FrameDecoder()};
+		final StreamMerger merger;
+		final ProximityDecision decision;
+		final SampleChannel.Sample sample = new SampleChannel.Sample();
+		final SensorFrame frame = new SensorFrame();
+		final SensorFrame merged = new SensorFrame();
+
+		final long[] maxLagMs = new long[2];
+		long decoded;
+		long decisions;
+		long lastFrontMs;
+		long rearDroppedAtMs = -1;
+		long rearStaleFromMs = -1;
+		// the first of each kind of problem, null if there was none
+		String future;
+		String behind;
+		String cameBack;
+
+		Run(int frontRate, int frontBatch, int rearRate, int rearBatch, int seconds, boolean dropRear)
+		{
+			final SensorLayout[] layouts = {SensorLayout.legacy(), SensorLayout.legacyRear()};
+			final int[] rates = {frontRate, rearRate};
+			final int[] batches = {frontBatch, rearBatch};
+			merger = new StreamMerger(layouts);
+			decision = new ProximityDecision(merger.getLayout());
+
+			final VirtualClock clock = new VirtualClock();
+			final SimulatedPeripheral[] peripherals = new SimulatedPeripheral[layouts.length];
+			final GattSession[] sessions = new GattSession[layouts.length];
+			for (int pod = 0; pod < layouts.length; pod++)
+			{
+				intervalMs[pod] = 1000 * batches[pod] / rates[pod];
+				final SimulatedPeripheral peripheral = new SimulatedPeripheral(layouts[pod], rates[pod]);
+				peripheral.setSamplesPerNotification(batches[pod]);
+				peripheral.setDistanceSource((sensor, elapsedNanos) -> (int) TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+				peripheral.setClock(clock);
+				peripherals[pod] = peripheral;
+
+				// no wakeup: nothing times out on a simulated link that answers every request
+				sessions[pod] = new GattSession(peripheral, new QuietSessionListener(), null, null);
+				sessions[pod].setClock(clock);
+				final int index = pod;
+				sessions[pod].setSampleListener(channel ->
+				{
+					while (channel.poll(sample))
+						onSample(index);
+				});
+			}
+
+			// both at once, so both pods count their ms from the same moment
+			for (int pod = 0; pod < sessions.length; pod++)
+				sessions[pod].connect("pod-" + pod);
+
+			// the readings are ms in a u16
+			final long endNanos = TimeUnit.SECONDS.toNanos(Math.min(seconds, 60));
+			final long dropNanos = dropRear ? endNanos / 2 : -1;
+			for (long now = 0; now <= endNanos; now += STEP_NANOS)
+			{
+				clock.advanceTo(now);
+				if (now == dropNanos)
+				{
+					sessions[REAR].disconnect();
+					rearDroppedAtMs = lastFrontMs;
+				}
+				for (SimulatedPeripheral peripheral : peripherals)
+					peripheral.step(now);
+			}
+		}
+
+		private void onSample(int pod)
+		{
+			if (!decoders[pod].decode(sample.buffer, frame))
+			{
+				return;
+			}
+			decoded++;
+			assertTrue("pod " + pod + " frame refused", merger.merge(pod, frame, sample.arrivalNanos, merged));
+			decision.decide(merged, sample.arrivalNanos);
+			decisions++;
+
+			final int other = 1 - pod;
+			final int ownFirst = merger.getFirstSensor(pod);
+			final int otherFirst = merger.getFirstSensor(other);
+			for (int index = 0; index < merged.sampleCount; index++)
+			{
+				final long ownMs = merged.getDistanceMm(index, ownFirst);
+				final int otherMm = merged.getDistanceMm(index, otherFirst);
+				if (pod == FRONT)
+					lastFrontMs = ownMs;
+
+				if (otherMm == SensorFrame.NO_READING_MM)
+				{
+					// before the other pod's first sample, or after the rear was dropped
+					if (other == REAR && rearDroppedAtMs >= 0 && rearStaleFromMs < 0)
+						rearStaleFromMs = ownMs;
+					continue;
+				}
+				if (other == REAR && rearStaleFromMs >= 0 && cameBack == null)
+				{
+					cameBack = "rear reading came back after going stale, at " + ownMs + " ms";
+				}
+
+				final long lagMs = ownMs - otherMm;
+				if (lagMs < -SLACK_MS && future == null)
+				{
+					future = "pod " + other + " reading from " + otherMm + " ms used for a sample at " + ownMs + " ms";
+				}
+				// a dropped pod is allowed to lag up to the max age before it goes stale
+				if (other == REAR && rearDroppedAtMs >= 0)
+				{
+					continue;
+				}
+				maxLagMs[other] = Math.max(maxLagMs[other], lagMs);
+				if (lagMs > intervalMs[other] + SLACK_MS && behind == null)
+				{
+					behind = "pod " + other + " reading " + lagMs + " ms behind at " + ownMs + " ms, it notifies every "
+							+ intervalMs[other] + " ms";
+				}
+			}
+		}
+	}
+}
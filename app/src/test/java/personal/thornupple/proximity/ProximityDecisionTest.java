@@ -0,0 +1,225 @@
+package personal.thornupple.proximity;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/*******************************************
+ /***** PROXIMITY DECISION TEST ****
+ /*******************************************
+ readings in, states out, 50 ms apart on the legacy three sensor layout
+ /*******************************************/
+public class ProximityDecisionTest
+{
+	private static final long SAMPLE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+	private static final int NO = SensorFrame.NO_READING_MM;
+
+	private static final SensorFilter[] FILTERS = {
+			SensorFilter.median(3, 3), SensorFilter.median(3, 5), SensorFilter.ema(3, 0.3f),
+			SensorFilter.kalman(3, 100f, 400f), SensorFilter.none(3)};
+
+	private long mNowNanos = TimeUnit.SECONDS.toNanos(100);
+
+	private long decide(ProximityDecision decision, int right, int center, int left)
+	{
+		mNowNanos += SAMPLE_NANOS;
+		return decision.decide(new int[]{right, center, left}, 0, mNowNanos);
+	}
+
+	private static ProximityDecision decision(SensorFilter filter)
+	{
+		filter.reset();
+		return new ProximityDecision(SensorLayout.legacy(), filter, VelocityEstimator.defaults(3),
+				ProximityDecision.DEFAULT_SWITCH_MARGIN_MM, ProximityDecision.DEFAULT_RELEASE_MARGIN_MM);
+	}
+
+	@Test
+	public void noEchoThenOutOfRangeStaysSilent()
+	{
+		for (SensorFilter filter : FILTERS)
+		{
+			final ProximityDecision decision = decision(filter);
+			for (int i = 0; i < 10; i++)
+				assertEquals(ToneScheduler.SILENT, decide(decision, NO, NO, NO));
+			for (int i = 0; i < 40; i++)
+			{
+				assertEquals(filter.getMode() + " sample " + i, ToneScheduler.SILENT, decide(decision, 2000, 2000, 2000));
+				assertTrue(decision.getClosestDistanceMm() >= ProximityDecision.MAX_DISTANCE_MM);
+			}
+		}
+	}
+
+	@Test
+	public void dropoutInASteadyReadingIsNotAnApproach()
+	{
+		for (SensorFilter filter : FILTERS)
+		{
+			final ProximityDecision decision = decision(filter);
+			for (int i = 0; i < 20; i++)
+				decide(decision, 2000, 2000, 2000);
+			// one sensor loses its echo for a moment, then reads where it was
+			decide(decision, 2000, NO, 2000);
+			decide(decision, 2000, NO, 2000);
+			for (int i = 0; i < 40; i++)
+				assertEquals(filter.getMode() + " sample " + i, ToneScheduler.SILENT, decide(decision, 2000, 2000, 2000));
+		}
+	}
+
+	@Test
+	public void noEchoGoesQuietAndACloseReadingAlertsAgain()
+	{
+		final ProximityDecision decision = decision(SensorFilter.median(3, 3));
+		for (int i = 0; i < 10; i++)
+			decide(decision, 2000, 300, 2000);
+		final long alert = decide(decision, 2000, 300, 2000);
+		assertNotEquals(ToneScheduler.SILENT, alert);
+
+		// one dropped echo: held, the tone neither stops nor changes
+		assertEquals(alert, decide(decision, 2000, NO, 2000));
+		assertEquals(alert, decide(decision, 2000, 300, 2000));
+
+		// the obstacle is gone (no echo at all): held up to the last miss, then quiet, not stuck on the last distance
+		for (int miss = 1; miss < ProximityDecision.MAX_MISSED_ECHOES; miss++)
+			assertEquals("miss " + miss, alert, decide(decision, 2000, NO, 2000));
+		assertEquals(ToneScheduler.SILENT, decide(decision, 2000, NO, 2000));
+		assertEquals(ToneScheduler.SILENT, decide(decision, 2000, NO, 2000));
+
+		assertNotEquals(ToneScheduler.SILENT, decide(decision, 2000, 300, 2000));
+		assertEquals(1, ToneScheduler.stateTone(decide(decision, 2000, 300, 2000)));
+	}
+
+	@Test
+	public void slowReadingsGiveUpOnAMissingEchoSooner()
+	{
+		final ProximityDecision decision = decision(SensorFilter.median(3, 3));
+		final int[] reading = {2000, 300, 2000};
+		final int[] none = {2000, NO, 2000};
+		final long period = TimeUnit.MILLISECONDS.toNanos(200);
+		for (int i = 0; i < 10; i++)
+			decision.decide(reading, 0, mNowNanos += period);
+		final long alert = decision.decide(reading, 0, mNowNanos += period);
+		// 200 ms since the echo is still a dropout, 400 ms is past MAX_ECHO_GAP_NANOS
+		assertEquals(alert, decision.decide(none, 0, mNowNanos += period));
+		assertEquals(ToneScheduler.SILENT, decision.decide(none, 0, mNowNanos += period));
+	}
+
+	@Test
+	public void filterStopsAJitteryReadingChatteringAtTheThreshold()
+	{
+		// a wall parked just past where the alert starts, read with about 4 cm of noise: unfiltered the tone
+		// keeps starting and stopping, every filter has to at least halve that
+		final int unfiltered = toneStartsAndStops(SensorFilter.none(3));
+		assertTrue("unfiltered went on or off " + unfiltered + " times", unfiltered > 80);
+		for (SensorFilter filter : FILTERS)
+		{
+			if (filter.getMode() == SensorFilter.Mode.NONE)
+				continue;
+			final int filtered = toneStartsAndStops(filter);
+			assertTrue(filter.getMode() + " went on or off " + filtered + " times, unfiltered " + unfiltered,
+					filtered * 2 < unfiltered);
+		}
+	}
+
+	// 20 s of readings at 50 ms around 620 mm, the same noise every time
+	private int toneStartsAndStops(SensorFilter filter)
+	{
+		final ProximityDecision decision = decision(filter);
+		final Random noise = new Random(42);
+		boolean sounding = false;
+		int changes = 0;
+		for (int i = 0; i < 400; i++)
+		{
+			final int center = ProximityDecision.MAX_DISTANCE_MM + 20 + (int) Math.round(noise.nextGaussian() * 40);
+			final boolean now = decide(decision, 2000, center, 2000) != ToneScheduler.SILENT;
+			if (now != sounding)
+				changes++;
+			sounding = now;
+		}
+		return changes;
+	}
+
+	@Test
+	public void steadyApproachStillSpeedsUpTheAlert()
+	{
+		final ProximityDecision decision = decision(SensorFilter.median(3, 3));
+		// 1 m/s straight at the center sensor from 1.5 m: time to contact brings the alert in early
+		boolean alerted = false;
+		for (int distance = 1500; distance > 700; distance -= 50)
+		{
+			alerted |= decide(decision, 2000, distance, 2000) != ToneScheduler.SILENT;
+		}
+		assertTrue(alerted);
+	}
+
+	@Test
+	public void retreatingObstacleDoesNotEscalate()
+	{
+		// backing away from a wall at 1 m/s: the same states as with time to contact off, step for step
+		final ProximityDecision withTtc = decision(SensorFilter.median(3, 3));
+		final ProximityDecision without = new ProximityDecision(SensorLayout.legacy(), SensorFilter.median(3, 3), null,
+				ProximityDecision.DEFAULT_SWITCH_MARGIN_MM, ProximityDecision.DEFAULT_RELEASE_MARGIN_MM);
+		for (int distance = 300; distance <= 800; distance += 50)
+		{
+			mNowNanos += SAMPLE_NANOS;
+			final int[] reading = {2000, distance, 2000};
+			final long state = withTtc.decide(reading, 0, mNowNanos);
+			assertEquals("at " + distance, without.decide(reading, 0, mNowNanos), state);
+			assertEquals("at " + distance, without.getClosestDistanceMm(), withTtc.getClosestDistanceMm());
+		}
+	}
+
+	@Test
+	public void approachAlertsEarlierThanAParkedObstacle()
+	{
+		// 1 m/s straight at the center sensor from 1.5 m, against a wall parked at each of the same distances
+		final ProximityDecision approach = decision(SensorFilter.median(3, 3));
+		int firstAlertMm = -1;
+		for (int distance = 1500; distance >= 500; distance -= 50)
+		{
+			final long state = decide(approach, 2000, distance, 2000);
+			if (firstAlertMm < 0 && state != ToneScheduler.SILENT)
+				firstAlertMm = distance;
+
+			// on its own clock, so the approach keeps its 50 ms steps
+			final ProximityDecision parked = decision(SensorFilter.median(3, 3));
+			final int[] reading = {2000, distance, 2000};
+			long parkedState = ToneScheduler.SILENT;
+			for (int i = 0; i < 20; i++)
+				parkedState = parked.decide(reading, 0, i * SAMPLE_NANOS);
+			assertEquals(distance, parked.getClosestDistanceMm());
+			assertEquals(distance < ProximityDecision.MAX_DISTANCE_MM, parkedState != ToneScheduler.SILENT);
+			if (state != ToneScheduler.SILENT)
+				assertTrue("at " + distance, approach.getClosestDistanceMm() < parked.getClosestDistanceMm());
+		}
+		// a parked wall only starts at MAX_DISTANCE_MM; 1.45 s from contact is well inside the horizon
+		assertTrue("first alert at " + firstAlertMm, firstAlertMm > 2 * ProximityDecision.MAX_DISTANCE_MM);
+		// half a second out at 500 mm sounds like a wall parked under 20 cm away
+		final int expected = ProximityDecision.getEffectiveDistance(500, 0.5f);
+		assertTrue(approach.getClosestDistanceMm() + " vs " + expected, Math.abs(approach.getClosestDistanceMm() - expected) <= 20);
+		assertTrue(approach.getClosestDistanceMm() < 200);
+	}
+
+	@Test
+	public void resettingSomeSensorsLeavesTheOthersAlone()
+	{
+		final ProximityDecision decision = decision(SensorFilter.median(3, 3));
+		for (int i = 0; i < 10; i++)
+			decide(decision, 300, 2000, 400);
+		assertNotEquals(ToneScheduler.SILENT, decision.getSensorState(0));
+		assertNotEquals(ToneScheduler.SILENT, decision.getSensorState(2));
+
+		decision.reset(0, 1);
+		assertEquals(ToneScheduler.SILENT, decision.getSensorState(0));
+		assertNotEquals(ToneScheduler.SILENT, decision.getSensorState(2));
+
+		// sensor 0 comes back somewhere else; its old readings are not in the median with it
+		decide(decision, 2000, 2000, 400);
+		assertEquals(ToneScheduler.SILENT, decision.getSensorState(0));
+		assertEquals(2, ToneScheduler.stateTone(decide(decision, 2000, 2000, 400)));
+	}
+}
@@ -0,0 +1,45 @@
+package personal.thornupple.proximity;
+
+/*******************************************
+ /***** QUIET SESSION LISTENER ****
+ /*******************************************
+ a GattSession.Listener that ignores everything, for tests the session's lifecycle is not what they are
+ about; extend it and override the calls that are
+ /*******************************************/
+class QuietSessionListener implements GattSession.Listener
+{
+	@Override
+	public void onConnected()
+	{
+	}
+
+	@Override
+	public void onDisconnected()
+	{
+	}
+
+	@Override
+	public void onServicesDiscovered()
+	{
+	}
+
+	@Override
+	public void onFirstSample(long connectNanos, long linkDropNanos)
+	{
+	}
+
+	@Override
+	public void onLinkReady(LinkNegotiator negotiator)
+	{
+	}
+
+	@Override
+	public void onReconnecting(int attempt, long delayNanos)
+	{
+	}
+
+	@Override
+	public void onGaveUp()
+	{
+	}
+}
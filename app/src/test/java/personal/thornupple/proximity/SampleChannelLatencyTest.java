@@ -0,0 +1,250 @@
+package personal.thornupple.proximity;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*******************************************
+ /***** SAMPLE CHANNEL LATENCY TEST ****
+ /*******************************************
+ the same stream of notifications through the sample channel (plus the decision thread) and through a
+ stand in for the old broadcast path: an extras map with a copy of the payload, queued to a looper thread
+ that unpacks it.  only what is the same on every run is checked here - what got through, what a
+ consumer that fell behind works through, what the gatt side allocates.  how long the hop takes on
+ either path is HandoffBenchmark's job
+ /*******************************************/
+public class SampleChannelLatencyTest
+{
+	private static final int SAMPLES = 2000;
+	private static final int WARMUP = 500;
+	// 1 kHz, well past anything the chair sends, with the same 16 slot ring GattSession uses
+	private static final long SPACING_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	@Test
+	public void channelDeliversEverySampleWithoutGarbage() throws Exception
+	{
+		final Run channel = runChannel();
+		// a stall of a whole ring (16 ms here) may overwrite some, but nothing is refused or lost unaccounted
+		assertEquals(SAMPLES + WARMUP, channel.delivered + channel.dropped);
+		assertEquals("bytes allocated per sample on the producer", 0, channel.bytesPerSample(), 0);
+	}
+
+	@Test
+	public void backloggedConsumerDecidesOnTheNewestWithinARing() throws Exception
+	{
+		// the consumer hangs on the first sample while a hundred more come in, then carries on
+		final int total = 100;
+		final SampleChannel sampleChannel = new SampleChannel(16);
+		final CountDownLatch stuck = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		final SampleChannel.Sample sample = new SampleChannel.Sample();
+		final FrameDecoder decoder = new FrameDecoder();
+		final SensorFrame frame = new SensorFrame();
+		final ProximityDecision decision = new ProximityDecision(SensorLayout.legacy());
+		final int[] worked = new int[1];
+		final long[] lastSequence = {-1};
+		final int[] lastMm = new int[1];
+
+		final DecisionThread decisionThread = new DecisionThread(channel ->
+		{
+			while (channel.poll(sample))
+			{
+				assertTrue(decoder.decode(sample.buffer, frame));
+				decision.decide(frame, sample.arrivalNanos);
+				worked[0]++;
+				lastSequence[0] = sample.sequence;
+				lastMm[0] = frame.getDistanceMm(0, 0);
+				if (worked[0] == 1)
+				{
+					stuck.countDown();
+					awaitQuietly(release);
+				}
+			}
+			if (lastSequence[0] == total - 1)
+				done.countDown();
+		}, runnable -> new Thread(runnable, "decision"));
+		decisionThread.start();
+
+		publish(sampleChannel, decisionThread, 0);
+		assertTrue(stuck.await(10, TimeUnit.SECONDS));
+		for (int i = 1; i < total; i++)
+			publish(sampleChannel, decisionThread, i);
+		release.countDown();
+		assertTrue("consumer never got to the newest sample", done.await(10, TimeUnit.SECONDS));
+		decisionThread.stop();
+
+		// the one it hung on, then a ring's worth ending with the newest; the rest were overwritten
+		assertEquals(1 + sampleChannel.getCapacity(), worked[0]);
+		assertEquals(total - 1, lastSequence[0]);
+		assertEquals((total - 1 + 50) * 10, lastMm[0]);
+		assertEquals(total - 1 - sampleChannel.getCapacity(), sampleChannel.getDroppedCount());
+	}
+
+	// a legacy frame, every sensor at 50 cm + i
+	private static void publish(SampleChannel channel, DecisionThread decisionThread, int i)
+	{
+		final byte cm = (byte) (50 + i);
+		channel.publish(new byte[]{cm, cm, cm}, i);
+		decisionThread.onSampleAvailable(channel);
+	}
+
+	private static void awaitQuietly(CountDownLatch latch)
+	{
+		try
+		{
+			latch.await(10, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Test
+	public void broadcastPathAllocatesForEverySample() throws Exception
+	{
+		final Run broadcast = runBroadcast();
+		assertEquals(SAMPLES + WARMUP, broadcast.delivered);
+		assertTrue("broadcast stand in should allocate per sample", broadcast.bytesPerSample() > 0);
+	}
+
+	/*******************************************
+	 /***** CHANNEL PATH ****
+	 /*******************************************/
+	private static Run runChannel() throws InterruptedException
+	{
+		final Run run = new Run();
+		final CountDownLatch done = new CountDownLatch(1);
+		final SampleChannel sampleChannel = new SampleChannel(16);
+		final SampleChannel.Sample sample = new SampleChannel.Sample();
+		final FrameDecoder decoder = new FrameDecoder();
+		final SensorFrame frame = new SensorFrame();
+
+		final DecisionThread decisionThread = new DecisionThread(channel ->
+		{
+			while (channel.poll(sample))
+			{
+				if (decoder.decode(sample.buffer, frame))
+				{
+					run.delivered++;
+				}
+			}
+			run.dropped = (int) channel.getDroppedCount();
+			if (run.delivered + run.dropped >= SAMPLES + WARMUP)
+			{
+				done.countDown();
+			}
+		}, runnable -> new Thread(runnable, "decision"));
+		decisionThread.start();
+
+		final byte[] payload = {10, 20, 30};
+		run.produce(() ->
+		{
+			sampleChannel.publish(payload, System.nanoTime());
+			decisionThread.onSampleAvailable(sampleChannel);
+		});
+
+		assertTrue("channel path stalled", done.await(10, TimeUnit.SECONDS));
+		decisionThread.stop();
+		return run;
+	}
+
+	/*******************************************
+	 /***** BROADCAST PATH ****
+	 /*******************************************
+	 what sendBroadcast did in process: an intent with its extras, the payload copied into them, and the
+	 receiver unpacking it on the looper
+	 /*******************************************/
+	private static Run runBroadcast() throws InterruptedException
+	{
+		final Run run = new Run();
+		final LinkedBlockingQueue<Map<String, Object>> looper = new LinkedBlockingQueue<>();
+		final FrameDecoder decoder = new FrameDecoder();
+		final SensorFrame frame = new SensorFrame();
+
+		final Thread receiver = new Thread(() ->
+		{
+			try
+			{
+				while (run.delivered < SAMPLES + WARMUP)
+				{
+					final Map<String, Object> extras = looper.take();
+					final byte[] data = (byte[]) extras.get("data");
+					if (decoder.decode(ByteBuffer.wrap(data), frame))
+					{
+						run.delivered++;
+					}
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}, "main-looper");
+		receiver.start();
+
+		final byte[] payload = {10, 20, 30};
+		run.produce(() ->
+		{
+			final Map<String, Object> extras = new HashMap<>();
+			extras.put("data", payload.clone());
+			extras.put("arrival", System.nanoTime());
+			looper.add(extras);
+		});
+
+		receiver.join(TimeUnit.SECONDS.toMillis(10));
+		assertTrue("broadcast path stalled", !receiver.isAlive());
+		return run;
+	}
+
+	/*******************************************
+	 /***** RUN ****
+	 /*******************************************
+	 what got through, written only by the receiving thread.  the producer's allocations are counted from
+	 the first sample after WARMUP on
+	 /*******************************************/
+	private static final class Run
+	{
+		volatile int delivered;
+		volatile int dropped;
+		long producerBytes = -1;
+
+		void produce(Runnable send)
+		{
+			long next = System.nanoTime();
+			long before = 0;
+			for (int i = 0; i < SAMPLES + WARMUP; i++)
+			{
+				if (i == WARMUP)
+				{
+					before = Allocations.allocatedBytes();
+				}
+				while (System.nanoTime() < next)
+				{
+					LockSupport.parkNanos(SPACING_NANOS / 4);
+				}
+				send.run();
+				next += SPACING_NANOS;
+			}
+			final long after = Allocations.allocatedBytes();
+			producerBytes = before < 0 || after < 0 ? -1 : after - before;
+		}
+
+		double bytesPerSample()
+		{
+			Assume.assumeTrue("thread allocation counting not available", producerBytes >= 0);
+			return (double) producerBytes / SAMPLES;
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package personal.thornupple.proximity;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*******************************************
+ /***** SAMPLE CHANNEL TEST ****
+ /*******************************************
+ every sample comes out once and in order, and a full ring throws away its oldest sample, not the newest
+ /*******************************************/
+public class SampleChannelTest
+{
+	private static byte[] payload(int value)
+	{
+		return new byte[]{(byte) value, (byte) (value >> 8), 0};
+	}
+
+	private static int value(SampleChannel.Sample sample)
+	{
+		return (sample.data[0] & 0xFF) | (sample.data[1] & 0xFF) << 8;
+	}
+
+	@Test
+	public void pollReturnsEverySampleInOrder()
+	{
+		final SampleChannel channel = new SampleChannel(8);
+		final SampleChannel.Sample sample = new SampleChannel.Sample();
+		for (int i = 0; i < 5; i++)
+			assertTrue(channel.publish(payload(i), 1000 + i));
+
+		for (int i = 0; i < 5; i++)
+		{
+			assertTrue(channel.poll(sample));
+			assertEquals(i, value(sample));
+			assertEquals(1000 + i, sample.arrivalNanos);
+			assertEquals(i, sample.sequence);
+			assertEquals(3, sample.buffer.remaining());
+		}
+		assertFalse(channel.poll(sample));
+		assertEquals(0, channel.getDroppedCount());
+	}
+
+	@Test
+	public void fullRingOverwritesTheOldest()
+	{
+		final SampleChannel channel = new SampleChannel(4);
+		final SampleChannel.Sample sample = new SampleChannel.Sample();
+		for (int i = 0; i < 4; i++)
+			assertTrue(channel.publish(payload(i), i));
+		// no room: 0 and then 1 make way
+		assertFalse(channel.publish(payload(4), 4));
+		assertFalse(channel.publish(payload(5), 5));
+		assertEquals(2, channel.getDroppedCount());
+
+		for (int i = 2; i < 6; i++)
+		{
+			assertTrue(channel.poll(sample));
+			assertEquals(i, value(sample));
+			assertEquals(i, sample.sequence);
+		}
+		assertFalse(channel.poll(sample));
+	}
+
+	@Test
+	public void concurrentProducerNeverTearsASample() throws InterruptedException
+	{
+		final int count = 200_000;
+		final SampleChannel channel = new SampleChannel(4);
+		final AtomicBoolean finished = new AtomicBoolean();
+		final Thread producer = new Thread(() ->
+		{
+			final byte[] data = new byte[SampleChannel.MAX_PAYLOAD_BYTES];
+			for (int i = 0; i < count; i++)
+			{
+				// every byte the same, so a half overwritten copy shows
+				Arrays.fill(data, (byte) i);
+				channel.publish(data, i);
+			}
+			finished.set(true);
+		});
+		producer.start();
+
+		final SampleChannel.Sample sample = new SampleChannel.Sample();
+		long received = 0;
+		long last = -1;
+		while (true)
+		{
+			// read before polling, so nothing published before the end is missed
+			final boolean done = finished.get();
+			if (!channel.poll(sample))
+			{
+				if (done)
+					break;
+				continue;
+			}
+			received++;
+			assertTrue("out of order: " + sample.sequence + " after " + last, sample.sequence > last);
+			last = sample.sequence;
+			assertEquals(sample.arrivalNanos, sample.sequence);
+			for (int i = 1; i < sample.length; i++)
+			{
+				if (sample.data[i] != sample.data[0])
+					throw new AssertionError("torn sample " + sample.sequence);
+			}
+			assertEquals((byte) sample.sequence, sample.data[0]);
+		}
+		producer.join();
+		assertEquals(count, received + channel.getDroppedCount());
+	}
+
+	@Test
+	public void samplesCarryTheConnectionTheyCameOver()
+	{
+		final SampleChannel channel = new SampleChannel(8);
+		final SampleChannel.Sample sample = new SampleChannel.Sample();
+		channel.newConnection();
+		channel.publish(payload(1), 1);
+		channel.newConnection();
+		channel.publish(payload(2), 2);
+
+		// the first one is still from the old link, even though the new one was up when it was taken
+		assertTrue(channel.poll(sample));
+		assertEquals(1, sample.connection);
+		assertTrue(channel.poll(sample));
+		assertEquals(2, sample.connection);
+	}
+}
@@ -0,0 +1,120 @@
+package personal.thornupple.proximity;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*******************************************
+ /***** SCAN CANDIDATES TEST ****
+ /*******************************************
+ advertisements in, a ranking out: the smoothed rssi, who drops out for not being heard, who wins a tie,
+ and the wakeup counts
+ /*******************************************/
+public class ScanCandidatesTest
+{
+	private static final long S = TimeUnit.SECONDS.toNanos(1);
+
+	private static String addresses(List<ScanCandidates.Candidate> ranked)
+	{
+		final StringBuilder out = new StringBuilder();
+		for (ScanCandidates.Candidate candidate : ranked)
+			out.append(out.length() == 0 ? "" : " ").append(candidate.getAddress());
+		return out.toString();
+	}
+
+	@Test
+	public void oneLoudAdvertisementOnlyMovesTheRssiAQuarter()
+	{
+		final ScanCandidates candidates = new ScanCandidates();
+		candidates.start(0);
+		assertTrue(candidates.offer("chair", "ProxBLE", -80, 1));
+		final ScanCandidates.Candidate chair = candidates.rank(1).get(0);
+		// the first one is all there is to go on
+		assertEquals(-80, chair.getRssi());
+		assertFalse(candidates.offer("chair", null, -60, 2));
+		assertEquals(-75, chair.getRssi());
+		candidates.offer("chair", null, -60, 3);
+		// -71.25
+		assertEquals(-71, chair.getRssi());
+		for (int i = 0; i < 50; i++)
+			candidates.offer("chair", null, -60, 4 + i);
+		assertEquals(-60, chair.getRssi());
+		assertEquals(53, chair.getSightings());
+		// a packet without the name does not forget it
+		assertEquals("ProxBLE", chair.getName());
+		assertEquals(1, candidates.size());
+	}
+
+	@Test
+	public void notHeardForMaxAgeDropsOutUntilHeardAgain()
+	{
+		final ScanCandidates candidates = new ScanCandidates(10 * S);
+		candidates.start(0);
+		candidates.offer("near", null, -50, 0);
+		candidates.offer("far", null, -90, 5 * S);
+
+		assertEquals("near far", addresses(candidates.rank(10 * S)));
+		assertEquals("far", addresses(candidates.rank(10 * S + 1)));
+		assertEquals("", addresses(candidates.rank(16 * S)));
+		// still known, just not ranked
+		assertEquals(2, candidates.size());
+
+		// a result delivered late in a batch does not make it look older than it is
+		candidates.offer("near", null, -50, 20 * S);
+		candidates.offer("near", null, -50, 19 * S);
+		assertEquals("near", addresses(candidates.rank(30 * S)));
+		assertEquals("", addresses(candidates.rank(30 * S + 1)));
+	}
+
+	@Test
+	public void strongestWinsAndMoreSightingsBreakATie()
+	{
+		final ScanCandidates candidates = new ScanCandidates();
+		candidates.start(0);
+		candidates.offer("once", null, -70, 1);
+		for (int i = 0; i < 3; i++)
+			candidates.offer("thrice", null, -70, 2 + i);
+		candidates.offer("twice", null, -70, 5);
+		candidates.offer("twice", null, -70, 6);
+		// one sighting, but the strongest
+		candidates.offer("loud", null, -40, 7);
+		assertEquals("loud thrice twice once", addresses(candidates.rank(8)));
+
+		// within half a dB is the same rssi once rounded, so the most often heard goes first
+		candidates.offer("once", null, -69, 9);
+		candidates.offer("once", null, -70, 10);
+		candidates.offer("once", null, -70, 11);
+		assertEquals(-70, candidates.rank(12).get(1).getRssi());
+		assertEquals("loud once thrice twice", addresses(candidates.rank(12)));
+	}
+
+	@Test
+	public void newScanForgetsAndCountsWakeups()
+	{
+		final ScanCandidates candidates = new ScanCandidates();
+		candidates.start(0);
+		candidates.offer("chair", null, -60, S);
+		// unbatched: one result per wakeup
+		for (int i = 0; i < 30; i++)
+			candidates.onCallback(1);
+		assertEquals(60f, candidates.getCallbacksPerMinute(30 * S), 0.01f);
+
+		candidates.start(100 * S);
+		assertEquals(0, candidates.size());
+		assertEquals(0, candidates.getCallbackCount());
+		// batched: the same results in a tenth of the wakeups
+		for (int i = 0; i < 3; i++)
+			candidates.onCallback(10);
+		candidates.finish(130 * S);
+		assertEquals(30, candidates.getResultCount());
+		// stopped: the rates no longer fall with time
+		assertEquals(6f, candidates.getCallbacksPerMinute(1000 * S), 0.01f);
+		assertEquals(60f, candidates.getResultsPerMinute(1000 * S), 0.01f);
+		assertEquals(30 * S, candidates.getElapsedNanos(1000 * S));
+	}
+}
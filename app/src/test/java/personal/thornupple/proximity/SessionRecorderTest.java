@@ -0,0 +1,185 @@
+package personal.thornupple.proximity;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/*******************************************
+ /***** SESSION RECORDER TEST ****
+ /*******************************************
+ samples through a SessionRecorder into a temporary directory and back out with a SessionReader: the
+ same time, sequence and distances, across segments, and only as many segments as it is allowed to keep
+ /*******************************************/
+public class SessionRecorderTest
+{
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	@Rule
+	public final TemporaryFolder mFolder = new TemporaryFolder();
+
+	// what went in, one entry per sample: {time ms, sequence, sensor count, distances...}
+	private final List<int[]> mRecorded = new ArrayList<>();
+	private final SensorFrame mFrame = new SensorFrame();
+	private final long mStartNanos = TimeUnit.SECONDS.toNanos(1000);
+
+	@Test
+	public void everySampleComesBackAsItWent() throws IOException
+	{
+		final File directory = mFolder.newFolder("sessions");
+		final SessionRecorder recorder = SessionRecorder.defaults(directory);
+		recorder.start();
+		// closing in, then a sensor losing its echo and finding it again: deltas both ways, and the biggest
+		record(recorder, 0, 1, 0, 3, 2000, 1500, 900);
+		record(recorder, 50, 2, 0, 3, 1950, 1400, 850);
+		record(recorder, 100, 3, 0, 3, 1900, SensorFrame.NO_READING_MM, 800);
+		record(recorder, 150, 4, 0, 3, 1850, 120, 0);
+		// a batch of three 20 ms apart, arriving with the last one
+		record(recorder, 250, 5, 20, 3, 1800, 110, 5, 1790, 100, 10, 1780, 90, 15);
+		// the link came back: the sequence starts over, a big step backwards
+		record(recorder, 300, 0, 0, 3, 1770, 80, 20);
+		record(recorder, 350, 65535, 0, 3, 10, 65534, 1);
+		recorder.stop();
+
+		assertNull(recorder.getError());
+		assertEquals(0, recorder.getDroppedCount());
+		assertEquals(1, SessionReader.listSegments(directory).size());
+		assertEquals(mRecorded.size(), readBack(directory, 0));
+	}
+
+	@Test
+	public void newSensorCountStartsANewSegment() throws IOException
+	{
+		final File directory = mFolder.newFolder("sessions");
+		final SessionRecorder recorder = SessionRecorder.defaults(directory);
+		recorder.start();
+		record(recorder, 0, 1, 0, 3, 500, 600, 700);
+		record(recorder, 50, 2, 0, 3, 510, 610, 710);
+		// the rear pod joined
+		record(recorder, 100, 3, 0, 6, 520, 620, 720, 1000, SensorFrame.NO_READING_MM, 1200);
+		record(recorder, 150, 4, 0, 6, 530, 630, 730, 990, 1100, 1190);
+		recorder.stop();
+
+		assertEquals(2, SessionReader.listSegments(directory).size());
+		assertEquals(mRecorded.size(), readBack(directory, 0));
+	}
+
+	@Test
+	public void fullSegmentsRollOverAndOnlyTheNewestAreKept() throws IOException
+	{
+		final File directory = mFolder.newFolder("sessions");
+		// room for a handful of samples each
+		final SessionRecorder recorder = new SessionRecorder(directory, 128, 4);
+		recorder.start();
+		for (int i = 0; i < 300; i++)
+		{
+			// a wandering reading, with now and then a lost echo
+			final int center = i % 17 == 0 ? SensorFrame.NO_READING_MM : 300 + i * 37 % 900;
+			record(recorder, i * 50, i, 0, 3, 2000 - i, center, i * 7919 % 4000);
+		}
+		recorder.stop();
+
+		assertNull(recorder.getError());
+		assertEquals(0, recorder.getDroppedCount());
+		final List<File> segments = SessionReader.listSegments(directory);
+		assertEquals(4, segments.size());
+		// the numbering carries on; the oldest were deleted, not the newest
+		final int last = SessionRecorder.segmentIndex(segments.get(3));
+		assertTrue("only " + (last + 1) + " segments were written", last > 10);
+		for (int i = 0; i < 4; i++)
+			assertEquals(last - 3 + i, SessionRecorder.segmentIndex(segments.get(i)));
+
+		// what is left is the end of the session, nothing missing in between
+		final int kept = countSamples(directory);
+		assertTrue(kept > 4 && kept < mRecorded.size());
+		assertEquals(kept, readBack(directory, mRecorded.size() - kept));
+	}
+
+	@Test
+	public void startingAgainCarriesOnTheNumbering() throws IOException
+	{
+		final File directory = mFolder.newFolder("sessions");
+		for (int run = 0; run < 2; run++)
+		{
+			final SessionRecorder recorder = SessionRecorder.defaults(directory);
+			recorder.start();
+			record(recorder, run * 1000, run, 0, 3, 100, 200, 300);
+			recorder.stop();
+		}
+		final List<File> segments = SessionReader.listSegments(directory);
+		assertEquals(2, segments.size());
+		assertEquals(0, SessionRecorder.segmentIndex(segments.get(0)));
+		assertEquals(1, SessionRecorder.segmentIndex(segments.get(1)));
+		assertEquals(2, readBack(directory, 0));
+	}
+
+	// a frame of readings.length / sensors samples, periodMs apart, the last of them at timeMs
+	private void record(SessionRecorder recorder, int timeMs, int sequence, int periodMs, int sensors, int... readings)
+	{
+		mFrame.sequence = sequence;
+		mFrame.sensorCount = sensors;
+		mFrame.sampleCount = readings.length / sensors;
+		mFrame.samplePeriodMs = periodMs;
+		System.arraycopy(readings, 0, mFrame.distancesMm, 0, readings.length);
+		recorder.record(mFrame, mStartNanos + timeMs * MS);
+
+		for (int sample = 0; sample < mFrame.sampleCount; sample++)
+		{
+			final int[] expected = new int[3 + sensors];
+			expected[0] = timeMs - (mFrame.sampleCount - 1 - sample) * periodMs;
+			expected[1] = sequence;
+			expected[2] = sensors;
+			System.arraycopy(readings, sample * sensors, expected, 3, sensors);
+			mRecorded.add(expected);
+		}
+	}
+
+	// reads the directory back against what was recorded from index first on; returns how many samples
+	private int readBack(File directory, int first) throws IOException
+	{
+		final SessionReader.Sample sample = new SessionReader.Sample();
+		int count = 0;
+		try (SessionReader reader = SessionReader.open(directory))
+		{
+			while (reader.next(sample))
+			{
+				final int[] expected = mRecorded.get(first + count);
+				final String which = "sample " + (first + count);
+				assertEquals(which, expected[0], (sample.timeNanos - mStartNanos) / MS);
+				assertEquals(which, expected[1], sample.sequence);
+				assertEquals(which, expected[2], sample.sensorCount);
+				final int[] distances = new int[sample.sensorCount];
+				System.arraycopy(sample.distancesMm, 0, distances, 0, sample.sensorCount);
+				final int[] expectedDistances = new int[expected[2]];
+				System.arraycopy(expected, 3, expectedDistances, 0, expected[2]);
+				assertArrayEquals(which, expectedDistances, distances);
+				count++;
+			}
+			assertFalse(reader.next(sample));
+		}
+		return count;
+	}
+
+	private static int countSamples(File directory) throws IOException
+	{
+		final SessionReader.Sample sample = new SessionReader.Sample();
+		int count = 0;
+		try (SessionReader reader = SessionReader.open(directory))
+		{
+			while (reader.next(sample))
+				count++;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,131 @@
+package personal.thornupple.proximity;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*******************************************
+ /***** STREAM MERGER TEST ****
+ /*******************************************
+ a front and a rear pod merged into one frame and decided on, the way ProximityDataClass does it
+ /*******************************************/
+public class StreamMergerTest
+{
+	private static final int FRONT = 0;
+	private static final int REAR = 1;
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final SensorLayout[] mLayouts = {SensorLayout.legacy(), SensorLayout.legacyRear()};
+	private final StreamMerger mMerger = new StreamMerger(mLayouts);
+	private final ProximityDecision mDecision = new ProximityDecision(mMerger.getLayout());
+	private final SensorFrame mFrame = new SensorFrame();
+	private final SensorFrame mMerged = new SensorFrame();
+
+	// one notification of one sample, every sensor of the pod at distanceMm
+	private long merge(int pod, int distanceMm, long arrivalNanos)
+	{
+		mFrame.version = FrameDecoder.VERSION_BATCHED;
+		mFrame.sensorCount = mLayouts[pod].getCount();
+		mFrame.sampleCount = 1;
+		mFrame.samplePeriodMs = 0;
+		mFrame.heldSensors = 0;
+		Arrays.fill(mFrame.distancesMm, 0, mFrame.sensorCount, distanceMm);
+		assertTrue(mMerger.merge(pod, mFrame, arrivalNanos, mMerged));
+		return mDecision.decide(mMerged, arrivalNanos);
+	}
+
+	@Test
+	public void otherPodsSensorsAreFlaggedHeld()
+	{
+		final int front = (1 << mLayouts[FRONT].getCount()) - 1;
+		final int rear = ((1 << mLayouts[REAR].getCount()) - 1) << mMerger.getFirstSensor(REAR);
+
+		merge(FRONT, 2000, 100 * MS);
+		assertEquals(rear, mMerged.heldSensors);
+		merge(REAR, 2000, 120 * MS);
+		assertEquals(front, mMerged.heldSensors);
+	}
+
+	@Test
+	public void rearPodJoiningLateStaysSilent()
+	{
+		// both pods 2 m from anything, the rear one only connects after 100 front samples
+		for (int sample = 0; sample < 300; sample++)
+		{
+			final long now = (1000 + sample * 20) * MS;
+			assertEquals("front sample " + sample, ToneScheduler.SILENT, merge(FRONT, 2000, now));
+			if (sample >= 100)
+				assertEquals("rear sample " + sample, ToneScheduler.SILENT, merge(REAR, 2000, now + 7 * MS));
+		}
+	}
+
+	@Test
+	public void rearPodReconnectingStaysSilent()
+	{
+		for (int sample = 0; sample < 400; sample++)
+		{
+			final long now = (1000 + sample * 20) * MS;
+			assertEquals("front sample " + sample, ToneScheduler.SILENT, merge(FRONT, 2000, now));
+			// gone for two seconds in the middle, long past the merger's max age
+			if (sample < 150 || sample >= 250)
+				assertEquals("rear sample " + sample, ToneScheduler.SILENT, merge(REAR, 2000, now + 7 * MS));
+		}
+		assertTrue(mMerger.getStaleCount() > 0);
+	}
+
+	@Test
+	public void slowPodHeldBetweenItsSamplesKeepsItsState()
+	{
+		// the rear pod sees something at 30 cm, 4 times a second; the front at 50 Hz keeps deciding in between
+		for (int sample = 0; sample < 200; sample++)
+		{
+			final long now = (1000 + sample * 20) * MS;
+			if (sample % 12 == 0)
+				merge(REAR, 300, now - 3 * MS);
+			final long state = merge(FRONT, 2000, now);
+			if (sample > 24)
+			{
+				assertTrue("front sample " + sample, state != ToneScheduler.SILENT);
+				assertTrue(mDecision.getSensorState(mMerger.getFirstSensor(REAR)) != ToneScheduler.SILENT);
+			}
+		}
+	}
+
+	@Test
+	public void heldCopiesDoNotSkewTheSlowPodsClosingSpeed()
+	{
+		// the rear pod on its own, for what its sensors should come to
+		final ProximityDecision alone = new ProximityDecision(mLayouts[REAR]);
+		final SensorFrame rear = new SensorFrame();
+		final int first = mMerger.getFirstSensor(REAR);
+
+		// backing into a wall at 1 m/s from 2.5 m, the rear pod at 5 Hz and the front one at 50 Hz
+		boolean alerted = false;
+		for (int sample = 0; sample < 100; sample++)
+		{
+			final long now = (1000 + sample * 20) * MS;
+			if (sample % 10 == 0)
+			{
+				final int distance = 2500 - sample * 20;
+				merge(REAR, distance, now - 3 * MS);
+				rear.sensorCount = mLayouts[REAR].getCount();
+				rear.sampleCount = 1;
+				Arrays.fill(rear.distancesMm, 0, rear.sensorCount, distance);
+				alone.decide(rear, now - 3 * MS);
+			}
+			merge(FRONT, 2000, now);
+			for (int sensor = 0; sensor < mLayouts[REAR].getCount(); sensor++)
+			{
+				assertEquals("rear sensor " + sensor + " at front sample " + sample,
+						alone.getSensorState(sensor), mDecision.getSensorState(first + sensor));
+				alerted |= alone.getSensorState(sensor) != ToneScheduler.SILENT;
+			}
+		}
+		// the closing speed is what brings it in; 2.5 m to 0.5 m is mostly out of plain range
+		assertTrue(alerted);
+	}
+}
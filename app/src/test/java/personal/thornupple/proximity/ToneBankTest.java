@@ -0,0 +1,216 @@
+package personal.thornupple.proximity;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*******************************************
+ /***** TONE BANK TEST ****
+ /*******************************************
+ plays the bank the way a static AudioTrack would (the buffer once, the loop repeated getLoopCount times)
+ into a recording sink, and checks what comes out: the length asked for, no seam, and a fade at the end
+ of every pulse whatever its length
+ /*******************************************/
+public class ToneBankTest
+{
+	private static final ToneConfig CONFIG = ToneConfig.defaults(4);
+	private static final ToneBank BANK = new ToneBank(CONFIG);
+	private static final double AMPLITUDE = Short.MAX_VALUE * CONFIG.volume;
+
+	/*******************************************
+	 /***** PCM SINK ****
+	 /*******************************************
+	 a tone sink that renders each pulse into a fixed buffer, AudioTrack loop semantics and all, and counts
+	 the starts and stops; allocates nothing once built
+	 /*******************************************/
+	static final class PcmSink implements ToneSink
+	{
+		final short[] rendered = new short[CONFIG.sampleRate * 2];
+		int renderedFrames;
+		int lastTone = -1;
+		int lastDurationMs;
+		int starts;
+		int stops;
+
+		@Override
+		public void startTone(int tone, int durationMs)
+		{
+			starts++;
+			lastTone = tone;
+			lastDurationMs = durationMs;
+			renderedFrames = render(tone, BANK.getLoopCount(tone, durationMs), rendered);
+		}
+
+		@Override
+		public void stopTone()
+		{
+			stops++;
+		}
+	}
+
+	// what a static track plays from the top; a loop count of -1 fills the output
+	static int render(int tone, int loopCount, short[] out)
+	{
+		final short[] pcm = BANK.getPcm(tone);
+		final int loopStart = BANK.getLoopStartFrame(tone);
+		final int loopEnd = BANK.getLoopEndFrame(tone);
+		int loops = loopCount;
+		int head = 0;
+		int frames = 0;
+		while (frames < out.length && head < pcm.length)
+		{
+			out[frames++] = pcm[head++];
+			if (head == loopEnd && loops != 0)
+			{
+				head = loopStart;
+				if (loops > 0)
+					loops--;
+			}
+		}
+		return frames;
+	}
+
+	@Test
+	public void everyPulseLengthIsMatchedAndEndsOnTheFade()
+	{
+		final short[] out = new short[CONFIG.sampleRate * 2];
+		for (int tone = 0; tone < BANK.getToneCount(); tone++)
+		{
+			final int loopFrames = BANK.getLoopEndFrame(tone) - BANK.getLoopStartFrame(tone);
+			final int fadeFrames = BANK.getLoopStartFrame(tone);
+			for (int durationMs = 25; durationMs <= 1000; durationMs += 7)
+			{
+				final int frames = render(tone, BANK.getLoopCount(tone, durationMs), out);
+				final int wanted = CONFIG.sampleRate * durationMs / 1000;
+				assertTrue("tone " + tone + " " + durationMs + " ms played " + frames + " frames",
+						Math.abs(frames - wanted) <= loopFrames / 2 + 1);
+
+				// in from and out to silence, with the envelope still climbing / falling next to the edges
+				assertTrue(Math.abs(out[0]) <= 1);
+				assertTrue("tone " + tone + " " + durationMs + " ms ends at " + out[frames - 1],
+						Math.abs(out[frames - 1]) < AMPLITUDE * 0.01);
+				assertTrue(peak(out, frames - fadeFrames / 4, frames) < AMPLITUDE * 0.2);
+				assertTrue(peak(out, frames - 2 * fadeFrames, frames - fadeFrames) > AMPLITUDE * 0.9);
+			}
+		}
+	}
+
+	@Test
+	public void loopHasNoSeam()
+	{
+		final short[] out = new short[CONFIG.sampleRate];
+		for (int tone = 0; tone < BANK.getToneCount(); tone++)
+		{
+			final int frames = render(tone, -1, out);
+			assertEquals(out.length, frames);
+			// no step between neighbouring frames bigger than the sine itself ever makes (plus rounding)
+			final double maxStep = AMPLITUDE * 2 * Math.PI * BANK.getFrequencyHz(tone) / CONFIG.sampleRate + 2;
+			for (int i = 1; i < frames; i++)
+			{
+				assertTrue("tone " + tone + " jumps at frame " + i, Math.abs(out[i] - out[i - 1]) <= maxStep);
+			}
+		}
+	}
+
+	@Test
+	public void tonesStayCloseToTheConfiguredFrequency()
+	{
+		for (int tone = 0; tone < BANK.getToneCount(); tone++)
+		{
+			final int wanted = CONFIG.frequenciesHz[tone];
+			// well under what anyone could hear, about 3 cents
+			assertEquals(wanted, BANK.getFrequencyHz(tone), wanted * 0.002);
+		}
+	}
+
+	@Test
+	public void solidToneLoopsForever()
+	{
+		assertEquals(-1, BANK.getLoopCount(0, 0));
+		// and the shortest pulse is the buffer as it is
+		assertEquals(0, BANK.getLoopCount(0, 1));
+	}
+
+	@Test
+	public void schedulerPlaysEachPulseAtItsOnTime()
+	{
+		final PcmSink sink = new PcmSink();
+		final ToneScheduler scheduler = new ToneScheduler(sink);
+		scheduler.setPhaseLock(false);
+		scheduler.publish(2, 120, 300);
+
+		final long ms = TimeUnit.MILLISECONDS.toNanos(1);
+		final long start = TimeUnit.SECONDS.toNanos(100);
+		long due = start;
+		for (long now = start; now < start + 1000 * ms; now += ms)
+		{
+			if (now >= due)
+				due = scheduler.step(now);
+		}
+
+		assertEquals(4, sink.starts);
+		assertEquals(2, sink.lastTone);
+		assertEquals(120, sink.lastDurationMs);
+		assertEquals(CONFIG.sampleRate * 120 / 1000, sink.renderedFrames,
+				(BANK.getLoopEndFrame(2) - BANK.getLoopStartFrame(2)) / 2 + 1);
+	}
+
+	@Test
+	public void nothingIsAllocatedWhileAlerting()
+	{
+		final PcmSink sink = new PcmSink();
+		final ToneScheduler scheduler = new ToneScheduler(sink);
+		final long ms = TimeUnit.MILLISECONDS.toNanos(1);
+		// warm up (class loading, the jit), then the same again counted.  the jit can still leave a few
+		// hundred bytes of its own in a pass now and then; garbage per pulse would be in every one
+		for (int pass = 0; pass < 3; pass++)
+			alert(scheduler, TimeUnit.SECONDS.toNanos(100 + 20 * pass), ms);
+		long least = Long.MAX_VALUE;
+		for (int pass = 0; pass < 5 && least > 0; pass++)
+		{
+			final long before = Allocations.allocatedBytes();
+			alert(scheduler, TimeUnit.SECONDS.toNanos(200 + 20 * pass), ms);
+			final long after = Allocations.allocatedBytes();
+			Assume.assumeTrue("thread allocation counting not available", before >= 0 && after >= 0);
+			least = Math.min(least, after - before);
+		}
+
+		assertTrue("only " + sink.starts + " starts", sink.starts > 20);
+		assertEquals("bytes allocated while alerting", 0, least);
+	}
+
+	// ten seconds of a hazard coming closer, going quiet and coming back, with packets every 50 ms
+	private static void alert(ToneScheduler scheduler, long start, long ms)
+	{
+		long due = start;
+		for (long now = start; now < start + 10_000 * ms; now += ms)
+		{
+			final long t = now - start;
+			if (t % (50 * ms) == 0)
+			{
+				scheduler.onPacket(now);
+				final int second = (int) (t / (1000 * ms));
+				if (second == 7)
+					scheduler.silence();
+				else
+					scheduler.publish(second % 3, 300 - second * 25, 400);
+			}
+			if (now >= due)
+				due = scheduler.step(now);
+		}
+		scheduler.silence();
+		scheduler.step(start + 10_000 * ms);
+	}
+
+	private static int peak(short[] pcm, int from, int to)
+	{
+		int peak = 0;
+		for (int i = from; i < to; i++)
+			peak = Math.max(peak, Math.abs(pcm[i]));
+		return peak;
+	}
+}
@@ -0,0 +1,365 @@
+package personal.thornupple.proximity;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*******************************************
+ /***** TONE SCHEDULER TEST ****
+ /*******************************************
+ drives step() by hand on a made up clock against a sink that writes down what it was told, so the cadence
+ is checked to the nanosecond without a thread or a speaker
+ /*******************************************/
+public class ToneSchedulerTest
+{
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+	// well away from 0, which some of the scheduler's stamps use for "never"
+	private static final long T0 = TimeUnit.SECONDS.toNanos(100);
+
+	/*******************************************
+	 /***** RECORDING SINK ****
+	 /*******************************************
+	 every start and stop with the time step() was called at
+	 /*******************************************/
+	static final class RecordingSink implements ToneSink
+	{
+		static final int STOP = -1;
+
+		final List<long[]> events = new ArrayList<>();
+		long nowNanos;
+
+		@Override
+		public void startTone(int tone, int durationMs)
+		{
+			events.add(new long[]{nowNanos, tone, durationMs});
+		}
+
+		@Override
+		public void stopTone()
+		{
+			events.add(new long[]{nowNanos, STOP, 0});
+		}
+
+		List<long[]> starts()
+		{
+			final List<long[]> starts = new ArrayList<>();
+			for (long[] event : events)
+			{
+				if (event[1] != STOP)
+					starts.add(event);
+			}
+			return starts;
+		}
+	}
+
+	private RecordingSink mSink;
+	private ToneScheduler mScheduler;
+
+	@Before
+	public void setUp()
+	{
+		mSink = new RecordingSink();
+		mScheduler = new ToneScheduler(mSink);
+	}
+
+	private long step(long nowNanos)
+	{
+		mSink.nowNanos = nowNanos;
+		return mScheduler.step(nowNanos);
+	}
+
+	private void assertEvent(int index, long atNanos, int tone, int durationMs)
+	{
+		assertTrue("only " + mSink.events.size() + " events", mSink.events.size() > index);
+		final long[] event = mSink.events.get(index);
+		assertEquals("time of event " + index, atNanos, event[0]);
+		assertEquals("tone of event " + index, tone, event[1]);
+		assertEquals("duration of event " + index, durationMs, event[2]);
+	}
+
+	@Test
+	public void pulsesOnAndOffOnTheProfileCadence()
+	{
+		mScheduler.setPhaseLock(false);
+		mScheduler.publish(1, 100, 400);
+
+		assertEquals(T0 + 100 * MS, step(T0));
+		// early and repeated calls do nothing
+		assertEquals(T0 + 100 * MS, step(T0 + 50 * MS));
+		assertEquals(T0 + 400 * MS, step(T0 + 100 * MS));
+		assertEquals(T0 + 500 * MS, step(T0 + 400 * MS));
+		assertEquals(T0 + 800 * MS, step(T0 + 500 * MS));
+
+		assertEquals(4, mSink.events.size());
+		assertEvent(0, T0, 1, 100);
+		assertEvent(1, T0 + 100 * MS, RecordingSink.STOP, 0);
+		assertEvent(2, T0 + 400 * MS, 1, 100);
+		assertEvent(3, T0 + 500 * MS, RecordingSink.STOP, 0);
+	}
+
+	@Test
+	public void lateWakeupStaysOnTheGrid()
+	{
+		mScheduler.setPhaseLock(false);
+		mScheduler.publish(0, 100, 400);
+		step(T0);
+		step(T0 + 100 * MS);
+		// woken 30 ms late: the pulse still belongs to the 400 ms beat
+		assertEquals(T0 + 500 * MS, step(T0 + 430 * MS));
+		assertEquals(T0 + 800 * MS, step(T0 + 500 * MS));
+	}
+
+	@Test
+	public void newStateWaitsForThePulseBoundary()
+	{
+		mScheduler.setPhaseLock(false);
+		mScheduler.publish(1, 100, 400);
+		step(T0);
+
+		// another sensor, no more urgent: the pulse that is playing is not chopped off, the next waits its turn
+		mScheduler.publish(2, 50, 200);
+		assertEquals(T0 + 400 * MS, step(T0 + 100 * MS));
+		assertEquals(2, mSink.events.size());
+		assertEvent(1, T0 + 100 * MS, RecordingSink.STOP, 0);
+
+		assertEquals(T0 + 450 * MS, step(T0 + 400 * MS));
+		assertEvent(2, T0 + 400 * MS, 2, 50);
+		assertEquals(T0 + 600 * MS, step(T0 + 450 * MS));
+		assertEquals(T0 + 650 * MS, step(T0 + 600 * MS));
+		assertEvent(4, T0 + 600 * MS, 2, 50);
+	}
+
+	@Test
+	public void moreUrgentStateCutsTheGapShort()
+	{
+		mScheduler.setPhaseLock(false);
+		mScheduler.publish(1, 100, 400);
+		step(T0);
+		step(T0 + 100 * MS);
+
+		// 50 ms into the quiet the chair is much closer: its first pulse does not wait until T0 + 400 ms
+		mScheduler.publish(1, 300, 400);
+		assertEquals(T0 + 450 * MS, step(T0 + 150 * MS));
+		assertEvent(2, T0 + 150 * MS, 1, 300);
+		// and the beat runs on from there
+		assertEquals(T0 + 550 * MS, step(T0 + 450 * MS));
+		assertEvent(3, T0 + 450 * MS, RecordingSink.STOP, 0);
+
+		// backing off again is no hurry: the gap is sat out
+		mScheduler.publish(1, 100, 400);
+		assertEquals(T0 + 550 * MS, step(T0 + 500 * MS));
+		assertEquals(4, mSink.events.size());
+		step(T0 + 550 * MS);
+		assertEvent(4, T0 + 550 * MS, 1, 100);
+
+		// solid is as urgent as it gets
+		step(T0 + 650 * MS);
+		mScheduler.publish(2, 400, 400);
+		step(T0 + 700 * MS);
+		assertEvent(6, T0 + 700 * MS, 2, 0);
+		assertEquals(2, mScheduler.getCutShortCount());
+		assertEquals(1, mScheduler.getRestartCount());
+	}
+
+	@Test
+	public void silenceStopsAtOnce()
+	{
+		mScheduler.setPhaseLock(false);
+		mScheduler.publish(1, 300, 400);
+		step(T0);
+
+		mScheduler.silence();
+		assertEquals(ToneScheduler.IDLE, step(T0 + 20 * MS));
+		assertEquals(2, mSink.events.size());
+		assertEvent(1, T0 + 20 * MS, RecordingSink.STOP, 0);
+
+		// nothing more, however long it is left
+		assertEquals(ToneScheduler.IDLE, step(T0 + 5000 * MS));
+		assertEquals(2, mSink.events.size());
+	}
+
+	@Test
+	public void solidToneRunsOnWithoutAGapAndSwitchesSensor()
+	{
+		mScheduler.setPhaseLock(false);
+		mScheduler.publish(1, 750, 750);
+		assertEquals(T0 + 750 * MS, step(T0));
+		assertEvent(0, T0, 1, 0);
+
+		// still solid on the same sensor: no stop and start at the boundary
+		assertEquals(T0 + 1500 * MS, step(T0 + 750 * MS));
+		assertEquals(1, mSink.events.size());
+
+		// another sensor is closest: it takes over at the boundary
+		mScheduler.publish(2, 750, 750);
+		step(T0 + 1500 * MS);
+		assertEquals(3, mSink.events.size());
+		assertEvent(1, T0 + 1500 * MS, RecordingSink.STOP, 0);
+		assertEvent(2, T0 + 1500 * MS, 2, 0);
+	}
+
+	@Test
+	public void shortQuietPicksUpOnTheOldBeat()
+	{
+		// phase lock on but no packets yet: the profile's own cadence, with resume
+		mScheduler.publish(1, 100, 400);
+		step(T0);
+		step(T0 + 100 * MS);
+
+		// one reading out of range, back before the period is over
+		mScheduler.silence();
+		step(T0 + 150 * MS);
+		mScheduler.publish(1, 100, 400);
+		assertEquals(T0 + 400 * MS, step(T0 + 250 * MS));
+		step(T0 + 400 * MS);
+
+		assertEquals(1, mScheduler.getRestartCount());
+		assertEquals(1, mScheduler.getResumeCount());
+		final List<long[]> starts = mSink.starts();
+		assertEquals(2, starts.size());
+		assertEquals(T0 + 400 * MS, starts.get(1)[0]);
+	}
+
+	@Test
+	public void longQuietStartsAFreshBeat()
+	{
+		mScheduler.publish(1, 100, 400);
+		step(T0);
+		mScheduler.silence();
+		step(T0 + 50 * MS);
+		mScheduler.publish(1, 100, 400);
+		step(T0 + 1000 * MS);
+
+		assertEquals(2, mScheduler.getRestartCount());
+		assertEquals(0, mScheduler.getResumeCount());
+		assertEquals(T0 + 1000 * MS, mSink.starts().get(1)[0]);
+	}
+
+	@Test
+	public void phaseLockPutsEveryPulseJustAfterAPacket()
+	{
+		final long packetNanos = 125 * MS;
+		final long packetOffset = 40 * MS;
+		mScheduler.publish(1, 100, 500);
+		runWithPackets(packetNanos, packetOffset, TimeUnit.SECONDS.toNanos(6));
+
+		assertEquals(packetNanos, mScheduler.getPacketPeriodNanos());
+		final List<long[]> starts = mSink.starts();
+		assertTrue(starts.size() > 8);
+		// a few pulses to get in step, then each one starts a lead (5 ms, no jitter) after a packet
+		for (int i = starts.size() - 4; i < starts.size(); i++)
+		{
+			final long sincePacket = Math.floorMod(starts.get(i)[0] - T0 - packetOffset, packetNanos);
+			assertTrue("pulse " + i + " starts " + sincePacket / 1e6 + " ms after a packet",
+					Math.abs(sincePacket - 5 * MS) <= MS);
+			assertEquals(500 * MS, starts.get(i)[0] - starts.get(i - 1)[0], MS);
+		}
+	}
+
+	@Test
+	public void phaseLockOffIgnoresThePackets()
+	{
+		mScheduler.setPhaseLock(false);
+		mScheduler.publish(1, 100, 500);
+		runWithPackets(120 * MS, 40 * MS, TimeUnit.SECONDS.toNanos(3));
+
+		final List<long[]> starts = mSink.starts();
+		for (int i = 0; i < starts.size(); i++)
+		{
+			assertEquals(T0 + i * 500 * MS, starts.get(i)[0]);
+		}
+	}
+
+	@Test
+	public void phaseLockFitsThePeriodToWholePackets()
+	{
+		// 400 ms asked for, packets every 120 ms: 360 ms is the nearest whole number of them
+		mScheduler.publish(1, 100, 400);
+		runWithPackets(120 * MS, 0, TimeUnit.SECONDS.toNanos(6));
+
+		final List<long[]> starts = mSink.starts();
+		final long[] last = starts.get(starts.size() - 1);
+		assertEquals(360 * MS, last[0] - starts.get(starts.size() - 2)[0], MS);
+		// the on time is scaled with it
+		assertEquals(90, last[2]);
+	}
+
+	// steps every 0.1 ms from T0 for durationNanos, with a packet every periodNanos from T0 + offsetNanos
+	private void runWithPackets(long periodNanos, long offsetNanos, long durationNanos)
+	{
+		run(T0, T0 + durationNanos, periodNanos, T0 + offsetNanos);
+	}
+
+	// the same from fromNanos to untilNanos, the first packet at firstPacketNanos; no packets if periodNanos is 0
+	private void run(long fromNanos, long untilNanos, long periodNanos, long firstPacketNanos)
+	{
+		long nextPacket = periodNanos > 0 ? firstPacketNanos : Long.MAX_VALUE;
+		long due = fromNanos;
+		for (long now = fromNanos; now < untilNanos; now += MS / 10)
+		{
+			if (now >= nextPacket)
+			{
+				mScheduler.onPacket(nextPacket);
+				nextPacket += periodNanos;
+			}
+			if (now >= due)
+			{
+				due = step(now);
+			}
+		}
+	}
+
+	// the pulse period the last few pulses kept to, to within a ms
+	private long lastSpacing(int pulses)
+	{
+		final List<long[]> starts = mSink.starts();
+		final long spacing = starts.get(starts.size() - 1)[0] - starts.get(starts.size() - 2)[0];
+		for (int i = starts.size() - pulses; i < starts.size(); i++)
+			assertEquals("pulse " + i, spacing, starts.get(i)[0] - starts.get(i - 1)[0], MS);
+		return spacing;
+	}
+
+	@Test
+	public void newConnectionLearnsTheRhythmAgain()
+	{
+		mScheduler.publish(1, 100, 400);
+		runWithPackets(120 * MS, 0, TimeUnit.SECONDS.toNanos(2));
+		assertEquals(120 * MS, mScheduler.getPacketPeriodNanos());
+
+		mScheduler.resetCadence();
+		assertEquals(0, mScheduler.getPacketPeriodNanos());
+		// the new link runs at another rate; the old one does not get averaged into it
+		mScheduler.onPacket(T0 + 10_000 * MS);
+		mScheduler.onPacket(T0 + 10_050 * MS);
+		assertEquals(50 * MS, mScheduler.getPacketPeriodNanos());
+	}
+
+	@Test
+	public void reconnectRunsTheProfileCadenceUntilTheNewRhythmIsLearnt()
+	{
+		final long second = TimeUnit.SECONDS.toNanos(1);
+		mScheduler.publish(1, 100, 400);
+		run(T0, T0 + 3 * second, 120 * MS, T0);
+		assertEquals(360 * MS, lastSpacing(3), MS);
+
+		// the link dropped and came back: no packets yet, so the profile's own 400 ms, not the old link's beat
+		mScheduler.resetCadence();
+		run(T0 + 3 * second, T0 + 6 * second, 0, 0);
+		assertEquals(400 * MS, lastSpacing(3));
+
+		// the new link's packets come every 130 ms: three of them to a pulse, each pulse a lead after one
+		final long firstPacket = T0 + 6 * second + 70 * MS;
+		run(T0 + 6 * second, T0 + 12 * second, 130 * MS, firstPacket);
+		assertEquals(130 * MS, mScheduler.getPacketPeriodNanos());
+		assertEquals(390 * MS, lastSpacing(3), MS);
+		final List<long[]> starts = mSink.starts();
+		final long sincePacket = Math.floorMod(starts.get(starts.size() - 1)[0] - firstPacket, 130 * MS);
+		assertEquals(5 * MS, sincePacket, MS);
+	}
+}
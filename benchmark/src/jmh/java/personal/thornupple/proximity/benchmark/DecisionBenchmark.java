@@ -0,0 +1,114 @@
+package personal.thornupple.proximity.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import personal.thornupple.proximity.FrameDecoder;
+import personal.thornupple.proximity.ProximityDecision;
+import personal.thornupple.proximity.SampleChannel;
+import personal.thornupple.proximity.SensorFrame;
+import personal.thornupple.proximity.SensorLayout;
+
+/*******************************************
+ /***** DECISION BENCHMARK ****
+ /*******************************************
+ decide         - filter, time to contact, closest sensor + on time math for one decoded reading
+                  (PlayTone without the audio)
+ receiveAndDecide - the whole in-process hop: publish into the sample channel the way the gatt callback
+                  does, poll it back out the way MainActivity does, decode the frame, then decide
+ oneSecondOfInput - rateHz readings through receiveAndDecide; in throughput mode this reads as seconds of
+                  input handled per second, i.e. how far ahead of real time we are at that rate
+
+ run with -prof gc (the gradle config does) to get allocations per sample from gc.alloc.rate.norm
+ /*******************************************/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DecisionBenchmark
+{
+	@Param({"2", "50", "500"})
+	public int rateHz;
+
+	@Param({"approach", "noisy"})
+	public String stream;
+
+	private byte[][] mFrames;
+	private int[][] mDecoded;
+	private long mSampleSpacingNanos;
+	private int mCursor;
+	private long mNowNanos;
+
+	private final ProximityDecision mDecision = new ProximityDecision(SensorLayout.legacy());
+	private final SampleChannel mChannel = new SampleChannel(16);
+	private final SampleChannel.Sample mSample = new SampleChannel.Sample();
+	private final FrameDecoder mDecoder = new FrameDecoder();
+	private final SensorFrame mFrame = new SensorFrame();
+
+	@Setup
+	public void setUp()
+	{
+		mFrames = DistanceStreams.build(stream, rateHz);
+
+		// the decide benchmark starts from readings that are already decoded
+		mDecoded = new int[mFrames.length][];
+		for (int i = 0; i < mFrames.length; i++)
+		{
+			mChannel.publish(mFrames[i], 0);
+			mChannel.poll(mSample);
+			mDecoder.decode(mSample.buffer, mFrame);
+			mDecoded[i] = new int[]{mFrame.distancesMm[0], mFrame.distancesMm[1], mFrame.distancesMm[2]};
+		}
+		mSampleSpacingNanos = TimeUnit.SECONDS.toNanos(1) / rateHz;
+		mCursor = 0;
+		mNowNanos = 0;
+	}
+
+	// moves the cursor and the clock on one sample
+	private int next()
+	{
+		final int index = mCursor;
+		if (++mCursor == mFrames.length)
+		{
+			mCursor = 0;
+		}
+		mNowNanos += mSampleSpacingNanos;
+		return index;
+	}
+
+	@Benchmark
+	public long decide()
+	{
+		return mDecision.decide(mDecoded[next()], 0, mNowNanos);
+	}
+
+	@Benchmark
+	public long receiveAndDecide()
+	{
+		mChannel.publish(mFrames[next()], mNowNanos);
+		if (!mChannel.poll(mSample) || !mDecoder.decode(mSample.buffer, mFrame))
+		{
+			return 0;
+		}
+		return mDecision.decide(mFrame, mSample.arrivalNanos);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public void oneSecondOfInput(Blackhole blackhole)
+	{
+		for (int i = 0; i < rateHz; i++)
+		{
+			blackhole.consume(receiveAndDecide());
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package personal.thornupple.proximity.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import personal.thornupple.proximity.DistanceDisplayModel;
+import personal.thornupple.proximity.SensorLayout;
+
+/*******************************************
+ /***** DISPLAY BENCHMARK ****
+ /*******************************************
+ the distance labels at rateHz: every reading is published the way the sample listener does, and a frame
+ is rendered every 1/60 s of input the way the choreographer would.  one invocation is 1000 readings and
+ both the time and gc.alloc.rate.norm (from the gc profiler the gradle config turns on) are per reading;
+ the allocations should read 0, give or take the profiler's own noise
+ /*******************************************/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DisplayBenchmark
+{
+	private static final int SAMPLES = 1000;
+	private static final int FRAME_RATE_HZ = 60;
+
+	@Param({"50", "500"})
+	public int rateHz;
+
+	@Param({"3", "16"})
+	public int sensors;
+
+	private DistanceDisplayModel mModel;
+	private int[] mDistances;
+	private int mSamplesPerFrame;
+
+	@Setup
+	public void setUp()
+	{
+		final SensorLayout layout = sensors == 3 ? SensorLayout.legacy() : SensorLayout.ring(sensors);
+		mModel = new DistanceDisplayModel(layout);
+
+		// every reading differs from the last, so every render rewrites every label
+		final Random random = new Random(42);
+		mDistances = new int[SAMPLES * sensors];
+		for (int i = 0; i < mDistances.length; i++)
+		{
+			mDistances[i] = 100 + random.nextInt(6000);
+		}
+		mSamplesPerFrame = Math.max(1, rateHz / FRAME_RATE_HZ);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public int thousandSamples()
+	{
+		int changed = 0;
+		boolean framePending = false;
+		for (int sample = 0; sample < SAMPLES; sample++)
+		{
+			framePending |= mModel.publish(mDistances, sample * sensors);
+			if (framePending && sample % mSamplesPerFrame == 0)
+			{
+				framePending = false;
+				changed |= mModel.render();
+				// what setText would read
+				changed += mModel.getText(0)[mModel.getTextLength(0) - 1];
+			}
+		}
+		return changed;
+	}
+}
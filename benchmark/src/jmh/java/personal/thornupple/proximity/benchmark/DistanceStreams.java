@@ -0,0 +1,121 @@
+package personal.thornupple.proximity.benchmark;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// builds the distance streams the benchmarks chew on.  every frame is the raw 3 byte payload the chair
+// sends, ordered [right, center, left] just like the characteristic
+final class DistanceStreams
+{
+	static final String RECORDING_PROPERTY = "proximity.recording";
+
+	// how much input each stream covers, whatever the rate
+	private static final int STREAM_SECONDS = 60;
+
+	private DistanceStreams()
+	{
+	}
+
+	static byte[][] build(String stream, int rateHz)
+	{
+		switch (stream)
+		{
+			case "approach":
+				return approach(rateHz);
+			case "noisy":
+				return noisy(rateHz);
+			case "recorded":
+				return recorded(System.getProperty(RECORDING_PROPERTY));
+			default:
+				throw new IllegalArgumentException("Unknown stream: " + stream);
+		}
+	}
+
+	// rolls up to a wall and backs off again, over and over, at about 20 cm/s
+	private static byte[][] approach(int rateHz)
+	{
+		final int count = STREAM_SECONDS * rateHz;
+		final byte[][] frames = new byte[count][];
+		for (int i = 0; i < count; i++)
+		{
+			final double seconds = (double) i / rateHz;
+			final double cycle = seconds % 8.0;
+			final int center = (int) Math.round(cycle < 4.0 ? 90 - cycle * 20 : 10 + (cycle - 4.0) * 20);
+			frames[i] = frame(center + 25, center, center + 40);
+		}
+		return frames;
+	}
+
+	// a doorway: two sides close by with sensor noise on top, the closest sensor keeps flipping
+	private static byte[][] noisy(int rateHz)
+	{
+		final Random random = new Random(42);
+		final int count = STREAM_SECONDS * rateHz;
+		final byte[][] frames = new byte[count][];
+		for (int i = 0; i < count; i++)
+		{
+			frames[i] = frame(30 + noise(random), 70 + noise(random), 30 + noise(random));
+		}
+		return frames;
+	}
+
+	/*******************************************
+	 /***** RECORDED ****
+	 /*******************************************
+	 csv of timestampMs,right,center,left in cm.  the timestamps are ignored here, the rate
+	 parameter decides how fast the frames are fed
+	 /*******************************************/
+	private static byte[][] recorded(String path)
+	{
+		if (path == null)
+		{
+			throw new IllegalStateException("Set -D" + RECORDING_PROPERTY + "=<file> to use the recorded stream");
+		}
+
+		final List<byte[]> frames = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new FileReader(path)))
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#") || !Character.isDigit(line.charAt(0)))
+				{
+					continue;
+				}
+				final String[] fields = line.split(",");
+				frames.add(frame(Integer.parseInt(fields[1].trim()), Integer.parseInt(fields[2].trim()), Integer.parseInt(fields[3].trim())));
+			}
+		}
+		catch (IOException exception)
+		{
+			throw new IllegalStateException("Could not read recording " + path, exception);
+		}
+
+		if (frames.isEmpty())
+		{
+			throw new IllegalStateException("Recording " + path + " has no frames");
+		}
+		return frames.toArray(new byte[0][]);
+	}
+
+	private static int noise(Random random)
+	{
+		return (int) Math.round(random.nextGaussian() * 6);
+	}
+
+	private static byte[] frame(int right, int center, int left)
+	{
+		return new byte[]{clamp(right), clamp(center), clamp(left)};
+	}
+
+	// the legacy payload is one unsigned byte of cm per sensor
+	private static byte clamp(int cm)
+	{
+		return (byte) Math.max(0, Math.min(255, cm));
+	}
+}
@@ -0,0 +1,128 @@
+package personal.thornupple.proximity.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import personal.thornupple.proximity.DecisionThread;
+import personal.thornupple.proximity.FrameDecoder;
+import personal.thornupple.proximity.SampleChannel;
+import personal.thornupple.proximity.SensorFrame;
+
+/*******************************************
+ /***** HANDOFF BENCHMARK ****
+ /*******************************************
+ one notification from the gatt thread (the benchmark thread here) to a decoded frame on the consumer's
+ thread, and back to waiting for the next:
+ channel   - publish into the sample channel and poke the DecisionThread, the way GattSession does
+ broadcast - a stand in for the old broadcast path: an extras map with a copy of the payload, queued to a
+             looper thread that unpacks it.  the real broadcast also goes through system_server and back,
+             which a jvm cannot do, so this is the cheapest the old path could ever have been
+
+ each op waits for the consumer to have decoded the sample, so the time is the whole thread hop, wakeup
+ included; sample time mode gives its percentiles.  gc.alloc.rate.norm is what the gatt side allocates
+ /*******************************************/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HandoffBenchmark
+{
+	private static final byte[] PAYLOAD = {10, 20, 30};
+
+	private final SampleChannel mChannel = new SampleChannel(16);
+	private DecisionThread mDecisionThread;
+	private long mChannelSent;
+	private volatile long mChannelDecoded;
+
+	private final LinkedBlockingQueue<Map<String, Object>> mLooper = new LinkedBlockingQueue<>();
+	private Thread mReceiver;
+	private long mBroadcastSent;
+	private volatile long mBroadcastDecoded;
+
+	@Setup
+	public void setUp()
+	{
+		final SampleChannel.Sample sample = new SampleChannel.Sample();
+		final FrameDecoder channelDecoder = new FrameDecoder();
+		final SensorFrame channelFrame = new SensorFrame();
+		mDecisionThread = new DecisionThread(channel ->
+		{
+			while (channel.poll(sample))
+			{
+				if (channelDecoder.decode(sample.buffer, channelFrame))
+					mChannelDecoded++;
+			}
+		}, runnable -> new Thread(runnable, "decision"));
+		mDecisionThread.start();
+
+		final FrameDecoder broadcastDecoder = new FrameDecoder();
+		final SensorFrame broadcastFrame = new SensorFrame();
+		mReceiver = new Thread(() ->
+		{
+			try
+			{
+				while (true)
+				{
+					final Map<String, Object> extras = mLooper.take();
+					final byte[] data = (byte[]) extras.get("data");
+					if (broadcastDecoder.decode(ByteBuffer.wrap(data), broadcastFrame))
+						mBroadcastDecoded++;
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}, "main-looper");
+		mReceiver.setDaemon(true);
+		mReceiver.start();
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		mDecisionThread.stop();
+		mReceiver.interrupt();
+	}
+
+	@Benchmark
+	public long channel()
+	{
+		mChannel.publish(PAYLOAD, System.nanoTime());
+		mDecisionThread.onSampleAvailable(mChannel);
+		final long sent = ++mChannelSent;
+		long decoded;
+		while ((decoded = mChannelDecoded) < sent)
+		{
+			// spin: the hop is a few us, parking would measure the scheduler instead
+		}
+		return decoded;
+	}
+
+	@Benchmark
+	public long broadcast()
+	{
+		final Map<String, Object> extras = new HashMap<>();
+		extras.put("data", PAYLOAD.clone());
+		extras.put("arrival", System.nanoTime());
+		mLooper.add(extras);
+		final long sent = ++mBroadcastSent;
+		long decoded;
+		while ((decoded = mBroadcastDecoded) < sent)
+		{
+			// spin, as above
+		}
+		return decoded;
+	}
+}
@@ -0,0 +1,36 @@
+package personal.thornupple.proximity.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import personal.thornupple.proximity.PipelineLatency;
+
+/*******************************************
+ /***** LATENCY BENCHMARK ****
+ /*******************************************
+ what the per stage latency histograms cost a notification: one arrival (interval and jitter) and one
+ decision (two stages), the way GattSession and ProximityDataClass record them.  the values wander over
+ a few ms so the buckets are not always the same ones.  should be a few tens of ns and allocate nothing
+ /*******************************************/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LatencyBenchmark
+{
+	private final PipelineLatency mLatency = new PipelineLatency();
+	private long mNow;
+
+	@Benchmark
+	public void notification()
+	{
+		mNow += 20_000_000L + (mNow >>> 4 & 0x3FFFFF);
+		mLatency.onArrival(mNow);
+		mLatency.onDecision(mNow, mNow + (mNow >>> 7 & 0xFFFFF), mNow + (mNow >>> 3 & 0x3FFFFF));
+	}
+}
@@ -0,0 +1,91 @@
+package personal.thornupple.proximity.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import personal.thornupple.proximity.SensorLayout;
+import personal.thornupple.proximity.SpatialMixer;
+import personal.thornupple.proximity.ToneConfig;
+import personal.thornupple.proximity.ToneScheduler;
+
+/*******************************************
+ /***** MIXER BENCHMARK ****
+ /*******************************************
+ render - one block of the spatial mixer with N sensors all in range and every one of them given a voice.
+          a block is 10 ms of 22050 Hz stereo, what AudioTrackSpatialOutput writes at a time, so that is the
+          deadline: the time per block against 10 ms says how many sources fit and how much of the audio
+          thread is left over.  the states move every 20 ms (a 50 Hz chair) and the pulses run at different
+          lengths, so blocks keep crossing pulse edges and fades
+
+ run with -prof gc (the gradle config does); render should allocate nothing
+ /*******************************************/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MixerBenchmark
+{
+	@Param({"1", "2", "4", "8", "16"})
+	public int sources;
+
+	private static final int BLOCK_MS = 10;
+	// a new decision every other block
+	private static final int BLOCKS_PER_DECISION = 2;
+
+	private SpatialMixer mMixer;
+	private short[] mBlock;
+	private int mBlockFrames;
+	private long[][] mStates;
+	private int mBlocks;
+	private int mCursor;
+
+	@Setup
+	public void setUp()
+	{
+		final SensorLayout layout = SensorLayout.ring(sources);
+		final ToneConfig config = ToneConfig.defaults(layout.getToneCount());
+		mBlockFrames = config.sampleRate * BLOCK_MS / 1000;
+		mMixer = new SpatialMixer(config, layout, sources, mBlockFrames);
+		mBlock = new short[mBlockFrames * SpatialMixer.CHANNELS];
+
+		// each sensor creeping in and back out again at its own pace, from the slowest pulse to solid
+		mStates = new long[500][sources];
+		for (int decision = 0; decision < mStates.length; decision++)
+		{
+			for (int sensor = 0; sensor < sources; sensor++)
+			{
+				final double wave = 0.5 + 0.5 * Math.sin(decision / (20.0 + sensor) + sensor);
+				final int onMs = 15 + (int) (735 * wave);
+				mStates[decision][sensor] = ToneScheduler.packState(layout.getTone(sensor), onMs, 750);
+			}
+		}
+		mBlocks = 0;
+		mCursor = 0;
+	}
+
+	@Benchmark
+	public short render()
+	{
+		if (mBlocks++ % BLOCKS_PER_DECISION == 0)
+		{
+			final long[] states = mStates[mCursor];
+			if (++mCursor == mStates.length)
+			{
+				mCursor = 0;
+			}
+			for (int sensor = 0; sensor < states.length; sensor++)
+			{
+				mMixer.publish(sensor, states[sensor]);
+			}
+		}
+		mMixer.render(mBlock, mBlockFrames);
+		return mBlock[mBlockFrames];
+	}
+}
@@ -0,0 +1,41 @@
+package personal.thornupple.proximity.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+import personal.thornupple.proximity.FlightRecorder;
+
+/*******************************************
+ /***** TRACE BENCHMARK ****
+ /*******************************************
+ what one flight recorder event costs: alone, and with the gatt, audio and main threads all recording at
+ once (3 threads on one buffer).  should be tens of ns, most of it the two atomics, and allocate nothing
+ /*******************************************/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TraceBenchmark
+{
+	private final FlightRecorder mRecorder = new FlightRecorder(FlightRecorder.CAPACITY);
+	private long mValue;
+
+	@Benchmark
+	public void record()
+	{
+		mRecorder.record(FlightRecorder.DECISION, mValue++, 300);
+	}
+
+	@Benchmark
+	@Threads(3)
+	public void recordContended()
+	{
+		mRecorder.record(FlightRecorder.DECISION, 42, 300);
+	}
+}
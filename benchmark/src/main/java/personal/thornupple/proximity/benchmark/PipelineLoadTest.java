@@ -0,0 +1,426 @@
+package personal.thornupple.proximity.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import personal.thornupple.proximity.DecisionThread;
+import personal.thornupple.proximity.FlightRecorder;
+import personal.thornupple.proximity.FrameDecoder;
+import personal.thornupple.proximity.GattOperationQueue;
+import personal.thornupple.proximity.GattSession;
+import personal.thornupple.proximity.LinkNegotiator;
+import personal.thornupple.proximity.NotifyRatePolicy;
+import personal.thornupple.proximity.PipelineLatency;
+import personal.thornupple.proximity.ProximityDecision;
+import personal.thornupple.proximity.ReconnectPolicy;
+import personal.thornupple.proximity.SampleChannel;
+import personal.thornupple.proximity.SensorFrame;
+import personal.thornupple.proximity.SensorLayout;
+import personal.thornupple.proximity.SessionRecorder;
+import personal.thornupple.proximity.SimulatedPeripheral;
+import personal.thornupple.proximity.ToneScheduler;
+import personal.thornupple.proximity.ToneSink;
+import personal.thornupple.proximity.VirtualClock;
+
+/*******************************************
+ /***** PIPELINE LOAD TEST ****
+ /*******************************************
+ ./gradlew :benchmark:loadtest --args="[--rate=500] [--seconds=10] [--sensors=3] [--batch=1] [--jitter=0]
+                                      [--loss=0] [--disconnect-every=0] [--outage=0] [--mtu=247] [--no-2m]
+                                      [--adaptive] [--trace=file.pxfr] [--record=dir] [--inline]"
+
+ runs the whole receive path against a SimulatedPeripheral in real time, wired the way ProxBLE wires it:
+ transport callback -> sample channel -> decision thread: poll -> decode -> decide -> tone scheduler
+ (with a sink that only counts).  the connection is a GattSession, the same one ProxBLE runs, and after a
+ dropped link its ReconnectPolicy brings it back and it goes through it all again.  like ble-io in the
+ app, one thread ("ble-io" here too) owns the session: it steps the peripheral, the session's timer and
+ the notify rate the decision thread asks for, so nothing else ever calls into the session.  prints
+ what got through and how long it took:
+   first sample - connect attempt to the first sample of each connection
+   link drop    - a dropped link to the first sample on the next one, backoff included
+   pipeline    - notification arrival to the decision being published to the tone scheduler
+   end to end  - the newest sample in the notification being taken to the same point; includes jitter
+ --rate in Hz (2 to 500 is what the chair can do), --batch samples per notification, --jitter in ms,
+ --loss as a fraction, --disconnect-every as a mean in ms (0 = never), --outage how long in ms the chair
+ stays out of reach after each drop (connects fail until then).  --mtu and --no-2m limit what the
+ peripheral grants.  --adaptive lets the NotifyRatePolicy drive the rate from the closest distance, so
+ --rate is only where each connection starts.  --trace writes the flight recorder out at the end, for
+ the trace task to print.  --record runs a SessionRecorder into dir the way ProxBLE does and prints
+ what it cost on disk; the replay task plays the directory back.  --inline decides on the peripheral
+ thread instead of a DecisionThread, the way it was before the service had threads of its own.
+ GattSessionTest checks the same path for correctness on virtual time; this is for the numbers
+ /*******************************************/
+public class PipelineLoadTest
+{
+	public static void main(String[] args) throws InterruptedException, IOException
+	{
+		int rateHz = 500;
+		int seconds = 10;
+		int sensors = 3;
+		int batch = 1;
+		int jitterMs = 0;
+		double loss = 0;
+		int disconnectMeanMs = 0;
+		int outageMs = 0;
+		int mtu = LinkNegotiator.PREFERRED_MTU;
+		boolean supports2M = true;
+		boolean adaptive = false;
+		String tracePath = null;
+		String recordPath = null;
+		boolean inline = false;
+		for (String arg : args)
+		{
+			final String value = arg.substring(arg.indexOf('=') + 1);
+			if (arg.startsWith("--rate="))
+				rateHz = Integer.parseInt(value);
+			else if (arg.startsWith("--seconds="))
+				seconds = Integer.parseInt(value);
+			else if (arg.startsWith("--sensors="))
+				sensors = Integer.parseInt(value);
+			else if (arg.startsWith("--batch="))
+				batch = Integer.parseInt(value);
+			else if (arg.startsWith("--jitter="))
+				jitterMs = Integer.parseInt(value);
+			else if (arg.startsWith("--loss="))
+				loss = Double.parseDouble(value);
+			else if (arg.startsWith("--disconnect-every="))
+				disconnectMeanMs = Integer.parseInt(value);
+			else if (arg.startsWith("--outage="))
+				outageMs = Integer.parseInt(value);
+			else if (arg.startsWith("--mtu="))
+				mtu = Integer.parseInt(value);
+			else if (arg.equals("--no-2m"))
+				supports2M = false;
+			else if (arg.equals("--adaptive"))
+				adaptive = true;
+			else if (arg.startsWith("--trace="))
+				tracePath = value;
+			else if (arg.startsWith("--record="))
+				recordPath = value;
+			else if (arg.equals("--inline"))
+				inline = true;
+			else
+			{
+				System.err.println("unknown argument: " + arg);
+				System.exit(2);
+			}
+		}
+
+		final SensorLayout layout = sensors == FrameDecoder.LEGACY_BYTES ? SensorLayout.legacy() : SensorLayout.ring(sensors);
+		final SimulatedPeripheral peripheral = new SimulatedPeripheral(layout, rateHz);
+		peripheral.setSamplesPerNotification(batch);
+		peripheral.setJitterMs(jitterMs);
+		peripheral.setLossRate(loss);
+		peripheral.setDisconnectMeanMs(disconnectMeanMs);
+		peripheral.setOutageMs(outageMs);
+		peripheral.setSupportedMtu(mtu);
+		peripheral.setSupports2M(supports2M);
+
+		final Pipeline pipeline = new Pipeline(layout, peripheral, adaptive ? NotifyRatePolicy.defaults() : null,
+				Math.max(rateHz, 50) * seconds / batch + 1024);
+		final DecisionThread decisionThread = inline ? null : new DecisionThread(pipeline, runnable -> new Thread(runnable, "decision"));
+		if (decisionThread != null)
+		{
+			pipeline.session.setSampleListener(decisionThread);
+			decisionThread.start();
+		}
+
+		if (recordPath != null)
+		{
+			pipeline.sessionRecorder = SessionRecorder.defaults(new File(recordPath));
+			pipeline.sessionRecorder.start();
+		}
+
+		final long start = System.nanoTime();
+		pipeline.run(start + TimeUnit.SECONDS.toNanos(seconds));
+		final long elapsed = System.nanoTime() - start;
+		pipeline.scheduler.stop();
+		if (decisionThread != null)
+			decisionThread.stop();
+		if (pipeline.sessionRecorder != null)
+			pipeline.sessionRecorder.stop();
+
+		final double elapsedSeconds = elapsed / 1e9;
+		final SampleChannel channel = pipeline.session.getSampleChannel();
+		final GattOperationQueue queue = pipeline.session.getQueue();
+		System.out.printf("rate=%dHz  sensors=%d  batch=%d  jitter=%dms  loss=%.3f  disconnect every=%s  outage=%dms  decisions %s%n",
+				rateHz, sensors, batch, jitterMs, loss, disconnectMeanMs > 0 ? disconnectMeanMs + "ms" : "never", outageMs,
+				inline ? "inline" : "on their own thread");
+		System.out.printf("notifications: sent=%d  delivered=%d  lost=%d  decoded=%d  decoder gaps=%d  channel drops=%d%n",
+				peripheral.getNotificationCount(), peripheral.getDeliveredCount(), peripheral.getLostCount(), pipeline.decoded,
+				pipeline.decoder.getDroppedFrameCount(), channel.getDroppedCount());
+		System.out.printf("links: disconnects=%d  reconnect attempts=%d  failed connects=%d  tone starts=%d  last link: %s%n",
+				peripheral.getDisconnectCount(), pipeline.session.getReconnectCount(), peripheral.getFailedConnectCount(),
+				pipeline.toneStarts.get(), pipeline.session.getLinkNegotiator());
+		System.out.printf("gatt queue: timeouts=%d  retries=%d  gave up=%d%n",
+				queue.getTimeoutCount(), queue.getRetryCount(), queue.getFailureCount());
+		if (adaptive)
+			System.out.printf("adaptive rate: interval changes=%d  ended at %dHz%n", pipeline.session.getNotifyRatePolicy().getChangeCount(), peripheral.getRateHz());
+		System.out.printf("throughput: %.0f samples/s (%.0f notifications/s) over %.1fs%n",
+				pipeline.decoded * batch / elapsedSeconds, pipeline.decoded / elapsedSeconds, elapsedSeconds);
+		printLatency("first sample after connect", pipeline.firstSampleNanos, pipeline.firstSamples);
+		printLatency("first sample after link drop", pipeline.linkDropNanos, pipeline.linkDrops);
+		printLatency("pipeline  ", pipeline.pipelineNanos, pipeline.latencies);
+		printLatency("end to end", pipeline.endToEndNanos, pipeline.latencies);
+		printJitter(pipeline.arrivalNanos, pipeline.latencies, TimeUnit.SECONDS.toNanos(1) * batch / rateHz);
+		// the same table the app's diagnostics screen shows
+		System.out.print(PipelineLatency.get().report());
+
+		if (pipeline.sessionRecorder != null)
+		{
+			final SessionRecorder sessionRecorder = pipeline.sessionRecorder;
+			final long recorded = pipeline.decoded * batch - sessionRecorder.getDroppedCount();
+			System.out.printf("recording: %d samples in %d bytes (%.1f bytes/sample, %.1f MB/hour)  dropped=%d%s%n",
+					recorded, sessionRecorder.getBytesWritten(), (double) sessionRecorder.getBytesWritten() / Math.max(1, recorded),
+					sessionRecorder.getBytesWritten() / elapsedSeconds * 3600 / 1e6, sessionRecorder.getDroppedCount(),
+					sessionRecorder.getError() != null ? "  error: " + sessionRecorder.getError() : "");
+		}
+
+		if (tracePath != null)
+		{
+			try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tracePath)))
+			{
+				System.out.printf("trace: %d events to %s%n", FlightRecorder.get().write(out), tracePath);
+			}
+		}
+	}
+
+	/*******************************************
+	 /***** PIPELINE ****
+	 /*******************************************
+	 the receive path on top of the same GattSession ProxBLE uses.  the peripheral runs on a clock the ble-io
+	 loop keeps at System.nanoTime, so its callbacks, the session's timeouts and reconnects and the notify
+	 rate writes all happen on that one thread.  the latency arrays are sized up front so recording does
+	 not allocate
+	 /*******************************************/
+	private static final class Pipeline implements GattSession.Listener, GattSession.Wakeup, SampleChannel.Listener
+	{
+		final SimulatedPeripheral peripheral;
+		final GattSession session;
+		final SampleChannel.Sample sample = new SampleChannel.Sample();
+		final FrameDecoder decoder = new FrameDecoder();
+		final SensorFrame frame = new SensorFrame();
+		final ProximityDecision decision;
+		final ToneScheduler scheduler;
+		final AtomicLong toneStarts = new AtomicLong();
+		final FlightRecorder recorder = FlightRecorder.get();
+		volatile SessionRecorder sessionRecorder;
+		final VirtualClock clock = new VirtualClock();
+		// the ble-io side: when the session wants stepping, and a rate the decision thread asked for
+		long wakeAtNanos = Long.MAX_VALUE;
+		volatile Thread bleThread;
+		final AtomicBoolean ratePending = new AtomicBoolean();
+		volatile int closestMm = SensorFrame.NO_READING_MM;
+
+		final long[] pipelineNanos;
+		final long[] endToEndNanos;
+		final long[] arrivalNanos;
+		int latencies;
+		long decoded;
+
+		// connect attempt to first sample, one per connection; link drop to first sample, one per drop
+		final long[] firstSampleNanos = new long[4096];
+		int firstSamples;
+		final long[] linkDropNanos = new long[4096];
+		int linkDrops;
+
+		Pipeline(SensorLayout layout, SimulatedPeripheral peripheral, NotifyRatePolicy ratePolicy, int capacity)
+		{
+			this.peripheral = peripheral;
+			peripheral.setClock(clock);
+			session = new GattSession(peripheral, this, this, ratePolicy);
+			session.setClock(clock);
+			session.setReconnectPolicy(new ReconnectPolicy(250, 30000, 5, 42));
+			session.setSampleListener(this);
+			decision = new ProximityDecision(layout);
+			scheduler = new ToneScheduler(new ToneSink()
+			{
+				@Override
+				public void startTone(int tone, int durationMs)
+				{
+					toneStarts.incrementAndGet();
+				}
+
+				@Override
+				public void stopTone()
+				{
+				}
+			});
+			scheduler.start();
+			pipelineNanos = new long[capacity];
+			endToEndNanos = new long[capacity];
+			arrivalNanos = new long[capacity];
+		}
+
+		/*******************************************
+		 /***** RUN ****
+		 /*******************************************
+		 the ble-io thread until endNanos: connects, then steps the peripheral and, when they are due, the
+		 session and a rate update.  parks between them, never longer than a ms, since what the session asks
+		 of the peripheral while it is called back only shows up on the next step
+		 /*******************************************/
+		void run(final long endNanos) throws InterruptedException
+		{
+			final Thread thread = new Thread(() ->
+			{
+				clock.advanceTo(System.nanoTime());
+				session.connect("sim");
+				long now;
+				while ((now = System.nanoTime()) < endNanos)
+				{
+					clock.advanceTo(now);
+					long next = peripheral.step(now);
+					if (now >= wakeAtNanos)
+					{
+						wakeAtNanos = Long.MAX_VALUE;
+						session.step(now);
+					}
+					if (ratePending.compareAndSet(true, false))
+						session.updateNotifyRate(closestMm, now);
+					next = Math.min(Math.min(next, wakeAtNanos), endNanos);
+					LockSupport.parkNanos(Math.max(0, Math.min(next - System.nanoTime(), TimeUnit.MILLISECONDS.toNanos(1))));
+				}
+				session.close();
+			}, "ble-io");
+			bleThread = thread;
+			thread.start();
+			thread.join();
+		}
+
+		// on ble-io, from inside the session
+		@Override
+		public void wakeAt(long deadlineNanos)
+		{
+			wakeAtNanos = deadlineNanos;
+		}
+
+		// on the decision thread: the closest distance for ble-io to hand the session, one wakeup per batch
+		private void requestRate(int closest)
+		{
+			closestMm = closest;
+			if (session.getNotifyRatePolicy() != null && ratePending.compareAndSet(false, true))
+				LockSupport.unpark(bleThread);
+		}
+
+		@Override
+		public void onConnected()
+		{
+		}
+
+		@Override
+		public void onDisconnected()
+		{
+			// the app goes quiet until the session has the link back; a new link restarts the sequence numbers too
+			scheduler.silence();
+			decoder.reset();
+		}
+
+		@Override
+		public void onServicesDiscovered()
+		{
+		}
+
+		@Override
+		public void onFirstSample(long connectNanos, long linkDropNanos)
+		{
+			if (firstSamples < firstSampleNanos.length)
+				firstSampleNanos[firstSamples++] = connectNanos;
+			if (linkDropNanos >= 0 && linkDrops < this.linkDropNanos.length)
+				this.linkDropNanos[linkDrops++] = linkDropNanos;
+		}
+
+		@Override
+		public void onLinkReady(LinkNegotiator negotiator)
+		{
+		}
+
+		@Override
+		public void onReconnecting(int attempt, long delayNanos)
+		{
+		}
+
+		@Override
+		public void onGaveUp()
+		{
+			System.err.println("gave up reconnecting");
+		}
+
+		@Override
+		public void onSampleAvailable(SampleChannel channel)
+		{
+			final long received = System.nanoTime();
+			while (channel.poll(sample))
+			{
+				onSample(received);
+			}
+		}
+
+		private void onSample(long received)
+		{
+			if (!decoder.decode(sample.buffer, frame))
+			{
+				return;
+			}
+			// recorded the way ProximityDataClass does, so the cost is in the numbers
+			recorder.record(FlightRecorder.SAMPLE, sample.arrivalNanos,
+					(long) frame.sequence << 16 | frame.sensorCount << 8 | frame.sampleCount, FlightRecorder.packDistances(frame));
+			if (sessionRecorder != null)
+				sessionRecorder.record(frame, sample.arrivalNanos);
+			final long state = decision.decide(frame, sample.arrivalNanos);
+			final long done = System.nanoTime();
+			scheduler.publishState(state, sample.arrivalNanos, done);
+			PipelineLatency.get().onDecision(sample.arrivalNanos, received, done);
+			recorder.record(FlightRecorder.DECISION, done, state, decision.getClosestDistanceMm());
+			requestRate(decision.getClosestDistanceMm());
+
+			decoded++;
+			if (latencies < pipelineNanos.length)
+			{
+				pipelineNanos[latencies] = done - sample.arrivalNanos;
+				endToEndNanos[latencies] = done - peripheral.getSampleNanos(frame.sequence);
+				arrivalNanos[latencies] = sample.arrivalNanos;
+				latencies++;
+			}
+		}
+	}
+
+	private static void printLatency(String name, long[] nanos, int count)
+	{
+		if (count == 0)
+		{
+			System.out.println(name + ": nothing got through");
+			return;
+		}
+		final long[] sorted = Arrays.copyOf(nanos, count);
+		Arrays.sort(sorted);
+		System.out.printf("%s: p50=%.1fus  p99=%.1fus  p99.9=%.1fus  max=%.1fus%n", name,
+				sorted[count / 2] / 1e3, sorted[(int) (count * 0.99)] / 1e3, sorted[(int) (count * 0.999)] / 1e3, sorted[count - 1] / 1e3);
+	}
+
+	// how far apart notifications actually arrived compared to how far apart they were sent
+	private static void printJitter(long[] arrivals, int count, long periodNanos)
+	{
+		if (count < 2)
+		{
+			return;
+		}
+		double sumSquares = 0;
+		long worst = 0;
+		for (int i = 1; i < count; i++)
+		{
+			final long error = arrivals[i] - arrivals[i - 1] - periodNanos;
+			sumSquares += (double) error * error;
+			worst = Math.max(worst, Math.abs(error));
+		}
+		System.out.printf("arrival jitter: rms=%.1fus  worst=%.1fus (gaps from loss and reconnects included)%n",
+				Math.sqrt(sumSquares / (count - 1)) / 1e3, worst / 1e3);
+	}
+}
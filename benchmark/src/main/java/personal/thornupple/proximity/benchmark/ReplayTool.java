@@ -0,0 +1,207 @@
+package personal.thornupple.proximity.benchmark;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+import personal.thornupple.proximity.AlertProfile;
+import personal.thornupple.proximity.FrameDecoder;
+import personal.thornupple.proximity.ProximityDecision;
+import personal.thornupple.proximity.ReplayEngine;
+import personal.thornupple.proximity.SensorFilter;
+import personal.thornupple.proximity.SensorLayout;
+import personal.thornupple.proximity.SessionReader;
+import personal.thornupple.proximity.SessionRecorder;
+import personal.thornupple.proximity.VelocityEstimator;
+
+/*******************************************
+ /***** REPLAY TOOL ****
+ /*******************************************
+ ./gradlew :benchmark:replay --args="session.csv [--summary] [--filter=median|median5|ema|kalman|none] [--no-ttc] [--profile=indoor|outdoor|doorway] [--free-running]"
+
+ replays a recorded session (csv of timestampMs,right,center,left in cm) through the replay engine and
+ prints the alert timeline, one line per tone start/stop, with times relative to the first frame.
+ a recording with some other number of distance columns is replayed against a ring of that many sensors.
+ a directory of SessionRecorder segments (files/sessions/ off the phone) or one .pxsr segment replays the
+ same way, on the wall clock the phone recorded.
+ --summary skips the timeline and only prints the totals
+ --filter picks the per sensor filter (default median); run with none to see how many tone starts and
+          tone changes the filter and hysteresis save on a given trace
+ --no-ttc alerts on distance alone, to compare against time to contact on approach traces
+ --profile picks the AlertProfile (default indoor), to hear what a session would have sounded like with another
+ --free-running turns the tone scheduler's phase lock off, so the pulses keep the profile's own cadence; the
+          totals line's restarts and gap jitter (how much one start-to-start gap differs from the next) show
+          what locking to the frames buys on a given trace
+ /*******************************************/
+public class ReplayTool
+{
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 1)
+		{
+			System.err.println("usage: ReplayTool <session.csv|sessions/|segment.pxsr> [--summary] [--filter=median|median5|ema|kalman|none] [--no-ttc] [--profile=indoor|outdoor|doorway] [--free-running]");
+			System.exit(2);
+		}
+
+		boolean summary = false;
+		boolean timeToContact = true;
+		boolean phaseLock = true;
+		String filterName = "median";
+		String profileName = AlertProfile.INDOOR;
+		for (int i = 1; i < args.length; i++)
+		{
+			if ("--summary".equals(args[i]))
+				summary = true;
+			else if ("--no-ttc".equals(args[i]))
+				timeToContact = false;
+			else if ("--free-running".equals(args[i]))
+				phaseLock = false;
+			else if (args[i].startsWith("--filter="))
+				filterName = args[i].substring("--filter=".length());
+			else if (args[i].startsWith("--profile="))
+				profileName = args[i].substring("--profile=".length());
+		}
+		final boolean summaryOnly = summary;
+
+		final PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+		final long[] origin = {Long.MIN_VALUE};
+
+		final ReplayEngine.TimelineListener timeline = new ReplayEngine.TimelineListener()
+		{
+			@Override
+			public void onToneStart(long timeNanos, int tone, int durationMs)
+			{
+				if (!summaryOnly)
+					out.printf("%10.3f  START  tone=%d  on=%s%n", seconds(timeNanos - origin[0]), tone, durationMs > 0 ? durationMs + "ms" : "solid");
+			}
+
+			@Override
+			public void onToneStop(long timeNanos)
+			{
+				if (!summaryOnly)
+					out.printf("%10.3f  STOP%n", seconds(timeNanos - origin[0]));
+			}
+		};
+
+		// the layout comes from the first row, so the engine is made once we have seen it
+		ReplayEngine engine = null;
+		int[] distancesMm = null;
+		final long wallStart = System.nanoTime();
+
+		final File input = new File(args[0]);
+		if (input.isDirectory() || input.getName().endsWith(SessionRecorder.EXTENSION))
+		{
+			try (SessionReader reader = SessionReader.open(input))
+			{
+				final SessionReader.Sample sample = new SessionReader.Sample();
+				while (reader.next(sample))
+				{
+					final long timestampNanos = TimeUnit.MILLISECONDS.toNanos(sample.wallTimeMs);
+					if (engine == null)
+					{
+						final SensorLayout layout = sample.sensorCount == FrameDecoder.LEGACY_BYTES
+								? SensorLayout.legacy() : SensorLayout.ring(sample.sensorCount);
+						engine = new ReplayEngine(makeDecision(layout, filterName, timeToContact, profileName), timeline);
+						engine.setPhaseLock(phaseLock);
+						distancesMm = new int[layout.getCount()];
+						origin[0] = timestampNanos;
+						engine.advanceTo(timestampNanos);
+					}
+					if (sample.sensorCount != distancesMm.length)
+					{
+						continue;   // a segment from another chair
+					}
+					System.arraycopy(sample.distancesMm, 0, distancesMm, 0, distancesMm.length);
+					engine.onFrame(timestampNanos, distancesMm);
+				}
+			}
+		}
+		else
+		{
+			try (BufferedReader reader = new BufferedReader(new FileReader(input)))
+			{
+				String line;
+				while ((line = reader.readLine()) != null)
+				{
+					line = line.trim();
+					if (line.isEmpty() || !Character.isDigit(line.charAt(0)))
+					{
+						continue;   // header or comment
+					}
+					final String[] fields = line.split(",");
+					final long timestampNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(fields[0].trim()));
+					if (engine == null)
+					{
+						final SensorLayout layout = fields.length - 1 == FrameDecoder.LEGACY_BYTES
+								? SensorLayout.legacy() : SensorLayout.ring(fields.length - 1);
+						engine = new ReplayEngine(makeDecision(layout, filterName, timeToContact, profileName), timeline);
+						engine.setPhaseLock(phaseLock);
+						distancesMm = new int[layout.getCount()];
+						origin[0] = timestampNanos;
+						engine.advanceTo(timestampNanos);
+					}
+					// the columns are in sensor order, same as the frame
+					for (int sensor = 0; sensor < distancesMm.length; sensor++)
+					{
+						distancesMm[sensor] = Integer.parseInt(fields[sensor + 1].trim()) * 10;
+					}
+					engine.onFrame(timestampNanos, distancesMm);
+				}
+			}
+		}
+		if (engine == null)
+		{
+			System.err.println("no frames in " + args[0]);
+			System.exit(1);
+		}
+		engine.finish();
+
+		final long wallNanos = System.nanoTime() - wallStart;
+		final long sessionNanos = engine.getNowNanos() - origin[0];
+		out.printf("sensors=%d  frames=%d  tone starts=%d  tone changes=%d  session=%.1fs  replay=%.3fs  speed=%.0fx real time%n",
+				distancesMm.length, engine.getFrameCount(), engine.getToneStartCount(), engine.getToneChangeCount(), seconds(sessionNanos),
+				seconds(wallNanos), wallNanos == 0 ? 0.0 : (double) sessionNanos / wallNanos);
+		out.printf("phase lock=%s  restarts=%d  gap jitter=%.1fms  state age at start=%.1fms mean, %.1fms max%n",
+				phaseLock ? "on" : "off", engine.getRestartCount(), engine.getGapJitterNanos() / 1e6,
+				engine.getMeanStateAgeNanos() / 1e6, engine.getMaxStateAgeNanos() / 1e6);
+		out.flush();
+	}
+
+	private static ProximityDecision makeDecision(SensorLayout layout, String filterName, boolean timeToContact, String profileName)
+	{
+		final ProximityDecision decision = new ProximityDecision(layout, makeFilter(layout.getCount(), filterName),
+				timeToContact ? VelocityEstimator.defaults(layout.getCount()) : null,
+				ProximityDecision.DEFAULT_SWITCH_MARGIN_MM, ProximityDecision.DEFAULT_RELEASE_MARGIN_MM);
+		decision.setAlertProfile(AlertProfile.named(profileName, layout));
+		return decision;
+	}
+
+	private static SensorFilter makeFilter(int sensors, String name)
+	{
+		switch (name)
+		{
+			case "none":
+				return SensorFilter.none(sensors);
+			case "median":
+				return SensorFilter.median(sensors, 3);
+			case "median5":
+				return SensorFilter.median(sensors, 5);
+			case "ema":
+				return SensorFilter.ema(sensors, 0.5f);
+			case "kalman":
+				return SensorFilter.kalman(sensors, 400f, 1600f);
+			default:
+				throw new IllegalArgumentException("Unknown filter: " + name);
+		}
+	}
+
+	private static double seconds(long nanos)
+	{
+		return nanos / 1e9;
+	}
+}
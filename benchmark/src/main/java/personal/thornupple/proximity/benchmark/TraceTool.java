@@ -0,0 +1,171 @@
+package personal.thornupple.proximity.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import personal.thornupple.proximity.FlightRecorder;
+import personal.thornupple.proximity.GattTransport;
+import personal.thornupple.proximity.SensorFrame;
+import personal.thornupple.proximity.ToneScheduler;
+
+/*******************************************
+ /***** TRACE TOOL ****
+ /*******************************************
+ ./gradlew :benchmark:trace --args="trace.pxfr [--no-samples]"
+
+ prints a flight recorder dump (see FlightRecorder) as a timeline, one event per line, with the time since
+ the first event and the gap since the line before.  the wall clock of the first event is worked out from
+ the clock pair in the header.  events come out in the order they were recorded, so two threads recording
+ at the same moment can be a few us out of time order.  --no-samples leaves out the sample and decision
+ lines, which are most of them, to see the connection and tone story on its own
+ /*******************************************/
+public class TraceTool
+{
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 1)
+		{
+			System.err.println("usage: TraceTool <trace.pxfr> [--no-samples]");
+			System.exit(2);
+		}
+		final boolean samples = !(args.length > 1 && "--no-samples".equals(args[1]));
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0]))))
+		{
+			if (in.readInt() != FlightRecorder.MAGIC)
+			{
+				System.err.println(args[0] + " is not a flight recorder dump");
+				System.exit(1);
+			}
+			final int version = in.readUnsignedShort();
+			if (version != FlightRecorder.FILE_VERSION)
+			{
+				System.err.println("unknown trace version " + version);
+				System.exit(1);
+			}
+			final long wallMillis = in.readLong();
+			final long dumpNanos = in.readLong();
+			final int count = in.readInt();
+
+			final PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+			final StringBuilder line = new StringBuilder(128);
+			long first = 0;
+			long previous = 0;
+			final long[] counts = new long[FlightRecorder.TYPE_COUNT + 1];
+			for (int i = 0; i < count; i++)
+			{
+				final int type;
+				final long time;
+				final long a;
+				final long b;
+				try
+				{
+					type = in.readUnsignedByte();
+					time = in.readLong();
+					a = in.readLong();
+					b = in.readLong();
+				}
+				catch (EOFException exception)
+				{
+					out.println("(cut short after " + i + " of " + count + " events)");
+					break;
+				}
+				if (i == 0)
+				{
+					first = time;
+					previous = time;
+					final long firstWall = wallMillis - (dumpNanos - time) / 1_000_000L;
+					out.printf("%d events, first at %s%n", count, new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US).format(new Date(firstWall)));
+				}
+				counts[Math.min(type, FlightRecorder.TYPE_COUNT)]++;
+
+				if (samples || (type != FlightRecorder.SAMPLE && type != FlightRecorder.DECISION))
+				{
+					line.setLength(0);
+					line.append(String.format(Locale.US, "%10.3f ms  %+9.3f  %-15s ", (time - first) / 1e6, (time - previous) / 1e6, FlightRecorder.typeName(type)));
+					describe(line, type, a, b);
+					out.println(line);
+					previous = time;
+				}
+			}
+
+			out.println();
+			for (int type = 1; type < FlightRecorder.TYPE_COUNT; type++)
+			{
+				if (counts[type] > 0)
+					out.printf("%-15s %d%n", FlightRecorder.typeName(type), counts[type]);
+			}
+			out.flush();
+		}
+	}
+
+	private static void describe(StringBuilder line, int type, long a, long b)
+	{
+		switch (type)
+		{
+			case FlightRecorder.SAMPLE:
+				line.append("seq=").append(a >>> 16 & 0xFFFF)
+						.append(" sensors=").append(a >>> 8 & 0xFF)
+						.append(" samples=").append(a & 0xFF)
+						.append(" mm=");
+				for (int sensor = 0; sensor < Math.min(4, (int) (a >>> 8 & 0xFF)); sensor++)
+				{
+					final long mm = b >>> (sensor * 16) & 0xFFFF;
+					line.append(sensor == 0 ? "" : ",").append(mm == SensorFrame.NO_READING_MM ? "-" : String.valueOf(mm));
+				}
+				break;
+			case FlightRecorder.DECISION:
+				if (a == ToneScheduler.SILENT)
+					line.append("silent");
+				else
+					line.append("tone=").append(ToneScheduler.stateTone(a))
+							.append(" on=").append(ToneScheduler.stateOnMs(a)).append("ms")
+							.append(" period=").append(ToneScheduler.statePeriodMs(a)).append("ms");
+				line.append(" closest=").append(b).append("mm");
+				break;
+			case FlightRecorder.TONE_START:
+				line.append("tone=").append(a).append(b == 0 ? " solid" : " on=" + b + "ms");
+				break;
+			case FlightRecorder.TONE_STOP:
+				line.append("tone=").append(a);
+				break;
+			case FlightRecorder.BAD_FRAME:
+				line.append("length=").append(a);
+				break;
+			case FlightRecorder.GATT_FIRST_SAMPLE:
+				line.append(String.format(Locale.US, "%.1fms after connect", a / 1e6));
+				if (b >= 0)
+					line.append(String.format(Locale.US, ", %.1fms after the link dropped", b / 1e6));
+				break;
+			case FlightRecorder.GATT_LINK_READY:
+				line.append("mtu=").append(a)
+						.append(" phy=").append(phyName(b >>> 8)).append('/').append(phyName(b & 0xFF));
+				break;
+			case FlightRecorder.GATT_RECONNECTING:
+				line.append("attempt=").append(a).append(String.format(Locale.US, " in %.0fms", b / 1e6));
+				break;
+			case FlightRecorder.GATT_OP_FAILED:
+				line.append("op=").append(a).append(" arg=").append(b);
+				break;
+			case FlightRecorder.NOTIFY_INTERVAL:
+				line.append(a).append("ms");
+				break;
+			default:
+				break;
+		}
+	}
+
+	private static String phyName(long phy)
+	{
+		return phy == GattTransport.PHY_LE_2M ? "2M" : "1M";
+	}
+}